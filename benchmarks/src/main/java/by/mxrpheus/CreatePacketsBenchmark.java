@@ -0,0 +1,43 @@
+package by.mxrpheus;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Разбиение файла на пакеты (используется раздачей SUBSCRIBE) для файлов разного размера
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CreatePacketsBenchmark {
+    @Param({"16384", "1048576", "16777216"})
+    public int fileSize;
+
+    private Server server;
+    private File file;
+
+    @Setup
+    public void setup() throws IOException {
+        server = new Server();
+        file = File.createTempFile("create-packets", ".bin");
+        byte[] content = new byte[fileSize];
+        new Random(fileSize).nextBytes(content);
+        Files.write(file.toPath(), content);
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public byte[][] createPackets() throws IOException {
+        return server.createPackets(file, 0);
+    }
+}
@@ -0,0 +1,74 @@
+package by.mxrpheus;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Скользящее окно DownloadSession: отправка окна (retransmitIfNeeded) и его сдвиг (handleAck)
+// при разных размерах окна. Пакеты уходят в loopback-сокет, данные берутся из упреждающего чтения.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DownloadWindowBenchmark {
+    private static final int FILE_SIZE = 16 * 1024 * 1024;
+
+    @Param({"1", "5", "32", "128"})
+    public int window;
+
+    private LoopbackServer loopback;
+    private File file;
+    private Server.DownloadSession session;
+
+    @Setup
+    public void setup() throws IOException {
+        loopback = new LoopbackServer();
+        file = File.createTempFile("download-window", ".bin");
+        byte[] content = new byte[FILE_SIZE];
+        new Random(FILE_SIZE).nextBytes(content);
+        Files.write(file.toPath(), content);
+        newSession();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        session.close();
+        file.delete();
+        loopback.close();
+    }
+
+    // Полный цикл: отправить окно и подтвердить всё отправленное.
+    // Если упреждающее чтение не успевает, отправляется только загруженная часть окна.
+    @Benchmark
+    public void sendWindowAndAck() throws IOException {
+        session.retransmitIfNeeded();
+        int sent = session.sendTimes.size();
+        if (sent > 0) {
+            session.handleAck(SeqNum.wire(session.base + sent - 1));
+        }
+        if (session.base >= session.totalPackets) {
+            session.close();
+            newSession();
+        }
+    }
+
+    // Окно уже отправлено и таймауты не истекли: стоимость проверки окна без отправки
+    @Benchmark
+    public void checkWindowWithoutTimeouts() throws IOException {
+        session.retransmitIfNeeded();
+    }
+
+    private void newSession() throws IOException {
+        FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        session = loopback.server.new DownloadSession(loopback.sinkAddress, file.getName(), source, 0);
+        session.window = window;
+    }
+}
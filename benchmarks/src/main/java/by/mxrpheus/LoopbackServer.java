@@ -0,0 +1,37 @@
+package by.mxrpheus;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Selector;
+
+// Сервер без главного цикла: канал привязан к loopback на свободном порту,
+// пакеты отправляются в отдельный сокет-приёмник, который никто не читает
+// (при переполнении его буфера ядро просто отбрасывает датаграммы).
+// transfer – канал передачи, соединённый с приёмником, как у сессий сервера.
+class LoopbackServer implements AutoCloseable {
+    final Server server = new Server();
+    final DatagramChannel sink;
+    final SocketAddress sinkAddress;
+    final DatagramChannel transfer;
+
+    LoopbackServer() throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        server.channel = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0));
+        server.channel.configureBlocking(false);
+        server.selector = Selector.open();
+        sink = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0));
+        sinkAddress = sink.getLocalAddress();
+        transfer = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0)).connect(sinkAddress);
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.channel.close();
+        server.selector.close();
+        transfer.close();
+        sink.close();
+    }
+}
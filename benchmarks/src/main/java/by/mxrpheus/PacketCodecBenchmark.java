@@ -0,0 +1,57 @@
+package by.mxrpheus;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// Разбор заголовков пакетов передачи (processTransferPacket) и формирование/отправка ACK (sendAck)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketCodecBenchmark {
+    private LoopbackServer loopback;
+    private ByteBuffer dataPacket;
+    private ByteBuffer ackPacket;
+    private int seq;
+
+    @Setup
+    public void setup() throws IOException {
+        loopback = new LoopbackServer();
+        TransferPacket codec = new TransferPacket();
+        dataPacket = ByteBuffer.allocate(Server.PACKET_SIZE);
+        codec.wrap(dataPacket).encodeData(42, 1000);
+        dataPacket.put(new byte[Server.DATA_SIZE]);
+        dataPacket.flip();
+        ackPacket = codec.wrap(ByteBuffer.allocate(Server.HEADER_SIZE)).encodeAck(42).buffer();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        loopback.close();
+    }
+
+    // data-пакет без сессии загрузки: разбор заголовка на месте в буфере и выбор по типу;
+    // данные пакета не копируются и не читаются
+    @Benchmark
+    public void decodeDataPacket() throws IOException {
+        dataPacket.rewind();
+        loopback.server.processTransferPacket(dataPacket, null);
+    }
+
+    @Benchmark
+    public void decodeAckPacket() throws IOException {
+        ackPacket.rewind();
+        loopback.server.processTransferPacket(ackPacket, null);
+    }
+
+    // Кодирование ACK и системный вызов отправки в соединённый канал передачи на loopback
+    @Benchmark
+    public void encodeAndSendAck() throws IOException {
+        loopback.server.sendAck(loopback.transfer, seq++);
+    }
+}
@@ -0,0 +1,57 @@
+package by.mxrpheus;
+
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Общая часть реализаций AsyncClient: виртуальный поток на операцию и связь future с этим потоком
+abstract class AbstractAsyncClient implements AsyncClient {
+    // Передача прерывается, если столько времени нет ни данных, ни подтверждений
+    static final long IDLE_TIMEOUT_MS = Long.getLong("client.async.idleTimeoutMs", 10_000);
+
+    final InetSocketAddress server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    AbstractAsyncClient(InetSocketAddress server) {
+        this.server = server;
+    }
+
+    // Запуск операции в отдельном виртуальном потоке; отмена future прерывает поток
+    <T> CompletableFuture<T> submit(Callable<T> operation) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Future<?> task = executor.submit(() -> {
+            try {
+                result.complete(operation.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        result.whenComplete((value, error) -> {
+            if (result.isCancelled()) {
+                task.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public void close() {
+        executor.close();
+    }
+
+    // Проверка в циклах передачи: отмена операции и таймаут бездействия
+    static void checkProgress(long lastProgress, String what) throws IOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Операция " + what + " отменена");
+        }
+        if (System.currentTimeMillis() - lastProgress > IDLE_TIMEOUT_MS) {
+            throw new SocketTimeoutException("Таймаут " + what);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package by.mxrpheus;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+// Встраиваемый клиент с асинхронным API для пакетных заданий: операции не блокируют вызывающий поток,
+// а возвращают CompletableFuture. Каждая операция выполняется в своём виртуальном потоке через свой сокет,
+// поэтому один экземпляр ведёт сколько угодно передач одновременно, а сервер видит их как отдельные сессии.
+// Ошибки протокола и таймауты завершают future с IOException; cancel(true) прерывает передачу.
+// Потокобезопасен.
+public interface AsyncClient extends AutoCloseable {
+
+    enum Protocol { SERVER, UDP, TCP }
+
+    static AsyncClient open(Protocol protocol, InetSocketAddress server) {
+        return switch (protocol) {
+            case SERVER -> new ServerAsyncClient(server);
+            case UDP -> new UdpAsyncClient(server);
+            case TCP -> new TcpAsyncClient(server);
+        };
+    }
+
+    // Загрузка файла на сервер под его собственным именем
+    CompletableFuture<TransferResult> upload(Path file, TransferListener listener);
+
+    default CompletableFuture<TransferResult> upload(Path file) {
+        return upload(file, TransferListener.NONE);
+    }
+
+    // Скачивание файла name в target
+    CompletableFuture<TransferResult> download(String name, Path target, TransferListener listener);
+
+    default CompletableFuture<TransferResult> download(String name, Path target) {
+        return download(name, target, TransferListener.NONE);
+    }
+
+    // Ответ сервера на ECHO – отражённый текст
+    CompletableFuture<String> echo(String message);
+
+    // Ответ сервера на TIME как есть
+    CompletableFuture<String> time();
+
+    // Новые операции не принимаются; ждёт завершения уже начатых
+    @Override
+    void close();
+}
@@ -4,20 +4,37 @@ import java.io.*;
 import java.net.*;
 import java.nio.*;
 import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 public class Client {
-    private static final int PACKET_SIZE = 1024;
-    private static final int HEADER_SIZE = 9;
-    private static final int DATA_SIZE = PACKET_SIZE - HEADER_SIZE;
+    private static final int PACKET_SIZE = TransferPacket.PACKET_SIZE;
+    private static final int HEADER_SIZE = TransferPacket.HEADER_SIZE;
+    private static final int DATA_SIZE = TransferPacket.DATA_SIZE;
     private static final int WINDOW_SIZE = 5;
     private static final long TIMEOUT_MS = 500;
+    // Предлагаемая серверу политика ACK (см. AckPolicy); 1 – ACK на каждый пакет без согласования
+    private static final int ACK_EVERY = Integer.getInteger("client.ack.every", AckPolicy.MAX_EVERY);
+    private static final long ACK_DELAY_MS = Long.getLong("client.ack.delay.ms", AckPolicy.DEFAULT_DELAY_MS);
+    // Пейсинг загрузки (см. Pacer): выключатель и ограничение темпа, 0 – окно за RTT
+    private static final boolean PACING = Boolean.parseBoolean(System.getProperty("client.pacing", "true"));
+    private static final double PACING_RATE_MBIT = Double.parseDouble(System.getProperty("client.pacing.rateMbit", "0"));
+    // Первое окно загрузки уходит вслед за командой, не дожидаясь READY_FOR_UPLOAD (EARLY)
+    private static final boolean EARLY_START = Boolean.parseBoolean(System.getProperty("client.earlyStart", "true"));
 
     // Папка для хранения файлов на клиенте
     private static final String CLIENT_DIR = "client_files";
 
     private DatagramChannel channel;
+    private Selector selector;
     private InetSocketAddress serverAddress;
+    // Адрес, с которого пришёл последний ответ: на UPLOAD/DOWNLOAD сервер отвечает с порта,
+    // выделенного под передачу, и данные с ACK отправляются туда
+    private SocketAddress replyAddress;
+    // Разбор и сборка заголовков на месте (см. TransferPacket); ACK собирается в одном буфере
+    private final TransferPacket inbound = new TransferPacket();
+    private final TransferPacket outbound = new TransferPacket();
+    private final ByteBuffer ackBuffer = ByteBuffer.allocate(HEADER_SIZE);
 
     public static void main(String[] args) {
         new Client().start();
@@ -40,6 +57,8 @@ public class Client {
 
             channel = DatagramChannel.open();
             channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
 
             while (true) {
                 System.out.print("Введите команду: ");
@@ -52,22 +71,53 @@ public class Client {
                         continue;
                     }
                     String filename = parts[1];
-                    int offset = 0;
+                    long offset = 0;
                     if(parts.length >= 3) {
-                        try { offset = Integer.parseInt(parts[2]); } catch(NumberFormatException e) { offset = 0; }
+                        try { offset = Long.parseLong(parts[2]); } catch(NumberFormatException e) { offset = 0; }
                     }
-                    uploadFile(filename, offset);
+                    // DURABLE – сервер подтверждает пакеты только после сброса на диск
+                    boolean durable = line.toUpperCase().endsWith(" DURABLE");
+                    uploadFile(filename, offset, durable);
+                } else if(command.equals("DEDUP_UPLOAD")) {
+                    if(parts.length < 2) {
+                        System.out.println("Не указан файл для загрузки");
+                        continue;
+                    }
+                    dedupUpload(parts[1], line.toUpperCase().endsWith(" DURABLE"));
                 } else if(command.equals("DOWNLOAD")) {
                     if(parts.length < 2) {
                         System.out.println("Не указан файл для скачивания");
                         continue;
                     }
                     String filename = parts[1];
-                    int offset = 0;
+                    long offset = 0;
                     if(parts.length >= 3) {
-                        try { offset = Integer.parseInt(parts[2]); } catch(NumberFormatException e) { offset = 0; }
+                        try { offset = Long.parseLong(parts[2]); } catch(NumberFormatException e) { offset = 0; }
                     }
                     downloadFile(filename, offset);
+                } else if(command.equals("BATCH_UPLOAD") || command.equals("BATCH_DOWNLOAD")) {
+                    // Пакетная передача: каталог или маска ("dir", "dir/*.txt") одной сессией
+                    if(parts.length < 2) {
+                        System.out.println("Не указан каталог для пакетной передачи");
+                        continue;
+                    }
+                    long offset = -1;
+                    if(parts.length >= 3) {
+                        try { offset = Long.parseLong(parts[2]); } catch(NumberFormatException e) { offset = -1; }
+                    }
+                    if(command.equals("BATCH_UPLOAD")) {
+                        batchUpload(parts[1], Math.max(offset, 0), line.toUpperCase().endsWith(" DURABLE"));
+                    } else {
+                        batchDownload(parts[1], offset);
+                    }
+                } else if(command.equals("SUBSCRIBE")) {
+                    if(parts.length < 2) {
+                        System.out.println("Не указан файл для подписки");
+                        continue;
+                    }
+                    subscribeFile(parts[1]);
+                } else if(command.equals("BENCH")) {
+                    benchmark(line);
                 } else {
                     sendCommand("CMD:" + line);
                     String response = receiveCommand();
@@ -87,11 +137,15 @@ public class Client {
         channel.send(buf, serverAddress);
     }
 
-    // Получение управляющего сообщения от сервера
+    // Получение управляющего сообщения от сервера: ждём в селекторе, а не опрашиваем канал в цикле
     private String receiveCommand() throws IOException {
         ByteBuffer buf = ByteBuffer.allocate(PACKET_SIZE);
-        long start = System.currentTimeMillis();
-        while(System.currentTimeMillis() - start < 2000) {
+        long deadline = System.currentTimeMillis() + 2000;
+        long remaining;
+        while((remaining = deadline - System.currentTimeMillis()) > 0) {
+            selector.select(remaining);
+            selector.selectedKeys().clear();
+            buf.clear();
             SocketAddress addr = channel.receive(buf);
             if(addr != null) {
                 buf.flip();
@@ -99,6 +153,7 @@ public class Client {
                 buf.get(data);
                 String resp = new String(data);
                 if(resp.startsWith("CMD:")) {
+                    replyAddress = addr;
                     return resp.substring(4).trim();
                 }
             }
@@ -106,158 +161,446 @@ public class Client {
         return "No response";
     }
 
+    // Бенчмарк задержки ECHO (см. EchoBenchmark); запросы идут с отдельных сокетов,
+    // чтобы ответы не смешивались с управляющим каналом
+    private void benchmark(String line) {
+        try {
+            EchoBenchmark.parse(line).run(() -> new DatagramEchoChannel(serverAddress, "CMD:ECHO ", "CMD:ECHO "), System.out);
+        } catch(IllegalArgumentException e) {
+            System.out.println("Ошибка: " + e.getMessage());
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     // Загрузка файла (UPLOAD) с выводом прогресса передачи пакетов
-    private void uploadFile(String filename, int offset) {
+    private void uploadFile(String filename, long offset, boolean durable) {
         try {
-            sendCommand("CMD:UPLOAD " + filename + " " + offset);
-            String response = receiveCommand();
-            if(!response.startsWith("READY_FOR_UPLOAD")) {
-                System.out.println("Ошибка: " + response);
-                return;
-            }
             // Файл для загрузки берется из папки CLIENT_DIR
             File file = new File(CLIENT_DIR, filename);
             if(!file.exists()){
                 System.out.println("Файл не найден: " + file.getAbsolutePath());
                 return;
             }
-            byte[][] packets = createPackets(file, offset);
-            int base = offset;
-            int totalPackets = packets.length + offset;
-            Map<Integer, Long> sendTimes = new HashMap<>();
+            try(FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                sendPackets(source, offset, "CMD:UPLOAD " + filename + " " + offset + (durable ? " DURABLE" : "") + ackOption());
+            }
+        } catch(Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Загрузка без повторов: файл режется на фрагменты, по командам HAVE отправляются только те,
+    // которых на сервере ещё нет (см. DedupStream); поток всегда передаётся с начала
+    private void dedupUpload(String filename, boolean durable) {
+        File file = new File(CLIENT_DIR, filename);
+        if(!file.exists()){
+            System.out.println("Файл не найден: " + file.getAbsolutePath());
+            return;
+        }
+        try(DedupStream stream = DedupStream.open(file)) {
+            for(int i = 0; i < stream.getChunkCount(); i += Chunker.HAVE_BATCH) {
+                String response = "No response";
+                // Ответ HAVE мог потеряться – спрашиваем ещё раз
+                for(int attempt = 0; attempt < 3 && response.equals("No response"); attempt++) {
+                    sendCommand("CMD:" + stream.haveCommand(i));
+                    response = receiveCommand();
+                }
+                stream.applyHave(i, response);
+            }
+            System.out.println("Фрагментов: " + stream.getChunkCount() + ", уже на сервере " + stream.getSkippedBytes()
+                    + " из " + stream.getFileSize() + " байт, к передаче " + stream.size() + " байт");
+            sendPackets(stream, 0, "CMD:DEDUP_UPLOAD " + filename + " 0" + (durable ? " DURABLE" : "") + ackOption());
+        } catch(IOException e) {
+            System.out.println("Ошибка: " + e.getMessage());
+        }
+    }
+
+    // Пакетная загрузка: манифест и содержимое всех файлов каталога одним потоком
+    private void batchUpload(String spec, long offset, boolean durable) {
+        try(BatchStream stream = BatchStream.open(new File(CLIENT_DIR), spec)) {
+            System.out.println("Пакет " + stream.getName() + ": файлов " + stream.getFileCount() + ", байт " + stream.size());
             long startTime = System.currentTimeMillis();
-            System.out.println("Начало загрузки файла. Всего пакетов: " + packets.length);
-            while(base < totalPackets) {
-                int windowEnd = Math.min(totalPackets, base + WINDOW_SIZE);
-                for (int seq = base; seq < windowEnd; seq++) {
-                    int index = seq - offset;
-                    if(index >= 0 && index < packets.length) {
-                        if(!sendTimes.containsKey(seq) || (System.currentTimeMillis() - sendTimes.get(seq) > TIMEOUT_MS)) {
-                            ByteBuffer buf = ByteBuffer.wrap(packets[index]);
-                            channel.send(buf, serverAddress);
-                            sendTimes.put(seq, System.currentTimeMillis());
-                            System.out.println("Отправлен пакет " + seq + " (номер " + (seq - offset + 1) + " из " + packets.length + ")");
-                        }
-                    }
+            if(!sendPackets(stream, offset, "CMD:BATCH_UPLOAD " + spec + " " + offset + (durable ? " DURABLE" : "") + ackOption())) {
+                return;
+            }
+            double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+            System.out.printf("Передано файлов: %d (%.1f файлов/с)%n", stream.getFileCount(), stream.getFileCount() / seconds);
+        } catch(Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Команда загрузки и потоковая отправка со скользящим окном: в памяти только пакеты текущего окна,
+    // буфер подтверждённого пакета заполняется следующим куском источника.
+    // С EARLY первое окно уходит на управляющий порт сразу за командой; сервер, принявший его,
+    // отвечает READY_FOR_UPLOAD ... EARLY, иначе окно повторяется на порт передачи.
+    // Номера пакетов 64-битные, в заголовке – младшие 32 бита (см. SeqNum); полное число пакетов
+    // сообщается в команде (TOTAL). Возвращает false, если сервер отказал в загрузке
+    private boolean sendPackets(SeekableByteChannel source, long offset, String command) throws IOException {
+        long bytes = Math.max(0, source.size() - offset * DATA_SIZE);
+        long numPackets = (bytes + DATA_SIZE - 1) / DATA_SIZE;
+        long totalPackets = numPackets + offset;
+        ByteBuffer[] window = new ByteBuffer[WINDOW_SIZE];
+        long[] sendTimes = new long[WINDOW_SIZE]; // 0 – пакет слота ещё не отправлялся
+        long[] firstSent = new long[WINDOW_SIZE]; // System.nanoTime() первой отправки; -1 – отправлялся повторно
+        // Пакеты окна уходят по расписанию пейсера, темп – по RTT из замеров ACK
+        Pacer pacer = new Pacer(PACING, PACING_RATE_MBIT, WINDOW_SIZE * PACKET_SIZE);
+        for(int i = 0; i < WINDOW_SIZE; i++) {
+            window[i] = ByteBuffer.allocate(PACKET_SIZE);
+        }
+        ByteBuffer ackBuf = ByteBuffer.allocate(HEADER_SIZE);
+        source.position(offset * DATA_SIZE);
+        long base = offset;
+        long loaded = offset; // пакеты до loaded уже прочитаны из источника
+        long early = EARLY_START ? Math.min(totalPackets, offset + WINDOW_SIZE) : offset;
+        while(loaded < early) {
+            fillPacket(window[(int) (loaded % WINDOW_SIZE)], source, loaded, totalPackets);
+            loaded++;
+        }
+        long startTime = System.currentTimeMillis();
+        command += " TOTAL " + totalPackets;
+        sendCommand(early > offset ? command + " EARLY" : command);
+        for(long seq = offset; seq < early; seq++) {
+            int slot = (int) (seq % WINDOW_SIZE);
+            int length = channel.send(window[slot], serverAddress);
+            long sentNs = System.nanoTime();
+            pacer.onSend(length, sentNs);
+            firstSent[slot] = sentNs;
+            sendTimes[slot] = System.currentTimeMillis();
+        }
+        String response = receiveCommand();
+        if(!response.startsWith("READY_FOR_UPLOAD")) {
+            System.out.println("Ошибка: " + response);
+            return false;
+        }
+        if(early > offset && !response.endsWith(" EARLY")) {
+            // Сервер не принял первое окно – отправляем его заново на порт передачи
+            Arrays.fill(sendTimes, 0);
+        }
+        System.out.println("Начало загрузки файла. Всего пакетов: " + numPackets);
+        while(base < totalPackets) {
+            long windowEnd = Math.min(totalPackets, base + WINDOW_SIZE);
+            while(loaded < windowEnd) {
+                int slot = (int) (loaded % WINDOW_SIZE);
+                fillPacket(window[slot], source, loaded, totalPackets);
+                sendTimes[slot] = 0;
+                loaded++;
+            }
+            long now = System.currentTimeMillis();
+            long nextResend = Long.MAX_VALUE;
+            for (long seq = base; seq < windowEnd; seq++) {
+                int slot = (int) (seq % WINDOW_SIZE);
+                if(sendTimes[slot] == 0 || now - sendTimes[slot] > TIMEOUT_MS) {
+                    window[slot].rewind();
+                    pacer.await();
+                    int length = channel.send(window[slot], replyAddress);
+                    long sentNs = System.nanoTime();
+                    pacer.onSend(length, sentNs);
+                    firstSent[slot] = sendTimes[slot] == 0 ? sentNs : -1;
+                    sendTimes[slot] = System.currentTimeMillis();
+                    System.out.println("Отправлен пакет " + seq + " (номер " + (seq - offset + 1) + " из " + numPackets + ")");
                 }
-                ByteBuffer ackBuf = ByteBuffer.allocate(HEADER_SIZE);
-                SocketAddress ackAddr = channel.receive(ackBuf);
-                if(ackAddr != null) {
-                    ackBuf.flip();
-                    byte type = ackBuf.get();
-                    if(type == 1) {
-                        int ackNum = ackBuf.getInt();
-                        ackBuf.getInt(); // резерв
-                        if(ackNum >= base) {
-                            base = ackNum + 1;
-                            Iterator<Integer> it = sendTimes.keySet().iterator();
-                            while(it.hasNext()){
-                                int seq = it.next();
-                                if(seq <= ackNum) it.remove();
-                            }
-                            int uploadedPackets = base - offset;
-                            double progress = (uploadedPackets * 100.0) / packets.length;
-                            System.out.printf("Прогресс загрузки: %d/%d пакетов (%.2f%%)%n", uploadedPackets, packets.length, progress);
+                nextResend = Math.min(nextResend, sendTimes[slot] + TIMEOUT_MS + 1);
+            }
+            // ACK ждём в селекторе не дольше, чем до ближайшей повторной отправки
+            long wait = nextResend - System.currentTimeMillis();
+            if(wait > 0) selector.select(wait);
+            selector.selectedKeys().clear();
+            ackBuf.clear();
+            while(channel.receive(ackBuf) != null) {
+                ackBuf.flip();
+                TransferPacket ack = inbound.wrap(ackBuf);
+                if(ack.hasHeader() && ack.type() == TransferPacket.ACK) {
+                    long ackNum = SeqNum.unwrap(base, ack.ackNum());
+                    if(ackNum >= base && ackNum < totalPackets) {
+                        long sentNs = firstSent[(int) (ackNum % WINDOW_SIZE)];
+                        if(sentNs > 0) {
+                            pacer.onRtt(System.nanoTime() - sentNs);
                         }
+                        base = ackNum + 1;
+                        long uploadedPackets = base - offset;
+                        double progress = (uploadedPackets * 100.0) / numPackets;
+                        System.out.printf("Прогресс загрузки: %d/%d пакетов (%.2f%%)%n", uploadedPackets, numPackets, progress);
                     }
                 }
+                ackBuf.clear();
+            }
+        }
+        long endTime = System.currentTimeMillis();
+        double bitrate = (bytes * 8.0) / (Math.max(1, endTime - startTime) / 1000.0);
+        System.out.println("Загрузка завершена. Битрейт: " + bitrate + " бит/с");
+        return true;
+    }
+
+    // Заполняет буфер пакета заголовком и очередным куском источника (источник читается последовательно)
+    private void fillPacket(ByteBuffer packet, SeekableByteChannel source, long seq, long totalPackets) throws IOException {
+        outbound.wrap(packet.clear()).encodeData(seq, totalPackets);
+        while(packet.hasRemaining() && source.read(packet) > 0) {
+        }
+        if(packet.position() == HEADER_SIZE) {
+            throw new EOFException("Источник закончился раньше ожидаемого на пакете " + seq);
+        }
+        packet.flip();
+    }
+
+    // Скачивание файла (DOWNLOAD). Сохраняем в папку CLIENT_DIR с префиксом "downloaded_"
+    private void downloadFile(String filename, long offset) {
+        try {
+            sendCommand("CMD:DOWNLOAD " + filename + " " + offset + ackOption());
+            String response = receiveCommand();
+            if(!response.startsWith("READY_FOR_DOWNLOAD")) {
+                System.out.println("Ошибка: " + response);
+                return;
+            }
+            // Ответ: READY_FOR_DOWNLOAD filename offset totalPackets [ACK n]
+            String[] parts = response.split(" ");
+            if(parts.length < 4) {
+                System.out.println("Некорректный ответ сервера");
+                return;
+            }
+            long startSeq = offset;
+            long totalPackets = Long.parseLong(parts[3]);
+            // Формируем путь для сохранения файла в папке CLIENT_DIR
+            File outFile = new File(CLIENT_DIR, "downloaded_" + filename);
+            long startTime = System.currentTimeMillis();
+            try(RandomAccessFile raf = new RandomAccessFile(outFile, "rw")) {
+                raf.seek(startSeq * DATA_SIZE);
+                receivePackets(startSeq, totalPackets, raf.getChannel(), negotiatedAck(parts));
             }
             long endTime = System.currentTimeMillis();
-            long fileSize = file.length() - (long) offset * DATA_SIZE;
-            double bitrate = (fileSize * 8.0) / ((endTime - startTime) / 1000.0);
-            System.out.println("Загрузка завершена. Битрейт: " + bitrate + " бит/с");
+            double bitrate = (outFile.length() * 8.0) / ((endTime - startTime) / 1000.0);
+            System.out.println("Скачивание завершено. Файл сохранён: " + outFile.getAbsolutePath());
+            System.out.println("Битрейт: " + bitrate + " бит/с");
         } catch(Exception e) {
             e.printStackTrace();
         }
     }
 
-    // Скачивание файла (DOWNLOAD). Сохраняем в папку CLIENT_DIR с префиксом "downloaded_"
-    private void downloadFile(String filename, int offset) {
+    // Пакетное скачивание в CLIENT_DIR/<каталог>. Без явного смещения продолжаем с точки,
+    // сохранённой в манифесте прерванной передачи.
+    private void batchDownload(String spec, long offset) {
         try {
-            sendCommand("CMD:DOWNLOAD " + filename + " " + offset);
+            File targetDir = new File(CLIENT_DIR, BatchStream.batchName(spec));
+            if(offset < 0) {
+                offset = BatchReceiver.resumeOffset(targetDir) / DATA_SIZE;
+            }
+            sendCommand("CMD:BATCH_DOWNLOAD " + spec + " " + offset + ackOption());
             String response = receiveCommand();
             if(!response.startsWith("READY_FOR_DOWNLOAD")) {
                 System.out.println("Ошибка: " + response);
                 return;
             }
-            // Ответ: READY_FOR_DOWNLOAD filename offset totalPackets
             String[] parts = response.split(" ");
             if(parts.length < 4) {
                 System.out.println("Некорректный ответ сервера");
                 return;
             }
-            int startSeq = offset;
-            int totalPackets = Integer.parseInt(parts[3]);
-            // Формируем путь для сохранения файла в папке CLIENT_DIR
+            long totalPackets = Long.parseLong(parts[3]);
+            long startTime = System.currentTimeMillis();
+            int files;
+            try(BatchReceiver receiver = new BatchReceiver(targetDir, offset * DATA_SIZE)) {
+                receiver.expectPackets(totalPackets, DATA_SIZE);
+                receivePackets(offset, totalPackets, receiver, negotiatedAck(parts));
+                files = receiver.getFileCount();
+            }
+            double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+            System.out.printf("Пакет сохранён в %s: файлов %d (%.1f файлов/с)%n", targetDir.getAbsolutePath(), files, files / seconds);
+        } catch(Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Приём data-пакетов по порядку; данные пишутся в sink. ACK кумулятивный (последний номер,
+    // полученный по порядку) и отправляется по согласованной политике: на каждый ackEvery-й пакет,
+    // по истечении задержки, сразу – на повтор, разрыв и последний пакет
+    private void receivePackets(long startSeq, long totalPackets, WritableByteChannel sink, int ackEvery) throws IOException {
+        AckPolicy ackPolicy = new AckPolicy(ackEvery, ACK_DELAY_MS);
+        long expectedSeq = startSeq;
+        ByteBuffer buf = ByteBuffer.allocate(PACKET_SIZE);
+        System.out.println("Начало скачивания файла. Всего пакетов: " + (totalPackets - startSeq));
+        while(expectedSeq < totalPackets) {
+            // Пока есть неподтверждённые пакеты, ждём не дольше срока отложенного ACK
+            selector.select(ackPolicy.millisUntilDue(System.nanoTime()));
+            selector.selectedKeys().clear();
+            if(ackPolicy.isDue(System.nanoTime())) {
+                sendAck(expectedSeq - 1);
+                ackPolicy.acked();
+            }
+            buf.clear();
+            while(channel.receive(buf) != null) {
+                buf.flip();
+                TransferPacket packet = inbound.wrap(buf);
+                if(packet.hasHeader() && packet.type() == TransferPacket.DATA) {
+                    long seqNum = SeqNum.unwrap(expectedSeq, packet.seq());
+                    boolean ackNow;
+                    if(seqNum == expectedSeq) {
+                        sink.write(packet.payload());
+                        expectedSeq++;
+                        long downloadedPackets = expectedSeq - startSeq;
+                        double progress = (downloadedPackets * 100.0) / (totalPackets - startSeq);
+                        System.out.printf("Прогресс скачивания: %d/%d пакетов (%.2f%%)%n", downloadedPackets, totalPackets - startSeq, progress);
+                        ackNow = ackPolicy.onInOrder(System.nanoTime()) || expectedSeq >= totalPackets;
+                    } else {
+                        ackNow = ackPolicy.onOutOfOrder();
+                    }
+                    if(ackNow) {
+                        sendAck(expectedSeq - 1);
+                        ackPolicy.acked();
+                    }
+                }
+                buf.clear();
+            }
+        }
+    }
+
+    private void sendAck(long ackNum) throws IOException {
+        outbound.wrap(ackBuffer.clear()).encodeAck(ackNum);
+        channel.send(ackBuffer, replyAddress);
+    }
+
+    // Суффикс команды передачи с предложением отложенных ACK
+    private static String ackOption() {
+        return ACK_EVERY > 1 ? " ACK " + ACK_EVERY : "";
+    }
+
+    // Принятая сервером политика ACK из ответа "READY_FOR_... ACK n"; 1 – не согласована
+    private static int negotiatedAck(String[] parts) {
+        for(int i = 2; i + 1 < parts.length; i++) {
+            if(parts[i].equals("ACK")) {
+                try {
+                    return Integer.parseInt(parts[i + 1]);
+                } catch(NumberFormatException e) {
+                    return 1;
+                }
+            }
+        }
+        return 1;
+    }
+
+    // Получение файла из раздачи (SUBSCRIBE): пакеты пишутся по своим смещениям,
+    // после каждого раунда серверу отправляется NACK с недостающими диапазонами
+    private void subscribeFile(String filename) {
+        DatagramChannel groupChannel = null;
+        try {
+            sendCommand("CMD:SUBSCRIBE " + filename);
+            String response = receiveCommand();
+            if(!response.startsWith("READY_FOR_MULTICAST")) {
+                System.out.println("Ошибка: " + response);
+                return;
+            }
+            // Ответ: READY_FOR_MULTICAST filename totalPackets group port
+            String[] parts = response.split(" ");
+            if(parts.length < 5) {
+                System.out.println("Некорректный ответ сервера");
+                return;
+            }
+            int totalPackets = Integer.parseInt(parts[2]); // сервер раздаёт не больше Integer.MAX_VALUE пакетов
+            DatagramChannel dataChannel = channel;
+            if(!parts[3].equals("-")) {
+                InetAddress group = InetAddress.getByName(parts[3]);
+                groupChannel = DatagramChannel.open(StandardProtocolFamily.INET)
+                        .setOption(StandardSocketOptions.SO_REUSEADDR, true)
+                        .bind(new InetSocketAddress(Integer.parseInt(parts[4])));
+                groupChannel.join(group, multicastInterface());
+                groupChannel.configureBlocking(false);
+                dataChannel = groupChannel;
+            }
             File outFile = new File(CLIENT_DIR, "downloaded_" + filename);
+            outFile.delete();
             RandomAccessFile raf = new RandomAccessFile(outFile, "rw");
-            int expectedSeq = startSeq;
+            BitSet received = new BitSet(totalPackets);
+            int receivedCount = 0; // received.cardinality() без обхода всего набора на каждой итерации
             long startTime = System.currentTimeMillis();
-            System.out.println("Начало скачивания файла. Всего пакетов: " + (totalPackets - offset));
-            while(expectedSeq < totalPackets) {
-                ByteBuffer buf = ByteBuffer.allocate(PACKET_SIZE);
-                SocketAddress addr = channel.receive(buf);
-                if(addr != null) {
-                    buf.flip();
-                    byte packetType = buf.get();
-                    if(packetType == 0) {
-                        int seqNum = buf.getInt();
-                        buf.getInt(); // общее число пакетов (не используется здесь)
-                        byte[] data = new byte[buf.remaining()];
-                        buf.get(data);
-                        if(seqNum == expectedSeq) {
-                            raf.write(data);
-                            expectedSeq++;
-                            int downloadedPackets = expectedSeq - offset;
-                            double progress = (downloadedPackets * 100.0) / (totalPackets - offset);
-                            System.out.printf("Прогресс скачивания: %d/%d пакетов (%.2f%%)%n", downloadedPackets, totalPackets - offset, progress);
+            long lastPacketTime = startTime;
+            int idleCount = 0;
+            System.out.println("Подписка на раздачу файла. Всего пакетов: " + totalPackets);
+            ByteBuffer buf = ByteBuffer.allocate(PACKET_SIZE);
+            while(receivedCount < totalPackets) {
+                buf.clear();
+                SocketAddress addr = dataChannel.receive(buf);
+                if(addr == null && dataChannel != channel) {
+                    addr = channel.receive(buf);
+                }
+                if(addr == null) {
+                    // Маркер конца раунда мог потеряться – напоминаем о себе
+                    if(System.currentTimeMillis() - lastPacketTime > 2000) {
+                        if(++idleCount >= 10) {
+                            System.out.println("Раздача не отвечает, получено " + receivedCount + "/" + totalPackets + " пакетов");
+                            break;
                         }
-                        // Отправляем ACK
-                        ByteBuffer ackBuf = ByteBuffer.allocate(HEADER_SIZE);
-                        ackBuf.put((byte)1);
-                        ackBuf.putInt(expectedSeq - 1);
-                        ackBuf.putInt(0);
-                        ackBuf.flip();
-                        channel.send(ackBuf, serverAddress);
+                        sendNack(filename, received, totalPackets);
+                        lastPacketTime = System.currentTimeMillis();
                     }
+                    Thread.sleep(1);
+                    continue;
+                }
+                lastPacketTime = System.currentTimeMillis();
+                idleCount = 0;
+                buf.flip();
+                TransferPacket packet = inbound.wrap(buf);
+                if(!packet.hasHeader()) continue;
+                byte packetType = packet.type();
+                int seqNum = packet.seq();
+                if(packet.totalPackets() != totalPackets) continue; // пакет другого файла
+                if(packetType == TransferPacket.DATA && seqNum >= 0 && seqNum < totalPackets && !received.get(seqNum)) {
+                    raf.seek((long) seqNum * DATA_SIZE);
+                    raf.getChannel().write(packet.payload());
+                    received.set(seqNum);
+                    receivedCount++;
+                } else if(packetType == TransferPacket.ROUND_END) {
+                    System.out.printf("Раунд %d завершён: получено %d/%d пакетов%n", seqNum, receivedCount, totalPackets);
+                    sendNack(filename, received, totalPackets);
                 }
             }
+            if(receivedCount == totalPackets) {
+                sendNack(filename, received, totalPackets);
+            }
             long endTime = System.currentTimeMillis();
             raf.close();
             double bitrate = (outFile.length() * 8.0) / ((endTime - startTime) / 1000.0);
-            System.out.println("Скачивание завершено. Файл сохранён: " + outFile.getAbsolutePath());
+            System.out.println("Раздача получена. Файл сохранён: " + outFile.getAbsolutePath());
             System.out.println("Битрейт: " + bitrate + " бит/с");
         } catch(Exception e) {
             e.printStackTrace();
+        } finally {
+            if(groupChannel != null) {
+                try { groupChannel.close(); } catch(IOException ignored) { }
+            }
         }
     }
 
-    // Разбивает файл на пакеты (аналогично серверу)
-    private byte[][] createPackets(File file, int offset) throws IOException {
-        long fileSize = file.length();
-        long remainingBytes = fileSize - (long)offset * DATA_SIZE;
-        int numPackets = (int)Math.ceil(remainingBytes / (double)DATA_SIZE);
-        byte[][] packets = new byte[numPackets][];
-        RandomAccessFile raf = new RandomAccessFile(file, "r");
-        raf.seek((long) offset * DATA_SIZE);
-        for (int i = 0; i < numPackets; i++) {
-            ByteBuffer dataBuf = ByteBuffer.allocate(DATA_SIZE);
-            int bytesRead = raf.getChannel().read(dataBuf);
-            if(bytesRead <= 0) break;
-            dataBuf.flip();
-            byte[] data = new byte[bytesRead];
-            dataBuf.get(data);
-            ByteBuffer packetBuf = ByteBuffer.allocate(HEADER_SIZE + bytesRead);
-            packetBuf.put((byte)0);
-            packetBuf.putInt(i + offset);
-            packetBuf.putInt(numPackets + offset);
-            packetBuf.put(data);
-            packetBuf.flip();
-            byte[] packetData = new byte[packetBuf.remaining()];
-            packetBuf.get(packetData);
-            packets[i] = packetData;
+    // NACK со списком недостающих диапазонов; список обрезается, чтобы команда поместилась в один пакет
+    private void sendNack(String filename, BitSet received, int totalPackets) throws IOException {
+        StringBuilder cmd = new StringBuilder("CMD:NACK " + filename);
+        int from = received.nextClearBit(0);
+        boolean first = true;
+        while(from < totalPackets) {
+            int to = Math.min(received.nextSetBit(from), totalPackets);
+            if(to < 0) to = totalPackets;
+            String range = from + "-" + (to - 1);
+            if(cmd.length() + range.length() + 2 > PACKET_SIZE - 16) break;
+            cmd.append(first ? " " : ",").append(range);
+            first = false;
+            from = received.nextClearBit(to);
+        }
+        sendCommand(cmd.toString());
+    }
+
+    // Интерфейс для присоединения к группе: задаётся свойством или выбирается по адресу сервера
+    private NetworkInterface multicastInterface() throws IOException {
+        String name = System.getProperty("client.multicast.interface");
+        if(name != null) {
+            return NetworkInterface.getByName(name);
+        }
+        if(serverAddress.getAddress().isLoopbackAddress()) {
+            return NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+        }
+        NetworkInterface byAddress = NetworkInterface.getByInetAddress(serverAddress.getAddress());
+        if(byAddress != null) return byAddress;
+        for(NetworkInterface ni : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if(ni.isUp() && ni.supportsMulticast() && !ni.isLoopback()) return ni;
         }
-        raf.close();
-        return packets;
+        return NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
     }
 }
@@ -0,0 +1,71 @@
+package by.mxrpheus;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.function.LongConsumer;
+
+// ECHO по UDP: запрос – requestPrefix + полезная нагрузка, ответ – responsePrefix + та же нагрузка.
+// Server: "CMD:ECHO " / "CMD:ECHO ", UDPServer: "ECHO " / "". Несколько запросов в полёте различаются по номеру.
+class DatagramEchoChannel implements EchoChannel {
+    private final DatagramChannel channel;
+    private final byte[] requestPrefix;
+    private final int responsePrefixLength;
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(64 * 1024);
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(64 * 1024);
+
+    DatagramEchoChannel(InetSocketAddress server, String requestPrefix, String responsePrefix) throws IOException {
+        this.channel = DatagramChannel.open();
+        this.channel.connect(server);
+        this.channel.configureBlocking(false);
+        this.requestPrefix = requestPrefix.getBytes(StandardCharsets.US_ASCII);
+        this.responsePrefixLength = responsePrefix.length();
+    }
+
+    @Override
+    public SelectableChannel channel() {
+        return channel;
+    }
+
+    @Override
+    public int capacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public boolean lossy() {
+        return true;
+    }
+
+    @Override
+    public void send(String payload) throws IOException {
+        sendBuffer.clear();
+        sendBuffer.put(requestPrefix).put(payload.getBytes(StandardCharsets.US_ASCII)).flip();
+        channel.write(sendBuffer);
+    }
+
+    @Override
+    public void receive(LongConsumer completed) throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            try {
+                if (channel.receive(receiveBuffer) == null) return;
+            } catch (IOException e) {
+                // ICMP port unreachable на подключённом сокете – ответа не будет, запрос снимется по таймауту
+                return;
+            }
+            long id = EchoChannel.parseId(receiveBuffer.array(), responsePrefixLength, receiveBuffer.position());
+            if (id >= 0) {
+                completed.accept(id);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,222 @@
+package by.mxrpheus;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+// Загрузка без повторов (DEDUP_UPLOAD): файл режется на фрагменты по содержимому (Chunker) так же,
+// как сервер режет свои файлы, командами HAVE выясняется, какие фрагменты у сервера уже есть,
+// и передаётся только список фрагментов и данные недостающих.
+// Формат потока: [8 байт: размер файла][4 байта: число фрагментов N],
+// N раз [32 байта: SHA-256][4 байта: длина][1 байт: 1 – данные фрагмента в потоке, 0 – уже на сервере],
+// затем данные фрагментов с флагом 1 по порядку списка.
+public class DedupStream implements SeekableByteChannel {
+    private static final int HEADER_SIZE = 12;
+    private static final int ENTRY_SIZE = Chunker.HASH_SIZE + 4 + 1;
+
+    private final File file;
+    private final long fileSize;
+    private final byte[] hashes;
+    private final int[] lengths;
+    private final long[] offsets;  // смещение фрагмента в файле
+    private final boolean[] present;
+
+    private byte[] header;         // список фрагментов; строится, когда ответы HAVE получены
+    private long[] starts;         // смещение данных отправляемых фрагментов в потоке
+    private int[] sent;            // номера отправляемых фрагментов по порядку
+    private long length;
+
+    private long position = 0;
+    private FileChannel source;
+    private boolean open = true;
+
+    private DedupStream(File file, long fileSize, byte[] hashes, int[] lengths) {
+        this.file = file;
+        this.fileSize = fileSize;
+        this.hashes = hashes;
+        this.lengths = lengths;
+        this.offsets = new long[lengths.length];
+        this.present = new boolean[lengths.length];
+        long offset = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            offsets[i] = offset;
+            offset += lengths[i];
+        }
+    }
+
+    // Разбиение файла на фрагменты с хешами; до ответов HAVE отправляются все фрагменты
+    public static DedupStream open(File file) throws IOException {
+        byte[] hashes = new byte[64 * Chunker.HASH_SIZE];
+        int[] lengths = new int[64];
+        int count = 0;
+        long size = 0;
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Chunker chunker = new Chunker(in);
+            MessageDigest digest = Chunker.sha256();
+            for (ByteBuffer chunk; (chunk = chunker.next()) != null; count++) {
+                if (count == lengths.length) {
+                    hashes = Arrays.copyOf(hashes, hashes.length * 2);
+                    lengths = Arrays.copyOf(lengths, lengths.length * 2);
+                }
+                System.arraycopy(Chunker.hash(digest, chunk), 0, hashes, count * Chunker.HASH_SIZE, Chunker.HASH_SIZE);
+                lengths[count] = chunk.remaining();
+                size += chunk.remaining();
+            }
+        }
+        return new DedupStream(file, size, Arrays.copyOf(hashes, count * Chunker.HASH_SIZE), Arrays.copyOf(lengths, count));
+    }
+
+    public int getChunkCount() {
+        return lengths.length;
+    }
+
+    // Команда "HAVE <sha256> ..." для фрагментов начиная с from (не больше Chunker.HAVE_BATCH)
+    public String haveCommand(int from) {
+        StringBuilder command = new StringBuilder("HAVE");
+        for (int i = from; i < Math.min(from + Chunker.HAVE_BATCH, lengths.length); i++) {
+            command.append(' ').append(HexFormat.of().formatHex(hashes, i * Chunker.HASH_SIZE, (i + 1) * Chunker.HASH_SIZE));
+        }
+        return command.toString();
+    }
+
+    // Ответ сервера на haveCommand(from): "HAVE 0110..." – по символу на фрагмент
+    public void applyHave(int from, String reply) throws IOException {
+        int count = Math.min(Chunker.HAVE_BATCH, lengths.length - from);
+        String bits = reply.startsWith("HAVE ") ? reply.substring(5).trim() : "";
+        if (bits.length() != count || !bits.matches("[01]*")) {
+            throw new IOException(reply);
+        }
+        for (int i = 0; i < count; i++) {
+            present[from + i] = bits.charAt(i) == '1';
+        }
+        header = null;
+    }
+
+    // Байт файла, которые не придётся передавать
+    public long getSkippedBytes() {
+        long skipped = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            if (present[i]) skipped += lengths[i];
+        }
+        return skipped;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    // Список фрагментов и расположение данных в потоке по текущим ответам HAVE
+    private void layout() {
+        if (header != null) return;
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + lengths.length * ENTRY_SIZE);
+        buf.putLong(fileSize).putInt(lengths.length);
+        int sentCount = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            buf.put(hashes, i * Chunker.HASH_SIZE, Chunker.HASH_SIZE).putInt(lengths[i]).put((byte) (present[i] ? 0 : 1));
+            if (!present[i]) sentCount++;
+        }
+        header = buf.array();
+        sent = new int[sentCount];
+        starts = new long[sentCount];
+        long offset = header.length;
+        for (int i = 0, s = 0; i < lengths.length; i++) {
+            if (present[i]) continue;
+            sent[s] = i;
+            starts[s++] = offset;
+            offset += lengths[i];
+        }
+        length = offset;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        layout();
+        if (position >= length) return -1;
+        int total = 0;
+        while (dst.hasRemaining() && position < length) {
+            int n;
+            if (position < header.length) {
+                n = Math.min(dst.remaining(), (int) (header.length - position));
+                dst.put(header, (int) position, n);
+            } else {
+                int index = sentIndex(position);
+                long inChunk = position - starts[index];
+                int want = (int) Math.min(dst.remaining(), lengths[sent[index]] - inChunk);
+                n = readChunk(offsets[sent[index]] + inChunk, dst, want);
+            }
+            position += n;
+            total += n;
+        }
+        return total;
+    }
+
+    private int readChunk(long filePosition, ByteBuffer dst, int want) throws IOException {
+        if (source == null) {
+            source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+        ByteBuffer slice = dst.slice(dst.position(), want);
+        while (slice.hasRemaining()) {
+            if (source.read(slice, filePosition + slice.position()) < 0) {
+                // файл укоротился после разбиения; изменённые данные сервер отвергнет по хешу
+                throw new IOException("Файл " + file + " изменился во время загрузки");
+            }
+        }
+        dst.position(dst.position() + want);
+        return want;
+    }
+
+    private int sentIndex(long pos) {
+        int lo = 0, hi = starts.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (starts[mid] <= pos) lo = mid; else hi = mid - 1;
+        }
+        return lo;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) {
+        this.position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() {
+        layout();
+        return length;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+        if (source != null) source.close();
+        source = null;
+    }
+}
@@ -0,0 +1,286 @@
+package by.mxrpheus;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Бенчмарк задержки ECHO, общий для Client, UDPClient и TCPClient (команда BENCH):
+//   BENCH [rate=N | outstanding=N] [connections=N] [sizes=16,256,1000] [duration=10] [warmup=2]
+//         [timeout=1000] [interval=мкс] [out=префикс]
+// rate=N – открытый цикл: запросы планируются с частотой N в секунду независимо от ответов, задержка
+//   отсчитывается от запланированного времени отправки. Если отправка задержалась из-за медленных ответов,
+//   это время тоже попадает в замер (поправка на координированное пропускание).
+// outstanding=N – закрытый цикл: в полёте всё время N запросов. К замерам применяется поправка
+//   HdrHistogram с ожидаемым интервалом interval (по умолчанию – медиана замеров).
+// Для каждого размера нагрузки выводятся перцентили; out=префикс сохраняет распределения
+// в <префикс>-<размер>.hgrm в формате HdrHistogram.
+public class EchoBenchmark {
+    // Открывает новый канал к серверу для очередного прогона
+    public interface ChannelFactory {
+        EchoChannel open() throws IOException;
+    }
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p99.9", "p99.99"};
+    private static final long SPIN_NS = 1_000_000; // ближе этого срока ждём без селектора – select() точен до мс
+
+    private int rate;
+    private int outstanding = 1;
+    private int connections;          // 0 – столько, сколько нужно для outstanding
+    private int[] sizes = {16, 256, 1000};
+    private long durationSec = 10;
+    private long warmupSec = 2;
+    private long timeoutMs = 1000;
+    private long intervalMicros;      // 0 – медиана замеров
+    private String out;
+
+    // Разбор параметров команды: "BENCH rate=5000 sizes=16,512"
+    public static EchoBenchmark parse(String command) {
+        EchoBenchmark bench = new EchoBenchmark();
+        String[] parts = command.trim().split("\\s+");
+        for (int i = 1; i < parts.length; i++) {
+            String[] pair = parts[i].split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Параметр без значения: " + parts[i]);
+            }
+            String value = pair[1];
+            switch (pair[0].toLowerCase(Locale.ROOT)) {
+                case "rate" -> bench.rate = Integer.parseInt(value);
+                case "outstanding" -> bench.outstanding = Integer.parseInt(value);
+                case "connections" -> bench.connections = Integer.parseInt(value);
+                case "sizes" -> {
+                    String[] list = value.split(",");
+                    bench.sizes = new int[list.length];
+                    for (int j = 0; j < list.length; j++) {
+                        bench.sizes[j] = Integer.parseInt(list[j].trim());
+                    }
+                }
+                case "duration" -> bench.durationSec = Long.parseLong(value);
+                case "warmup" -> bench.warmupSec = Long.parseLong(value);
+                case "timeout" -> bench.timeoutMs = Long.parseLong(value);
+                case "interval" -> bench.intervalMicros = Long.parseLong(value);
+                case "out" -> bench.out = value;
+                default -> throw new IllegalArgumentException("Неизвестный параметр: " + pair[0]);
+            }
+        }
+        if (bench.rate < 0 || bench.outstanding < 1 || bench.durationSec < 1 || bench.warmupSec < 0) {
+            throw new IllegalArgumentException("Некорректные параметры бенчмарка");
+        }
+        return bench;
+    }
+
+    public void run(ChannelFactory factory, PrintStream console) throws IOException {
+        for (int size : sizes) {
+            Run run = new Run(size);
+            run.execute(factory);
+            run.report(console);
+        }
+    }
+
+    // Запрос в полёте: запланированное и фактическое время отправки
+    private record Pending(long intended, long sent, int channel) {
+    }
+
+    // Прогон для одного размера нагрузки
+    private final class Run {
+        final int size;
+        final LatencyHistogram latency = new LatencyHistogram(); // от запланированной отправки
+        final LatencyHistogram service = new LatencyHistogram(); // от фактической отправки
+        final List<EchoChannel> channels = new ArrayList<>();
+        final Map<Long, Pending> pending = new LinkedHashMap<>(); // в порядке отправки
+        final ArrayDeque<Long> due = new ArrayDeque<>();           // запланированные, но не отправленные
+        int[] inFlight;
+        long nextId;
+        long measureFrom;
+        long measureTo;
+        long sent;
+        long received;
+        long lost;
+        long late;
+
+        Run(int size) {
+            this.size = size;
+        }
+
+        void execute(ChannelFactory factory) throws IOException {
+            try (Selector selector = Selector.open()) {
+                openChannels(factory, selector);
+                long start = System.nanoTime();
+                measureFrom = start + warmupSec * 1_000_000_000L;
+                measureTo = measureFrom + durationSec * 1_000_000_000L;
+                long timeoutNs = timeoutMs * 1_000_000L;
+                long deadline = measureTo + Math.max(timeoutNs, 1_000_000_000L);
+                long interval = rate > 0 ? 1_000_000_000L / rate : 0;
+                long nextIntended = start;
+                int cursor = 0;
+                while (true) {
+                    long now = System.nanoTime();
+                    if (now < measureTo) {
+                        if (rate > 0) {
+                            while (nextIntended <= now) {
+                                due.add(nextIntended);
+                                nextIntended += interval;
+                            }
+                        } else {
+                            while (pending.size() + due.size() < outstanding) {
+                                due.add(now);
+                            }
+                        }
+                    }
+                    // Отправка запланированных запросов по свободным каналам
+                    while (!due.isEmpty()) {
+                        int channel = -1;
+                        for (int i = 0; i < channels.size(); i++) {
+                            int candidate = (cursor + i) % channels.size();
+                            if (inFlight[candidate] < channels.get(candidate).capacity()) {
+                                channel = candidate;
+                                break;
+                            }
+                        }
+                        if (channel < 0) break;
+                        cursor = channel + 1;
+                        long intended = due.poll();
+                        long id = nextId++;
+                        String payload = payload(id);
+                        // Время берётся до отправки: на loopback ответ может прийти раньше, чем вернётся send
+                        pending.put(id, new Pending(intended, System.nanoTime(), channel));
+                        channels.get(channel).send(payload);
+                        inFlight[channel]++;
+                        if (measured(intended)) sent++;
+                    }
+                    // Потерянные датаграммы снимаются по таймауту
+                    if (channels.get(0).lossy()) {
+                        Iterator<Pending> it = pending.values().iterator();
+                        while (it.hasNext()) {
+                            Pending p = it.next();
+                            if (now - p.sent() < timeoutNs) break;
+                            it.remove();
+                            inFlight[p.channel()]--;
+                            if (measured(p.intended())) lost++;
+                        }
+                    }
+                    if (now >= measureTo && pending.isEmpty() && due.isEmpty()) break;
+                    if (now >= deadline) {
+                        for (Pending p : pending.values()) {
+                            if (measured(p.intended())) lost++;
+                        }
+                        break;
+                    }
+                    long wake = now >= measureTo ? deadline : rate > 0 ? nextIntended : measureTo;
+                    if (!pending.isEmpty() && channels.get(0).lossy()) {
+                        wake = Math.min(wake, pending.values().iterator().next().sent() + timeoutNs);
+                    }
+                    long wait = wake - System.nanoTime();
+                    if (wait < SPIN_NS) {
+                        selector.selectNow();
+                    } else {
+                        selector.select((wait - SPIN_NS) / 1_000_000 + 1);
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ((EchoChannel) key.attachment()).receive(this::complete);
+                    }
+                }
+            } finally {
+                for (EchoChannel channel : channels) {
+                    channel.close();
+                }
+            }
+        }
+
+        private void openChannels(ChannelFactory factory, Selector selector) throws IOException {
+            int capacity = 0;
+            do {
+                EchoChannel channel = factory.open();
+                channel.channel().register(selector, SelectionKey.OP_READ, channel);
+                channels.add(channel);
+                capacity += channel.capacity();
+            } while (connections > 0 ? channels.size() < connections : rate == 0 && capacity < outstanding);
+            inFlight = new int[channels.size()];
+        }
+
+        private void complete(long id) {
+            long now = System.nanoTime();
+            Pending p = pending.remove(id);
+            if (p == null) {
+                late++; // ответ пришёл после таймаута
+                return;
+            }
+            inFlight[p.channel()]--;
+            if (measured(p.intended())) {
+                received++;
+                latency.record(now - p.intended());
+                service.record(now - p.sent());
+            }
+        }
+
+        private boolean measured(long intended) {
+            return intended >= measureFrom && intended < measureTo;
+        }
+
+        // Нагрузка "id:xxx..." заданной длины (не короче номера с двоеточием)
+        private String payload(long id) {
+            StringBuilder text = new StringBuilder(size).append(id).append(':');
+            while (text.length() < size) {
+                text.append('x');
+            }
+            return text.toString();
+        }
+
+        void report(PrintStream console) throws FileNotFoundException {
+            String mode = rate > 0
+                    ? String.format(Locale.ROOT, "открытый цикл %d запросов/с", rate)
+                    : "закрытый цикл, в полёте " + outstanding;
+            console.printf(Locale.ROOT, "%nECHO %d Б: %s, каналов %d, %d с%n", size, mode, channels.size(), durationSec);
+            console.printf(Locale.ROOT, "  отправлено %d, получено %d, потеряно %d, опоздало %d, %.1f ответов/с%n",
+                    sent, received, lost, late, received / (double) durationSec);
+            console.printf(Locale.ROOT, "  %-24s", "мс");
+            for (String name : PERCENTILE_NAMES) {
+                console.printf(Locale.ROOT, "%10s", name);
+            }
+            console.printf(Locale.ROOT, "%10s%10s%n", "max", "mean");
+            LatencyHistogram result;
+            if (rate > 0) {
+                result = latency;
+                row(console, "от плановой отправки", latency);
+                row(console, "от фактической отправки", service);
+            } else {
+                long interval = intervalMicros > 0 ? intervalMicros * 1000 : service.percentile(50);
+                result = service.corrected(interval);
+                row(console, "без поправки", service);
+                row(console, String.format(Locale.ROOT, "с поправкой (%d мкс)", interval / 1000), result);
+            }
+            if (out != null) {
+                File file = new File(out + "-" + size + ".hgrm");
+                try (PrintStream hgrm = new PrintStream(file)) {
+                    result.writePercentiles(hgrm, 1e6);
+                }
+                File serviceFile = new File(out + "-" + size + "-service.hgrm");
+                try (PrintStream hgrm = new PrintStream(serviceFile)) {
+                    service.writePercentiles(hgrm, 1e6);
+                }
+                console.println("  Распределения сохранены: " + file.getPath() + ", " + serviceFile.getPath());
+            }
+        }
+
+        private void row(PrintStream console, String name, LatencyHistogram histogram) {
+            console.printf(Locale.ROOT, "  %-24s", name);
+            for (double percentile : PERCENTILES) {
+                console.printf(Locale.ROOT, "%10.3f", histogram.percentile(percentile) / 1e6);
+            }
+            console.printf(Locale.ROOT, "%10.3f%10.3f%n", histogram.getMax() / 1e6, histogram.getMean() / 1e6);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package by.mxrpheus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.util.function.LongConsumer;
+
+// Неблокирующий канал бенчмарка ECHO (EchoBenchmark): отправляет запросы и разбирает ответы одного протокола.
+// Полезная нагрузка запроса начинается с номера "id:", сервер возвращает её без изменений.
+interface EchoChannel extends Closeable {
+    SelectableChannel channel();
+
+    // Сколько запросов может одновременно ждать ответа на этом канале
+    int capacity();
+
+    // Запрос или ответ может потеряться (датаграммы) – движок снимает его по таймауту
+    boolean lossy();
+
+    void send(String payload) throws IOException;
+
+    // Читает все доступные ответы и передаёт номера запросов, на которые они пришли
+    void receive(LongConsumer completed) throws IOException;
+
+    // Номер запроса из начала полезной нагрузки ("id:..."); -1 – чужой или повреждённый ответ
+    static long parseId(byte[] data, int from, int to) {
+        long id = 0;
+        int i = from;
+        for (; i < to && data[i] != ':'; i++) {
+            if (data[i] < '0' || data[i] > '9') return -1;
+            id = id * 10 + (data[i] - '0');
+        }
+        return i > from && i < to ? id : -1;
+    }
+}
@@ -0,0 +1,302 @@
+package by.mxrpheus;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+// AsyncClient протокола Server (команды CMD:, заголовок тип + seq + totalPackets, кумулятивные ACK).
+// Окно, таймаут повтора, согласование ACK и пейсинг – как у консольного Client. Каждая операция идёт через
+// свой сокет, соединённый после ответа на команду с портом, который сервер выделил под передачу.
+// Первое окно загрузки уходит вслед за командой (EARLY), как у Client.
+class ServerAsyncClient extends AbstractAsyncClient {
+    private static final int PACKET_SIZE = TransferPacket.PACKET_SIZE;
+    private static final int HEADER_SIZE = TransferPacket.HEADER_SIZE;
+    private static final int DATA_SIZE = TransferPacket.DATA_SIZE;
+    private static final int WINDOW_SIZE = 5;
+    private static final int TIMEOUT_MS = 500;
+    private static final int COMMAND_TIMEOUT_MS = 2000;
+    private static final int COMMAND_ATTEMPTS = 3;
+    private static final int ACK_EVERY = Integer.getInteger("client.ack.every", AckPolicy.MAX_EVERY);
+    private static final long ACK_DELAY_MS = Long.getLong("client.ack.delay.ms", AckPolicy.DEFAULT_DELAY_MS);
+    private static final boolean PACING = Boolean.parseBoolean(System.getProperty("client.pacing", "true"));
+    private static final double PACING_RATE_MBIT = Double.parseDouble(System.getProperty("client.pacing.rateMbit", "0"));
+    private static final boolean EARLY_START = Boolean.parseBoolean(System.getProperty("client.earlyStart", "true"));
+
+    ServerAsyncClient(InetSocketAddress server) {
+        super(server);
+    }
+
+    @Override
+    public CompletableFuture<TransferResult> upload(Path file, TransferListener listener) {
+        String name = file.getFileName().toString();
+        return submit(() -> {
+            try (DatagramSocket socket = new DatagramSocket();
+                 FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+                long start = System.nanoTime();
+                sendPackets(socket, source, "UPLOAD " + name + " 0" + ackOption(), name, listener);
+                return new TransferResult(name, source.size(), System.nanoTime() - start);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<TransferResult> download(String name, Path target, TransferListener listener) {
+        return submit(() -> {
+            try (DatagramSocket socket = new DatagramSocket();
+                 FileChannel sink = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                long start = System.nanoTime();
+                // Ответ: READY_FOR_DOWNLOAD filename offset totalPackets [ACK n]
+                String[] parts = command(socket, "DOWNLOAD " + name + " 0" + ackOption(), "READY_FOR_DOWNLOAD").split(" ");
+                if (parts.length < 4) {
+                    throw new IOException("Некорректный ответ сервера");
+                }
+                long bytes = receivePackets(socket, Long.parseLong(parts[3]), sink, negotiatedAck(parts), name, listener);
+                return new TransferResult(name, bytes, System.nanoTime() - start);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<String> echo(String message) {
+        return submit(() -> {
+            try (DatagramSocket socket = new DatagramSocket()) {
+                String response = command(socket, "ECHO " + message, "ECHO");
+                return response.length() > 5 ? response.substring(5) : "";
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<String> time() {
+        return submit(() -> {
+            try (DatagramSocket socket = new DatagramSocket()) {
+                return command(socket, "TIME", "TIME");
+            }
+        });
+    }
+
+    // Отправка команды и ожидание ответа с нужным префиксом; без ответа команда повторяется.
+    // Сокет соединяется с адресом ответа: для передач это порт, выделенный сервером под сессию
+    private String command(DatagramSocket socket, String cmd, String expected) throws IOException {
+        DatagramPacket reply = exchange(socket, cmd, expected, new ByteBuffer[0], 0);
+        socket.connect(reply.getSocketAddress());
+        return response(reply);
+    }
+
+    // Ответ на команду с нужным префиксом; early – первые earlyCount пакетов данных, которые уходят
+    // на управляющий порт вслед за каждой попыткой команды
+    private DatagramPacket exchange(DatagramSocket socket, String cmd, String expected, ByteBuffer[] early,
+                                    int earlyCount) throws IOException {
+        byte[] data = ("CMD:" + cmd).getBytes();
+        byte[] buffer = new byte[PACKET_SIZE];
+        DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+        for (int attempt = 0; attempt < COMMAND_ATTEMPTS; attempt++) {
+            socket.send(new DatagramPacket(data, data.length, server));
+            for (int i = 0; i < earlyCount; i++) {
+                socket.send(new DatagramPacket(early[i].array(), early[i].limit(), server));
+            }
+            long deadline = System.currentTimeMillis() + COMMAND_TIMEOUT_MS;
+            long remaining;
+            while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+                socket.setSoTimeout((int) remaining);
+                try {
+                    reply.setLength(buffer.length);
+                    socket.receive(reply);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+                if (!new String(buffer, 0, Math.min(4, reply.getLength())).equals("CMD:")) continue;
+                String response = response(reply);
+                if (response.startsWith("ERROR")) {
+                    throw new IOException(response);
+                }
+                if (response.startsWith(expected)) {
+                    return reply;
+                }
+            }
+        }
+        throw new SocketTimeoutException("Нет ответа сервера на " + cmd);
+    }
+
+    private static String response(DatagramPacket reply) {
+        return new String(reply.getData(), 0, reply.getLength()).substring(4).trim();
+    }
+
+    // Команда загрузки и потоковая отправка со скользящим окном: в памяти только пакеты окна, темп задаёт пейсер.
+    // Если сервер не подтвердил EARLY, первое окно повторяется на порт передачи. Сокет с ним не соединяется:
+    // connect отбросил бы ACK первого окна, уже лежащие в буфере сокета, поэтому адрес ACK проверяется здесь
+    private void sendPackets(DatagramSocket socket, SeekableByteChannel source, String cmd, String name,
+                             TransferListener listener) throws IOException {
+        long size = source.size();
+        long totalPackets = (size + DATA_SIZE - 1) / DATA_SIZE;
+        ByteBuffer[] window = new ByteBuffer[WINDOW_SIZE];
+        long[] firstSent = new long[WINDOW_SIZE]; // System.nanoTime() первой отправки; -1 – отправлялся повторно
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            window[i] = ByteBuffer.allocate(PACKET_SIZE);
+        }
+        Pacer pacer = new Pacer(PACING, PACING_RATE_MBIT, WINDOW_SIZE * PACKET_SIZE);
+        TransferPacket codec = new TransferPacket();
+        byte[] ackData = new byte[PACKET_SIZE];
+        ByteBuffer ackBuffer = ByteBuffer.wrap(ackData);
+        DatagramPacket ack = new DatagramPacket(ackData, ackData.length);
+        long base = 0;
+        long next = 0;   // первый пакет окна, ещё не отправленный в текущем проходе
+        long loaded = 0; // пакеты [0, loaded) уже прочитаны из источника
+        int early = (int) (EARLY_START ? Math.min(totalPackets, WINDOW_SIZE) : 0);
+        while (loaded < early) {
+            fillPacket(codec, window[(int) loaded], source, loaded, totalPackets);
+            loaded++;
+        }
+        long earlySentAt = System.nanoTime();
+        cmd += " TOTAL " + totalPackets;
+        DatagramPacket ready = exchange(socket, early > 0 ? cmd + " EARLY" : cmd, "READY_FOR_UPLOAD", window, early);
+        SocketAddress transfer = ready.getSocketAddress();
+        DatagramPacket packet = new DatagramPacket(new byte[0], 0, transfer);
+        if (response(ready).endsWith(" EARLY")) {
+            Arrays.fill(firstSent, 0, early, earlySentAt);
+            next = early;
+        }
+        socket.setSoTimeout(TIMEOUT_MS);
+        long lastProgress = System.currentTimeMillis();
+        while (base < totalPackets) {
+            checkProgress(lastProgress, "UPLOAD " + name);
+            long windowEnd = Math.min(totalPackets, base + WINDOW_SIZE);
+            while (loaded < windowEnd) {
+                fillPacket(codec, window[(int) (loaded % WINDOW_SIZE)], source, loaded, totalPackets);
+                firstSent[(int) (loaded % WINDOW_SIZE)] = 0;
+                loaded++;
+            }
+            for (; next < windowEnd; next++) {
+                int slotIndex = (int) (next % WINDOW_SIZE);
+                ByteBuffer slot = window[slotIndex];
+                packet.setData(slot.array(), 0, slot.limit());
+                pacer.await();
+                socket.send(packet);
+                long now = System.nanoTime();
+                pacer.onSend(slot.limit(), now);
+                firstSent[slotIndex] = firstSent[slotIndex] == 0 ? now : -1;
+            }
+            try {
+                ack.setLength(ackData.length);
+                socket.receive(ack);
+            } catch (SocketTimeoutException e) {
+                next = base; // повтор неподтверждённой части окна
+                continue;
+            }
+            if (!transfer.equals(ack.getSocketAddress())) continue;
+            TransferPacket reply = codec.wrap(ackBuffer.clear().limit(ack.getLength()));
+            if (!reply.hasHeader() || reply.type() != TransferPacket.ACK) continue;
+            long ackNum = SeqNum.unwrap(base, reply.ackNum());
+            if (ackNum >= base && ackNum < windowEnd) {
+                long sentAt = firstSent[(int) (ackNum % WINDOW_SIZE)];
+                if (sentAt > 0) {
+                    pacer.onRtt(System.nanoTime() - sentAt);
+                }
+                base = ackNum + 1;
+                lastProgress = System.currentTimeMillis();
+                listener.onProgress(name, Math.min(size, base * DATA_SIZE), size);
+            }
+        }
+    }
+
+    private static void fillPacket(TransferPacket codec, ByteBuffer packet, SeekableByteChannel source, long seq,
+                                   long totalPackets) throws IOException {
+        codec.wrap(packet.clear()).encodeData(seq, totalPackets);
+        while (packet.hasRemaining() && source.read(packet) > 0) {
+        }
+        if (packet.position() == HEADER_SIZE) {
+            throw new EOFException("Источник закончился раньше ожидаемого на пакете " + seq);
+        }
+        packet.flip();
+    }
+
+    // Приём по порядку с отложенными ACK по согласованной политике; возвращает число принятых байт.
+    // Размер файла заранее неизвестен, поэтому до последнего пакета прогресс считается от totalPackets * DATA_SIZE
+    private static long receivePackets(DatagramSocket socket, long totalPackets, FileChannel sink, int ackEvery,
+                                       String name, TransferListener listener) throws IOException {
+        AckPolicy ackPolicy = new AckPolicy(ackEvery, ACK_DELAY_MS);
+        byte[] data = new byte[PACKET_SIZE];
+        DatagramPacket packet = new DatagramPacket(data, data.length);
+        ByteBuffer receivedBuffer = ByteBuffer.wrap(data);
+        TransferPacket received = new TransferPacket();
+        // ACK собирается в одном буфере на передачу; сокет соединён с портом передачи
+        TransferPacket ack = new TransferPacket().wrap(ByteBuffer.allocate(HEADER_SIZE));
+        DatagramPacket ackPacket = new DatagramPacket(ack.buffer().array(), HEADER_SIZE);
+        long expectedSeq = 0;
+        long bytes = 0;
+        long lastProgress = System.currentTimeMillis();
+        while (expectedSeq < totalPackets) {
+            checkProgress(lastProgress, "DOWNLOAD " + name);
+            long ackDue = ackPolicy.millisUntilDue(System.nanoTime());
+            socket.setSoTimeout(ackDue > 0 ? (int) ackDue : TIMEOUT_MS);
+            try {
+                packet.setLength(data.length);
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                if (ackPolicy.isDue(System.nanoTime())) {
+                    sendAck(socket, ackPacket, ack, expectedSeq - 1);
+                    ackPolicy.acked();
+                }
+                continue;
+            }
+            received.wrap(receivedBuffer.clear().limit(packet.getLength()));
+            if (!received.hasHeader() || received.type() != TransferPacket.DATA) continue;
+            long seq = SeqNum.unwrap(expectedSeq, received.seq());
+            boolean ackNow;
+            if (seq == expectedSeq) {
+                ByteBuffer payload = received.payload();
+                bytes += payload.remaining();
+                while (payload.hasRemaining()) {
+                    sink.write(payload);
+                }
+                expectedSeq++;
+                lastProgress = System.currentTimeMillis();
+                ackNow = ackPolicy.onInOrder(System.nanoTime()) || expectedSeq >= totalPackets;
+            } else {
+                ackNow = ackPolicy.onOutOfOrder();
+            }
+            if (ackNow) {
+                sendAck(socket, ackPacket, ack, expectedSeq - 1);
+                ackPolicy.acked();
+                listener.onProgress(name, bytes, expectedSeq >= totalPackets ? bytes : totalPackets * DATA_SIZE);
+            }
+        }
+        return bytes;
+    }
+
+    private static void sendAck(DatagramSocket socket, DatagramPacket ackPacket, TransferPacket ack, long ackNum)
+            throws IOException {
+        ack.encodeAck(ackNum);
+        socket.send(ackPacket);
+    }
+
+    private static String ackOption() {
+        return ACK_EVERY > 1 ? " ACK " + ACK_EVERY : "";
+    }
+
+    // Принятая сервером политика ACK из ответа "READY_FOR_... ACK n"; 1 – не согласована
+    private static int negotiatedAck(String[] parts) {
+        for (int i = 2; i + 1 < parts.length; i++) {
+            if (parts[i].equals("ACK")) {
+                try {
+                    return Integer.parseInt(parts[i + 1]);
+                } catch (NumberFormatException e) {
+                    return 1;
+                }
+            }
+        }
+        return 1;
+    }
+}
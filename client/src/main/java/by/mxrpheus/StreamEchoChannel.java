@@ -0,0 +1,75 @@
+package by.mxrpheus;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.function.LongConsumer;
+
+// ECHO по TCP (TCPServer): запрос "ECHO " + нагрузка, ответ – нагрузка без разделителя.
+// Протокол не разграничивает сообщения, поэтому на соединении в полёте не больше одного запроса,
+// а ответ считается полученным, когда пришло столько байт, сколько было отправлено.
+class StreamEchoChannel implements EchoChannel {
+    private static final byte[] REQUEST_PREFIX = "ECHO ".getBytes(StandardCharsets.US_ASCII);
+
+    private final SocketChannel channel;
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(64 * 1024);
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(64 * 1024);
+    private int expected; // длина ожидаемого ответа, 0 – запроса в полёте нет
+
+    StreamEchoChannel(InetSocketAddress server) throws IOException {
+        this.channel = SocketChannel.open(server);
+        this.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        this.channel.configureBlocking(false);
+    }
+
+    @Override
+    public SelectableChannel channel() {
+        return channel;
+    }
+
+    @Override
+    public int capacity() {
+        return 1;
+    }
+
+    @Override
+    public boolean lossy() {
+        return false;
+    }
+
+    @Override
+    public void send(String payload) throws IOException {
+        sendBuffer.clear();
+        sendBuffer.put(REQUEST_PREFIX).put(payload.getBytes(StandardCharsets.US_ASCII)).flip();
+        while (sendBuffer.hasRemaining()) {
+            channel.write(sendBuffer);
+        }
+        expected = payload.length();
+        receiveBuffer.clear();
+    }
+
+    @Override
+    public void receive(LongConsumer completed) throws IOException {
+        if (channel.read(receiveBuffer) < 0) {
+            throw new EOFException("Server closed the connection");
+        }
+        if (expected > 0 && receiveBuffer.position() >= expected) {
+            long id = EchoChannel.parseId(receiveBuffer.array(), 0, receiveBuffer.position());
+            expected = 0;
+            receiveBuffer.clear();
+            if (id >= 0) {
+                completed.accept(id);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -12,6 +12,9 @@ import java.util.Scanner;
 public class TCPClient {
 
     private static final String FILES_DIRECTORY = "client/files";
+    private static final int BATCH_BUFFER_SIZE = 64 * 1024;
+
+    private final ByteBuffer fieldBuffer = ByteBuffer.allocate(LongField.SIZE);
 
     public static void main(String[] args) {
         TCPClient client = new TCPClient();
@@ -44,6 +47,21 @@ public class TCPClient {
             System.out.print("-> ");
             userInput = scanner.nextLine();
 
+            if (userInput.startsWith("BATCH_UPLOAD")) {
+                handleBatchUploadCommand(userInput, socketChannel);
+                continue;
+            }
+
+            if (userInput.startsWith("DEDUP_UPLOAD")) {
+                handleDedupUploadCommand(userInput, socketChannel);
+                continue;
+            }
+
+            if (userInput.startsWith("BENCH")) {
+                handleBenchCommand(userInput, socketChannel);
+                continue;
+            }
+
             ByteBuffer buffer = ByteBuffer.wrap(userInput.getBytes());
             socketChannel.write(buffer);
 
@@ -52,7 +70,9 @@ public class TCPClient {
                 break;
             }
 
-            if (userInput.startsWith("UPLOAD")) {
+            if (userInput.startsWith("BATCH_DOWNLOAD")) {
+                handleBatchDownloadCommand(userInput, socketChannel);
+            } else if (userInput.startsWith("UPLOAD")) {
                 handleUploadCommand(userInput, socketChannel);
             } else if (userInput.startsWith("DOWNLOAD")) {
                 handleDownloadCommand(userInput, socketChannel);
@@ -70,18 +90,22 @@ public class TCPClient {
         }
     }
 
+    private void handleBenchCommand(String userInput, SocketChannel socketChannel) throws IOException {
+        InetSocketAddress server = (InetSocketAddress) socketChannel.getRemoteAddress();
+        try {
+            EchoBenchmark.parse(userInput).run(() -> new StreamEchoChannel(server), System.out);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid benchmark parameters: " + e.getMessage());
+        }
+    }
+
     private void handleDownloadCommand(String userInput, SocketChannel socketChannel) throws IOException {
         String filename = userInput.substring(9);
         File file = new File(FILES_DIRECTORY, filename);
 
         long startTime = System.currentTimeMillis();
 
-        ByteBuffer positionBuffer = ByteBuffer.allocate(8);
-        while (positionBuffer.hasRemaining()) {
-            socketChannel.read(positionBuffer);
-        }
-        positionBuffer.flip();
-        long positionCode = positionBuffer.getLong();
+        long positionCode = LongField.read(socketChannel, fieldBuffer);
 
         long filePosition = 0;
         if (file.exists()) {
@@ -90,20 +114,10 @@ public class TCPClient {
             }
         }
 
-        ByteBuffer serverPosition = ByteBuffer.allocate(8);
-        serverPosition.putLong(filePosition);
-        serverPosition.flip();
-        while (serverPosition.hasRemaining()) {
-            socketChannel.write(serverPosition);
-        }
+        LongField.write(socketChannel, fieldBuffer, filePosition);
 
         try (FileOutputStream fileOutputStream = new FileOutputStream(file, true)) {
-            ByteBuffer sizeBuffer = ByteBuffer.allocate(8);
-            while (sizeBuffer.hasRemaining()) {
-                socketChannel.read(sizeBuffer);
-            }
-            sizeBuffer.flip();
-            long fileSize = sizeBuffer.getLong();
+            long fileSize = LongField.read(socketChannel, fieldBuffer);
 
             ByteBuffer buffer = ByteBuffer.allocate(4096);
             long totalBytesRead = filePosition;
@@ -138,22 +152,11 @@ public class TCPClient {
 
         long startTime = System.currentTimeMillis();
 
-        ByteBuffer positionBuffer = ByteBuffer.allocate(8);
-        while (positionBuffer.hasRemaining()) {
-            socketChannel.read(positionBuffer);
-        }
-        positionBuffer.flip();
-
-        long startPosition = positionBuffer.getLong();
+        long startPosition = LongField.read(socketChannel, fieldBuffer);
 
         try (FileInputStream fileInputStream = new FileInputStream(file)) {
             fileInputStream.skip(startPosition);
-            ByteBuffer sizeBuffer = ByteBuffer.allocate(8);
-            sizeBuffer.putLong(file.length());
-            sizeBuffer.flip();
-            while (sizeBuffer.hasRemaining()) {
-                socketChannel.write(sizeBuffer);
-            }
+            LongField.write(socketChannel, fieldBuffer, file.length());
 
             ByteBuffer buffer = ByteBuffer.allocate(4096);
             int bytesRead;
@@ -176,6 +179,122 @@ public class TCPClient {
         }
     }
 
+    private void handleBatchUploadCommand(String userInput, SocketChannel socketChannel) throws IOException {
+        String spec = userInput.substring(13).trim();
+        BatchStream stream;
+        try {
+            stream = BatchStream.open(null, spec);
+        } catch (IOException e) {
+            System.out.println("Directory not found!");
+            return;
+        }
+
+        try (stream) {
+            socketChannel.write(ByteBuffer.wrap(userInput.getBytes()));
+            long startTime = System.currentTimeMillis();
+
+            stream.position(LongField.read(socketChannel, fieldBuffer));
+
+            LongField.write(socketChannel, fieldBuffer, stream.size());
+
+            ByteBuffer buffer = ByteBuffer.allocate(BATCH_BUFFER_SIZE);
+            while (stream.read(buffer) > 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    socketChannel.write(buffer);
+                }
+                buffer.clear();
+            }
+
+            double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+            System.out.println("Batch uploaded: " + stream.getName());
+            System.out.printf("Files: %d (%.1f files/s)%n", stream.getFileCount(), stream.getFileCount() / seconds);
+        } catch (IOException e) {
+            System.out.println("Server interaction error: " + e.getMessage());
+        }
+    }
+
+    private void handleDedupUploadCommand(String userInput, SocketChannel socketChannel) throws IOException {
+        File file = new File(userInput.substring(13).trim());
+        if (!file.exists()) {
+            System.out.println("File not found!");
+            return;
+        }
+
+        try (DedupStream stream = DedupStream.open(file)) {
+            ByteBuffer responseBuffer = ByteBuffer.allocate(1024);
+            for (int i = 0; i < stream.getChunkCount(); i += Chunker.HAVE_BATCH) {
+                socketChannel.write(ByteBuffer.wrap(stream.haveCommand(i).getBytes()));
+                responseBuffer.clear();
+                int bytesRead = socketChannel.read(responseBuffer);
+                if (bytesRead == -1) {
+                    throw new IOException("Server connection closed.");
+                }
+                stream.applyHave(i, new String(responseBuffer.array(), 0, bytesRead).trim());
+            }
+
+            socketChannel.write(ByteBuffer.wrap(("DEDUP_UPLOAD " + file.getName()).getBytes()));
+            long startTime = System.currentTimeMillis();
+
+            if (LongField.read(socketChannel, fieldBuffer) < 0) {
+                System.out.println("Dedup storage is disabled on server.");
+                return;
+            }
+
+            LongField.write(socketChannel, fieldBuffer, stream.size());
+
+            ByteBuffer buffer = ByteBuffer.allocate(BATCH_BUFFER_SIZE);
+            while (stream.read(buffer) > 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    socketChannel.write(buffer);
+                }
+                buffer.clear();
+            }
+
+            long duration = Math.max(1, System.currentTimeMillis() - startTime);
+            System.out.println("File uploaded: " + file.getName());
+            System.out.printf("Chunks: %d, already on server: %d of %d bytes, sent %d bytes in %d ms%n",
+                    stream.getChunkCount(), stream.getSkippedBytes(), stream.getFileSize(), stream.size(), duration);
+        } catch (IOException e) {
+            System.out.println("Server interaction error: " + e.getMessage());
+        }
+    }
+
+    private void handleBatchDownloadCommand(String userInput, SocketChannel socketChannel) throws IOException {
+        String spec = userInput.substring(15).trim();
+        File directory = new File(FILES_DIRECTORY, BatchStream.batchName(spec));
+        long startTime = System.currentTimeMillis();
+
+        long streamSize = LongField.read(socketChannel, fieldBuffer);
+        if (streamSize < 0) {
+            System.out.println("Directory " + spec + " not found!");
+            return;
+        }
+
+        long position = BatchReceiver.resumeOffset(directory);
+        LongField.write(socketChannel, fieldBuffer, position);
+
+        try (BatchReceiver receiver = new BatchReceiver(directory, position)) {
+            receiver.expectLength(streamSize);
+            ByteBuffer buffer = ByteBuffer.allocate(BATCH_BUFFER_SIZE);
+            long totalBytesRead = position;
+            int bytesRead;
+            while (totalBytesRead < streamSize && (bytesRead = socketChannel.read(buffer)) != -1) {
+                buffer.flip();
+                receiver.write(buffer);
+                totalBytesRead += bytesRead;
+                buffer.clear();
+            }
+
+            double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+            System.out.println("Batch downloaded: " + directory.getAbsolutePath());
+            System.out.printf("Files: %d (%.1f files/s)%n", receiver.getFileCount(), receiver.getFileCount() / seconds);
+        } catch (IOException e) {
+            System.out.println("Error downloading batch: " + e.getMessage());
+        }
+    }
+
     private boolean isExitCommand(String command) {
         return command.equalsIgnoreCase("CLOSE") ||
                 command.equalsIgnoreCase("EXIT") ||
@@ -0,0 +1,128 @@
+package by.mxrpheus;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+
+// AsyncClient протокола TCPServer: каждая операция – отдельное соединение. Ответы читаются через адаптер сокета,
+// чтобы действовал таймаут бездействия; файл при загрузке отдаётся в сокет через transferTo.
+// TCPServer обслуживает передачу целиком внутри своего цикла, поэтому одновременные операции
+// к нему выполняются сервером по очереди – параллельность здесь только на стороне клиента.
+class TcpAsyncClient extends AbstractAsyncClient {
+    private static final int BATCH_BUFFER_SIZE = 64 * 1024;
+    private static final int RESPONSE_SIZE = 1024;
+
+    TcpAsyncClient(InetSocketAddress server) {
+        super(server);
+    }
+
+    @Override
+    public CompletableFuture<TransferResult> upload(Path file, TransferListener listener) {
+        String name = file.getFileName().toString();
+        return submit(() -> {
+            try (SocketChannel channel = connect();
+                 FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+                long start = System.nanoTime();
+                DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+                write(channel, ByteBuffer.wrap(("UPLOAD " + name).getBytes()));
+                // Сервер отвечает позицией дозагрузки, затем ждёт размер файла и данные с этой позиции
+                long size = source.size();
+                long position = Math.min(size, in.readLong());
+                long offset = position;
+                LongField.write(channel, ByteBuffer.allocate(LongField.SIZE), size);
+                while (position < size) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedIOException("Операция UPLOAD " + name + " отменена");
+                    }
+                    position += source.transferTo(position, Math.min(BATCH_BUFFER_SIZE, size - position), channel);
+                    listener.onProgress(name, position, size);
+                }
+                // Ответ на CLOSE приходит только после того, как сервер принял и записал весь файл
+                write(channel, ByteBuffer.wrap("CLOSE".getBytes()));
+                readResponse(in);
+                return new TransferResult(name, size - offset, System.nanoTime() - start);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<TransferResult> download(String name, Path target, TransferListener listener) {
+        return submit(() -> {
+            try (SocketChannel channel = connect();
+                 FileChannel sink = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                long start = System.nanoTime();
+                DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+                write(channel, ByteBuffer.wrap(("DOWNLOAD " + name).getBytes()));
+                // 8 байт: 0 – новая передача, 1 – сервер помнит прерванную; иначе это текст ошибки
+                byte[] code = new byte[LongField.SIZE];
+                in.readFully(code);
+                long resume = ByteBuffer.wrap(code).getLong();
+                if (resume != 0 && resume != 1) {
+                    throw new IOException(new String(code) + readResponse(in));
+                }
+                LongField.write(channel, ByteBuffer.allocate(LongField.SIZE), 0L);
+                long size = in.readLong();
+                byte[] buffer = new byte[BATCH_BUFFER_SIZE];
+                long received = 0;
+                while (received < size) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, size - received));
+                    if (read == -1) {
+                        throw new EOFException("Соединение закрыто после " + received + " из " + size + " байт");
+                    }
+                    ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                    while (chunk.hasRemaining()) {
+                        sink.write(chunk);
+                    }
+                    received += read;
+                    listener.onProgress(name, received, size);
+                }
+                return new TransferResult(name, received, System.nanoTime() - start);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<String> echo(String message) {
+        return submit(() -> command("ECHO " + message));
+    }
+
+    @Override
+    public CompletableFuture<String> time() {
+        return submit(() -> command("TIME"));
+    }
+
+    private String command(String cmd) throws IOException {
+        try (SocketChannel channel = connect()) {
+            write(channel, ByteBuffer.wrap(cmd.getBytes()));
+            return readResponse(new DataInputStream(channel.socket().getInputStream()));
+        }
+    }
+
+    private SocketChannel connect() throws IOException {
+        SocketChannel channel = SocketChannel.open(server);
+        channel.socket().setSoTimeout((int) IDLE_TIMEOUT_MS);
+        return channel;
+    }
+
+    private static void write(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // Текстовый ответ сервера: всё, что пришло одним чтением
+    private static String readResponse(DataInputStream in) throws IOException {
+        byte[] response = new byte[RESPONSE_SIZE];
+        int read = in.read(response);
+        return read > 0 ? new String(response, 0, read).trim() : "";
+    }
+}
@@ -0,0 +1,11 @@
+package by.mxrpheus;
+
+// Прогресс передачи AsyncClient: сколько байт файла уже подтверждено (отправлено для TCP) из общего числа.
+// Вызывается из потока передачи после каждого продвижения окна, поэтому должен быть быстрым и потокобезопасным,
+// если один слушатель подписан на несколько передач.
+@FunctionalInterface
+public interface TransferListener {
+    TransferListener NONE = (name, done, total) -> { };
+
+    void onProgress(String name, long bytesDone, long bytesTotal);
+}
@@ -0,0 +1,10 @@
+package by.mxrpheus;
+
+// Итог передачи AsyncClient: имя файла на сервере, число переданных байт (без пропущенных при дозагрузке)
+// и длительность от команды до последнего подтверждения
+public record TransferResult(String name, long bytes, long nanos) {
+
+    public double megabitsPerSecond() {
+        return nanos > 0 ? bytes * 8 * 1000.0 / nanos : 0;
+    }
+}
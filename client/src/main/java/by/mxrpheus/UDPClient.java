@@ -3,14 +3,25 @@ package by.mxrpheus;
 import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Scanner;
 
 public class UDPClient {
-    private static final int DATA_BUFFER_SIZE = 1400;
+    private static final int DATA_BUFFER_SIZE = StreamPacket.DATA_SIZE;
     private static final int WINDOW_SIZE = 5;
     private static final int TIMEOUT = 1000;
+    // Предлагаемая серверу политика ACK (см. AckPolicy); 1 – ACK на каждый пакет без согласования
+    private static final int ACK_EVERY = Integer.getInteger("client.ack.every", AckPolicy.MAX_EVERY);
+    private static final long ACK_DELAY_MS = Long.getLong("client.ack.delay.ms", AckPolicy.DEFAULT_DELAY_MS);
+    // Пейсинг загрузки (см. Pacer): выключатель и ограничение темпа, 0 – окно за RTT
+    private static final boolean PACING = Boolean.parseBoolean(System.getProperty("client.pacing", "true"));
+    private static final double PACING_RATE_MBIT = Double.parseDouble(System.getProperty("client.pacing.rateMbit", "0"));
+    // Первое окно UPLOAD уходит вслед за командой, не дожидаясь ответа сервера (EARLY)
+    private static final boolean EARLY_START = Boolean.parseBoolean(System.getProperty("client.earlyStart", "true"));
 
     public static void main(String[] args) {
         Scanner scanner = new Scanner(System.in);
@@ -40,98 +51,177 @@ public class UDPClient {
                     break;
                 }
 
-                // Команда UPLOAD – загрузка файла на сервер
-                if (commandLine.toUpperCase().startsWith("UPLOAD")) {
+                // Команда BATCH_UPLOAD – каталог или маска одной сессией (манифест + содержимое подряд)
+                if (commandLine.toUpperCase().startsWith("BATCH_UPLOAD")) {
                     String[] parts = commandLine.split("\\s+", 2);
                     if (parts.length < 2) {
-                        System.out.println("Неверный формат команды UPLOAD. Используйте: UPLOAD <путь к файлу>");
+                        System.out.println("Неверный формат команды BATCH_UPLOAD. Используйте: BATCH_UPLOAD <каталог или маска>");
                         continue;
                     }
-                    String filePath = parts[1];
-                    File file = new File(filePath);
-                    if (!file.exists()) {
-                        System.out.println("Файл не найден: " + filePath);
+                    BatchStream stream;
+                    try {
+                        stream = BatchStream.open(null, parts[1]);
+                    } catch (IOException e) {
+                        System.out.println(e.getMessage());
                         continue;
                     }
-                    // Отправляем команду "UPLOAD <имя файла>"
-                    String uploadCmd = "UPLOAD " + file.getName();
-                    byte[] cmdData = uploadCmd.getBytes();
-                    DatagramPacket cmdPacket = new DatagramPacket(cmdData, cmdData.length, serverAddress, serverPort);
-                    socket.send(cmdPacket);
-                    System.out.println("Отправлена команда: " + uploadCmd);
-
-                    // Ожидаем ответ от сервера: если длина не равна 8, то получено сообщение об ошибке
+                    String uploadCmd = "BATCH_UPLOAD " + stream.getName() + ackOption();
+                    socket.send(new DatagramPacket(uploadCmd.getBytes(), uploadCmd.getBytes().length, serverAddress, serverPort));
                     byte[] posBuffer = new byte[1024];
                     DatagramPacket posPacket = new DatagramPacket(posBuffer, posBuffer.length);
                     socket.receive(posPacket);
-                    if (posPacket.getLength() != 8) {
-                        String errorMsg = new String(posPacket.getData(), 0, posPacket.getLength()).trim();
-                        System.out.println("Ошибка при загрузке файла: " + errorMsg);
+                    if (!isHandshake(posPacket)) {
+                        System.out.println("Ошибка при загрузке пакета: " + new String(posPacket.getData(), 0, posPacket.getLength()).trim());
+                        stream.close();
+                        continue;
+                    }
+                    long startPosition = handshakeValue(posPacket);
+                    System.out.println("Пакет " + stream.getName() + ": файлов " + stream.getFileCount() +
+                            ", байт " + stream.size() + ", начинаем с " + startPosition);
+                    long startTime = System.currentTimeMillis();
+                    try (stream) {
+                        stream.position(startPosition);
+                        sendPackets(socket, stream, posPacket.getAddress(), posPacket.getPort());
+                    }
+                    double duration = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+                    System.out.printf("Пакет передан за %.2f секунд: %.1f файлов/с%n", duration, stream.getFileCount() / duration);
+                    continue;
+                }
+
+                // Команда DEDUP_UPLOAD – загрузка без повторов: отправляются только фрагменты файла,
+                // которых на сервере ещё нет (см. DedupStream); поток всегда передаётся с начала
+                if (commandLine.toUpperCase().startsWith("DEDUP_UPLOAD")) {
+                    String[] parts = commandLine.split("\\s+", 2);
+                    if (parts.length < 2) {
+                        System.out.println("Неверный формат команды DEDUP_UPLOAD. Используйте: DEDUP_UPLOAD <путь к файлу>");
                         continue;
                     }
-                    long startPosition = ByteBuffer.wrap(posBuffer, 0, 8).getLong();
-                    System.out.println("Сервер сообщает, что файл уже имеет " + startPosition + " байт (начинаем с этого места)");
-
-                    FileInputStream fis = new FileInputStream(file);
-                    fis.skip(startPosition);
-
-                    // Читаем файл и формируем пакеты (каждый пакет: 4 байта seq + 4 байта длины данных + данные)
-                    List<byte[]> packets = new ArrayList<>();
-                    int seqNumber = 0;
-                    byte[] fileBuffer = new byte[DATA_BUFFER_SIZE];
-                    int bytesRead;
-                    while ((bytesRead = fis.read(fileBuffer)) != -1) {
-                        ByteBuffer packetBuffer = ByteBuffer.allocate(4 + 4 + bytesRead);
-                        packetBuffer.putInt(seqNumber);
-                        packetBuffer.putInt(bytesRead);
-                        packetBuffer.put(fileBuffer, 0, bytesRead);
-                        packets.add(packetBuffer.array());
-                        seqNumber++;
+                    File file = new File(parts[1]);
+                    if (!file.exists()) {
+                        System.out.println("Файл не найден: " + parts[1]);
+                        continue;
+                    }
+                    try (DedupStream stream = DedupStream.open(file)) {
+                        for (int i = 0; i < stream.getChunkCount(); i += Chunker.HAVE_BATCH) {
+                            stream.applyHave(i, ask(socket, stream.haveCommand(i), serverAddress, serverPort));
+                        }
+                        System.out.println("Фрагментов: " + stream.getChunkCount() + ", уже на сервере " + stream.getSkippedBytes()
+                                + " из " + stream.getFileSize() + " байт, к передаче " + stream.size() + " байт");
+                        String uploadCmd = "DEDUP_UPLOAD " + file.getName() + ackOption();
+                        socket.send(new DatagramPacket(uploadCmd.getBytes(), uploadCmd.getBytes().length, serverAddress, serverPort));
+                        byte[] posBuffer = new byte[1024];
+                        DatagramPacket posPacket = new DatagramPacket(posBuffer, posBuffer.length);
+                        socket.receive(posPacket);
+                        if (!isHandshake(posPacket)) {
+                            System.out.println("Ошибка при загрузке файла: " + new String(posPacket.getData(), 0, posPacket.getLength()).trim());
+                            continue;
+                        }
+                        long startTime = System.currentTimeMillis();
+                        sendPackets(socket, stream, posPacket.getAddress(), posPacket.getPort());
+                        double duration = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+                        System.out.printf("Передача файла завершена за %.2f секунд%n", duration);
+                    } catch (IOException e) {
+                        System.out.println("Ошибка при загрузке файла: " + e.getMessage());
                     }
-                    fis.close();
-                    int totalPackets = packets.size();
-                    System.out.println("Всего пакетов для отправки: " + totalPackets);
+                    continue;
+                }
 
-                    boolean[] acked = new boolean[totalPackets];
-                    int base = 0;
+                // Команда BATCH_DOWNLOAD – каталог или маска с сервера, сохраняется в client/files/<каталог>
+                if (commandLine.toUpperCase().startsWith("BATCH_DOWNLOAD")) {
+                    String[] parts = commandLine.split("\\s+", 2);
+                    if (parts.length < 2) {
+                        System.out.println("Неверный формат команды BATCH_DOWNLOAD. Используйте: BATCH_DOWNLOAD <каталог или маска>");
+                        continue;
+                    }
+                    String spec = parts[1].trim();
+                    String downloadCmd = "BATCH_DOWNLOAD " + spec + ackOption();
+                    socket.send(new DatagramPacket(downloadCmd.getBytes(), downloadCmd.getBytes().length, serverAddress, serverPort));
+                    byte[] respBuffer = new byte[1024];
+                    DatagramPacket respPacket = new DatagramPacket(respBuffer, respBuffer.length);
+                    try {
+                        socket.receive(respPacket);
+                    } catch (SocketTimeoutException e) {
+                        System.out.println("Не удалось получить ответ от сервера о размере пакета.");
+                        continue;
+                    }
+                    if (!isHandshake(respPacket)) {
+                        System.out.println("Ошибка при скачивании пакета: " + new String(respPacket.getData(), 0, respPacket.getLength()).trim());
+                        continue;
+                    }
+                    long totalSize = handshakeValue(respPacket);
+                    File dir = new File("client/files/" + BatchStream.batchName(spec));
+                    // Точка дозагрузки определяется по манифесту прерванной передачи
+                    long resumeOffset = BatchReceiver.resumeOffset(dir);
+                    sendResumeOffset(socket, resumeOffset, respPacket);
+                    System.out.println("Размер пакета: " + totalSize + " байт, начинаем с " + resumeOffset);
+
+                    socket.setSoTimeout(5000);
                     long startTime = System.currentTimeMillis();
+                    BatchReceiver receiver = new BatchReceiver(dir, resumeOffset);
+                    receiver.expectLength(totalSize);
+                    try (OutputStream out = Channels.newOutputStream(receiver)) {
+                        receiveStream(socket, out, respPacket.getAddress(), respPacket.getPort(),
+                                negotiatedAck(respPacket), totalSize - resumeOffset);
+                    }
+                    socket.setSoTimeout(TIMEOUT);
+                    double duration = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+                    System.out.printf("Пакет сохранён в %s: файлов %d (%.1f файлов/с)%n",
+                            dir.getAbsolutePath(), receiver.getFileCount(), receiver.getFileCount() / duration);
+                    continue;
+                }
 
-                    // Отправка пакетов с использованием скользящего окна
-                    while (base < totalPackets) {
-                        int windowEnd = Math.min(base + WINDOW_SIZE, totalPackets);
-                        for (int i = base; i < windowEnd; i++) {
-                            if (!acked[i]) {
-                                DatagramPacket packet = new DatagramPacket(packets.get(i), packets.get(i).length, serverAddress, serverPort);
-                                socket.send(packet);
-                                System.out.println("Отправлен пакет seq=" + i);
-                            }
+                // Команда UPLOAD – загрузка файла на сервер
+                if (commandLine.toUpperCase().startsWith("UPLOAD")) {
+                    String[] parts = commandLine.split("\\s+", 2);
+                    if (parts.length < 2) {
+                        System.out.println("Неверный формат команды UPLOAD. Используйте: UPLOAD <путь к файлу>");
+                        continue;
+                    }
+                    String filePath = parts[1];
+                    File file = new File(filePath);
+                    if (!file.exists()) {
+                        System.out.println("Файл не найден: " + filePath);
+                        continue;
+                    }
+                    // Отправляем команду "UPLOAD <имя файла> SIZE <размер>" – сервер заранее расширит файл.
+                    // С EARLY первое окно уходит сразу за командой в расчёте на загрузку с начала файла
+                    String uploadCmd = "UPLOAD " + file.getName() + " SIZE " + file.length() +
+                            (EARLY_START ? " EARLY 0" : "") + ackOption();
+                    long startTime = System.currentTimeMillis();
+                    try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                        byte[] cmdData = uploadCmd.getBytes();
+                        socket.send(new DatagramPacket(cmdData, cmdData.length, serverAddress, serverPort));
+                        System.out.println("Отправлена команда: " + uploadCmd);
+                        ByteBuffer[] window = newWindow();
+                        int early = EARLY_START ? sendEarly(socket, source, window, serverAddress, serverPort) : 0;
+                        long earlySentAt = System.nanoTime();
+
+                        // Ожидаем ответ от сервера: если длина не равна 8, то получено сообщение об ошибке
+                        byte[] posBuffer = new byte[1024];
+                        DatagramPacket posPacket = new DatagramPacket(posBuffer, posBuffer.length);
+                        receiveHandshake(socket, posPacket);
+                        if (!isHandshake(posPacket)) {
+                            String errorMsg = new String(posPacket.getData(), 0, posPacket.getLength()).trim();
+                            System.out.println("Ошибка при загрузке файла: " + errorMsg);
+                            continue;
                         }
-                        int acksReceived = 0;
-                        while (acksReceived < (windowEnd - base)) {
-                            try {
-                                byte[] ackBuffer = new byte[4];
-                                DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
-                                socket.receive(ackPacket);
-                                int ackSeq = ByteBuffer.wrap(ackBuffer).getInt();
-                                System.out.println("Получен ACK для seq=" + ackSeq);
-                                if (ackSeq >= base && ackSeq < windowEnd && !acked[ackSeq]) {
-                                    acked[ackSeq] = true;
-                                    acksReceived++;
-                                }
-                            } catch (SocketTimeoutException e) {
-                                System.out.println("Таймаут ожидания ACK, повторная отправка непринятых пакетов окна");
-                                break;
-                            }
+                        // Ответ пришёл с порта, выделенного сервером под эту передачу, – данные отправляются туда
+                        long startPosition = handshakeValue(posPacket);
+                        System.out.println("Сервер сообщает, что файл уже имеет " + startPosition + " байт (начинаем с этого места)");
+                        // Точка дозагрузки не совпала с предположением – сервер отбросил первое окно,
+                        // отправка начинается заново с его смещения
+                        if (early > 0 && startPosition != 0) {
+                            System.out.println("Первое окно отброшено сервером, повторяем с позиции " + startPosition);
+                            early = 0;
                         }
-                        while (base < totalPackets && acked[base]) {
-                            base++;
+                        if (early == 0) {
+                            source.position(startPosition);
                         }
+
+                        // Файл читается по мере продвижения окна, а не целиком перед отправкой
+                        sendPackets(socket, source, startPosition, window, early, earlySentAt,
+                                posPacket.getAddress(), posPacket.getPort());
                     }
-                    // Отправляем FIN-пакет для завершения передачи (seq = -1)
-                    ByteBuffer finBuffer = ByteBuffer.allocate(4);
-                    finBuffer.putInt(-1);
-                    DatagramPacket finPacket = new DatagramPacket(finBuffer.array(), finBuffer.array().length, serverAddress, serverPort);
-                    socket.send(finPacket);
                     long endTime = System.currentTimeMillis();
                     double duration = (endTime - startTime) / 1000.0;
                     double bitrate = (file.length() * 8) / (duration * 1024 * 1024.0);
@@ -146,7 +236,7 @@ public class UDPClient {
                         continue;
                     }
                     String fileName = parts[1].trim();
-                    String downloadCmd = "DOWNLOAD " + fileName;
+                    String downloadCmd = "DOWNLOAD " + fileName + ackOption();
                     byte[] cmdData = downloadCmd.getBytes();
                     DatagramPacket cmdPacket = new DatagramPacket(cmdData, cmdData.length, serverAddress, serverPort);
 
@@ -166,15 +256,15 @@ public class UDPClient {
                         continue;
                     }
 
-                    // Если полученный пакет не равен 8 байтам, это сообщение об ошибке
-                    if (respPacket.getLength() != 8) {
+                    // Если полученный пакет не равен 8 (или 12 при согласовании ACK) байтам, это сообщение об ошибке
+                    if (!isHandshake(respPacket)) {
                         String errorMsg = new String(respPacket.getData(), 0, respPacket.getLength()).trim();
                         System.out.println("Ошибка при скачивании файла: " + errorMsg);
                         socket.setSoTimeout(TIMEOUT);
                         continue;
                     }
 
-                    long totalFileSize = ByteBuffer.wrap(respBuffer, 0, 8).getLong();
+                    long totalFileSize = handshakeValue(respPacket);
                     System.out.println("Размер файла для скачивания: " + totalFileSize + " байт.");
 
                     // Если файл уже существует, определяем размер локального файла
@@ -194,54 +284,18 @@ public class UDPClient {
                         file.createNewFile();
                     }
 
-                    // Отправляем серверу позицию, с которой надо начать загрузку (8 байт)
-                    ByteBuffer resumeBuffer = ByteBuffer.allocate(8);
-                    resumeBuffer.putLong(localSize);
-                    DatagramPacket resumePacket = new DatagramPacket(resumeBuffer.array(), resumeBuffer.array().length, serverAddress, serverPort);
-                    socket.send(resumePacket);
+                    // Отправляем серверу позицию, с которой надо начать загрузку (8 байт), на порт передачи,
+                    // с которого пришёл размер файла
+                    sendResumeOffset(socket, localSize, respPacket);
 
                     // Возвращаем исходный таймаут для приема данных
                     socket.setSoTimeout(5000);
 
                     // Открываем поток для дозагрузки (append)
                     FileOutputStream fos = new FileOutputStream(file, true);
-                    long bytesReceived = localSize;
                     long startTimeDownload = System.currentTimeMillis();
-
-                    int timeoutCount = 0; // счетчик таймаутов при приеме пакетов
-                    while (true) {
-                        try {
-                            byte[] packetBuffer = new byte[1500];
-                            DatagramPacket filePacket = new DatagramPacket(packetBuffer, packetBuffer.length);
-                            socket.receive(filePacket);
-                            // Сброс счетчика, если пакет получен
-                            timeoutCount = 0;
-                            ByteBuffer bb = ByteBuffer.wrap(filePacket.getData(), 0, filePacket.getLength());
-                            int seq = bb.getInt();
-                            if (seq == -1) {
-                                System.out.println("Получен FIN-пакет. Загрузка завершена.");
-                                break;
-                            }
-                            int dataLength = bb.getInt();
-                            byte[] fileData = new byte[dataLength];
-                            bb.get(fileData, 0, dataLength);
-                            fos.write(fileData);
-                            bytesReceived += dataLength;
-                            // Отправляем ACK для полученного пакета
-                            ByteBuffer ackBuf = ByteBuffer.allocate(4);
-                            ackBuf.putInt(seq);
-                            DatagramPacket ackPacket = new DatagramPacket(ackBuf.array(), ackBuf.array().length, serverAddress, serverPort);
-                            socket.send(ackPacket);
-                            System.out.println("Получен пакет seq=" + seq + ", отправлен ACK.");
-                        } catch (SocketTimeoutException e) {
-                            timeoutCount++;
-                            System.out.println("Таймаут ожидания пакета DOWNLOAD (попытка " + timeoutCount + ").");
-                            if (timeoutCount >= 3) {
-                                System.out.println("Превышено число таймаутов. Считаем, что передача завершена.");
-                                break;
-                            }
-                        }
-                    }
+                    long bytesReceived = localSize + receiveStream(socket, fos, respPacket.getAddress(), respPacket.getPort(),
+                            negotiatedAck(respPacket), totalFileSize - localSize);
                     fos.close();
                     long endTimeDownload = System.currentTimeMillis();
                     double durationDownload = (endTimeDownload - startTimeDownload) / 1000.0;
@@ -252,6 +306,17 @@ public class UDPClient {
                     continue;
                 }
 
+                // Команда BENCH – бенчмарк задержки ECHO с отдельных сокетов (см. EchoBenchmark)
+                else if (commandLine.toUpperCase().startsWith("BENCH")) {
+                    InetSocketAddress server = new InetSocketAddress(serverAddress, serverPort);
+                    try {
+                        EchoBenchmark.parse(commandLine).run(() -> new DatagramEchoChannel(server, "ECHO ", ""), System.out);
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("Ошибка: " + e.getMessage());
+                    }
+                    continue;
+                }
+
                 // Если команда не является UPLOAD или DOWNLOAD – обрабатываем как текстовую (например, ECHO, TIME)
                 else {
                     byte[] data = commandLine.getBytes();
@@ -272,4 +337,259 @@ public class UDPClient {
             System.err.println("Ошибка UDP-клиента: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    // Заполняет буфер пакета очередным куском источника (см. StreamPacket: seq, длина данных, данные);
+    // источник читается последовательно с текущей позиции
+    private static int fillPacket(StreamPacket packet, ByteBuffer buffer, SeekableByteChannel source, long seq) throws IOException {
+        packet.wrap(buffer.clear()).beginData();
+        while (buffer.hasRemaining() && source.read(buffer) > 0) {
+        }
+        return packet.endData(seq);
+    }
+
+    private static ByteBuffer[] newWindow() {
+        ByteBuffer[] window = new ByteBuffer[WINDOW_SIZE];
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            window[i] = ByteBuffer.allocate(StreamPacket.PACKET_SIZE);
+        }
+        return window;
+    }
+
+    // Первое окно с начала источника на общий порт сервера вслед за командой UPLOAD ... EARLY 0;
+    // возвращает число отправленных пакетов, они остаются в слотах окна до подтверждения
+    private static int sendEarly(DatagramSocket socket, SeekableByteChannel source, ByteBuffer[] window,
+                                 InetAddress serverAddress, int serverPort) throws IOException {
+        StreamPacket codec = new StreamPacket();
+        int sent = 0;
+        while (sent < WINDOW_SIZE && fillPacket(codec, window[sent], source, sent) > 0) {
+            socket.send(new DatagramPacket(window[sent].array(), window[sent].limit(), serverAddress, serverPort));
+            sent++;
+        }
+        System.out.println("Первое окно отправлено вместе с командой: пакетов " + sent);
+        return sent;
+    }
+
+    // Ответ на команду передачи; ACK ранних пакетов, обогнавшие ответ, пропускаются
+    private static void receiveHandshake(DatagramSocket socket, DatagramPacket packet) throws IOException {
+        do {
+            packet.setLength(packet.getData().length);
+            socket.receive(packet);
+        } while (packet.getLength() == StreamPacket.ACK_SIZE);
+    }
+
+    // Текстовая команда без передачи (HAVE) и ответ на неё; потерянный ответ – до трёх попыток
+    private static String ask(DatagramSocket socket, String command, InetAddress serverAddress, int serverPort) throws IOException {
+        byte[] data = command.getBytes();
+        byte[] buffer = new byte[1024];
+        for (int attempt = 1; ; attempt++) {
+            socket.send(new DatagramPacket(data, data.length, serverAddress, serverPort));
+            DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(reply);
+                return new String(reply.getData(), 0, reply.getLength()).trim();
+            } catch (SocketTimeoutException e) {
+                if (attempt == 3) throw e;
+            }
+        }
+    }
+
+    private static void sendPackets(DatagramSocket socket, SeekableByteChannel source,
+                                    InetAddress transferAddress, int transferPort) throws IOException {
+        sendPackets(socket, source, source.position(), newWindow(), 0, 0, transferAddress, transferPort);
+    }
+
+    // Отправка источника с позиции start с использованием скользящего окна и FIN-пакет в конце.
+    // В памяти только пакеты окна: слот seq % WINDOW_SIZE хранит пакет до подтверждения,
+    // после чего заполняется следующим куском источника, поэтому память не зависит от размера файла.
+    // Первые early пакетов уже лежат в окне и отправлены на общий порт в earlySentAt (см. sendEarly),
+    // источник стоит за ними; без подтверждения они повторяются по таймауту на порт передачи
+    private static void sendPackets(DatagramSocket socket, SeekableByteChannel source, long start, ByteBuffer[] window,
+                                    int early, long earlySentAt, InetAddress transferAddress, int transferPort) throws IOException {
+        long bytes = Math.max(0, source.size() - start);
+        long totalPackets = (bytes + DATA_BUFFER_SIZE - 1) / DATA_BUFFER_SIZE;
+        System.out.println("Всего пакетов для отправки: " + totalPackets);
+
+        StreamPacket codec = new StreamPacket();
+        DatagramPacket packet = new DatagramPacket(new byte[0], 0, transferAddress, transferPort);
+        // Кроме 4-байтовых ACK сервер может прислать текст "ERROR: ..." – загрузка прервана на его стороне
+        byte[] ackBuffer = new byte[1500];
+        DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
+        StreamPacket ack = new StreamPacket().wrap(ByteBuffer.wrap(ackBuffer));
+        // Пакеты окна уходят по расписанию пейсера, темп – по RTT из замеров ACK
+        Pacer pacer = new Pacer(PACING, PACING_RATE_MBIT, WINDOW_SIZE * StreamPacket.PACKET_SIZE);
+        long[] sentAt = new long[WINDOW_SIZE]; // первая отправка пакета слота; -1 – отправлялся повторно
+        Arrays.fill(sentAt, 0, early, earlySentAt);
+        long base = 0;
+        long next = early;   // первый пакет окна, ещё не отправленный в текущем проходе
+        long loaded = early; // пакеты [0, loaded) уже прочитаны из источника
+
+        // Отправка пакетов с использованием скользящего окна. ACK кумулятивный: сервер принимает пакеты
+        // только по порядку, поэтому номер n подтверждает все пакеты до n включительно – в том числе
+        // отложенный ACK, закрывающий сразу несколько пакетов (см. AckPolicy)
+        while (base < totalPackets) {
+            long windowEnd = Math.min(base + WINDOW_SIZE, totalPackets);
+            // Освободившиеся слоты заполняются пакетами, вошедшими в окно
+            while (loaded < windowEnd) {
+                if (fillPacket(codec, window[(int) (loaded % WINDOW_SIZE)], source, loaded) == 0) {
+                    throw new EOFException("Источник закончился раньше ожидаемого на пакете seq=" + loaded);
+                }
+                sentAt[(int) (loaded % WINDOW_SIZE)] = 0;
+                loaded++;
+            }
+            for (long i = next; i < windowEnd; i++) {
+                int slotIndex = (int) (i % WINDOW_SIZE);
+                ByteBuffer slot = window[slotIndex];
+                packet.setData(slot.array(), 0, slot.limit());
+                pacer.await();
+                socket.send(packet);
+                long now = System.nanoTime();
+                pacer.onSend(slot.limit(), now);
+                sentAt[slotIndex] = sentAt[slotIndex] == 0 ? now : -1;
+                System.out.println("Отправлен пакет seq=" + i);
+            }
+            next = windowEnd;
+            try {
+                ackPacket.setLength(ackBuffer.length);
+                socket.receive(ackPacket);
+                if (ackPacket.getLength() != StreamPacket.ACK_SIZE) {
+                    String text = new String(ackBuffer, 0, ackPacket.getLength()).trim();
+                    if (text.startsWith("ERROR")) {
+                        throw new IOException("Сервер прервал загрузку: " + text);
+                    }
+                    continue;
+                }
+                long ackSeq = SeqNum.unwrap(base, ack.seq());
+                System.out.println("Получен ACK для seq=" + ackSeq);
+                if (ackSeq >= base && ackSeq < windowEnd) {
+                    long sentTime = sentAt[(int) (ackSeq % WINDOW_SIZE)];
+                    if (sentTime > 0) {
+                        pacer.onRtt(System.nanoTime() - sentTime);
+                    }
+                    base = ackSeq + 1;
+                }
+            } catch (SocketTimeoutException e) {
+                System.out.println("Таймаут ожидания ACK, повторная отправка непринятых пакетов окна");
+                next = base;
+            }
+        }
+        // Отправляем FIN-пакет для завершения передачи (4 байта, seq = -1)
+        ByteBuffer finBuffer = window[0];
+        codec.wrap(finBuffer.clear()).encodeFin();
+        socket.send(new DatagramPacket(finBuffer.array(), finBuffer.limit(), transferAddress, transferPort));
+    }
+
+    // Приём пакетов до FIN; возвращает число принятых байт.
+    // ackEvery – согласованная с сервером политика ACK (0 – не согласована, подтверждается каждый пакет
+    // его номером). При согласовании ACK кумулятивный и отложенный: на каждый ackEvery-й пакет по порядку,
+    // по истечении задержки, сразу – на повтор, разрыв и последний пакет (expectedBytes).
+    private static long receiveStream(DatagramSocket socket, OutputStream out, InetAddress transferAddress, int transferPort,
+                                      int ackEvery, long expectedBytes) throws IOException {
+        AckPolicy ackPolicy = new AckPolicy(ackEvery, ACK_DELAY_MS);
+        int receiveTimeout = socket.getSoTimeout();
+        long bytesReceived = 0;
+        long expectedSeq = 0;
+        int timeoutCount = 0; // счетчик таймаутов при приеме пакетов
+        byte[] packetBuffer = new byte[1500];
+        DatagramPacket filePacket = new DatagramPacket(packetBuffer, packetBuffer.length);
+        StreamPacket packet = new StreamPacket();
+        // ACK собирается в одном и том же буфере, адрес передачи задан заранее
+        StreamPacket ack = new StreamPacket().wrap(ByteBuffer.allocate(StreamPacket.ACK_SIZE));
+        DatagramPacket ackPacket = new DatagramPacket(ack.buffer().array(), StreamPacket.ACK_SIZE, transferAddress, transferPort);
+        try {
+            while (true) {
+                // Пока есть неподтверждённые пакеты, приём ждёт не дольше срока отложенного ACK
+                long ackDue = ackPolicy.millisUntilDue(System.nanoTime());
+                socket.setSoTimeout(ackDue > 0 ? (int) ackDue : receiveTimeout);
+                try {
+                    filePacket.setLength(packetBuffer.length);
+                    socket.receive(filePacket);
+                    // Сброс счетчика, если пакет получен
+                    timeoutCount = 0;
+                    packet.wrap(ByteBuffer.wrap(packetBuffer, 0, filePacket.getLength()));
+                    if (packet.isFin()) {
+                        System.out.println("Получен FIN-пакет. Загрузка завершена.");
+                        break;
+                    }
+                    if (!packet.isData()) continue;
+                    long seq = SeqNum.unwrap(expectedSeq, packet.seq());
+                    int dataLength = packet.dataLength();
+                    // Пишем только очередной пакет: повтор или пакет "из будущего" не должен сдвинуть данные
+                    if (seq > expectedSeq) {
+                        if (ackEvery > 0 && expectedSeq > 0 && ackPolicy.onOutOfOrder()) {
+                            sendAck(socket, ackPacket, ack, expectedSeq - 1);
+                            ackPolicy.acked();
+                        }
+                        continue;
+                    }
+                    boolean ackNow;
+                    if (seq == expectedSeq) {
+                        out.write(packetBuffer, StreamPacket.HEADER_SIZE, dataLength);
+                        bytesReceived += dataLength;
+                        expectedSeq++;
+                        ackNow = ackPolicy.onInOrder(System.nanoTime()) || bytesReceived >= expectedBytes;
+                    } else {
+                        ackNow = ackPolicy.onOutOfOrder();
+                    }
+                    if (ackNow) {
+                        // Отправляем ACK для полученного пакета (при согласовании – для всех полученных по порядку)
+                        sendAck(socket, ackPacket, ack, ackEvery > 0 ? expectedSeq - 1 : seq);
+                        ackPolicy.acked();
+                        System.out.println("Получен пакет seq=" + seq + ", отправлен ACK.");
+                    } else {
+                        System.out.println("Получен пакет seq=" + seq + ".");
+                    }
+                } catch (SocketTimeoutException e) {
+                    if (ackDue > 0) {
+                        // отложенный ACK
+                        sendAck(socket, ackPacket, ack, expectedSeq - 1);
+                        ackPolicy.acked();
+                        continue;
+                    }
+                    timeoutCount++;
+                    System.out.println("Таймаут ожидания пакета DOWNLOAD (попытка " + timeoutCount + ").");
+                    if (timeoutCount >= 3) {
+                        System.out.println("Превышено число таймаутов. Считаем, что передача завершена.");
+                        break;
+                    }
+                }
+            }
+        } finally {
+            socket.setSoTimeout(receiveTimeout);
+        }
+        return bytesReceived;
+    }
+
+    private static void sendAck(DatagramSocket socket, DatagramPacket ackPacket, StreamPacket ack, long seq) throws IOException {
+        ack.encodeAck(seq);
+        socket.send(ackPacket);
+    }
+
+    // Смещение дозагрузки (8 байт) – на порт передачи, с которого пришёл ответ на команду
+    private static void sendResumeOffset(DatagramSocket socket, long offset, DatagramPacket handshake) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(StreamPacket.HANDSHAKE_SIZE);
+        new StreamPacket().wrap(buffer).encodeHandshake(offset, 0);
+        socket.send(new DatagramPacket(buffer.array(), buffer.limit(), handshake.getAddress(), handshake.getPort()));
+    }
+
+    // Суффикс команды передачи с предложением отложенных ACK
+    private static String ackOption() {
+        return ACK_EVERY > 1 ? " ACK " + ACK_EVERY : "";
+    }
+
+    // Ответ на команду передачи: 8 байт (смещение или размер) и 4 байта принятой политики ACK, если она согласована
+    private static boolean isHandshake(DatagramPacket packet) {
+        return handshake(packet).isHandshake();
+    }
+
+    private static long handshakeValue(DatagramPacket packet) {
+        return handshake(packet).handshakeValue();
+    }
+
+    private static int negotiatedAck(DatagramPacket packet) {
+        return handshake(packet).handshakeAck();
+    }
+
+    private static StreamPacket handshake(DatagramPacket packet) {
+        return new StreamPacket().wrap(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()).slice());
+    }
+}
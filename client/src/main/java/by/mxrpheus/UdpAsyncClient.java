@@ -0,0 +1,341 @@
+package by.mxrpheus;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+// AsyncClient протокола UDPServer (текстовые команды, пакет seq + длина + данные, FIN = -1).
+// Дозагрузка как у консольного UDPClient: UPLOAD продолжается со смещения, которое сообщил сервер,
+// DOWNLOAD – с длины частично скачанного target (больший или равный по размеру файл перезаписывается).
+// Первое окно загрузки уходит вслед за командой в расчёте на загрузку с начала (EARLY 0); если сервер
+// сообщил другое смещение, отправка начинается заново с него.
+class UdpAsyncClient extends AbstractAsyncClient {
+    private static final int DATA_BUFFER_SIZE = StreamPacket.DATA_SIZE;
+    private static final int PACKET_SIZE = StreamPacket.PACKET_SIZE;
+    private static final int WINDOW_SIZE = 5;
+    private static final int TIMEOUT_MS = 1000;
+    private static final int COMMAND_TIMEOUT_MS = 2000;
+    private static final int COMMAND_ATTEMPTS = 3;
+    private static final int ACK_EVERY = Integer.getInteger("client.ack.every", AckPolicy.MAX_EVERY);
+    private static final long ACK_DELAY_MS = Long.getLong("client.ack.delay.ms", AckPolicy.DEFAULT_DELAY_MS);
+    private static final boolean PACING = Boolean.parseBoolean(System.getProperty("client.pacing", "true"));
+    private static final double PACING_RATE_MBIT = Double.parseDouble(System.getProperty("client.pacing.rateMbit", "0"));
+    private static final boolean EARLY_START = Boolean.parseBoolean(System.getProperty("client.earlyStart", "true"));
+
+    UdpAsyncClient(InetSocketAddress server) {
+        super(server);
+    }
+
+    @Override
+    public CompletableFuture<TransferResult> upload(Path file, TransferListener listener) {
+        String name = file.getFileName().toString();
+        return submit(() -> {
+            try (DatagramSocket socket = new DatagramSocket();
+                 FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+                long start = System.nanoTime();
+                long size = source.size();
+                ByteBuffer[] window = newWindow();
+                int early = EARLY_START ? fillEarly(source, window) : 0;
+                long earlySentAt = System.nanoTime();
+                // Сокет не соединяется с портом передачи: connect отбросил бы ACK первого окна, уже лежащие
+                // в буфере сокета, поэтому адрес ACK проверяется при приёме (см. sendPackets)
+                DatagramPacket handshake = transferReply(socket,
+                        "UPLOAD " + name + " SIZE " + size + (early > 0 ? " EARLY 0" : "") + ackOption(), window, early);
+                long offset = Math.min(size, handshake(handshake).handshakeValue());
+                if (offset != 0) {
+                    early = 0; // первое окно сервер отбросил
+                }
+                if (early == 0) {
+                    source.position(offset);
+                }
+                sendPackets(socket, handshake.getSocketAddress(), source, offset, window, early, earlySentAt, name, listener);
+                return new TransferResult(name, size - offset, System.nanoTime() - start);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<TransferResult> download(String name, Path target, TransferListener listener) {
+        return submit(() -> {
+            try (DatagramSocket socket = new DatagramSocket();
+                 FileChannel sink = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                long start = System.nanoTime();
+                DatagramPacket handshake = transferCommand(socket, "DOWNLOAD " + name + ackOption());
+                StreamPacket reply = handshake(handshake);
+                long size = reply.handshakeValue();
+                long offset = sink.size() < size ? sink.size() : 0;
+                sink.truncate(offset);
+                sink.position(offset);
+                // Смещение дозагрузки – на порт передачи, с которого пришёл размер файла
+                ByteBuffer resume = ByteBuffer.allocate(StreamPacket.HANDSHAKE_SIZE);
+                new StreamPacket().wrap(resume).encodeHandshake(offset, 0);
+                socket.send(new DatagramPacket(resume.array(), resume.limit()));
+                long bytes = receiveStream(socket, sink, reply.handshakeAck(), offset, size, name, listener);
+                return new TransferResult(name, bytes, System.nanoTime() - start);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<String> echo(String message) {
+        return submit(() -> {
+            try (DatagramSocket socket = new DatagramSocket()) {
+                return new String(request(socket, "ECHO " + message));
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<String> time() {
+        return submit(() -> {
+            try (DatagramSocket socket = new DatagramSocket()) {
+                return new String(request(socket, "TIME")).trim();
+            }
+        });
+    }
+
+    // Текстовая команда с повтором при потере; возвращает данные ответа
+    private byte[] request(DatagramSocket socket, String cmd) throws IOException {
+        DatagramPacket reply = exchange(socket, cmd);
+        byte[] data = new byte[reply.getLength()];
+        System.arraycopy(reply.getData(), 0, data, 0, data.length);
+        return data;
+    }
+
+    // Команда передачи: ответ – 8 байт (смещение или размер) и 4 байта принятой политики ACK, иначе это текст ошибки.
+    // Сокет соединяется с портом, с которого пришёл ответ: его сервер выделил под эту передачу
+    private DatagramPacket transferCommand(DatagramSocket socket, String cmd) throws IOException {
+        DatagramPacket reply = transferReply(socket, cmd, new ByteBuffer[0], 0);
+        socket.connect(reply.getSocketAddress());
+        return reply;
+    }
+
+    // Ответ на команду передачи без соединения сокета; early – первые earlyCount пакетов данных,
+    // которые уходят на общий порт вслед за каждой попыткой команды
+    private DatagramPacket transferReply(DatagramSocket socket, String cmd, ByteBuffer[] early, int earlyCount)
+            throws IOException {
+        DatagramPacket reply = exchange(socket, cmd, early, earlyCount);
+        if (!handshake(reply).isHandshake()) {
+            throw new IOException(new String(reply.getData(), 0, reply.getLength()).trim());
+        }
+        return reply;
+    }
+
+    private DatagramPacket exchange(DatagramSocket socket, String cmd) throws IOException {
+        return exchange(socket, cmd, new ByteBuffer[0], 0);
+    }
+
+    // ACK ранних пакетов (в том числе от сессии прежней попытки) ответом на команду не считаются
+    private DatagramPacket exchange(DatagramSocket socket, String cmd, ByteBuffer[] early, int earlyCount)
+            throws IOException {
+        byte[] data = cmd.getBytes();
+        DatagramPacket reply = new DatagramPacket(new byte[PACKET_SIZE], PACKET_SIZE);
+        socket.setSoTimeout(COMMAND_TIMEOUT_MS);
+        for (int attempt = 0; attempt < COMMAND_ATTEMPTS; attempt++) {
+            socket.send(new DatagramPacket(data, data.length, server));
+            for (int i = 0; i < earlyCount; i++) {
+                socket.send(new DatagramPacket(early[i].array(), early[i].limit(), server));
+            }
+            try {
+                do {
+                    reply.setLength(PACKET_SIZE);
+                    socket.receive(reply);
+                } while (earlyCount > 0 && reply.getLength() == StreamPacket.ACK_SIZE);
+                return reply;
+            } catch (SocketTimeoutException e) {
+                if (Thread.currentThread().isInterrupted()) break;
+            }
+        }
+        throw new SocketTimeoutException("Нет ответа сервера на " + cmd);
+    }
+
+    private static ByteBuffer[] newWindow() {
+        ByteBuffer[] window = new ByteBuffer[WINDOW_SIZE];
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            window[i] = ByteBuffer.allocate(PACKET_SIZE);
+        }
+        return window;
+    }
+
+    // Первое окно с начала источника для отправки вместе с командой; возвращает число пакетов
+    private static int fillEarly(SeekableByteChannel source, ByteBuffer[] window) throws IOException {
+        int packets = (int) Math.min(WINDOW_SIZE, (source.size() + DATA_BUFFER_SIZE - 1) / DATA_BUFFER_SIZE);
+        StreamPacket codec = new StreamPacket();
+        for (int seq = 0; seq < packets; seq++) {
+            fillPacket(codec, window[seq], source, seq);
+        }
+        return packets;
+    }
+
+    // Отправка источника со смещения offset скользящим окном с кумулятивными ACK и FIN-пакет в конце.
+    // Первые early пакетов уже в окне и отправлены вместе с командой в earlySentAt, источник стоит за ними
+    private static void sendPackets(DatagramSocket socket, SocketAddress transfer, SeekableByteChannel source, long offset,
+                                    ByteBuffer[] window, int early, long earlySentAt, String name,
+                                    TransferListener listener) throws IOException {
+        long size = source.size();
+        long totalPackets = (size - offset + DATA_BUFFER_SIZE - 1) / DATA_BUFFER_SIZE;
+        long[] sentAt = new long[WINDOW_SIZE]; // первая отправка пакета слота; -1 – отправлялся повторно
+        Arrays.fill(sentAt, 0, early, earlySentAt);
+        Pacer pacer = new Pacer(PACING, PACING_RATE_MBIT, WINDOW_SIZE * PACKET_SIZE);
+        StreamPacket codec = new StreamPacket();
+        DatagramPacket packet = new DatagramPacket(new byte[0], 0, transfer);
+        // Кроме ACK сервер может прислать текст "ERROR: ..." – загрузка прервана на его стороне
+        byte[] ackBuffer = new byte[PACKET_SIZE];
+        DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
+        StreamPacket ack = new StreamPacket().wrap(ByteBuffer.wrap(ackBuffer));
+        socket.setSoTimeout(TIMEOUT_MS);
+        long base = 0;
+        long next = early;   // первый пакет окна, ещё не отправленный в текущем проходе
+        long loaded = early; // пакеты [0, loaded) уже прочитаны из источника
+        long lastProgress = System.currentTimeMillis();
+        while (base < totalPackets) {
+            checkProgress(lastProgress, "UPLOAD " + name);
+            long windowEnd = Math.min(base + WINDOW_SIZE, totalPackets);
+            while (loaded < windowEnd) {
+                fillPacket(codec, window[(int) (loaded % WINDOW_SIZE)], source, loaded);
+                sentAt[(int) (loaded % WINDOW_SIZE)] = 0;
+                loaded++;
+            }
+            for (; next < windowEnd; next++) {
+                int slotIndex = (int) (next % WINDOW_SIZE);
+                ByteBuffer slot = window[slotIndex];
+                packet.setData(slot.array(), 0, slot.limit());
+                pacer.await();
+                socket.send(packet);
+                long now = System.nanoTime();
+                pacer.onSend(slot.limit(), now);
+                sentAt[slotIndex] = sentAt[slotIndex] == 0 ? now : -1;
+            }
+            try {
+                ackPacket.setLength(ackBuffer.length);
+                socket.receive(ackPacket);
+            } catch (SocketTimeoutException e) {
+                next = base; // повтор неподтверждённой части окна
+                continue;
+            }
+            if (!transfer.equals(ackPacket.getSocketAddress())) continue;
+            if (ackPacket.getLength() != StreamPacket.ACK_SIZE) {
+                String text = new String(ackBuffer, 0, ackPacket.getLength()).trim();
+                if (text.startsWith("ERROR")) {
+                    throw new IOException(text);
+                }
+                continue;
+            }
+            long ackSeq = SeqNum.unwrap(base, ack.seq());
+            if (ackSeq >= base && ackSeq < windowEnd) {
+                long sentTime = sentAt[(int) (ackSeq % WINDOW_SIZE)];
+                if (sentTime > 0) {
+                    pacer.onRtt(System.nanoTime() - sentTime);
+                }
+                base = ackSeq + 1;
+                lastProgress = System.currentTimeMillis();
+                listener.onProgress(name, Math.min(size, offset + base * DATA_BUFFER_SIZE), size);
+            }
+        }
+        ByteBuffer fin = window[0];
+        codec.wrap(fin.clear()).encodeFin();
+        socket.send(new DatagramPacket(fin.array(), fin.limit(), transfer));
+    }
+
+    private static void fillPacket(StreamPacket codec, ByteBuffer packet, SeekableByteChannel source, long seq)
+            throws IOException {
+        codec.wrap(packet.clear()).beginData();
+        while (packet.hasRemaining() && source.read(packet) > 0) {
+        }
+        if (codec.endData(seq) == 0) {
+            throw new EOFException("Источник закончился раньше ожидаемого на пакете seq=" + seq);
+        }
+    }
+
+    // Приём пакетов до FIN с отложенными ACK; возвращает число принятых байт. Если все байты приняты,
+    // а FIN потерялся, передача завершается по первому таймауту
+    private static long receiveStream(DatagramSocket socket, FileChannel sink, int ackEvery, long offset, long size,
+                                      String name, TransferListener listener) throws IOException {
+        AckPolicy ackPolicy = new AckPolicy(ackEvery, ACK_DELAY_MS);
+        byte[] data = new byte[PACKET_SIZE];
+        DatagramPacket packet = new DatagramPacket(data, data.length);
+        StreamPacket received = new StreamPacket();
+        ByteBuffer receivedBuffer = ByteBuffer.wrap(data);
+        StreamPacket ack = new StreamPacket().wrap(ByteBuffer.allocate(StreamPacket.ACK_SIZE));
+        DatagramPacket ackPacket = new DatagramPacket(ack.buffer().array(), StreamPacket.ACK_SIZE);
+        long expectedBytes = size - offset;
+        long bytes = 0;
+        long expectedSeq = 0;
+        long lastProgress = System.currentTimeMillis();
+        while (true) {
+            checkProgress(lastProgress, "DOWNLOAD " + name);
+            long ackDue = ackPolicy.millisUntilDue(System.nanoTime());
+            socket.setSoTimeout(ackDue > 0 ? (int) ackDue : TIMEOUT_MS);
+            try {
+                packet.setLength(data.length);
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                if (ackDue > 0) {
+                    sendAck(socket, ackPacket, ack, expectedSeq - 1);
+                    ackPolicy.acked();
+                } else if (bytes >= expectedBytes) {
+                    break;
+                }
+                continue;
+            }
+            received.wrap(receivedBuffer.clear().limit(packet.getLength()));
+            if (received.isFin()) break;
+            if (!received.isData()) continue;
+            long seq = SeqNum.unwrap(expectedSeq, received.seq());
+            int dataLength = received.dataLength();
+            // Повтор или пакет "из будущего" не должен сдвинуть данные
+            if (seq > expectedSeq) {
+                if (ackEvery > 0 && expectedSeq > 0 && ackPolicy.onOutOfOrder()) {
+                    sendAck(socket, ackPacket, ack, expectedSeq - 1);
+                    ackPolicy.acked();
+                }
+                continue;
+            }
+            boolean ackNow;
+            if (seq == expectedSeq) {
+                ByteBuffer payload = received.payload();
+                while (payload.hasRemaining()) {
+                    sink.write(payload);
+                }
+                bytes += dataLength;
+                expectedSeq++;
+                lastProgress = System.currentTimeMillis();
+                ackNow = ackPolicy.onInOrder(System.nanoTime()) || bytes >= expectedBytes;
+            } else {
+                ackNow = ackPolicy.onOutOfOrder();
+            }
+            if (ackNow) {
+                sendAck(socket, ackPacket, ack, ackEvery > 0 ? expectedSeq - 1 : seq);
+                ackPolicy.acked();
+                listener.onProgress(name, offset + bytes, size);
+            }
+        }
+        return bytes;
+    }
+
+    // ACK собирается в одном буфере на передачу; сокет соединён с портом передачи
+    private static void sendAck(DatagramSocket socket, DatagramPacket ackPacket, StreamPacket ack, long seq)
+            throws IOException {
+        ack.encodeAck(seq);
+        socket.send(ackPacket);
+    }
+
+    private static String ackOption() {
+        return ACK_EVERY > 1 ? " ACK " + ACK_EVERY : "";
+    }
+
+    private static StreamPacket handshake(DatagramPacket reply) {
+        return new StreamPacket().wrap(ByteBuffer.wrap(reply.getData(), reply.getOffset(), reply.getLength()).slice());
+    }
+}
@@ -0,0 +1,118 @@
+package by.mxrpheus;
+
+import java.util.Random;
+
+// Модель ухудшения одного направления канала: потери (случайные и пачками по модели Гилберта–Эллиотта),
+// задержка с джиттером, переупорядочивание, дублирование и ограничение полосы с очередью.
+// Все решения берутся из генератора со своим seed, поэтому одна и та же последовательность пакетов
+// всегда ухудшается одинаково.
+public class Impairment {
+    private final double loss;           // вероятность потери в "хорошем" состоянии
+    private final double burstEnter;     // вероятность перейти в "плохое" состояние (пачка потерь)
+    private final double burstExit;      // вероятность вернуться в "хорошее" состояние
+    private final double burstLoss;      // вероятность потери в "плохом" состоянии
+    private final long delayNs;
+    private final long jitterNs;
+    private final double reorder;        // вероятность задержать пакет дополнительно, чтобы его обогнали
+    private final long reorderNs;
+    private final double duplicate;
+    private final double bytesPerNs;     // 0 – без ограничения полосы
+    private final long queueNs;          // максимальное время ожидания в очереди перед отправкой
+    private final Random random;
+
+    private boolean bad;
+    private long linkFree;               // момент, когда "канал" освободится от уже принятых пакетов
+
+    private long received;
+    private long dropped;
+    private long duplicated;
+    private long reordered;
+    private long queueDropped;
+
+    public Impairment(double loss, double burstEnter, double burstExit, double burstLoss,
+                      long delayMs, long jitterMs, double reorder, long reorderMs,
+                      double duplicate, double rateMbit, long queueMs, long seed) {
+        this.loss = loss;
+        this.burstEnter = burstEnter;
+        this.burstExit = burstExit;
+        this.burstLoss = burstLoss;
+        this.delayNs = delayMs * 1_000_000L;
+        this.jitterNs = jitterMs * 1_000_000L;
+        this.reorder = reorder;
+        this.reorderNs = reorderMs * 1_000_000L;
+        this.duplicate = duplicate;
+        this.bytesPerNs = rateMbit * 1_000_000 / 8 / 1e9;
+        this.queueNs = queueMs * 1_000_000L;
+        this.random = new Random(seed);
+    }
+
+    // Настройки proxy.<name>; для направления можно переопределить через proxy.<direction>.<name>
+    // (direction – up: клиент → сервер, down: сервер → клиент)
+    public static Impairment fromProperties(String direction, long seed) {
+        return new Impairment(
+                property(direction, "loss", 0),
+                property(direction, "burst.enter", 0),
+                property(direction, "burst.exit", 0.5),
+                property(direction, "burst.loss", 1),
+                (long) property(direction, "delayMs", 0),
+                (long) property(direction, "jitterMs", 0),
+                property(direction, "reorder", 0),
+                (long) property(direction, "reorderMs", 20),
+                property(direction, "duplicate", 0),
+                property(direction, "rateMbit", 0),
+                (long) property(direction, "queueMs", 200),
+                seed);
+    }
+
+    private static double property(String direction, String name, double defaultValue) {
+        String value = System.getProperty("proxy." + direction + "." + name, System.getProperty("proxy." + name));
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    // Моменты доставки пакета размером size, пришедшего в now: 0 элементов – потерян, 2 – продублирован.
+    // Возвращает число заполненных элементов out.
+    public int schedule(long now, int size, long[] out) {
+        received++;
+        // Переходы состояния делаются для каждого пакета, чтобы длина пачек не зависела от остальных решений
+        if (bad) {
+            if (random.nextDouble() < burstExit) bad = false;
+        } else {
+            if (random.nextDouble() < burstEnter) bad = true;
+        }
+        double lossRoll = random.nextDouble();
+        double jitterRoll = random.nextDouble();
+        double reorderRoll = random.nextDouble();
+        double duplicateRoll = random.nextDouble();
+        if (lossRoll < (bad ? burstLoss : loss)) {
+            dropped++;
+            return 0;
+        }
+        long departure = now;
+        if (bytesPerNs > 0) {
+            long start = Math.max(now, linkFree);
+            if (start - now > queueNs) {
+                queueDropped++;
+                return 0;
+            }
+            linkFree = start + (long) (size / bytesPerNs);
+            departure = linkFree;
+        }
+        long delivery = departure + delayNs + (long) (jitterRoll * jitterNs);
+        if (reorderRoll < reorder) {
+            delivery += reorderNs;
+            reordered++;
+        }
+        out[0] = delivery;
+        if (duplicateRoll < duplicate) {
+            duplicated++;
+            out[1] = delivery + (long) (random.nextDouble() * Math.max(jitterNs, 1_000_000L));
+            return 2;
+        }
+        return 1;
+    }
+
+    public String describeStats() {
+        return String.format("пакетов %d, потеряно %d, отброшено очередью %d, переупорядочено %d, продублировано %d",
+                received, dropped, queueDropped, reordered, duplicated);
+    }
+}
@@ -0,0 +1,272 @@
+package by.mxrpheus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+// UDP-прокси с ухудшением канала между клиентами и сервером на loopback.
+// Каждому клиенту выделяется свой сокет в сторону сервера, поэтому сервер видит клиентов раздельно.
+// Пакеты обоих направлений проходят через Impairment и доставляются из очереди по времени в одном потоке.
+// Если сервер отвечает с другого порта (отдельный порт передачи), прокси открывает для клиента
+// свой порт-зеркало: ответы идут клиенту с него, а присланное на него уходит на тот порт сервера.
+//   java -cp loadgen/target/loadgen.jar -Dproxy.target=127.0.0.1:9001 -Dproxy.listen=9101 \
+//        -Dproxy.loss=0.02 -Dproxy.delayMs=20 -Dproxy.jitterMs=5 by.mxrpheus.ImpairmentProxy
+public class ImpairmentProxy implements Closeable {
+    private static final int MAX_DATAGRAM = 65536;
+    private static final long IDLE_FLOW_NS = 60_000_000_000L;
+    private static final long IDLE_MIRROR_NS = 5_000_000_000L;
+
+    // Пакет, ожидающий доставки
+    private record Delivery(long time, long order, DatagramChannel channel, SocketAddress target, byte[] data) { }
+
+    // Поток одного клиента: его адрес, сокет в сторону сервера и зеркала портов передачи сервера
+    private static class Flow {
+        final SocketAddress client;
+        final DatagramChannel upstream;
+        final Map<SocketAddress, Mirror> mirrors = new HashMap<>();
+        long lastActivity;
+
+        Flow(SocketAddress client, DatagramChannel upstream) {
+            this.client = client;
+            this.upstream = upstream;
+        }
+    }
+
+    // Порт прокси, соответствующий порту сервера server для клиента flow
+    private static class Mirror {
+        final Flow flow;
+        final SocketAddress server;
+        final DatagramChannel channel;
+        long lastActivity;
+
+        Mirror(Flow flow, SocketAddress server, DatagramChannel channel) {
+            this.flow = flow;
+            this.server = server;
+            this.channel = channel;
+        }
+    }
+
+    private final InetSocketAddress target;
+    private final Impairment up;
+    private final Impairment down;
+    private final DatagramChannel listen;
+    private final Selector selector;
+    private final Map<SocketAddress, Flow> flows = new HashMap<>();
+    private final PriorityQueue<Delivery> pending = new PriorityQueue<>((a, b) ->
+            a.time != b.time ? Long.compare(a.time, b.time) : Long.compare(a.order, b.order));
+    private final ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM);
+    private final long[] times = new long[2];
+    private final Thread thread;
+    private long order;
+    private long lastExpiry;
+    private volatile boolean running = true;
+
+    public ImpairmentProxy(InetSocketAddress listenAddress, InetSocketAddress target, Impairment up, Impairment down) throws IOException {
+        this.target = target;
+        this.up = up;
+        this.down = down;
+        this.selector = Selector.open();
+        this.listen = DatagramChannel.open().bind(listenAddress);
+        this.listen.configureBlocking(false);
+        this.listen.register(selector, SelectionKey.OP_READ);
+        this.thread = new Thread(this::run, "impairment-proxy");
+        this.thread.setDaemon(true);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String[] targetParts = System.getProperty("proxy.target", "127.0.0.1:9001").split(":");
+        InetSocketAddress target = new InetSocketAddress(targetParts[0], Integer.parseInt(targetParts[1]));
+        int listenPort = Integer.getInteger("proxy.listen", 9101);
+        long seed = Long.getLong("proxy.seed", 1);
+        ImpairmentProxy proxy = new ImpairmentProxy(new InetSocketAddress(InetAddress.getLoopbackAddress(), listenPort), target,
+                Impairment.fromProperties("up", seed), Impairment.fromProperties("down", seed + 1));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            proxy.close();
+            System.out.println(proxy.describeStats());
+        }));
+        proxy.start();
+        System.out.println("Прокси " + proxy.getLocalAddress() + " -> " + target);
+        proxy.thread.join();
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) listen.getLocalAddress();
+    }
+
+    public String describeStats() {
+        synchronized (this) {
+            return "клиент -> сервер: " + up.describeStats() + "\nсервер -> клиент: " + down.describeStats();
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                long now = System.nanoTime();
+                Delivery next = pending.peek();
+                if (next == null) {
+                    selector.select(1000);
+                } else if (next.time > now) {
+                    long waitMs = (next.time - now) / 1_000_000L;
+                    if (waitMs > 0) {
+                        selector.select(waitMs);
+                    } else {
+                        selector.selectNow();
+                    }
+                } else {
+                    selector.selectNow();
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (key.isReadable()) {
+                        receive((DatagramChannel) key.channel(), key.attachment());
+                    }
+                }
+                deliverDue();
+                expireIdleFlows();
+            }
+        } catch (IOException e) {
+            System.err.println("Ошибка прокси: " + e.getMessage());
+        } finally {
+            try {
+                for (Flow flow : flows.values()) {
+                    close(flow);
+                }
+                listen.close();
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("Ошибка закрытия прокси: " + e.getMessage());
+            }
+        }
+    }
+
+    // attachment == null – пакет от клиента на слушающий сокет, Flow – ответ сервера в сокет этого клиента,
+    // Mirror – пакет клиента на порт-зеркало
+    private void receive(DatagramChannel channel, Object attachment) throws IOException {
+        while (true) {
+            buffer.clear();
+            SocketAddress from = channel.receive(buffer);
+            if (from == null) return;
+            buffer.flip();
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            long now = System.nanoTime();
+            if (attachment == null) {
+                Flow clientFlow = flows.get(from);
+                if (clientFlow == null) {
+                    DatagramChannel upstream = DatagramChannel.open().bind(null);
+                    upstream.configureBlocking(false);
+                    clientFlow = new Flow(from, upstream);
+                    upstream.register(selector, SelectionKey.OP_READ, clientFlow);
+                    flows.put(from, clientFlow);
+                }
+                clientFlow.lastActivity = now;
+                enqueue(up, now, clientFlow.upstream, target, data);
+            } else if (attachment instanceof Flow flow) {
+                flow.lastActivity = now;
+                if (from.equals(target)) {
+                    enqueue(down, now, listen, flow.client, data);
+                } else {
+                    Mirror mirror = mirror(flow, from);
+                    mirror.lastActivity = now;
+                    enqueue(down, now, mirror.channel, flow.client, data);
+                }
+            } else {
+                Mirror mirror = (Mirror) attachment;
+                mirror.lastActivity = now;
+                mirror.flow.lastActivity = now;
+                enqueue(up, now, mirror.flow.upstream, mirror.server, data);
+            }
+        }
+    }
+
+    private Mirror mirror(Flow flow, SocketAddress server) throws IOException {
+        Mirror mirror = flow.mirrors.get(server);
+        if (mirror == null) {
+            DatagramChannel channel = DatagramChannel.open()
+                    .bind(new InetSocketAddress(((InetSocketAddress) listen.getLocalAddress()).getAddress(), 0));
+            channel.configureBlocking(false);
+            mirror = new Mirror(flow, server, channel);
+            channel.register(selector, SelectionKey.OP_READ, mirror);
+            flow.mirrors.put(server, mirror);
+        }
+        return mirror;
+    }
+
+    private void close(Flow flow) throws IOException {
+        for (Mirror mirror : flow.mirrors.values()) {
+            mirror.channel.close();
+        }
+        flow.upstream.close();
+    }
+
+    private void enqueue(Impairment impairment, long now, DatagramChannel channel, SocketAddress to, byte[] data) {
+        int copies;
+        synchronized (this) {
+            copies = impairment.schedule(now, data.length, times);
+        }
+        for (int i = 0; i < copies; i++) {
+            pending.add(new Delivery(times[i], order++, channel, to, data));
+        }
+    }
+
+    private void deliverDue() throws IOException {
+        long now = System.nanoTime();
+        while (!pending.isEmpty() && pending.peek().time <= now) {
+            Delivery delivery = pending.poll();
+            if (delivery.channel.isOpen()) {
+                delivery.channel.send(ByteBuffer.wrap(delivery.data), delivery.target);
+            }
+        }
+    }
+
+    private void expireIdleFlows() throws IOException {
+        long now = System.nanoTime();
+        if (now - lastExpiry < 1_000_000_000L) return;
+        lastExpiry = now;
+        Iterator<Flow> it = flows.values().iterator();
+        while (it.hasNext()) {
+            Flow flow = it.next();
+            if (now - flow.lastActivity > IDLE_FLOW_NS) {
+                close(flow);
+                it.remove();
+                continue;
+            }
+            Iterator<Mirror> mirrors = flow.mirrors.values().iterator();
+            while (mirrors.hasNext()) {
+                Mirror mirror = mirrors.next();
+                if (now - mirror.lastActivity > IDLE_MIRROR_NS) {
+                    mirror.channel.close();
+                    mirrors.remove();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package by.mxrpheus;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// Упрощённый неинтерактивный клиент одного из протоколов для генератора нагрузки.
+// Любое нарушение протокола или таймаут – IOException; после ошибки клиент пересоздаётся.
+public interface LoadClient extends Closeable {
+    void echo(String message) throws IOException;
+
+    void time() throws IOException;
+
+    void upload(String name, byte[] data) throws IOException;
+
+    // Возвращает число принятых байт
+    long download(String name) throws IOException;
+}
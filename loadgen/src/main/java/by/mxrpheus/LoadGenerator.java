@@ -0,0 +1,297 @@
+package by.mxrpheus;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Генератор нагрузки на loopback: запускает один из серверов (в процессе, дочерним процессом или внешний),
+// N одновременных клиентов выполняют смесь ECHO/TIME/UPLOAD/DOWNLOAD с файлами заданных размеров,
+// в конце печатается МБ/с, операций/с и перцентили задержек по каждой операции.
+// Настройки – системные свойства loadgen.*, например:
+//   java -Dloadgen.server=UDP -Dloadgen.clients=8 -Dloadgen.mix=ECHO:50,DOWNLOAD:50 -jar loadgen/target/loadgen.jar
+// С loadgen.proxy=true клиенты UDP-протоколов работают через ImpairmentProxy с настройками proxy.*
+// (потери, задержка, переупорядочивание...), что позволяет сравнивать варианты протокола в одинаковых условиях.
+// Пороговые значения (loadgen.minMBps, loadgen.maxP99Ms, loadgen.maxErrorRate) дают ненулевой код выхода для CI.
+public class LoadGenerator {
+    static final String FILE_PREFIX = "loadgen-";
+
+    private static final ServerLauncher.Target TARGET =
+            ServerLauncher.Target.valueOf(System.getProperty("loadgen.server", "SERVER").toUpperCase());
+    private static final ServerLauncher.Launch LAUNCH =
+            ServerLauncher.Launch.valueOf(System.getProperty("loadgen.launch", "PROCESS").toUpperCase());
+    private static final String HOST = System.getProperty("loadgen.host", "127.0.0.1");
+    private static final int PORT = Integer.getInteger("loadgen.port", TARGET.defaultPort);
+    private static final int CLIENTS = Integer.getInteger("loadgen.clients", 4);
+    private static final long DURATION_SEC = Long.getLong("loadgen.duration", 10);
+    private static final long WARMUP_SEC = Long.getLong("loadgen.warmup", 2);
+    private static final long OP_TIMEOUT_MS = Long.getLong("loadgen.opTimeoutMs", 30000);
+    private static final long SEED = Long.getLong("loadgen.seed", 1);
+    private static final boolean PROXY = Boolean.getBoolean("loadgen.proxy");
+    private static final String MIX = System.getProperty("loadgen.mix", "ECHO:40,TIME:10,UPLOAD:25,DOWNLOAD:25");
+    private static final String SIZES = System.getProperty("loadgen.sizes", "4k,64k,1m");
+    private static final double MIN_MBPS = Double.parseDouble(System.getProperty("loadgen.minMBps", "0"));
+    private static final double MAX_P99_MS = Double.parseDouble(System.getProperty("loadgen.maxP99Ms", "0"));
+    private static final double MAX_ERROR_RATE = Double.parseDouble(System.getProperty("loadgen.maxErrorRate", "1"));
+
+    enum Operation { ECHO, TIME, UPLOAD, DOWNLOAD }
+
+    // Статистика одной операции; у каждого потока своя, в конце объединяется
+    static class OpStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        long errors;
+        long bytes;
+
+        void merge(OpStats other) {
+            latency.merge(other.latency);
+            errors += other.errors;
+            bytes += other.bytes;
+        }
+    }
+
+    public static void main(String[] args) {
+        PrintStream out = System.out;
+        int exitCode;
+        try {
+            exitCode = run(out);
+        } catch (Exception e) {
+            System.err.println("Ошибка генератора нагрузки: " + e.getMessage());
+            exitCode = 2;
+        }
+        System.exit(exitCode);
+    }
+
+    private static int run(PrintStream out) throws Exception {
+        Operation[] mix = parseMix(MIX);
+        int[] sizes = parseSizes(SIZES);
+        Map<Integer, byte[]> payloads = new LinkedHashMap<>();
+        Random random = new Random(SEED);
+        for (int size : sizes) {
+            byte[] payload = new byte[size];
+            random.nextBytes(payload);
+            payloads.put(size, payload);
+        }
+
+        try (ServerLauncher launcher = new ServerLauncher(TARGET, LAUNCH, PORT)) {
+            InetSocketAddress address = new InetSocketAddress(HOST, launcher.getPort());
+            launcher.start();
+            launcher.awaitReady(address, 15000);
+            out.println("Сервер " + TARGET + " (" + LAUNCH + ") готов на " + address);
+
+            // Файлы для DOWNLOAD загружаются через сам протокол – так работает и с внешним сервером
+            try (LoadClient client = TARGET.connect(address, OP_TIMEOUT_MS)) {
+                for (Map.Entry<Integer, byte[]> entry : payloads.entrySet()) {
+                    client.upload(downloadName(entry.getKey()), entry.getValue());
+                }
+            }
+
+            ImpairmentProxy proxy = null;
+            InetSocketAddress clientAddress = address;
+            if (PROXY) {
+                if (TARGET == ServerLauncher.Target.TCP) {
+                    throw new IllegalArgumentException("Прокси ухудшения канала работает только с UDP-серверами");
+                }
+                long proxySeed = Long.getLong("proxy.seed", SEED);
+                proxy = new ImpairmentProxy(new InetSocketAddress(HOST, 0), address,
+                        Impairment.fromProperties("up", proxySeed), Impairment.fromProperties("down", proxySeed + 1));
+                proxy.start();
+                clientAddress = proxy.getLocalAddress();
+                out.println("Клиенты работают через прокси " + clientAddress);
+            }
+
+            out.printf("Клиентов: %d, прогрев %d с, измерение %d с, смесь %s, размеры %s%n",
+                    CLIENTS, WARMUP_SEC, DURATION_SEC, MIX, SIZES);
+            long start = System.nanoTime();
+            long measureFrom = start + WARMUP_SEC * 1_000_000_000L;
+            long end = measureFrom + DURATION_SEC * 1_000_000_000L;
+            List<Thread> threads = new ArrayList<>();
+            List<Map<Operation, OpStats>> results = new ArrayList<>();
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                Map<Operation, OpStats> stats = new EnumMap<>(Operation.class);
+                for (Operation op : Operation.values()) {
+                    stats.put(op, new OpStats());
+                }
+                results.add(stats);
+                int worker = i;
+                InetSocketAddress workerAddress = clientAddress;
+                Thread thread = new Thread(() -> {
+                    try {
+                        runWorker(worker, workerAddress, mix, sizes, payloads, stats, measureFrom, end);
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }, "loadgen-" + i);
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            if (proxy != null) {
+                proxy.close();
+                out.println(proxy.describeStats());
+            }
+            if (failure.get() != null) {
+                throw new IOException("Сбой клиента: " + failure.get(), failure.get());
+            }
+
+            Map<Operation, OpStats> total = new EnumMap<>(Operation.class);
+            for (Operation op : Operation.values()) {
+                OpStats merged = new OpStats();
+                for (Map<Operation, OpStats> stats : results) {
+                    merged.merge(stats.get(op));
+                }
+                total.put(op, merged);
+            }
+            return report(out, total, DURATION_SEC);
+        }
+    }
+
+    private static void runWorker(int worker, InetSocketAddress address, Operation[] mix, int[] sizes,
+                                  Map<Integer, byte[]> payloads, Map<Operation, OpStats> stats,
+                                  long measureFrom, long end) throws IOException {
+        Random random = new Random(SEED + worker + 1);
+        LoadClient client = null;
+        int uploads = 0;
+        try {
+            while (System.nanoTime() < end) {
+                Operation op = mix[random.nextInt(mix.length)];
+                int size = sizes[random.nextInt(sizes.length)];
+                long started = System.nanoTime();
+                long bytes = 0;
+                boolean ok = true;
+                try {
+                    if (client == null) {
+                        client = TARGET.connect(address, OP_TIMEOUT_MS);
+                    }
+                    switch (op) {
+                        case ECHO -> client.echo("loadgen " + worker);
+                        case TIME -> client.time();
+                        case UPLOAD -> {
+                            client.upload(FILE_PREFIX + "up-" + worker + "-" + (uploads++) + ".bin", payloads.get(size));
+                            bytes = size;
+                        }
+                        case DOWNLOAD -> {
+                            bytes = client.download(downloadName(size));
+                            if (bytes != size) {
+                                throw new IOException("Получено " + bytes + " байт из " + size);
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    ok = false;
+                    // Состояние протокола после ошибки неизвестно – следующий запрос идёт через новое соединение
+                    if (client != null) {
+                        client.close();
+                        client = null;
+                    }
+                }
+                long finished = System.nanoTime();
+                if (started < measureFrom || finished > end) continue;
+                OpStats opStats = stats.get(op);
+                if (ok) {
+                    opStats.latency.record(finished - started);
+                    opStats.bytes += bytes;
+                } else {
+                    opStats.errors++;
+                }
+            }
+        } finally {
+            if (client != null) client.close();
+        }
+    }
+
+    private static int report(PrintStream out, Map<Operation, OpStats> total, long seconds) {
+        out.printf("%-9s %9s %7s %10s %9s %9s %9s %9s %9s%n",
+                "операция", "готово", "ошибок", "опер/с", "МБ/с", "p50 мс", "p99 мс", "p999 мс", "max мс");
+        long allOps = 0;
+        long allErrors = 0;
+        long allBytes = 0;
+        long worstP99 = 0;
+        for (Map.Entry<Operation, OpStats> entry : total.entrySet()) {
+            OpStats stats = entry.getValue();
+            LatencyHistogram h = stats.latency;
+            if (h.getCount() == 0 && stats.errors == 0) continue;
+            out.printf("%-9s %9d %7d %10.1f %9.2f %9.3f %9.3f %9.3f %9.3f%n",
+                    entry.getKey(), h.getCount(), stats.errors, h.getCount() / (double) seconds,
+                    stats.bytes / (1024.0 * 1024.0) / seconds,
+                    ms(h.percentile(50)), ms(h.percentile(99)), ms(h.percentile(99.9)), ms(h.getMax()));
+            allOps += h.getCount();
+            allErrors += stats.errors;
+            allBytes += stats.bytes;
+            worstP99 = Math.max(worstP99, h.percentile(99));
+        }
+        long transfers = total.get(Operation.UPLOAD).latency.getCount() + total.get(Operation.DOWNLOAD).latency.getCount();
+        double mbps = allBytes / (1024.0 * 1024.0) / seconds;
+        double errorRate = allOps + allErrors == 0 ? 0 : allErrors / (double) (allOps + allErrors);
+        out.printf("Итого: %.1f опер/с, %.1f передач/с, %.2f МБ/с, ошибок %.2f%%%n",
+                allOps / (double) seconds, transfers / (double) seconds, mbps, errorRate * 100);
+
+        int exitCode = 0;
+        if (MIN_MBPS > 0 && mbps < MIN_MBPS) {
+            out.printf("ПОРОГ: %.2f МБ/с меньше loadgen.minMBps=%.2f%n", mbps, MIN_MBPS);
+            exitCode = 1;
+        }
+        if (MAX_P99_MS > 0 && ms(worstP99) > MAX_P99_MS) {
+            out.printf("ПОРОГ: p99 %.3f мс больше loadgen.maxP99Ms=%.3f%n", ms(worstP99), MAX_P99_MS);
+            exitCode = 1;
+        }
+        if (errorRate > MAX_ERROR_RATE) {
+            out.printf("ПОРОГ: доля ошибок %.4f больше loadgen.maxErrorRate=%.4f%n", errorRate, MAX_ERROR_RATE);
+            exitCode = 1;
+        }
+        return exitCode;
+    }
+
+    // "ECHO:40,UPLOAD:60" -> массив из 100 операций в этих пропорциях для равномерного выбора
+    private static Operation[] parseMix(String mix) {
+        List<Operation> weighted = new ArrayList<>();
+        for (String item : mix.split(",")) {
+            String[] parts = item.trim().split(":");
+            Operation op = Operation.valueOf(parts[0].trim().toUpperCase());
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+            for (int i = 0; i < weight; i++) {
+                weighted.add(op);
+            }
+        }
+        if (weighted.isEmpty()) {
+            throw new IllegalArgumentException("Пустая смесь операций: " + mix);
+        }
+        return weighted.toArray(new Operation[0]);
+    }
+
+    // "4k,64k,1m" -> размеры в байтах
+    private static int[] parseSizes(String sizes) {
+        String[] items = sizes.split(",");
+        int[] result = new int[items.length];
+        for (int i = 0; i < items.length; i++) {
+            String item = items[i].trim().toLowerCase();
+            int multiplier = 1;
+            if (item.endsWith("k")) {
+                multiplier = 1024;
+            } else if (item.endsWith("m")) {
+                multiplier = 1024 * 1024;
+            }
+            if (multiplier > 1) {
+                item = item.substring(0, item.length() - 1);
+            }
+            result[i] = Math.max(1, Integer.parseInt(item) * multiplier);
+        }
+        return result;
+    }
+
+    private static String downloadName(int size) {
+        return FILE_PREFIX + size + ".bin";
+    }
+
+    private static double ms(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
@@ -0,0 +1,180 @@
+package by.mxrpheus;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Запуск испытуемого сервера: в этом же процессе (поток), дочерним процессом во временном каталоге
+// или использование уже запущенного внешнего сервера.
+class ServerLauncher implements Closeable {
+    enum Target {
+        SERVER(9001, "server_files"),
+        UDP(9876, "server/files"),
+        TCP(9100, "server\\files");
+
+        final int defaultPort;
+        final String filesDir; // каталог файлов сервера относительно рабочего каталога
+
+        Target(int defaultPort, String filesDir) {
+            this.defaultPort = defaultPort;
+            this.filesDir = filesDir;
+        }
+
+        String mainClass() {
+            return switch (this) {
+                case SERVER -> Server.class.getName();
+                case UDP -> UDPServer.class.getName();
+                case TCP -> TCPServer.class.getName();
+            };
+        }
+
+        LoadClient connect(InetSocketAddress address, long opTimeoutMs) throws IOException {
+            return switch (this) {
+                case SERVER -> new ServerLoadClient(address, opTimeoutMs);
+                case UDP -> new UdpLoadClient(address, opTimeoutMs);
+                case TCP -> new TcpLoadClient(address, opTimeoutMs);
+            };
+        }
+    }
+
+    enum Launch { INPROCESS, PROCESS, EXTERNAL }
+
+    private final Target target;
+    private final Launch launch;
+    private final int port;
+    private Process process;
+    private Path workDir;
+
+    ServerLauncher(Target target, Launch launch, int port) {
+        this.target = target;
+        this.launch = launch;
+        // Порты Server и UDPServer зашиты в код – своим процессом их можно запустить только на них
+        this.port = launch == Launch.EXTERNAL || target == Target.TCP ? port : target.defaultPort;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    void start() throws IOException {
+        switch (launch) {
+            case INPROCESS -> startInProcess();
+            case PROCESS -> startProcess();
+            case EXTERNAL -> { }
+        }
+    }
+
+    private void startInProcess() {
+        new File(target.filesDir).mkdirs();
+        if (target == Target.TCP) {
+            // TCPServer читает порт со стандартного ввода
+            System.setIn(new ByteArrayInputStream((port + "\n").getBytes()));
+        }
+        // Серверы печатают каждую команду и пакет – в своём процессе этот вывод глушится
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Thread thread = new Thread(() -> {
+            switch (target) {
+                case SERVER -> Server.main(new String[0]);
+                case UDP -> UDPServer.main(new String[0]);
+                case TCP -> TCPServer.main(new String[0]);
+            }
+        }, "server-" + target.name().toLowerCase());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void startProcess() throws IOException {
+        workDir = Files.createTempDirectory("loadgen");
+        Files.createDirectories(workDir.resolve(target.filesDir));
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        // Настройки сервера (server.*) передаются дочернему процессу
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("server.")) {
+                command.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+        // Дочерний процесс работает во временном каталоге – относительные пути classpath (java -jar) делаются абсолютными
+        command.add("-cp");
+        command.add(Stream.of(System.getProperty("java.class.path").split(File.pathSeparator))
+                .map(entry -> new File(entry).getAbsolutePath())
+                .collect(Collectors.joining(File.pathSeparator)));
+        command.add(target.mainClass());
+        process = new ProcessBuilder(command)
+                .directory(workDir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(workDir.resolve("server.log").toFile())
+                .start();
+        if (target == Target.TCP) {
+            try (OutputStream stdin = process.getOutputStream()) {
+                stdin.write((port + "\n").getBytes());
+            }
+        } else {
+            process.getOutputStream().close();
+        }
+    }
+
+    // Сервер готов, когда отвечает на ECHO
+    void awaitReady(InetSocketAddress address, long timeoutMs) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        IOException last = null;
+        while (System.currentTimeMillis() < deadline) {
+            if (process != null && !process.isAlive()) {
+                throw new IOException("Сервер завершился с кодом " + process.exitValue() + ", см. " + workDir.resolve("server.log"));
+            }
+            try (LoadClient client = target.connect(address, 1000)) {
+                client.echo("ping");
+                return;
+            } catch (IOException e) {
+                last = e;
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        throw new IOException("Сервер не ответил за " + timeoutMs + " мс", last);
+    }
+
+    // Удаление загруженных генератором файлов (в своём процессе) или всего временного каталога
+    @Override
+    public void close() throws IOException {
+        if (process != null) {
+            process.destroy();
+            try {
+                process.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            deleteRecursively(workDir);
+        } else if (launch == Launch.INPROCESS) {
+            File[] files = new File(target.filesDir).listFiles((dir, name) -> name.startsWith(LoadGenerator.FILE_PREFIX));
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
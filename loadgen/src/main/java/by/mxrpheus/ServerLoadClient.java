@@ -0,0 +1,154 @@
+package by.mxrpheus;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+// Клиент протокола Server (команды CMD:, заголовок тип + seq + totalPackets, кумулятивные ACK).
+// Окно и таймаут повтора те же, что у консольного Client. Передача идёт через порт, с которого сервер ответил на команду.
+class ServerLoadClient implements LoadClient {
+    private static final int PACKET_SIZE = TransferPacket.PACKET_SIZE;
+    private static final int HEADER_SIZE = TransferPacket.HEADER_SIZE;
+    private static final int DATA_SIZE = TransferPacket.DATA_SIZE;
+    private static final int WINDOW_SIZE = 5;
+    private static final long TIMEOUT_MS = 500;
+    private static final long COMMAND_TIMEOUT_MS = 2000;
+    private static final int POLL_MS = 20;
+
+    private final DatagramSocket socket;
+    private final InetSocketAddress server;
+    private final long opTimeoutMs;
+    private final byte[] receiveBuffer = new byte[PACKET_SIZE];
+    private final ByteBuffer packetBuffer = ByteBuffer.allocate(PACKET_SIZE);
+    private final ByteBuffer ackBuffer = ByteBuffer.allocate(HEADER_SIZE);
+    private final ByteBuffer received = ByteBuffer.wrap(receiveBuffer);
+    private final TransferPacket inbound = new TransferPacket();
+    private final TransferPacket outbound = new TransferPacket();
+    private InetSocketAddress transfer; // адрес последнего ответа на команду
+
+    ServerLoadClient(InetSocketAddress server, long opTimeoutMs) throws IOException {
+        this.server = server;
+        this.opTimeoutMs = opTimeoutMs;
+        this.socket = new DatagramSocket();
+        this.socket.setSoTimeout(POLL_MS);
+    }
+
+    @Override
+    public void echo(String message) throws IOException {
+        String response = command("ECHO " + message, "ECHO");
+        if (!response.equals("ECHO " + message)) {
+            throw new IOException("Неверный ответ ECHO: " + response);
+        }
+    }
+
+    @Override
+    public void time() throws IOException {
+        command("TIME", "TIME");
+    }
+
+    @Override
+    public void upload(String name, byte[] data) throws IOException {
+        command("UPLOAD " + name + " 0", "READY_FOR_UPLOAD");
+        int totalPackets = (data.length + DATA_SIZE - 1) / DATA_SIZE;
+        long[] sendTimes = new long[totalPackets];
+        int base = 0;
+        long deadline = System.currentTimeMillis() + opTimeoutMs;
+        while (base < totalPackets) {
+            checkDeadline(deadline, "UPLOAD");
+            int windowEnd = Math.min(totalPackets, base + WINDOW_SIZE);
+            long now = System.currentTimeMillis();
+            for (int seq = base; seq < windowEnd; seq++) {
+                if (sendTimes[seq] == 0 || now - sendTimes[seq] > TIMEOUT_MS) {
+                    int offset = seq * DATA_SIZE;
+                    int length = Math.min(DATA_SIZE, data.length - offset);
+                    outbound.wrap(packetBuffer.clear()).encodeData(seq, totalPackets);
+                    packetBuffer.put(data, offset, length);
+                    socket.send(new DatagramPacket(packetBuffer.array(), packetBuffer.position(), transfer));
+                    sendTimes[seq] = now;
+                }
+            }
+            DatagramPacket packet = receive();
+            if (packet != null && decode(packet).hasHeader() && inbound.type() == TransferPacket.ACK) {
+                int ackNum = inbound.ackNum();
+                if (ackNum >= base && ackNum < totalPackets) {
+                    base = ackNum + 1;
+                }
+            }
+        }
+    }
+
+    @Override
+    public long download(String name) throws IOException {
+        String[] parts = command("DOWNLOAD " + name + " 0", "READY_FOR_DOWNLOAD").split(" ");
+        if (parts.length < 4) {
+            throw new IOException("Некорректный ответ сервера");
+        }
+        int totalPackets = Integer.parseInt(parts[3]);
+        int expectedSeq = 0;
+        long bytes = 0;
+        long deadline = System.currentTimeMillis() + opTimeoutMs;
+        while (expectedSeq < totalPackets) {
+            checkDeadline(deadline, "DOWNLOAD");
+            DatagramPacket packet = receive();
+            if (packet == null || !decode(packet).hasHeader() || inbound.type() != TransferPacket.DATA) continue;
+            int seq = inbound.seq();
+            if (seq == expectedSeq) {
+                bytes += inbound.payloadLength();
+                expectedSeq++;
+            }
+            outbound.wrap(ackBuffer.clear()).encodeAck(expectedSeq - 1);
+            socket.send(new DatagramPacket(ackBuffer.array(), HEADER_SIZE, transfer));
+        }
+        return bytes;
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+
+    // Отправка команды и ожидание ответа с нужным префиксом; запоздавшие пакеты прошлых передач пропускаются
+    private String command(String cmd, String expected) throws IOException {
+        byte[] data = ("CMD:" + cmd).getBytes();
+        socket.send(new DatagramPacket(data, data.length, server));
+        long deadline = System.currentTimeMillis() + COMMAND_TIMEOUT_MS;
+        while (true) {
+            checkDeadline(deadline, cmd);
+            DatagramPacket packet = receive();
+            if (packet == null || packet.getLength() < 4) continue;
+            String response = new String(receiveBuffer, 0, packet.getLength());
+            if (!response.startsWith("CMD:")) continue;
+            response = response.substring(4).trim();
+            if (response.startsWith("ERROR")) {
+                throw new IOException(response);
+            }
+            if (response.startsWith(expected)) {
+                transfer = (InetSocketAddress) packet.getSocketAddress();
+                return response;
+            }
+        }
+    }
+
+    private TransferPacket decode(DatagramPacket packet) {
+        return inbound.wrap(received.clear().limit(packet.getLength()));
+    }
+
+    private DatagramPacket receive() throws IOException {
+        DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+        try {
+            socket.receive(packet);
+            return packet;
+        } catch (SocketTimeoutException e) {
+            return null;
+        }
+    }
+
+    private static void checkDeadline(long deadline, String what) throws SocketTimeoutException {
+        if (System.currentTimeMillis() > deadline) {
+            throw new SocketTimeoutException("Таймаут " + what);
+        }
+    }
+}
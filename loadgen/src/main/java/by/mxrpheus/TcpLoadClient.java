@@ -0,0 +1,82 @@
+package by.mxrpheus;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+// Клиент протокола TCPServer: команда – одна запись, ответы – сырые байты и 8-байтовые позиции/размеры.
+class TcpLoadClient implements LoadClient {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    TcpLoadClient(InetSocketAddress server, long opTimeoutMs) throws IOException {
+        socket = new Socket();
+        socket.connect(server, (int) opTimeoutMs);
+        socket.setSoTimeout((int) opTimeoutMs);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(socket.getInputStream());
+        out = new DataOutputStream(socket.getOutputStream());
+    }
+
+    @Override
+    public void echo(String message) throws IOException {
+        String response = command("ECHO " + message);
+        if (!response.equals(message)) {
+            throw new IOException("Invalid ECHO response: " + response);
+        }
+    }
+
+    @Override
+    public void time() throws IOException {
+        String response = command("TIME");
+        if (!response.startsWith("Server time:")) {
+            throw new IOException("Invalid TIME response: " + response);
+        }
+    }
+
+    @Override
+    public void upload(String name, byte[] data) throws IOException {
+        out.write(("UPLOAD " + name).getBytes());
+        long position = in.readLong();
+        out.writeLong(data.length);
+        out.write(data, (int) position, (int) (data.length - position));
+        out.flush();
+    }
+
+    @Override
+    public long download(String name) throws IOException {
+        out.write(("DOWNLOAD " + name).getBytes());
+        in.readLong();
+        out.writeLong(0L);
+        long size = in.readLong();
+        long received = 0;
+        while (received < size) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, size - received));
+            if (n < 0) {
+                throw new IOException("Connection closed after " + received + " of " + size + " bytes");
+            }
+            received += n;
+        }
+        return received;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private String command(String cmd) throws IOException {
+        out.write(cmd.getBytes());
+        int n = in.read(buffer, 0, 1024);
+        if (n < 0) {
+            throw new IOException("Connection closed");
+        }
+        return new String(buffer, 0, n).trim();
+    }
+}
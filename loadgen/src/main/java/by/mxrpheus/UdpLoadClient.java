@@ -0,0 +1,190 @@
+package by.mxrpheus;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+// Клиент протокола UDPServer (текстовые команды, пакеты seq + длина + данные, ACK на каждый пакет, FIN = -1).
+// Окно и таймаут те же, что у консольного UDPClient. Передача идёт через порт, с которого сервер ответил на команду.
+class UdpLoadClient implements LoadClient {
+    private static final int DATA_BUFFER_SIZE = StreamPacket.DATA_SIZE;
+    private static final int WINDOW_SIZE = 5;
+    private static final int TIMEOUT = 1000;
+    private static final long COMMAND_TIMEOUT_MS = 3000;
+
+    private final DatagramSocket socket;
+    private final InetSocketAddress server;
+    private final long opTimeoutMs;
+    private final byte[] receiveBuffer = new byte[1500];
+    private final ByteBuffer received = ByteBuffer.wrap(receiveBuffer);
+    private final ByteBuffer controlBuffer = ByteBuffer.allocate(StreamPacket.HANDSHAKE_SIZE);
+    private final StreamPacket inbound = new StreamPacket();
+    private final StreamPacket outbound = new StreamPacket();
+    private InetSocketAddress transfer; // порт передачи из последнего ответа receiveLong
+
+    UdpLoadClient(InetSocketAddress server, long opTimeoutMs) throws IOException {
+        this.server = server;
+        this.opTimeoutMs = opTimeoutMs;
+        this.socket = new DatagramSocket();
+    }
+
+    @Override
+    public void echo(String message) throws IOException {
+        send(("ECHO " + message).getBytes());
+        String response = receiveText();
+        if (!response.equals(message)) {
+            throw new IOException("Неверный ответ ECHO: " + response);
+        }
+    }
+
+    @Override
+    public void time() throws IOException {
+        send("TIME".getBytes());
+        String response = receiveText();
+        if (!response.startsWith("Server time:")) {
+            throw new IOException("Неверный ответ TIME: " + response);
+        }
+    }
+
+    @Override
+    public void upload(String name, byte[] data) throws IOException {
+        send(("UPLOAD " + name + " SIZE " + data.length).getBytes());
+        long start = receiveLong();
+        int totalPackets = (int) ((data.length - start + DATA_BUFFER_SIZE - 1) / DATA_BUFFER_SIZE);
+        boolean[] acked = new boolean[totalPackets];
+        ByteBuffer packetBuffer = ByteBuffer.allocate(StreamPacket.PACKET_SIZE);
+        int base = 0;
+        long deadline = System.currentTimeMillis() + opTimeoutMs;
+        socket.setSoTimeout(TIMEOUT);
+        while (base < totalPackets) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new SocketTimeoutException("Таймаут UPLOAD");
+            }
+            int windowEnd = Math.min(base + WINDOW_SIZE, totalPackets);
+            for (int i = base; i < windowEnd; i++) {
+                if (!acked[i]) {
+                    int offset = (int) (start + (long) i * DATA_BUFFER_SIZE);
+                    int length = Math.min(DATA_BUFFER_SIZE, data.length - offset);
+                    outbound.wrap(packetBuffer.clear()).beginData();
+                    packetBuffer.put(data, offset, length);
+                    outbound.endData(i);
+                    socket.send(new DatagramPacket(packetBuffer.array(), packetBuffer.limit(), transfer));
+                }
+            }
+            int acksReceived = 0;
+            while (acksReceived < windowEnd - base) {
+                DatagramPacket ack = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+                try {
+                    socket.receive(ack);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+                if (!decode(ack).isAck()) {
+                    String text = new String(receiveBuffer, 0, ack.getLength()).trim();
+                    if (text.startsWith("ERROR")) {
+                        throw new IOException(text);
+                    }
+                    continue;
+                }
+                int ackSeq = inbound.seq();
+                if (ackSeq >= base && ackSeq < windowEnd && !acked[ackSeq]) {
+                    acked[ackSeq] = true;
+                    acksReceived++;
+                }
+            }
+            while (base < totalPackets && acked[base]) {
+                base++;
+            }
+        }
+        outbound.wrap(controlBuffer.clear()).encodeFin();
+        sendControl();
+    }
+
+    @Override
+    public long download(String name) throws IOException {
+        send(("DOWNLOAD " + name).getBytes());
+        long size = receiveLong();
+        outbound.wrap(controlBuffer.clear()).encodeHandshake(0, 0);
+        sendControl();
+        long bytes = 0;
+        int expectedSeq = 0;
+        long deadline = System.currentTimeMillis() + opTimeoutMs;
+        socket.setSoTimeout(TIMEOUT);
+        while (true) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new SocketTimeoutException("Таймаут DOWNLOAD");
+            }
+            DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                continue;
+            }
+            if (decode(packet).isFin()) break;
+            if (!inbound.isData()) continue;
+            int seq = inbound.seq();
+            int length = inbound.dataLength();
+            // Пакет "из будущего" не подтверждаем, повтор подтверждаем ещё раз
+            if (seq > expectedSeq) continue;
+            if (seq == expectedSeq) {
+                bytes += length;
+                expectedSeq++;
+            }
+            outbound.wrap(controlBuffer.clear()).encodeAck(seq);
+            sendControl();
+        }
+        if (bytes != size) {
+            throw new IOException("Получено " + bytes + " байт из " + size);
+        }
+        return bytes;
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+
+    private void send(byte[] data) throws IOException {
+        send(data, server);
+    }
+
+    private void send(byte[] data, InetSocketAddress target) throws IOException {
+        socket.send(new DatagramPacket(data, data.length, target));
+    }
+
+    // Служебный пакет (ACK, FIN, смещение), собранный в controlBuffer, – на порт передачи
+    private void sendControl() throws IOException {
+        socket.send(new DatagramPacket(controlBuffer.array(), controlBuffer.limit(), transfer));
+    }
+
+    private StreamPacket decode(DatagramPacket packet) {
+        return inbound.wrap(received.clear().limit(packet.getLength()));
+    }
+
+    private String receiveText() throws IOException {
+        socket.setSoTimeout((int) COMMAND_TIMEOUT_MS);
+        DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+        socket.receive(packet);
+        return new String(receiveBuffer, 0, packet.getLength()).trim();
+    }
+
+    // Ответ из 8 байт (размер или смещение); текст "ERROR..." – ошибка, прочие запоздавшие пакеты пропускаются
+    private long receiveLong() throws IOException {
+        socket.setSoTimeout((int) COMMAND_TIMEOUT_MS);
+        while (true) {
+            DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+            socket.receive(packet);
+            if (packet.getLength() == StreamPacket.HANDSHAKE_SIZE) {
+                transfer = (InetSocketAddress) packet.getSocketAddress();
+                return decode(packet).handshakeValue();
+            }
+            String text = new String(receiveBuffer, 0, packet.getLength()).trim();
+            if (text.startsWith("ERROR")) {
+                throw new IOException(text);
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package by.mxrpheus;
+
+// Политика подтверждений на стороне получателя: отложенные и объединённые ACK.
+// Пакет, пришедший по порядку, подтверждается не сразу – ACK уходит на каждый every-й такой пакет
+// или через delay после первого неподтверждённого. Повтор, пакет "из будущего" (разрыв) и первый
+// пакет по порядку после них подтверждаются немедленно, чтобы не задерживать восстановление потерь.
+// ACK кумулятивный: номер n подтверждает все пакеты до n включительно, поэтому один "растянутый" ACK
+// закрывает у отправителя сразу несколько пакетов.
+// every согласуется на сессию: клиент предлагает его в команде передачи ("ACK n"), сервер ограничивает
+// его MAX_EVERY и повторяет в ответе. Без согласования every = 1 – ACK на каждый пакет, как раньше.
+// Не потокобезопасна: принадлежит потоку, который принимает пакеты сессии.
+public class AckPolicy {
+    // Окно отправителя – 5 пакетов: подтверждать реже он не даст, остановившись в ожидании ACK
+    public static final int MAX_EVERY = 4;
+    public static final long DEFAULT_DELAY_MS = 2;
+
+    private final int every;
+    private final long delayNs;
+    private int pending;       // пакеты по порядку, ещё не подтверждённые
+    private long pendingSince; // System.nanoTime() приёма первого из них
+    private boolean gap;       // после последнего ACK был повтор или разрыв
+
+    public AckPolicy(int every, long delayMs) {
+        this.every = Math.max(1, every);
+        this.delayNs = delayMs * 1_000_000L;
+    }
+
+    // Значение, которое принимает сервер в ответ на предложенное клиентом
+    public static int negotiate(int requested) {
+        return Math.max(1, Math.min(MAX_EVERY, requested));
+    }
+
+    public int getEvery() {
+        return every;
+    }
+
+    // Пакет принят по порядку; true – ACK нужно отправить сейчас
+    public boolean onInOrder(long now) {
+        boolean closesGap = gap;
+        gap = false;
+        if (pending++ == 0) {
+            pendingSince = now;
+        }
+        return closesGap || pending >= every;
+    }
+
+    // Повтор или пакет "из будущего": подтверждаем сразу, отправитель увидит, до какого места всё получено
+    public boolean onOutOfOrder() {
+        gap = true;
+        return true;
+    }
+
+    // ACK отправлен (немедленный или отложенный)
+    public void acked() {
+        pending = 0;
+    }
+
+    public boolean isDue(long now) {
+        return pending > 0 && now - pendingSince >= delayNs;
+    }
+
+    // Миллисекунды до отложенного ACK (не меньше 1); 0 – неподтверждённых пакетов нет
+    public long millisUntilDue(long now) {
+        if (pending == 0) return 0;
+        long remaining = pendingSince + delayNs - now;
+        return Math.max(1, (remaining + 999_999) / 1_000_000);
+    }
+}
@@ -0,0 +1,288 @@
+package by.mxrpheus;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// Приёмная сторона пакетной передачи (формат потока – см. BatchStream).
+// Разбирает манифест и раскладывает последовательный поток по файлам каталога назначения.
+// Манифест сохраняется рядом с файлами, пока пакет не получен целиком, – по нему вычисляется точка дозагрузки.
+// Манифест приходит из сети, поэтому до создания первого файла проверяется целиком: число файлов и длина
+// манифеста ограничены, размеры неотрицательны, имена не выходят за каталог назначения, а сумма размеров
+// совпадает с длиной потока, если транспорт её сообщает (expectLength, expectPackets).
+public class BatchReceiver implements WritableByteChannel {
+    static final String MANIFEST_FILE = ".batch-manifest";
+    static final int MAX_FILES = 1_000_000;
+    static final int MAX_MANIFEST_SIZE = 64 * 1024 * 1024;
+    private static final int MIN_ENTRY_SIZE = 2 + 1 + 8; // длина имени, непустое имя, размер
+
+    private final File targetDir;
+    private long position;
+
+    private ByteBuffer header;     // накапливается, пока манифест не получен целиком
+    private String[] names;
+    private long[] sizes;
+    private long[] starts;
+    private long headerLength;
+    private long length = -1;
+    private long expectedMin = 0;                  // допустимая длина потока по сведениям транспорта
+    private long expectedMax = Long.MAX_VALUE;
+
+    private int currentIndex = -1;
+    private RandomAccessFile currentFile;
+    private int filesCompleted = 0;
+    private int nextEmpty = 0;     // первый файл, который ещё не проверялся на пустоту (createEmptyFiles)
+    private final List<File> unsynced = new ArrayList<>(); // закрытые, но ещё не сброшенные на диск файлы
+    private boolean open = true;
+
+    public BatchReceiver(File targetDir, long startOffset) throws IOException {
+        this.targetDir = targetDir;
+        this.position = startOffset;
+        targetDir.mkdirs();
+        File manifest = new File(targetDir, MANIFEST_FILE);
+        if (startOffset > 0) {
+            if (!manifest.exists()) {
+                throw new IOException("Нет манифеста для дозагрузки пакета в " + targetDir);
+            }
+            parseHeader(Files.readAllBytes(manifest.toPath()));
+        } else {
+            header = ByteBuffer.allocate(4);
+        }
+    }
+
+    // Длина потока, объявленная отправителем: манифест с другой суммой размеров отвергается
+    public void expectLength(long streamLength) throws IOException {
+        expect(streamLength, streamLength);
+    }
+
+    // Поток объявлен числом пакетов по packetSize байт: последний пакет может быть неполным
+    public void expectPackets(long totalPackets, int packetSize) throws IOException {
+        expect((totalPackets - 1) * packetSize + 1, totalPackets * packetSize);
+    }
+
+    private void expect(long min, long max) throws IOException {
+        expectedMin = min;
+        expectedMax = max;
+        if (length >= 0) checkLength();
+    }
+
+    private void checkLength() throws IOException {
+        if (length < expectedMin || length > expectedMax) {
+            throw new IOException("Манифест пакета (" + length + " байт) не совпадает с объявленной длиной потока");
+        }
+    }
+
+    // Смещение в потоке, с которого можно продолжить приём: конец последнего записанного байта
+    public static long resumeOffset(File targetDir) throws IOException {
+        File manifest = new File(targetDir, MANIFEST_FILE);
+        if (!manifest.exists()) return 0;
+        BatchReceiver probe = new BatchReceiver(targetDir, 1);
+        long offset = probe.headerLength;
+        for (int i = 0; i < probe.names.length; i++) {
+            File file = new File(targetDir, probe.names[i]);
+            long local = file.exists() ? file.length() : 0;
+            if (local < probe.sizes[i]) {
+                return offset + local;
+            }
+            offset += probe.sizes[i];
+        }
+        return offset;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int written = src.remaining();
+        while (src.hasRemaining()) {
+            if (length < 0) {
+                readHeader(src);
+                continue;
+            }
+            if (position < headerLength) {
+                // повторно пришедшая часть манифеста при дозагрузке
+                int skip = (int) Math.min(src.remaining(), headerLength - position);
+                src.position(src.position() + skip);
+                position += skip;
+                continue;
+            }
+            if (position >= length) break;
+            int index = fileIndex(position);
+            openFile(index);
+            long inFile = position - starts[index];
+            int n = (int) Math.min(src.remaining(), sizes[index] - inFile);
+            ByteBuffer slice = src.slice(src.position(), n);
+            while (slice.hasRemaining()) {
+                currentFile.getChannel().write(slice, inFile + (n - slice.remaining()));
+            }
+            src.position(src.position() + n);
+            position += n;
+            if (position == starts[index] + sizes[index]) {
+                completeFile();
+            }
+        }
+        createEmptyFiles();
+        if (isComplete()) {
+            new File(targetDir, MANIFEST_FILE).delete();
+        }
+        return written;
+    }
+
+    private void readHeader(ByteBuffer src) throws IOException {
+        while (header.hasRemaining() && src.hasRemaining()) {
+            header.put(src.get());
+            position++;
+        }
+        if (header.hasRemaining()) return;
+        if (header.capacity() == 4) {
+            int manifestLength = header.getInt(0);
+            if (manifestLength < 4 || manifestLength > MAX_MANIFEST_SIZE) throw new IOException("Некорректный манифест пакета");
+            ByteBuffer full = ByteBuffer.allocate(4 + manifestLength);
+            full.putInt(manifestLength);
+            header = full;
+            return;
+        }
+        byte[] bytes = header.array();
+        // отвергнутый манифест не сохраняется: иначе он мешал бы следующим попыткам загрузки
+        parseHeader(bytes);
+        Files.write(new File(targetDir, MANIFEST_FILE).toPath(), bytes);
+    }
+
+    private void parseHeader(byte[] bytes) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        if (bytes.length < 8 || buf.getInt() != bytes.length - 4) {
+            throw new IOException("Некорректный манифест пакета");
+        }
+        int count = buf.getInt();
+        if (count < 0 || count > MAX_FILES || count > buf.remaining() / MIN_ENTRY_SIZE) {
+            throw new IOException("Недопустимое число файлов в манифесте: " + count);
+        }
+        String[] names = new String[count];
+        long[] sizes = new long[count];
+        long[] starts = new long[count];
+        long offset = bytes.length;
+        try {
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[buf.getShort() & 0xFFFF];
+                buf.get(name);
+                names[i] = checkName(new String(name, StandardCharsets.UTF_8));
+                sizes[i] = buf.getLong();
+                if (sizes[i] < 0) throw new IOException("Отрицательный размер файла в манифесте: " + names[i]);
+                starts[i] = offset;
+                offset = Math.addExact(offset, sizes[i]);
+            }
+        } catch (BufferUnderflowException | ArithmeticException e) {
+            throw new IOException("Некорректный манифест пакета");
+        }
+        if (buf.hasRemaining()) throw new IOException("Некорректный манифест пакета");
+        this.names = names;
+        this.sizes = sizes;
+        this.starts = starts;
+        headerLength = bytes.length;
+        length = offset;
+        checkLength();
+    }
+
+    // Имена из манифеста не должны выходить за пределы каталога назначения: относительный путь
+    // через '/' без сегментов "..", без букв дисков и обратных слэшей
+    private static String checkName(String name) throws IOException {
+        if (name.isEmpty() || name.startsWith("/") || name.contains("\\") || name.matches("[A-Za-z]:.*")
+                || name.indexOf('\0') >= 0 || name.equals(MANIFEST_FILE) || new File(name).isAbsolute()) {
+            throw new IOException("Недопустимое имя в манифесте: " + name);
+        }
+        for (String segment : name.split("/")) {
+            if (segment.equals("..")) throw new IOException("Недопустимое имя в манифесте: " + name);
+        }
+        return name;
+    }
+
+    private void openFile(int index) throws IOException {
+        if (index == currentIndex) return;
+        if (currentFile != null) currentFile.close();
+        File file = new File(targetDir, names[index]);
+        file.getParentFile().mkdirs();
+        currentFile = new RandomAccessFile(file, "rw");
+        // при дозагрузке отбрасываем всё, что дальше точки продолжения
+        currentFile.setLength(position - starts[index]);
+        currentIndex = index;
+    }
+
+    private void completeFile() throws IOException {
+        unsynced.add(new File(targetDir, names[currentIndex]));
+        currentFile.close();
+        currentFile = null;
+        currentIndex = -1;
+        filesCompleted++;
+    }
+
+    // Пустые файлы не занимают места в потоке – создаём их, как только поток дошёл до их начала.
+    // Курсор nextEmpty только растёт: каждый файл манифеста проверяется один раз за приём
+    private void createEmptyFiles() throws IOException {
+        if (length < 0) return;
+        for (; nextEmpty < names.length && starts[nextEmpty] <= position; nextEmpty++) {
+            if (sizes[nextEmpty] != 0) continue;
+            File file = new File(targetDir, names[nextEmpty]);
+            if (!file.exists()) {
+                file.getParentFile().mkdirs();
+                file.createNewFile();
+                filesCompleted++;
+            } else if (file.length() != 0) {
+                new RandomAccessFile(file, "rw").getChannel().truncate(0).close();
+                filesCompleted++;
+            }
+        }
+    }
+
+    private int fileIndex(long pos) {
+        int lo = 0, hi = starts.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (starts[mid] <= pos) lo = mid; else hi = mid - 1;
+        }
+        return lo;
+    }
+
+    // Сброс на диск всех записанных с прошлого вызова файлов
+    public void force() throws IOException {
+        for (File file : unsynced) {
+            try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                fc.force(false);
+            }
+        }
+        unsynced.clear();
+        if (currentFile != null) {
+            currentFile.getChannel().force(false);
+        }
+    }
+
+    public boolean isComplete() {
+        return length >= 0 && position >= length;
+    }
+
+    public int getFileCount() {
+        return names == null ? 0 : names.length;
+    }
+
+    public int getFilesCompleted() {
+        return filesCompleted;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+        if (currentFile != null) currentFile.close();
+        currentFile = null;
+    }
+}
@@ -0,0 +1,251 @@
+package by.mxrpheus;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+// Пакетная передача многих файлов за одну сессию: манифест и содержимое файлов подряд.
+// Формат потока: [4 байта: длина манифеста][манифест][файл 1][файл 2]...
+// Манифест: 4 байта число файлов, далее для каждого файла 2 байта длины имени, имя (UTF-8) и 8 байт размера.
+// Границы файлов однозначно задаются манифестом, поэтому дозагрузка возможна с любого смещения потока.
+public class BatchStream implements SeekableByteChannel {
+    // Файлы, которые лежат не в каталоге, а в другом хранилище (на сервере – ChunkStore).
+    // Имена – относительно корня, через '/'
+    public interface Source {
+        // Файлы с именем, начинающимся с prefix: имя -> размер
+        Map<String, Long> files(String prefix) throws IOException;
+
+        SeekableByteChannel open(String name) throws IOException;
+    }
+
+    private final String name;
+    private final File[] files;
+    private final Source source;
+    private final String[] storedNames; // имя в source для файлов, которых нет в каталоге
+    private final long[] sizes;
+    private final long[] starts;   // смещение начала каждого файла в потоке
+    private final byte[] header;   // длина манифеста + манифест
+    private final long length;
+
+    private long position = 0;
+    private int openIndex = -1;
+    private SeekableByteChannel openChannel;
+    private boolean open = true;
+
+    private BatchStream(String name, List<String> names, List<File> files, Source source, List<String> storedNames,
+                        List<Long> storedSizes) {
+        this.name = name;
+        this.files = files.toArray(new File[0]);
+        this.source = source;
+        this.storedNames = storedNames.toArray(new String[0]);
+        this.sizes = new long[files.size()];
+        this.starts = new long[files.size()];
+
+        int manifestLength = 4;
+        List<byte[]> encodedNames = new ArrayList<>();
+        for (String n : names) {
+            byte[] encoded = n.getBytes(StandardCharsets.UTF_8);
+            encodedNames.add(encoded);
+            manifestLength += 2 + encoded.length + 8;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(4 + manifestLength);
+        buf.putInt(manifestLength);
+        buf.putInt(files.size());
+        long offset = 4 + manifestLength;
+        for (int i = 0; i < this.files.length; i++) {
+            sizes[i] = this.storedNames[i] != null ? storedSizes.get(i) : this.files[i].length();
+            starts[i] = offset;
+            offset += sizes[i];
+            buf.putShort((short) encodedNames.get(i).length);
+            buf.put(encodedNames.get(i));
+            buf.putLong(sizes[i]);
+        }
+        this.header = buf.array();
+        this.length = offset;
+    }
+
+    // spec – каталог ("photos") или каталог с маской ("photos/*.jpg", "photos/**.txt");
+    // root == null – spec задаёт путь относительно текущего каталога или абсолютный
+    public static BatchStream open(File root, String spec) throws IOException {
+        return open(root, spec, null);
+    }
+
+    // source != null – в пакет попадают и файлы каталога, которые есть только в source
+    public static BatchStream open(File root, String spec, Source source) throws IOException {
+        while (spec.endsWith("/")) spec = spec.substring(0, spec.length() - 1);
+        String base = baseDir(spec);
+        String pattern = spec.length() > base.length() ? spec.substring(base.isEmpty() ? 0 : base.length() + 1) : "**";
+        Path dir = (root == null ? new File(base) : new File(root, base)).toPath();
+        if (!Files.isDirectory(dir)) {
+            throw new IOException("Каталог не найден: " + base);
+        }
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        List<Path> matched;
+        try (Stream<Path> walk = Files.walk(dir)) {
+            matched = new ArrayList<>(walk.filter(Files::isRegularFile)
+                    .filter(p -> matcher.matches(dir.relativize(p)))
+                    .toList());
+        }
+        Map<Path, String> stored = new HashMap<>();
+        Map<String, Long> storedFiles = Map.of();
+        if (source != null && root != null) {
+            String prefix = root.toPath().toAbsolutePath().normalize()
+                    .relativize(dir.toAbsolutePath().normalize()).toString().replace(File.separatorChar, '/');
+            prefix = prefix.isEmpty() ? "" : prefix + "/";
+            storedFiles = source.files(prefix);
+            for (String file : storedFiles.keySet()) {
+                Path p = dir.resolve(file.substring(prefix.length()));
+                if (!Files.exists(p) && matcher.matches(dir.relativize(p))) {
+                    matched.add(p);
+                    stored.put(p, file);
+                }
+            }
+        }
+        matched.sort(null);
+        List<String> names = new ArrayList<>();
+        List<File> files = new ArrayList<>();
+        List<String> storedNames = new ArrayList<>();
+        List<Long> storedSizes = new ArrayList<>();
+        for (Path p : matched) {
+            names.add(dir.relativize(p).toString().replace(File.separatorChar, '/'));
+            files.add(p.toFile());
+            String storedName = stored.get(p);
+            storedNames.add(storedName);
+            storedSizes.add(storedName != null ? storedFiles.get(storedName) : null);
+        }
+        return new BatchStream(batchName(spec), names, files, source, storedNames, storedSizes);
+    }
+
+    // Часть спецификации до первого компонента с символами маски
+    static String baseDir(String spec) {
+        String[] segments = spec.split("/");
+        StringBuilder base = new StringBuilder(spec.startsWith("/") ? "/" : "");
+        for (String segment : segments) {
+            if (segment.isEmpty()) continue;
+            if (segment.matches(".*[*?\\[{].*")) break;
+            if (base.length() > 0 && base.charAt(base.length() - 1) != '/') base.append('/');
+            base.append(segment);
+        }
+        return base.toString();
+    }
+
+    // Имя пакета – последний компонент каталога; под этим именем получатель сохраняет файлы
+    static String batchName(String spec) {
+        String name = new File(baseDir(spec)).getName();
+        return name.isEmpty() ? "batch" : name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getFileCount() {
+        return files.length;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (position >= length) return -1;
+        int total = 0;
+        while (dst.hasRemaining() && position < length) {
+            int n;
+            if (position < header.length) {
+                n = Math.min(dst.remaining(), (int) (header.length - position));
+                dst.put(header, (int) position, n);
+            } else {
+                int index = fileIndex(position);
+                long inFile = position - starts[index];
+                int want = (int) Math.min(dst.remaining(), sizes[index] - inFile);
+                n = readFile(index, inFile, dst, want);
+            }
+            position += n;
+            total += n;
+        }
+        return total;
+    }
+
+    private int readFile(int index, long inFile, ByteBuffer dst, int want) throws IOException {
+        if (index != openIndex) {
+            if (openChannel != null) openChannel.close();
+            openChannel = storedNames[index] != null
+                    ? source.open(storedNames[index])
+                    : FileChannel.open(files[index].toPath(), StandardOpenOption.READ);
+            openIndex = index;
+        }
+        ByteBuffer slice = dst.slice(dst.position(), want);
+        int read = 0;
+        while (slice.hasRemaining()) {
+            int r = openChannel.position(inFile + read).read(slice);
+            if (r < 0) break;
+            read += r;
+        }
+        // Файл укоротился во время передачи – дополняем нулями, чтобы не сдвинуть границы
+        while (slice.hasRemaining()) {
+            slice.put((byte) 0);
+        }
+        dst.position(dst.position() + want);
+        return want;
+    }
+
+    private int fileIndex(long pos) {
+        int lo = 0, hi = starts.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (starts[mid] <= pos) lo = mid; else hi = mid - 1;
+        }
+        return lo;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) {
+        this.position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() {
+        return length;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+        if (openChannel != null) openChannel.close();
+        openChannel = null;
+        openIndex = -1;
+    }
+}
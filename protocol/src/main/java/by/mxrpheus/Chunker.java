@@ -0,0 +1,87 @@
+package by.mxrpheus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Разбиение потока на фрагменты по содержимому (content-defined chunking) для хранилища без повторов.
+// Граница ставится там, где скользящий gear-хеш последних 64 байт даёт нули в старших MASK_BITS битах,
+// поэтому вставка или удаление байт сдвигает только соседние границы, а остальные фрагменты совпадают
+// с уже сохранёнными. Клиент и сервер режут одинаково – фрагменты файла можно сверить с хранилищем
+// по SHA-256 до передачи. Фрагмент – от MIN_SIZE до MAX_SIZE байт, в среднем около MIN_SIZE + 2^MASK_BITS.
+// Источник читается последовательно, в памяти – не больше MAX_SIZE байт.
+public final class Chunker {
+    public static final int MIN_SIZE = 16 * 1024;
+    public static final int MAX_SIZE = 256 * 1024;
+    public static final int HASH_SIZE = 32; // SHA-256
+    // Хешей в одной команде HAVE: команда (64 символа на хеш) и ответ умещаются в одну датаграмму
+    public static final int HAVE_BATCH = 14;
+    private static final int MASK_BITS = 16;
+    private static final long MASK = -1L << (Long.SIZE - MASK_BITS);
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // Таблица gear-хеша – часть протокола: SplitMix64 от номера байта, одинаковая на всех сторонах
+        for (int i = 0; i < GEAR.length; i++) {
+            long z = (i + 1) * 0x9E3779B97F4A7C15L;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final ReadableByteChannel in;
+    private final ByteBuffer data = ByteBuffer.allocate(MAX_SIZE); // прочитанные, но не выданные байты
+    private int chunkLength;                                       // длина фрагмента, выданного прошлым next
+    private boolean eof;
+
+    public Chunker(ReadableByteChannel in) {
+        this.in = in;
+    }
+
+    // Очередной фрагмент (position – начало, limit – конец); null – источник кончился.
+    // Буфер действителен до следующего вызова
+    public ByteBuffer next() throws IOException {
+        data.flip().position(chunkLength);
+        data.compact();
+        while (!eof && data.hasRemaining()) {
+            if (in.read(data) < 0) {
+                eof = true;
+            }
+        }
+        int available = data.position();
+        if (available == 0) {
+            return null;
+        }
+        chunkLength = boundary(data.array(), available);
+        return ByteBuffer.wrap(data.array(), 0, chunkLength);
+    }
+
+    // Длина фрагмента в начале buf[0, length): конец потока или MAX_SIZE, если граница не найдена
+    static int boundary(byte[] buf, int length) {
+        long hash = 0;
+        for (int i = MIN_SIZE; i < length; i++) {
+            hash = (hash << 1) + GEAR[buf[i] & 0xFF];
+            if ((hash & MASK) == 0) {
+                return i + 1;
+            }
+        }
+        return length;
+    }
+
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // SHA-256 фрагмента; position буфера не меняется
+    public static byte[] hash(MessageDigest digest, ByteBuffer chunk) {
+        digest.update(chunk.duplicate());
+        return digest.digest();
+    }
+}
@@ -0,0 +1,168 @@
+package by.mxrpheus;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Гистограмма задержек с лог-линейными корзинами (как в HdrHistogram): в каждом интервале [2^k, 2^(k+1))
+// 64 корзины одинаковой ширины, поэтому относительная погрешность перцентилей не больше ~1.6%
+// при фиксированном объёме памяти. Общая для клиента, сервера и генератора нагрузки.
+// Запись без блокировок – одно атомарное сложение в корзине и в распределённых счётчиках, поэтому
+// одну гистограмму могут пополнять несколько потоков; чтение во время записи видит приблизительный снимок.
+public class LatencyHistogram {
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF = SUB_COUNT / 2;
+    private static final int BUCKETS = 64 * HALF + SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long value) {
+        record(value, 1);
+    }
+
+    public void record(long value, long times) {
+        if (value < 0) value = 0;
+        counts.addAndGet(index(value), times);
+        count.add(times);
+        sum.add(value * times);
+        max.accumulate(value);
+    }
+
+    // Объединение гистограмм отдельных потоков в общую
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = other.counts.get(i);
+            if (n != 0) counts.addAndGet(i, n);
+        }
+        count.add(other.count.sum());
+        sum.add(other.sum.sum());
+        max.accumulate(other.max.get());
+    }
+
+    // Поправка на координированное пропускание (как copyCorrectedForCoordinatedOmission в HdrHistogram):
+    // замер value > interval означает, что за время ожидания не были отправлены запросы, которые
+    // ждали бы value - interval, value - 2*interval, ... – они добавляются в копию гистограммы
+    public LatencyHistogram corrected(long interval) {
+        LatencyHistogram copy = new LatencyHistogram();
+        long highest = getMax();
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = counts.get(i);
+            if (n == 0) continue;
+            long value = Math.min(highest, highestEquivalent(i));
+            copy.record(value, n);
+            if (interval <= 0) continue;
+            for (long missing = value - interval; missing >= interval; missing -= interval) {
+                copy.record(missing, n);
+            }
+        }
+        return copy;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = getCount();
+        return n == 0 ? 0 : (double) getSum() / n;
+    }
+
+    public double getStdDeviation() {
+        long n = getCount();
+        if (n == 0) return 0;
+        double mean = getMean();
+        long highest = getMax();
+        double squares = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long bucket = counts.get(i);
+            if (bucket == 0) continue;
+            double deviation = Math.min(highest, highestEquivalent(i)) - mean;
+            squares += deviation * deviation * bucket;
+        }
+        return Math.sqrt(squares / n);
+    }
+
+    // Значение, не больше которого доля percentile (0..100) измерений.
+    // Ранг считается по тем же корзинам, которые просматриваются, – запись в другом потоке не сбивает его
+    public long percentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) return 0;
+        long highest = getMax();
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highest, highestEquivalent(i));
+            }
+        }
+        return highest;
+    }
+
+    // Число измерений в корзинах до корзины value включительно; точное, если value – верхняя граница
+    // корзины (в частности, любое 2^k - 1)
+    public long countAtOrBelow(long value) {
+        long seen = 0;
+        int last = index(Math.max(0, value));
+        for (int i = 0; i <= last; i++) {
+            seen += counts.get(i);
+        }
+        return seen;
+    }
+
+    // Распределение в текстовом формате HdrHistogram (.hgrm), который понимают его инструменты построения графиков.
+    // scale переводит записанные значения в единицы файла (например, 1e6 – наносекунды в миллисекунды).
+    public void writePercentiles(PrintStream out, double scale) {
+        long total = getCount();
+        long highest = getMax();
+        out.printf("%12s %14s %10s %14s%n%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)");
+        if (total > 0) {
+            // По 5 строк на каждое уменьшение "хвоста" вдвое: 0..50%, 50..75%, 75..87.5%, ...
+            double level = 0;
+            while (true) {
+                long value = percentile(level);
+                long seen = countAtOrBelow(value);
+                if (seen >= total) break;
+                double fraction = level / 100.0;
+                out.printf("%12.3f %2.12f %10d %14.2f%n", value / scale, fraction, seen, 1 / (1 - fraction));
+                double halfDistance = Math.pow(2, Math.floor(Math.log(100.0 / (100.0 - level)) / Math.log(2)) + 1);
+                level += 100.0 / (5 * halfDistance);
+            }
+            out.printf("%12.3f %2.12f %10d%n", highest / scale, 1.0, total);
+        }
+        out.printf("#[Mean    = %12.3f, StdDeviation   = %12.3f]%n", getMean() / scale, getStdDeviation() / scale);
+        out.printf("#[Max     = %12.3f, Total count    = %12d]%n", highest / scale, total);
+        out.printf("#[Buckets = %12d, SubBuckets     = %12d]%n", 64, SUB_COUNT);
+    }
+
+    private static int index(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    private static long highestEquivalent(int index) {
+        if (index < SUB_COUNT) return index;
+        int shift = index / HALF - 1;
+        long lowest = (long) (index - shift * HALF) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
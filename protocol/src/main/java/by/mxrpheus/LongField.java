@@ -0,0 +1,35 @@
+package by.mxrpheus;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+// 8-байтовые поля протокола TCPServer (смещение дозагрузки, размер файла, код ответа на DOWNLOAD),
+// BIG_ENDIAN. Используется буфер вызывающего (не меньше SIZE байт), поэтому обмен полем не выделяет памяти.
+// Канал может быть неблокирующим: чтение и запись повторяются до полного поля.
+public final class LongField {
+    public static final int SIZE = 8;
+
+    private LongField() {
+    }
+
+    public static void write(WritableByteChannel channel, ByteBuffer scratch, long value) throws IOException {
+        scratch.clear().limit(SIZE);
+        scratch.putLong(0, value);
+        while (scratch.hasRemaining()) {
+            channel.write(scratch);
+        }
+    }
+
+    public static long read(ReadableByteChannel channel, ByteBuffer scratch) throws IOException {
+        scratch.clear().limit(SIZE);
+        while (scratch.hasRemaining()) {
+            if (channel.read(scratch) == -1) {
+                throw new EOFException("Соединение закрыто посреди 8-байтового поля");
+            }
+        }
+        return scratch.getLong(0);
+    }
+}
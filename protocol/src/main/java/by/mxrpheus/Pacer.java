@@ -0,0 +1,82 @@
+package by.mxrpheus;
+
+import java.util.concurrent.locks.LockSupport;
+
+// Пейсер отправителя: пакеты окна не уходят пачкой, а распределяются равномерно по RTT.
+// Темп – GAIN окон за сглаженный RTT (окно фиксировано, отдельного контроля перегрузки нет),
+// но не выше заданного ограничения capMbit; до первого замера RTT действует только ограничение.
+// Расписание ведётся по "идеальному" времени отправки: если поток проснулся позже, отставание
+// до MAX_LAG_NS догоняется короткой пачкой, поэтому неточность сна не снижает средний темп.
+// Ожидание – парковка потока: длинная часть одним parkNanos, остаток короткими шагами PARK_STEP_NS,
+// без активного ожидания, чтобы пейсинг не занимал ядро целиком.
+// Не потокобезопасен: принадлежит потоку отправителя.
+public class Pacer {
+    public static final double GAIN = 2;
+    private static final long PARK_STEP_NS = 50_000;    // шаг короткой парковки (точность ~ таймерного разрешения ОС)
+    private static final long MIN_DELAY_NS = PARK_STEP_NS; // паузы короче точности сна отправляются без ожидания
+    private static final long MAX_LAG_NS = 200_000;     // сколько отставания от расписания можно наверстать пачкой
+
+    private final boolean enabled;
+    private final double capBytesPerNs;  // 0 – без ограничения
+    private final int windowBytes;
+    private long srttNs = -1;
+    private double nsPerByte;            // 0 – темп не задан, пакеты уходят сразу
+    private long nextSendNs;
+
+    public Pacer(boolean enabled, double capMbit, int windowBytes) {
+        this.enabled = enabled;
+        this.capBytesPerNs = capMbit > 0 ? capMbit * 1_000_000 / 8 / 1e9 : 0;
+        this.windowBytes = windowBytes;
+        updateRate();
+    }
+
+    // Замер RTT по пакету, который не отправлялся повторно
+    public void onRtt(long sampleNs) {
+        if (sampleNs <= 0) return;
+        srttNs = srttNs < 0 ? sampleNs : (7 * srttNs + sampleNs) / 8;
+        updateRate();
+    }
+
+    private void updateRate() {
+        double rate = capBytesPerNs;
+        if (srttNs > 0) {
+            double windowRate = GAIN * windowBytes / srttNs;
+            rate = rate > 0 ? Math.min(rate, windowRate) : windowRate;
+        }
+        nsPerByte = enabled && rate > 0 ? 1 / rate : 0;
+    }
+
+    // Сколько ждать до отправки очередного пакета (0 – можно сейчас)
+    public long delayNanos(long now) {
+        if (nsPerByte == 0) return 0;
+        long delay = nextSendNs - now;
+        return delay < MIN_DELAY_NS ? 0 : delay;
+    }
+
+    public void onSend(int bytes, long now) {
+        if (nsPerByte == 0) return;
+        nextSendNs = Math.max(nextSendNs, now - MAX_LAG_NS) + (long) (bytes * nsPerByte);
+    }
+
+    // Блокирующий отправитель: дождаться очередного места в расписании
+    public void await() {
+        long delay = delayNanos(System.nanoTime());
+        if (delay > 0) {
+            parkUntil(System.nanoTime() + delay);
+        }
+    }
+
+    // Темп в байтах в секунду (0 – не ограничен)
+    public long getRateBytesPerSecond() {
+        return nsPerByte == 0 ? 0 : (long) (1e9 / nsPerByte);
+    }
+
+    // Сон до момента deadline (System.nanoTime()): всё, кроме последнего шага, – одной парковкой,
+    // затем короткие парковки с проверкой времени
+    public static void parkUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining > 2 * PARK_STEP_NS ? remaining - PARK_STEP_NS : Math.min(remaining, PARK_STEP_NS));
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package by.mxrpheus;
+
+// Номера пакетов с переполнением: сессии считают пакеты 64-битными номерами, а в заголовке пакета
+// передаются только их младшие 32 бита (как порядковые номера TCP, RFC 1982). Полный номер
+// восстанавливается относительно номера, известного получателю (ожидаемый пакет, основание окна):
+// выбирается ближайший к нему номер с теми же младшими битами. Пока номера в полёте отстоят от
+// опорного меньше чем на 2^31 пакетов (окно – сотни пакетов), результат однозначен, и размер
+// передачи не ограничен разрядностью поля, а заголовок не растёт.
+public final class SeqNum {
+
+    private SeqNum() {
+    }
+
+    // Значение поля заголовка для номера seq
+    public static int wire(long seq) {
+        return (int) seq;
+    }
+
+    // Полный номер, ближайший к reference, младшие 32 бита которого равны wire
+    public static long unwrap(long reference, int wire) {
+        return reference + (wire - (int) reference);
+    }
+
+    // Полный номер не меньше from с младшими битами wire – для величин, которые не бывают меньше
+    // опорной (число пакетов файла относительно номера очередного пакета)
+    public static long unwrapAtLeast(long from, int wire) {
+        return from + Integer.toUnsignedLong(wire - (int) from);
+    }
+}
@@ -0,0 +1,131 @@
+package by.mxrpheus;
+
+import java.nio.ByteBuffer;
+
+// Пакеты протокола UDPServer, flyweight поверх буфера вызывающего (см. TransferPacket):
+//  data      – seq (4 байта), длина данных (4), данные (до DATA_SIZE);
+//  FIN       – seq = -1 (4 байта), конец передачи;
+//  ACK       – seq (4 байта);
+//  handshake – ответ на команду передачи: 8 байт (смещение дозагрузки или размер) и 4 байта принятой
+//              политики ACK, если она согласована; тот же формат без политики – смещение, которое
+//              клиент сообщает перед скачиванием.
+// seq – младшие 32 бита 64-битного номера пакета в сессии (см. SeqNum); FIN отличается от ACK
+// с тем же значением поля направлением, а от data-пакета – длиной. data-пакет не бывает пустым
+// (пустой файл передаётся одним FIN) и занимает датаграмму ровно, поэтому ACK, FIN и 8-байтовый
+// handshake за data-пакет не принимаются; 12-байтовый handshake отличим от data-пакета с 4 байтами
+// данных только по месту в обмене – он приходит до данных.
+// Поля читаются и пишутся на месте начиная с position на момент wrap, порядок байт BIG_ENDIAN.
+public final class StreamPacket {
+    public static final int DATA_SIZE = 1400;
+    public static final int HEADER_SIZE = 8;
+    public static final int PACKET_SIZE = HEADER_SIZE + DATA_SIZE;
+    public static final int ACK_SIZE = 4;
+    public static final int FIN = -1;
+    public static final int HANDSHAKE_SIZE = 8;
+    public static final int NEGOTIATED_HANDSHAKE_SIZE = 12;
+
+    private static final int SEQ_OFFSET = 0;
+    private static final int LENGTH_OFFSET = 4;
+
+    private ByteBuffer buffer;
+    private int offset;
+
+    public StreamPacket wrap(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.offset = buffer.position();
+        return this;
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    private int size() {
+        return buffer.limit() - offset;
+    }
+
+    // Младшие 32 бита номера; полный номер – SeqNum.unwrap
+    public int seq() {
+        return buffer.getInt(offset + SEQ_OFFSET);
+    }
+
+    public boolean isFin() {
+        return size() == ACK_SIZE && seq() == FIN;
+    }
+
+    // Пакет ACK: ровно 4 байта
+    public boolean isAck() {
+        return size() == ACK_SIZE;
+    }
+
+    // data-пакет: заголовок и непустые данные (не больше DATA_SIZE), которые заканчиваются ровно
+    // на границе принятых байт
+    public boolean isData() {
+        if (size() <= HEADER_SIZE || size() > PACKET_SIZE) return false;
+        return dataLength() == size() - HEADER_SIZE;
+    }
+
+    public int dataLength() {
+        return buffer.getInt(offset + LENGTH_OFFSET);
+    }
+
+    // Данные пакета: position – начало данных, limit – их конец
+    public ByteBuffer payload() {
+        buffer.limit(offset + HEADER_SIZE + dataLength());
+        buffer.position(offset + HEADER_SIZE);
+        return buffer;
+    }
+
+    // Начало data-пакета: position – за заголовком, limit – не больше DATA_SIZE данных.
+    // Вызывающий дописывает данные и завершает пакет endData
+    public StreamPacket beginData() {
+        buffer.limit(Math.min(buffer.capacity(), offset + PACKET_SIZE));
+        buffer.position(offset + HEADER_SIZE);
+        return this;
+    }
+
+    // Заголовок по фактически записанным данным; пакет готов к отправке. Возвращает длину данных
+    public int endData(long seq) {
+        int length = buffer.position() - offset - HEADER_SIZE;
+        buffer.putInt(offset + SEQ_OFFSET, SeqNum.wire(seq));
+        buffer.putInt(offset + LENGTH_OFFSET, length);
+        buffer.limit(buffer.position());
+        buffer.position(offset);
+        return length;
+    }
+
+    public StreamPacket encodeAck(long seq) {
+        buffer.limit(offset + ACK_SIZE);
+        buffer.putInt(offset + SEQ_OFFSET, SeqNum.wire(seq));
+        buffer.position(offset);
+        return this;
+    }
+
+    public StreamPacket encodeFin() {
+        return encodeAck(FIN);
+    }
+
+    // Ответ на команду передачи; ack <= 0 – политика не согласована, 8 байт
+    public StreamPacket encodeHandshake(long value, int ack) {
+        buffer.limit(offset + (ack > 0 ? NEGOTIATED_HANDSHAKE_SIZE : HANDSHAKE_SIZE));
+        buffer.putLong(offset, value);
+        if (ack > 0) {
+            buffer.putInt(offset + HANDSHAKE_SIZE, ack);
+        }
+        buffer.position(offset);
+        return this;
+    }
+
+    public boolean isHandshake() {
+        return size() == HANDSHAKE_SIZE || size() == NEGOTIATED_HANDSHAKE_SIZE;
+    }
+
+    public long handshakeValue() {
+        return buffer.getLong(offset);
+    }
+
+    // Принятая сервером политика ACK; 0 – не согласована
+    public int handshakeAck() {
+        return size() == NEGOTIATED_HANDSHAKE_SIZE ? buffer.getInt(offset + HANDSHAKE_SIZE) : 0;
+    }
+}
@@ -0,0 +1,100 @@
+package by.mxrpheus;
+
+import java.nio.ByteBuffer;
+
+// Пакет передачи протокола Server: тип (1 байт), seq (4), totalPackets (4), затем данные.
+// seq и totalPackets – младшие 32 бита 64-битных номеров (см. SeqNum): читатель восстанавливает
+// полный номер относительно своего, поэтому размер файла не ограничен разрядностью полей.
+// Flyweight: объект не хранит данных, а читает и пишет заголовок на месте в буфере вызывающего,
+// начиная с position на момент wrap. Один экземпляр переиспользуется для всех пакетов – без выделений
+// памяти на пакет. Буфер должен иметь порядок байт BIG_ENDIAN (по умолчанию у ByteBuffer).
+// Не потокобезопасен: принадлежит потоку, который владеет буфером.
+public final class TransferPacket {
+    public static final int PACKET_SIZE = 1024;
+    public static final int HEADER_SIZE = 9;
+    public static final int DATA_SIZE = PACKET_SIZE - HEADER_SIZE;
+
+    public static final byte DATA = 0;
+    public static final byte ACK = 1;
+    public static final byte ROUND_END = 2; // конец раунда раздачи SUBSCRIBE, в поле seq – номер раунда
+
+    private static final int TYPE_OFFSET = 0;
+    private static final int SEQ_OFFSET = 1;
+    private static final int TOTAL_OFFSET = 5;
+
+    private ByteBuffer buffer;
+    private int offset;
+
+    public TransferPacket wrap(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.offset = buffer.position();
+        return this;
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    // Между offset и limit помещается заголовок
+    public boolean hasHeader() {
+        return buffer.limit() - offset >= HEADER_SIZE;
+    }
+
+    public byte type() {
+        return buffer.get(offset + TYPE_OFFSET);
+    }
+
+    // Младшие 32 бита номера; полный номер – SeqNum.unwrap
+    public int seq() {
+        return buffer.getInt(offset + SEQ_OFFSET);
+    }
+
+    // Номер в ACK-пакете: последний пакет, принятый по порядку
+    public int ackNum() {
+        return seq();
+    }
+
+    public int totalPackets() {
+        return buffer.getInt(offset + TOTAL_OFFSET);
+    }
+
+    public int payloadLength() {
+        return buffer.limit() - offset - HEADER_SIZE;
+    }
+
+    // Данные пакета: position буфера переносится на начало данных, limit не меняется
+    public ByteBuffer payload() {
+        buffer.position(offset + HEADER_SIZE);
+        return buffer;
+    }
+
+    // Заголовок data-пакета; position – за заголовком: вызывающий дописывает данные и делает flip
+    public TransferPacket encodeData(long seq, long totalPackets) {
+        putHeader(DATA, SeqNum.wire(seq), SeqNum.wire(totalPackets));
+        buffer.position(offset + HEADER_SIZE);
+        return this;
+    }
+
+    // ACK-пакет целиком: буфер готов к отправке (position = начало, limit = конец пакета)
+    public TransferPacket encodeAck(long ackNum) {
+        return encodeControl(ACK, SeqNum.wire(ackNum), 0);
+    }
+
+    // Маркер конца раунда раздачи целиком, готов к отправке
+    public TransferPacket encodeRoundEnd(int round, int totalPackets) {
+        return encodeControl(ROUND_END, round, totalPackets);
+    }
+
+    private TransferPacket encodeControl(byte type, int seq, int totalPackets) {
+        buffer.limit(offset + HEADER_SIZE);
+        putHeader(type, seq, totalPackets);
+        buffer.position(offset);
+        return this;
+    }
+
+    private void putHeader(byte type, int seq, int totalPackets) {
+        buffer.put(offset + TYPE_OFFSET, type);
+        buffer.putInt(offset + SEQ_OFFSET, seq);
+        buffer.putInt(offset + TOTAL_OFFSET, totalPackets);
+    }
+}
@@ -0,0 +1,115 @@
+package by.mxrpheus;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+
+    @Test
+    void emptyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.percentile(99));
+        assertEquals(0, histogram.getMean());
+    }
+
+    // Значения до 128 хранятся точно, дальше – с относительной погрешностью не больше 1/64
+    @Test
+    void percentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(100_000, histogram.getCount());
+        assertEquals(100_000, histogram.getMax());
+        assertEquals(50_000.5, histogram.getMean(), 1e-9);
+        for (double percentile : new double[]{1, 50, 90, 99, 99.9}) {
+            long exact = (long) Math.ceil(percentile / 100 * 100_000);
+            long estimate = histogram.percentile(percentile);
+            assertTrue(estimate >= exact && estimate <= exact + exact / 64, percentile + ": " + estimate);
+        }
+        assertEquals(100_000, histogram.percentile(100));
+    }
+
+    // Граница 2^k - 1 совпадает с верхней границей корзины – на этом строится экспорт Prometheus
+    @Test
+    void countAtPowerOfTwoBoundaries() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int k = 0; k < 40; k++) {
+            histogram.record(1L << k);
+            histogram.record((1L << k) - 1);
+        }
+        for (int k = 0; k < 40; k++) {
+            long expected = 0;
+            for (int j = 0; j < 40; j++) {
+                if ((1L << j) <= (1L << k) - 1) expected++;
+                if ((1L << j) - 1 <= (1L << k) - 1) expected++;
+            }
+            assertEquals(expected, histogram.countAtOrBelow((1L << k) - 1), "2^" + k + " - 1");
+        }
+        assertEquals(80, histogram.countAtOrBelow(Long.MAX_VALUE));
+    }
+
+    @Test
+    void mergeAddsCounts() {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        first.record(10, 3);
+        second.record(1_000_000);
+        first.merge(second);
+        assertEquals(4, first.getCount());
+        assertEquals(1_000_000, first.getMax());
+        assertEquals(10, first.percentile(75));
+        assertEquals(30 + 1_000_000, first.getSum());
+    }
+
+    @Test
+    void correctedAddsMissingSamples() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        histogram.record(100);
+        // ожидаемый интервал 10: за замер 100 не отправлены запросы, ждавшие бы 90, 80, ..., 10
+        LatencyHistogram corrected = histogram.corrected(10);
+        assertEquals(2 + 9, corrected.getCount());
+        assertEquals(100, corrected.getMax());
+    }
+
+    @Test
+    void concurrentRecording() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    histogram.record(i % 1000);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400_000, histogram.getCount());
+        assertEquals(400_000, histogram.countAtOrBelow(Long.MAX_VALUE));
+        assertEquals(999, histogram.getMax());
+    }
+
+    @Test
+    void writesHgrmFormat() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1_000_000L);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        histogram.writePercentiles(new PrintStream(bytes, true, StandardCharsets.UTF_8), 1e6);
+        String text = bytes.toString(StandardCharsets.UTF_8);
+        assertTrue(text.contains("Percentile"));
+        assertTrue(text.contains("Total count    =         1000"));
+    }
+}
@@ -0,0 +1,86 @@
+package by.mxrpheus;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class LongFieldTest {
+
+    @Test
+    void roundTrip() throws IOException {
+        long[] values = {0, 1, -1, Long.MAX_VALUE, Long.MIN_VALUE, 5_000_000_000L};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer scratch = ByteBuffer.allocate(64);
+        for (long value : values) {
+            LongField.write(Channels.newChannel(out), scratch, value);
+        }
+        assertEquals(values.length * LongField.SIZE, out.size());
+
+        ReadableByteChannel in = Channels.newChannel(new ByteArrayInputStream(out.toByteArray()));
+        for (long value : values) {
+            assertEquals(value, LongField.read(in, scratch));
+        }
+    }
+
+    @Test
+    void bigEndianOnTheWire() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LongField.write(Channels.newChannel(out), ByteBuffer.allocate(LongField.SIZE), 0x0102030405060708L);
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}, out.toByteArray());
+    }
+
+    // Канал отдаёт по одному байту – поле собирается из нескольких чтений
+    @Test
+    void readsAcrossPartialReads() throws IOException {
+        byte[] bytes = ByteBuffer.allocate(LongField.SIZE).putLong(123456789L).array();
+        ReadableByteChannel oneByteAtATime = new ReadableByteChannel() {
+            private int position;
+
+            @Override
+            public int read(ByteBuffer dst) {
+                if (position == bytes.length) return -1;
+                dst.put(bytes[position++]);
+                return 1;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        assertEquals(123456789L, LongField.read(oneByteAtATime, ByteBuffer.allocate(LongField.SIZE)));
+    }
+
+    // Лишние байты после поля остаются в канале для следующего чтения
+    @Test
+    void readsExactlyOneField() throws IOException {
+        byte[] bytes = ByteBuffer.allocate(12).putLong(7).putInt(0xCAFEBABE).array();
+        ReadableByteChannel in = Channels.newChannel(new ByteArrayInputStream(bytes));
+        assertEquals(7, LongField.read(in, ByteBuffer.allocate(64)));
+        ByteBuffer rest = ByteBuffer.allocate(4);
+        in.read(rest);
+        assertEquals(0xCAFEBABE, rest.getInt(0));
+    }
+
+    @Test
+    void truncatedFieldIsRejected() {
+        for (int size = 0; size < LongField.SIZE; size++) {
+            ReadableByteChannel in = Channels.newChannel(new ByteArrayInputStream(new byte[size]));
+            assertThrows(EOFException.class, () -> LongField.read(in, ByteBuffer.allocate(LongField.SIZE)), "size " + size);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package by.mxrpheus;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Декодеры на обрезанных, слишком длинных и случайных буферах: пакет либо отвергается проверкой
+// (hasHeader, isData, isAck, isHandshake), либо читается без выхода за границы буфера –
+// ни BufferUnderflowException/IndexOutOfBoundsException, ни чтения пакета одного типа как другого.
+// Случайные данные воспроизводимы: seed фиксирован.
+class PacketFuzzTest {
+    private static final int ITERATIONS = 200_000;
+
+    private final Random random = new Random(20261019);
+
+    // Случайные байты в случайном месте буфера: position – начало пакета, limit – его конец
+    private ByteBuffer randomPacket(int maxSize) {
+        int size = random.nextInt(maxSize + 1);
+        int offset = random.nextInt(16);
+        byte[] bytes = new byte[offset + size + random.nextInt(16)];
+        random.nextBytes(bytes);
+        return ByteBuffer.wrap(bytes, offset, size);
+    }
+
+    @Test
+    void transferPacketOnRandomBuffers() {
+        TransferPacket packet = new TransferPacket();
+        for (int i = 0; i < ITERATIONS; i++) {
+            ByteBuffer buffer = randomPacket(2 * TransferPacket.PACKET_SIZE);
+            int start = buffer.position();
+            int end = buffer.limit();
+            if (!packet.wrap(buffer).hasHeader()) {
+                assertTrue(end - start < TransferPacket.HEADER_SIZE);
+                continue;
+            }
+            packet.type();
+            packet.seq();
+            packet.totalPackets();
+            assertEquals(end - start - TransferPacket.HEADER_SIZE, packet.payloadLength());
+            ByteBuffer payload = packet.payload();
+            assertEquals(start + TransferPacket.HEADER_SIZE, payload.position());
+            assertEquals(end, payload.limit());
+        }
+    }
+
+    // Обрезанный пакет любого типа отвергается целиком, а не читается как другой тип
+    @Test
+    void truncatedTransferPacketsAreRejected() {
+        ByteBuffer buffer = ByteBuffer.allocate(TransferPacket.PACKET_SIZE);
+        TransferPacket packet = new TransferPacket();
+        for (byte type : new byte[]{TransferPacket.DATA, TransferPacket.ACK, TransferPacket.ROUND_END}) {
+            buffer.clear();
+            packet.wrap(buffer);
+            if (type == TransferPacket.DATA) {
+                packet.encodeData(1, 2);
+                buffer.position(buffer.limit()).flip();
+            } else if (type == TransferPacket.ACK) {
+                packet.encodeAck(1);
+            } else {
+                packet.encodeRoundEnd(1, 2);
+            }
+            for (int size = 0; size < TransferPacket.HEADER_SIZE; size++) {
+                assertFalse(packet.wrap(buffer.duplicate().limit(size)).hasHeader());
+            }
+            assertEquals(type, packet.wrap(buffer.duplicate()).type());
+        }
+    }
+
+    @Test
+    void streamPacketOnRandomBuffers() {
+        StreamPacket packet = new StreamPacket();
+        for (int i = 0; i < ITERATIONS; i++) {
+            ByteBuffer buffer = randomPacket(2 * StreamPacket.PACKET_SIZE);
+            // короткие датаграммы – самые интересные для разбора: каждый второй буфер не длиннее handshake
+            if (random.nextBoolean()) {
+                buffer.limit(buffer.position() + Math.min(buffer.remaining(), random.nextInt(StreamPacket.NEGOTIATED_HANDSHAKE_SIZE + 2)));
+            }
+            checkStreamPacket(packet, buffer);
+        }
+    }
+
+    // Поля, которые задают тип пакета (длина данных), принимают граничные значения
+    @Test
+    void streamPacketWithHostileLengthField() {
+        int[] lengths = {Integer.MIN_VALUE, -1, 0, 1, StreamPacket.DATA_SIZE, StreamPacket.DATA_SIZE + 1, Integer.MAX_VALUE};
+        StreamPacket packet = new StreamPacket();
+        for (int i = 0; i < ITERATIONS / 10; i++) {
+            ByteBuffer buffer = randomPacket(2 * StreamPacket.PACKET_SIZE);
+            if (buffer.remaining() >= StreamPacket.HEADER_SIZE) {
+                int length = random.nextBoolean() ? lengths[random.nextInt(lengths.length)] : buffer.remaining() - StreamPacket.HEADER_SIZE;
+                buffer.putInt(buffer.position() + 4, length);
+            }
+            checkStreamPacket(packet, buffer);
+        }
+    }
+
+    private static void checkStreamPacket(StreamPacket packet, ByteBuffer buffer) {
+        int start = buffer.position();
+        int end = buffer.limit();
+        int size = end - start;
+        boolean data = packet.wrap(buffer).isData();
+        boolean ack = packet.isAck();
+        boolean fin = packet.isFin();
+        boolean handshake = packet.isHandshake();
+        assertFalse(data && ack, "data и ACK одновременно");
+        assertFalse(ack && handshake, "ACK и handshake одновременно");
+        assertTrue(!fin || ack, "FIN – частный случай ACK");
+        // 12 байт – единственная длина, общая для handshake и data-пакета (см. StreamPacket)
+        assertTrue(!(data && handshake) || size == StreamPacket.NEGOTIATED_HANDSHAKE_SIZE);
+        if (ack) {
+            packet.seq();
+        }
+        if (handshake) {
+            packet.handshakeValue();
+            packet.handshakeAck();
+        }
+        if (data) {
+            assertTrue(packet.dataLength() > 0 && packet.dataLength() <= StreamPacket.DATA_SIZE);
+            packet.seq();
+            ByteBuffer payload = packet.payload();
+            assertEquals(start + StreamPacket.HEADER_SIZE, payload.position());
+            assertEquals(end, payload.limit());
+        }
+        if (!data && !ack && !handshake) {
+            assertFalse(size == StreamPacket.ACK_SIZE || size == StreamPacket.HANDSHAKE_SIZE);
+        }
+    }
+
+    // Корректный data-пакет без последних байт или с лишними байтами в датаграмме отвергается
+    @Test
+    void truncatedAndOversizedDataPacketsAreRejected() {
+        StreamPacket packet = new StreamPacket();
+        for (int i = 0; i < 2_000; i++) {
+            int length = 1 + random.nextInt(StreamPacket.DATA_SIZE);
+            ByteBuffer buffer = ByteBuffer.allocate(StreamPacket.PACKET_SIZE + 64);
+            packet.wrap(buffer).beginData();
+            byte[] payload = new byte[length];
+            random.nextBytes(payload);
+            buffer.put(payload);
+            packet.endData(random.nextLong());
+            int end = buffer.limit();
+            assertTrue(packet.wrap(buffer).isData());
+
+            int truncated = StreamPacket.HEADER_SIZE + random.nextInt(length);
+            checkRejectedData(packet, buffer.duplicate().limit(truncated));
+            int oversized = end + 1 + random.nextInt(64);
+            checkRejectedData(packet, buffer.duplicate().limit(oversized));
+        }
+    }
+
+    private static void checkRejectedData(StreamPacket packet, ByteBuffer buffer) {
+        assertFalse(packet.wrap(buffer).isData(), "size " + buffer.remaining());
+        checkStreamPacket(packet, buffer);
+    }
+
+    // Канал отдаёт случайные куски случайной длины и может закончиться посреди поля:
+    // поле либо прочитано целиком, либо чтение завершается EOFException
+    @Test
+    void longFieldOnRandomChannels() throws IOException {
+        ByteBuffer scratch = ByteBuffer.allocate(LongField.SIZE);
+        for (int i = 0; i < ITERATIONS / 10; i++) {
+            byte[] bytes = new byte[random.nextInt(2 * LongField.SIZE)];
+            random.nextBytes(bytes);
+            ReadableByteChannel in = new ChunkedChannel(bytes, random);
+            try {
+                long value = LongField.read(in, scratch);
+                assertTrue(bytes.length >= LongField.SIZE);
+                assertEquals(ByteBuffer.wrap(bytes).getLong(), value);
+            } catch (EOFException e) {
+                assertTrue(bytes.length < LongField.SIZE);
+            }
+        }
+    }
+
+    private static final class ChunkedChannel implements ReadableByteChannel {
+        private final ByteBuffer source;
+        private final Random random;
+
+        ChunkedChannel(byte[] bytes, Random random) {
+            this.source = ByteBuffer.wrap(bytes);
+            this.random = random;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!source.hasRemaining()) return -1;
+            // неблокирующий канал может вернуть и 0 байт
+            int n = Math.min(random.nextInt(4), Math.min(dst.remaining(), source.remaining()));
+            dst.put(source.slice(source.position(), n));
+            source.position(source.position() + n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package by.mxrpheus;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SeqNumTest {
+
+    private static final long WRAP = 1L << 32;
+
+    @Test
+    void unwrapBelow32Bits() {
+        assertEquals(0, SeqNum.unwrap(0, 0));
+        assertEquals(10, SeqNum.unwrap(8, SeqNum.wire(10)));
+        assertEquals(6, SeqNum.unwrap(8, SeqNum.wire(6)));
+    }
+
+    // Опорный номер по одну сторону границы 2^32, принятый – по другую
+    @Test
+    void unwrapAcrossBoundary() {
+        for (long reference = WRAP - 600; reference <= WRAP + 600; reference++) {
+            for (long delta = -500; delta <= 500; delta += 50) {
+                long seq = reference + delta;
+                assertEquals(seq, SeqNum.unwrap(reference, SeqNum.wire(seq)), "reference " + reference + ", seq " + seq);
+            }
+        }
+    }
+
+    @Test
+    void unwrapAcrossSeveralWraps() {
+        for (int wraps = 1; wraps <= 5; wraps++) {
+            long reference = wraps * WRAP - 1;
+            assertEquals(reference + 1, SeqNum.unwrap(reference, SeqNum.wire(reference + 1)));
+            assertEquals(reference - 4, SeqNum.unwrap(reference, SeqNum.wire(reference - 4)));
+        }
+    }
+
+    // Однозначность сохраняется, пока номер отстоит от опорного меньше чем на 2^31
+    @Test
+    void unwrapAtHalfRange() {
+        long reference = WRAP + 100;
+        long ahead = reference + Integer.MAX_VALUE;
+        long behind = reference - Integer.MAX_VALUE;
+        assertEquals(ahead, SeqNum.unwrap(reference, SeqNum.wire(ahead)));
+        assertEquals(behind, SeqNum.unwrap(reference, SeqNum.wire(behind)));
+    }
+
+    @Test
+    void unwrapAtLeastNeverGoesBelowFrom() {
+        long from = WRAP - 10;
+        assertEquals(WRAP + 20, SeqNum.unwrapAtLeast(from, SeqNum.wire(WRAP + 20)));
+        assertEquals(from, SeqNum.unwrapAtLeast(from, SeqNum.wire(from)));
+        // число пакетов далеко впереди очередного номера – больше 2^31
+        long total = from + 3_000_000_000L;
+        assertEquals(total, SeqNum.unwrapAtLeast(from, SeqNum.wire(total)));
+    }
+}
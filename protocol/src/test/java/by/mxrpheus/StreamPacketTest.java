@@ -0,0 +1,149 @@
+package by.mxrpheus;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StreamPacketTest {
+
+    private static ByteBuffer dataPacket(long seq, byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(StreamPacket.PACKET_SIZE);
+        StreamPacket packet = new StreamPacket().wrap(buffer).beginData();
+        buffer.put(payload);
+        assertEquals(payload.length, packet.endData(seq));
+        return buffer;
+    }
+
+    @Test
+    void dataRoundTrip() {
+        byte[] payload = new byte[StreamPacket.DATA_SIZE];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i * 7);
+        }
+        ByteBuffer buffer = dataPacket(12, payload);
+        assertEquals(0, buffer.position());
+        assertEquals(StreamPacket.PACKET_SIZE, buffer.limit());
+
+        StreamPacket packet = new StreamPacket().wrap(buffer);
+        assertTrue(packet.isData());
+        assertFalse(packet.isAck());
+        assertFalse(packet.isFin());
+        assertFalse(packet.isHandshake());
+        assertEquals(12, packet.seq());
+        assertEquals(payload.length, packet.dataLength());
+        byte[] decoded = new byte[payload.length];
+        packet.payload().get(decoded);
+        assertArrayEquals(payload, decoded);
+    }
+
+    @Test
+    void shortLastPacketRoundTrip() {
+        ByteBuffer buffer = dataPacket(3, new byte[]{1, 2, 3});
+        StreamPacket packet = new StreamPacket().wrap(buffer);
+        assertTrue(packet.isData());
+        assertEquals(3, packet.dataLength());
+        assertEquals(3, packet.payload().remaining());
+    }
+
+    // beginData не даёт записать больше DATA_SIZE даже в большой буфер
+    @Test
+    void beginDataLimitsPayload() {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * StreamPacket.PACKET_SIZE);
+        new StreamPacket().wrap(buffer).beginData();
+        assertEquals(StreamPacket.DATA_SIZE, buffer.remaining());
+    }
+
+    @Test
+    void ackRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(StreamPacket.PACKET_SIZE);
+        new StreamPacket().wrap(buffer).encodeAck(77);
+        assertEquals(StreamPacket.ACK_SIZE, buffer.remaining());
+
+        StreamPacket packet = new StreamPacket().wrap(buffer);
+        assertTrue(packet.isAck());
+        assertFalse(packet.isFin());
+        assertFalse(packet.isData());
+        assertFalse(packet.isHandshake());
+        assertEquals(77, packet.seq());
+    }
+
+    @Test
+    void finRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(StreamPacket.PACKET_SIZE);
+        new StreamPacket().wrap(buffer).encodeFin();
+
+        StreamPacket packet = new StreamPacket().wrap(buffer);
+        assertTrue(packet.isFin());
+        assertFalse(packet.isData());
+        assertFalse(packet.isHandshake());
+    }
+
+    @Test
+    void handshakeRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(StreamPacket.PACKET_SIZE);
+        new StreamPacket().wrap(buffer).encodeHandshake(5_000_000_000L, 0);
+        assertEquals(StreamPacket.HANDSHAKE_SIZE, buffer.remaining());
+
+        StreamPacket packet = new StreamPacket().wrap(buffer);
+        assertTrue(packet.isHandshake());
+        assertFalse(packet.isData());
+        assertFalse(packet.isAck());
+        assertEquals(5_000_000_000L, packet.handshakeValue());
+        assertEquals(0, packet.handshakeAck());
+    }
+
+    @Test
+    void negotiatedHandshakeRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(StreamPacket.PACKET_SIZE);
+        new StreamPacket().wrap(buffer).encodeHandshake(1234, 4);
+        assertEquals(StreamPacket.NEGOTIATED_HANDSHAKE_SIZE, buffer.remaining());
+
+        StreamPacket packet = new StreamPacket().wrap(buffer);
+        assertTrue(packet.isHandshake());
+        assertFalse(packet.isData());
+        assertEquals(1234, packet.handshakeValue());
+        assertEquals(4, packet.handshakeAck());
+    }
+
+    // Пустой файл – нулевое смещение и размер: такой handshake не должен читаться как пустой data-пакет seq=0
+    @Test
+    void zeroHandshakeIsNotData() {
+        ByteBuffer buffer = ByteBuffer.allocate(StreamPacket.HANDSHAKE_SIZE);
+        new StreamPacket().wrap(buffer).encodeHandshake(0, 0);
+        assertFalse(new StreamPacket().wrap(buffer).isData());
+    }
+
+    @Test
+    void sequenceBeyond32BitsRoundTrip() {
+        long seq = 3L * (1L << 32) + 2;
+        ByteBuffer buffer = dataPacket(seq, new byte[]{9});
+        StreamPacket packet = new StreamPacket().wrap(buffer);
+        assertEquals(seq, SeqNum.unwrap(seq - 1, packet.seq()));
+
+        new StreamPacket().wrap(buffer.clear()).encodeAck(seq);
+        assertEquals(seq, SeqNum.unwrap(seq + 4, new StreamPacket().wrap(buffer).seq()));
+    }
+
+    @Test
+    void wrapAtOffset() {
+        ByteBuffer buffer = ByteBuffer.allocate(StreamPacket.PACKET_SIZE + 16);
+        buffer.position(16);
+        StreamPacket packet = new StreamPacket().wrap(buffer).beginData();
+        buffer.put(new byte[]{4, 5});
+        packet.endData(8);
+        assertEquals(16, buffer.position());
+
+        StreamPacket decoded = new StreamPacket().wrap(buffer);
+        assertTrue(decoded.isData());
+        assertEquals(8, decoded.seq());
+        ByteBuffer payload = decoded.payload();
+        assertEquals(4, payload.get());
+        assertEquals(5, payload.get());
+        assertFalse(payload.hasRemaining());
+    }
+}
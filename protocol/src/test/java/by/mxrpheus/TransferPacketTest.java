@@ -0,0 +1,110 @@
+package by.mxrpheus;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TransferPacketTest {
+
+    @Test
+    void dataRoundTrip() {
+        byte[] payload = new byte[TransferPacket.DATA_SIZE];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i * 31);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(TransferPacket.PACKET_SIZE);
+        new TransferPacket().wrap(buffer).encodeData(42, 1000);
+        assertEquals(TransferPacket.HEADER_SIZE, buffer.position());
+        buffer.put(payload).flip();
+
+        TransferPacket packet = new TransferPacket().wrap(buffer);
+        assertTrue(packet.hasHeader());
+        assertEquals(TransferPacket.DATA, packet.type());
+        assertEquals(42, packet.seq());
+        assertEquals(1000, packet.totalPackets());
+        assertEquals(payload.length, packet.payloadLength());
+        byte[] decoded = new byte[packet.payloadLength()];
+        packet.payload().get(decoded);
+        assertArrayEquals(payload, decoded);
+    }
+
+    @Test
+    void ackRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(TransferPacket.PACKET_SIZE);
+        TransferPacket ack = new TransferPacket().wrap(buffer).encodeAck(7);
+        assertEquals(0, buffer.position());
+        assertEquals(TransferPacket.HEADER_SIZE, buffer.limit());
+
+        TransferPacket packet = new TransferPacket().wrap(ack.buffer());
+        assertTrue(packet.hasHeader());
+        assertEquals(TransferPacket.ACK, packet.type());
+        assertEquals(7, packet.ackNum());
+        assertEquals(0, packet.payloadLength());
+    }
+
+    @Test
+    void roundEndRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(TransferPacket.HEADER_SIZE);
+        new TransferPacket().wrap(buffer).encodeRoundEnd(3, 500);
+
+        TransferPacket packet = new TransferPacket().wrap(buffer);
+        assertEquals(TransferPacket.ROUND_END, packet.type());
+        assertEquals(3, packet.seq());
+        assertEquals(500, packet.totalPackets());
+    }
+
+    // Номера больше 2^32 передаются младшими битами и восстанавливаются получателем
+    @Test
+    void sequenceBeyond32BitsRoundTrip() {
+        long seq = (1L << 32) + 5;
+        long total = seq + 3_000_000_000L; // дальше 2^31 впереди, но в пределах 2^32
+        ByteBuffer buffer = ByteBuffer.allocate(TransferPacket.PACKET_SIZE);
+        new TransferPacket().wrap(buffer).encodeData(seq, total);
+        buffer.flip();
+
+        TransferPacket packet = new TransferPacket().wrap(buffer);
+        assertEquals(seq, SeqNum.unwrap(seq - 3, packet.seq()));
+        assertEquals(total, SeqNum.unwrapAtLeast(seq, packet.totalPackets()));
+    }
+
+    // Пакет в середине буфера: поля отсчитываются от position на момент wrap
+    @Test
+    void wrapAtOffset() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.position(10);
+        new TransferPacket().wrap(buffer).encodeAck(99);
+        assertEquals(10, buffer.position());
+        assertEquals(10 + TransferPacket.HEADER_SIZE, buffer.limit());
+
+        TransferPacket packet = new TransferPacket().wrap(buffer);
+        assertEquals(TransferPacket.ACK, packet.type());
+        assertEquals(99, packet.ackNum());
+    }
+
+    @Test
+    void reusedFlyweightDecodesEachBuffer() {
+        TransferPacket codec = new TransferPacket();
+        ByteBuffer first = ByteBuffer.allocate(TransferPacket.HEADER_SIZE);
+        ByteBuffer second = ByteBuffer.allocate(TransferPacket.HEADER_SIZE);
+        codec.wrap(first).encodeAck(1);
+        codec.wrap(second).encodeRoundEnd(2, 4);
+
+        assertEquals(TransferPacket.ACK, codec.wrap(first).type());
+        assertSame(first, codec.buffer());
+        assertEquals(TransferPacket.ROUND_END, codec.wrap(second).type());
+        assertEquals(2, codec.seq());
+    }
+
+    @Test
+    void truncatedHeaderIsRejected() {
+        for (int size = 0; size < TransferPacket.HEADER_SIZE; size++) {
+            assertFalse(new TransferPacket().wrap(ByteBuffer.allocate(size)).hasHeader(), "size " + size);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package by.mxrpheus;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+// Ответы на команды администрирования всех серверов:
+//   STATS          – итоги сервера, попадания упреждающего чтения, пул буферов, задержка цикла
+//   SESSIONS [id]  – активные передачи начиная с номера id: прогресс, скорость, окно, RTT
+// Снимок собирается только чтением счётчиков (LongAdder, volatile-поля сессий) без блокировок,
+// поэтому его можно запрашивать у нагруженного сервера обычными клиентами.
+// Ответ умещается в одну датаграмму (и в одно чтение TCP-клиента); не поместившиеся сессии
+// запрашиваются следующей страницей – номер первой из них указан в последней строке.
+final class AdminReport {
+    static final int MAX_BYTES = 1000;
+
+    private AdminReport() {
+    }
+
+    static boolean isAdminCommand(String command) {
+        return command.equalsIgnoreCase("STATS") || command.equalsIgnoreCase("SESSIONS");
+    }
+
+    // command – текст команды без префикса протокола ("STATS", "SESSIONS 12")
+    static String handle(TransportMetrics metrics, String command) {
+        String[] parts = command.trim().split("\\s+");
+        if (parts[0].equalsIgnoreCase("STATS")) {
+            return stats(metrics);
+        }
+        long from = 0;
+        if (parts.length > 1) {
+            try {
+                from = Long.parseLong(parts[1]);
+            } catch (NumberFormatException e) {
+                from = 0;
+            }
+        }
+        return sessions(metrics, from);
+    }
+
+    static String stats(TransportMetrics metrics) {
+        StringBuilder out = new StringBuilder(512);
+        out.append("STATS ").append(metrics.getServer())
+                .append(" up=").append(seconds(metrics.getUptimeNanos())).append('\n');
+        out.append("sessions active=").append(metrics.getActiveSessions())
+                .append(" opened=").append(metrics.getSessionsOpened())
+                .append(" rejected=").append(metrics.getSessionsRejected())
+                .append(" expired=").append(metrics.getSessionsExpired()).append('\n');
+        out.append("packets out=").append(metrics.getPacketsSent())
+                .append(" in=").append(metrics.getPacketsReceived())
+                .append(" retx=").append(metrics.getRetransmits())
+                .append(" dupack=").append(metrics.getDuplicateAcks()).append('\n');
+        out.append("bytes out=").append(bytes(metrics.getBytesSent()))
+                .append(" in=").append(bytes(metrics.getBytesReceived()))
+                .append(" disk=").append(bytes(metrics.getBytesOnDisk())).append('\n');
+        out.append("rtt p50=").append(micros(metrics.getRttP50Micros()))
+                .append(" p99=").append(micros(metrics.getRttP99Micros()))
+                .append(" goodput p50=").append(bytes(metrics.getGoodputP50BytesPerSecond())).append("/s\n");
+        long hits = ReadAhead.getHits();
+        long misses = ReadAhead.getMisses();
+        BufferPool pool = ReadAhead.POOL;
+        out.append("readahead hit=").append(percent(hits, hits + misses))
+                .append(" (").append(hits).append('/').append(hits + misses).append(')')
+                .append(" pool=").append(pool.getInUse()).append('/').append(pool.getAllocated())
+                .append('/').append(pool.getMaxBuffers())
+                .append(" x").append(pool.getBufferSize() / 1024).append("KB").append('\n');
+        out.append("loop lag p50=").append(micros(metrics.loopLag.percentile(50)))
+                .append(" p99=").append(micros(metrics.getLoopLagP99Micros()))
+                .append(" max1s=").append(micros(metrics.getRecentLoopLagMaxMicros()));
+        return out.toString();
+    }
+
+    static String sessions(TransportMetrics metrics, long from) {
+        List<SessionMetrics> sessions = new ArrayList<>();
+        for (SessionMetrics session : metrics.getSessions()) {
+            if (session.getId() >= from) {
+                sessions.add(session);
+            }
+        }
+        sessions.sort(Comparator.comparingLong(SessionMetrics::getId));
+        StringBuilder out = new StringBuilder(MAX_BYTES);
+        out.append("SESSIONS ").append(metrics.getServer())
+                .append(" active=").append(metrics.getActiveSessions());
+        int size = utf8Length(out);
+        for (int i = 0; i < sessions.size(); i++) {
+            String line = sessionLine(sessions.get(i));
+            // Место под строку продолжения, если после этой сессии останутся другие
+            String more = "\nmore from=" + sessions.get(i).getId() + " left=" + (sessions.size() - i);
+            int lineBytes = utf8Length(line) + 1;
+            int reserve = i + 1 < sessions.size() ? utf8Length(more) + 4 : 0;
+            if (size + lineBytes + reserve > MAX_BYTES) {
+                out.append(more);
+                break;
+            }
+            out.append('\n').append(line);
+            size += lineBytes;
+        }
+        return out.toString();
+    }
+
+    private static String sessionLine(SessionMetrics session) {
+        StringBuilder line = new StringBuilder(160);
+        long delivered = session.getBytesDelivered();
+        long expected = session.getBytesExpected();
+        line.append('#').append(session.getId()).append(' ').append(session.getKind())
+                .append(' ').append(shorten(session.getFile(), 32))
+                .append(' ').append(session.getPeer())
+                .append(' ').append(expected > 0 ? percent(delivered, expected) : "?")
+                .append(' ').append(bytes(delivered));
+        if (expected > 0) {
+            line.append('/').append(bytes(expected));
+        }
+        line.append(' ').append(bytes(session.getGoodputBytesPerSecond())).append("/s");
+        if (session.getWindow() > 0) {
+            line.append(" win=").append(session.getWindow());
+        }
+        if (session.getSmoothedRttMicros() > 0) {
+            line.append(" srtt=").append(micros(session.getSmoothedRttMicros()));
+        }
+        line.append(" retx=").append(session.getRetransmits())
+                .append(" age=").append(seconds(session.getElapsedNanos()));
+        return line.toString();
+    }
+
+    private static String shorten(String value, int max) {
+        return value.length() <= max ? value : value.substring(0, max - 1) + "~";
+    }
+
+    private static int utf8Length(CharSequence text) {
+        return text.toString().getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static String percent(long part, long total) {
+        if (total <= 0) return "-";
+        return String.format(Locale.ROOT, "%.1f%%", Math.min(100.0, part * 100.0 / total));
+    }
+
+    private static String bytes(long value) {
+        if (value < 1024) return value + "B";
+        if (value < 1024 * 1024) return String.format(Locale.ROOT, "%.1fKB", value / 1024.0);
+        if (value < 1024L * 1024 * 1024) return String.format(Locale.ROOT, "%.1fMB", value / (1024.0 * 1024));
+        return String.format(Locale.ROOT, "%.2fGB", value / (1024.0 * 1024 * 1024));
+    }
+
+    private static String micros(long value) {
+        if (value < 1000) return value + "us";
+        if (value < 1_000_000) return String.format(Locale.ROOT, "%.1fms", value / 1000.0);
+        return String.format(Locale.ROOT, "%.2fs", value / 1_000_000.0);
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.1fs", nanos / 1e9);
+    }
+}
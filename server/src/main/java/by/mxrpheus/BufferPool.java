@@ -0,0 +1,56 @@
+package by.mxrpheus;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Пул буферов одинакового размера с ограничением общего объёма.
+// Буферы выделяются лениво и возвращаются в пул вместо освобождения.
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger allocated = new AtomicInteger();
+    private final AtomicInteger inUse = new AtomicInteger();
+
+    public BufferPool(int bufferSize, int maxBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+    }
+
+    // null – лимит пула исчерпан
+    public ByteBuffer acquire() {
+        ByteBuffer buf = free.poll();
+        if (buf == null) {
+            if (allocated.incrementAndGet() > maxBuffers) {
+                allocated.decrementAndGet();
+                return null;
+            }
+            buf = ByteBuffer.allocateDirect(bufferSize);
+        }
+        inUse.incrementAndGet();
+        buf.clear();
+        return buf;
+    }
+
+    public void release(ByteBuffer buf) {
+        inUse.decrementAndGet();
+        free.offer(buf);
+    }
+
+    public int getInUse() {
+        return inUse.get();
+    }
+
+    public int getAllocated() {
+        return allocated.get();
+    }
+
+    public int getMaxBuffers() {
+        return maxBuffers;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
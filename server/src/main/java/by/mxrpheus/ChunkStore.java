@@ -0,0 +1,501 @@
+package by.mxrpheus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+// Хранилище без повторов (server.storage=dedup): файлы сервера режутся на фрагменты по содержимому (Chunker),
+// и каждый фрагмент хранится один раз под своим SHA-256 – версии одного файла и похожие файлы делят
+// общие фрагменты. Каталог хранилища лежит рядом с каталогом файлов (server/files.store):
+//   chunks/<2 hex>/<sha256> – фрагменты; пишутся во временный файл и переименовываются атомарно
+//   manifests/<имя файла>   – [8 байт размер][8 байт время изменения][4 байта N], N раз [32 байта хеш][4 байта длина]
+// Загруженный целиком файл режется в фоне (ingest) и после записи манифеста удаляется из каталога файлов,
+// если за это время не изменился. Файл в каталоге всегда новее манифеста и читается в первую очередь.
+// Число ссылок на фрагменты хранится в памяти и при запуске восстанавливается по манифестам; фрагмент
+// без ссылок удаляется при замене манифеста, а оставшиеся от прерванных загрузок – при запуске.
+// Команда HAVE <sha256> ... – какие фрагменты уже есть ("HAVE 0110..."): по ней клиент DEDUP_UPLOAD
+// отправляет только недостающие (формат потока – см. DedupReceiver).
+// Для пакетной отдачи хранилище – источник файлов BatchStream, которых уже нет в каталоге.
+final class ChunkStore implements BatchStream.Source {
+    static final boolean ENABLED = "dedup".equalsIgnoreCase(System.getProperty("server.storage", "plain"));
+    private static final long INGEST_WAIT_MS = 60_000;
+    private static final HexFormat HEX = HexFormat.of();
+
+    record Stored(String name, long size, long modified) {
+    }
+
+    // Содержимое манифеста: фрагменты файла по порядку
+    static final class Manifest {
+        static final int HEADER_SIZE = 20;
+        static final int ENTRY_SIZE = Chunker.HASH_SIZE + 4;
+
+        final long size;
+        final long modified;
+        final byte[] hashes;
+        final int[] lengths;
+
+        Manifest(long size, long modified, byte[] hashes, int[] lengths) {
+            this.size = size;
+            this.modified = modified;
+            this.hashes = hashes;
+            this.lengths = lengths;
+        }
+
+        int count() {
+            return lengths.length;
+        }
+
+        byte[] hash(int i) {
+            return Arrays.copyOfRange(hashes, i * Chunker.HASH_SIZE, (i + 1) * Chunker.HASH_SIZE);
+        }
+
+        byte[] encode() {
+            ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + count() * ENTRY_SIZE);
+            buf.putLong(size).putLong(modified).putInt(count());
+            for (int i = 0; i < count(); i++) {
+                buf.put(hashes, i * Chunker.HASH_SIZE, Chunker.HASH_SIZE).putInt(lengths[i]);
+            }
+            return buf.array();
+        }
+
+        static Manifest read(Path path) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(path));
+            if (buf.remaining() < HEADER_SIZE) {
+                throw new IOException("Повреждён манифест " + path);
+            }
+            long size = buf.getLong();
+            long modified = buf.getLong();
+            int count = buf.getInt();
+            if (count < 0 || buf.remaining() != (long) count * ENTRY_SIZE) {
+                throw new IOException("Повреждён манифест " + path);
+            }
+            byte[] hashes = new byte[count * Chunker.HASH_SIZE];
+            int[] lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                buf.get(hashes, i * Chunker.HASH_SIZE, Chunker.HASH_SIZE);
+                lengths[i] = buf.getInt();
+            }
+            return new Manifest(size, modified, hashes, lengths);
+        }
+    }
+
+    private final Path files;
+    private final Path root;
+    private final Path chunks;
+    private final Path manifests;
+    private final NavigableMap<String, Stored> stored = new ConcurrentSkipListMap<>();
+    private final Map<String, Integer> refs = new HashMap<>(); // hex хеша -> число ссылок из манифестов; под this
+    private final ExecutorService ingester;
+    private volatile Consumer<String> onStored = name -> { };
+
+    private ChunkStore(Path files, String server) {
+        this.files = files.toAbsolutePath().normalize();
+        this.root = this.files.resolveSibling(this.files.getFileName() + ".store");
+        this.chunks = root.resolve("chunks");
+        this.manifests = root.resolve("manifests");
+        this.ingester = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "chunk-store-" + server);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Хранилище рядом с каталогом files; null – хранение без повторов выключено
+    static ChunkStore open(Path files, String server) throws IOException {
+        if (!ENABLED) {
+            return null;
+        }
+        ChunkStore store = new ChunkStore(files, server);
+        Files.createDirectories(store.chunks);
+        Files.createDirectories(store.manifests);
+        long start = System.nanoTime();
+        // Запись манифеста прервана – временный файл остался в корне хранилища
+        try (Stream<Path> temps = Files.list(store.root)) {
+            for (Path temp : temps.filter(Files::isRegularFile).toList()) {
+                Files.deleteIfExists(temp);
+            }
+        }
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(store.manifests)) {
+            paths = walk.filter(Files::isRegularFile).toList();
+        }
+        for (Path path : paths) {
+            String name = store.manifests.relativize(path).toString().replace('\\', '/');
+            Manifest manifest = Manifest.read(path);
+            store.stored.put(name, new Stored(name, manifest.size, manifest.modified));
+            store.retain(manifest);
+        }
+        long orphans = 0;
+        long bytes = 0;
+        try (Stream<Path> walk = Files.walk(store.chunks)) {
+            for (Path path : walk.filter(Files::isRegularFile).toList()) {
+                if (store.refs.containsKey(path.getFileName().toString())) {
+                    bytes += Files.size(path);
+                } else {
+                    Files.deleteIfExists(path);
+                    orphans++;
+                }
+            }
+        }
+        System.out.println("Хранилище " + store.root + ": файлов " + store.stored.size() + ", фрагментов "
+                + store.refs.size() + " (" + bytes + " байт), удалено без ссылок " + orphans + " за "
+                + (System.nanoTime() - start) / 1_000_000 + " мс");
+        return store;
+    }
+
+    static boolean isStoreCommand(String command) {
+        return command.equalsIgnoreCase("HAVE");
+    }
+
+    // Ответ на команду хранилища, когда оно выключено
+    static String disabled(String command) {
+        return command.toUpperCase() + " dedup storage is disabled";
+    }
+
+    // HAVE <sha256> ... -> "HAVE " и по символу на хеш: 1 – фрагмент уже в хранилище
+    String handle(String command) {
+        String[] parts = command.trim().split("\\s+");
+        if (parts.length - 1 > Chunker.HAVE_BATCH) {
+            return "HAVE at most " + Chunker.HAVE_BATCH + " hashes per command";
+        }
+        StringBuilder out = new StringBuilder("HAVE ");
+        for (int i = 1; i < parts.length; i++) {
+            if (!parts[i].matches("[0-9a-fA-F]{" + Chunker.HASH_SIZE * 2 + "}")) {
+                return "HAVE invalid hash " + parts[i];
+            }
+            out.append(Files.isRegularFile(chunkPath(parts[i].toLowerCase())) ? '1' : '0');
+        }
+        return out.toString();
+    }
+
+    // Вызывается после сохранения файла в хранилище (для индекса файлов)
+    void onStored(Consumer<String> listener) {
+        this.onStored = listener;
+    }
+
+    Stored stat(String name) {
+        String key = key(name);
+        return key != null ? stored.get(key) : null;
+    }
+
+    // Сохранённые файлы, имена которых начинаются с prefix ("" – все)
+    List<Stored> list(String prefix) {
+        return stored.tailMap(prefix, true).values().stream()
+                .takeWhile(file -> file.name().startsWith(prefix))
+                .toList();
+    }
+
+    @Override
+    public Map<String, Long> files(String prefix) {
+        Map<String, Long> files = new LinkedHashMap<>();
+        for (Stored file : list(prefix)) {
+            files.put(file.name(), file.size());
+        }
+        return files;
+    }
+
+    // Загрузка name завершена: файл режется в хранилище в фоне, когда поток записи его закроет.
+    // writer == null – файл уже закрыт
+    void ingest(String name, DiskWriter writer) {
+        String key = key(name);
+        if (key == null) {
+            return;
+        }
+        ingester.execute(() -> {
+            if (writer != null && (!writer.awaitClosed(INGEST_WAIT_MS) || writer.getFailure() != null)) {
+                return;
+            }
+            Path path = files.resolve(key);
+            try {
+                long start = System.nanoTime();
+                BasicFileAttributes before = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (!before.isRegularFile()) {
+                    return;
+                }
+                Builder builder = new Builder();
+                long added = 0;
+                try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+                    Chunker chunker = new Chunker(in);
+                    MessageDigest digest = Chunker.sha256();
+                    for (ByteBuffer chunk; (chunk = chunker.next()) != null; ) {
+                        byte[] hash = Chunker.hash(digest, chunk);
+                        if (put(hash, chunk)) {
+                            added += chunk.remaining();
+                        }
+                        builder.add(hash, chunk.remaining());
+                    }
+                }
+                Manifest manifest = builder.build(before.lastModifiedTime().toMillis());
+                if (!commit(key, manifest, path, before)) {
+                    System.out.println("Хранилище: " + key + " изменился во время разбиения, остаётся в каталоге");
+                    return;
+                }
+                System.out.println("Хранилище: " + key + " – фрагментов " + manifest.count() + ", новых байт "
+                        + added + " из " + manifest.size + " за " + (System.nanoTime() - start) / 1_000_000 + " мс");
+            } catch (NoSuchFileException e) {
+                // файл удалён или заменён до разбиения
+            } catch (IOException e) {
+                System.err.println("Хранилище: не удалось сохранить " + key + ": " + e.getMessage());
+            }
+        });
+    }
+
+    // Приёмник потока DEDUP_UPLOAD для файла name
+    DedupReceiver receiver(String name) throws IOException {
+        String key = key(name);
+        if (key == null) {
+            throw new IOException("Недопустимое имя файла: " + name);
+        }
+        return new DedupReceiver(this, key);
+    }
+
+    // Фрагмент с хешем hash сохраняется, если его ещё нет; false – уже был в хранилище
+    boolean put(byte[] hash, ByteBuffer data) throws IOException {
+        Path path = chunkPath(HEX.formatHex(hash));
+        if (Files.exists(path)) {
+            return false;
+        }
+        Files.createDirectories(path.getParent());
+        Path temp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            ByteBuffer src = data.duplicate();
+            while (src.hasRemaining()) {
+                out.write(src);
+            }
+        }
+        move(temp, path);
+        return true;
+    }
+
+    // Запись манифеста name вместо прежнего. plain/before – файл каталога, из которого он получен:
+    // манифест записывается и файл удаляется, только если тот не изменился. Без plain файл каталога
+    // с тем же именем удаляется как устаревший (данные пришли напрямую в хранилище)
+    synchronized boolean commit(String name, Manifest manifest, Path plain, BasicFileAttributes before) throws IOException {
+        if (plain != null) {
+            BasicFileAttributes now = Files.readAttributes(plain, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (now.size() != before.size() || !now.lastModifiedTime().equals(before.lastModifiedTime())) {
+                return false;
+            }
+        }
+        for (int i = 0; i < manifest.count(); i++) {
+            if (!Files.isRegularFile(chunkPath(HEX.formatHex(manifest.hash(i))))) {
+                // фрагмент удалён вместе с заменённым манифестом, пока шла загрузка
+                throw new IOException("Нет фрагмента " + HEX.formatHex(manifest.hash(i)) + " для " + name);
+            }
+        }
+        Path path = manifests.resolve(name);
+        Files.createDirectories(path.getParent());
+        Manifest previous = Files.exists(path) ? Manifest.read(path) : null;
+        Path temp = Files.createTempFile(root, "manifest", ".tmp");
+        Files.write(temp, manifest.encode());
+        move(temp, path);
+        retain(manifest);
+        if (previous != null) {
+            release(previous);
+        }
+        stored.put(name, new Stored(name, manifest.size, manifest.modified));
+        Files.deleteIfExists(files.resolve(name));
+        onStored.accept(name);
+        return true;
+    }
+
+    // Чтение сохранённого файла; NoSuchFileException – файла нет в хранилище
+    @Override
+    public SeekableByteChannel open(String name) throws IOException {
+        String key = key(name);
+        if (key == null || !stored.containsKey(key)) {
+            throw new NoSuchFileException(name);
+        }
+        return new ManifestChannel(Manifest.read(manifests.resolve(key)));
+    }
+
+    // Сохранённый файл снова в каталоге файлов – для дозагрузки с середины
+    void restore(String name, Path target) throws IOException {
+        try (SeekableByteChannel in = open(name);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            long size = in.size();
+            while (position < size) {
+                position += out.transferFrom(in, position, size - position);
+            }
+        }
+    }
+
+    private synchronized void retain(Manifest manifest) {
+        for (int i = 0; i < manifest.count(); i++) {
+            refs.merge(HEX.formatHex(manifest.hash(i)), 1, Integer::sum);
+        }
+    }
+
+    private synchronized void release(Manifest manifest) throws IOException {
+        for (int i = 0; i < manifest.count(); i++) {
+            String hex = HEX.formatHex(manifest.hash(i));
+            if (refs.merge(hex, -1, Integer::sum) <= 0) {
+                refs.remove(hex);
+                Files.deleteIfExists(chunkPath(hex));
+            }
+        }
+    }
+
+    private Path chunkPath(String hex) {
+        return chunks.resolve(hex.substring(0, 2)).resolve(hex);
+    }
+
+    // Относительный путь внутри каталога файлов (как ключи FileIndex); null – путь вне каталога
+    private String key(String name) {
+        Path path = files.resolve(name.replace('\\', '/')).normalize();
+        if (!path.startsWith(files) || path.equals(files)) {
+            return null;
+        }
+        return files.relativize(path).toString().replace('\\', '/');
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Сборка манифеста по мере разбиения
+    private static final class Builder {
+        private byte[] hashes = new byte[64 * Chunker.HASH_SIZE];
+        private int[] lengths = new int[64];
+        private int count;
+        private long size;
+
+        void add(byte[] hash, int length) {
+            if (count == lengths.length) {
+                hashes = Arrays.copyOf(hashes, hashes.length * 2);
+                lengths = Arrays.copyOf(lengths, lengths.length * 2);
+            }
+            System.arraycopy(hash, 0, hashes, count * Chunker.HASH_SIZE, Chunker.HASH_SIZE);
+            lengths[count++] = length;
+            size += length;
+        }
+
+        Manifest build(long modified) {
+            return new Manifest(size, modified, Arrays.copyOf(hashes, count * Chunker.HASH_SIZE), Arrays.copyOf(lengths, count));
+        }
+    }
+
+    // Сохранённый файл как канал только для чтения: фрагменты по порядку манифеста,
+    // открыт один – тот, из которого читали последним
+    private final class ManifestChannel implements SeekableByteChannel {
+        private final Manifest manifest;
+        private final long[] starts;
+        private long position;
+        private int openIndex = -1;
+        private FileChannel openChunk;
+        private boolean open = true;
+
+        ManifestChannel(Manifest manifest) {
+            this.manifest = manifest;
+            this.starts = new long[manifest.count()];
+            long offset = 0;
+            for (int i = 0; i < starts.length; i++) {
+                starts[i] = offset;
+                offset += manifest.lengths[i];
+            }
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (position >= manifest.size) return -1;
+            int total = 0;
+            while (dst.hasRemaining() && position < manifest.size) {
+                int index = chunkIndex(position);
+                if (index != openIndex) {
+                    if (openChunk != null) openChunk.close();
+                    openChunk = FileChannel.open(chunkPath(HEX.formatHex(manifest.hash(index))), StandardOpenOption.READ);
+                    openIndex = index;
+                }
+                long inChunk = position - starts[index];
+                int want = (int) Math.min(dst.remaining(), manifest.lengths[index] - inChunk);
+                ByteBuffer slice = dst.slice(dst.position(), want);
+                while (slice.hasRemaining()) {
+                    if (openChunk.read(slice, inChunk + slice.position()) < 0) {
+                        throw new IOException("Фрагмент " + HEX.formatHex(manifest.hash(index)) + " короче манифеста");
+                    }
+                }
+                dst.position(dst.position() + want);
+                position += want;
+                total += want;
+            }
+            return total;
+        }
+
+        private int chunkIndex(long pos) {
+            int lo = 0, hi = starts.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (starts[mid] <= pos) lo = mid; else hi = mid - 1;
+            }
+            return lo;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) {
+            this.position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return manifest.size;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            open = false;
+            if (openChunk != null) openChunk.close();
+            openChunk = null;
+            openIndex = -1;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package by.mxrpheus;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Обработка управляющей команды – от приёма до отправки ответа
+@Name("by.mxrpheus.Command")
+@Label("Command")
+@Category("Transport")
+@Description("Control command handled by a server")
+@StackTrace(false)
+class CommandEvent extends jdk.jfr.Event {
+    @Label("Server")
+    String server;
+
+    @Label("Command")
+    String command;
+
+    @Label("Peer")
+    String peer;
+}
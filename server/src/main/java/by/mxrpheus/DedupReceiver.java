@@ -0,0 +1,149 @@
+package by.mxrpheus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+// Приёмная сторона DEDUP_UPLOAD – файл пишется сразу в хранилище (ChunkStore), минуя каталог файлов.
+// Формат потока: [8 байт: размер файла][4 байта: число фрагментов N],
+// N раз [32 байта: SHA-256][4 байта: длина][1 байт: 1 – данные фрагмента в потоке, 0 – уже в хранилище],
+// затем данные фрагментов с флагом 1 по порядку списка. Каждый фрагмент проверяется по хешу и
+// сохраняется по мере приёма; с последним фрагментом записывается манифест файла.
+// Дозагрузки нет: поток всегда передаётся с начала, а уже сохранённые фрагменты клиент
+// при повторе не отправит (их покажет HAVE).
+// Число фрагментов приходит из сети и определяет размер буфера списка, поэтому список ограничен
+// MAX_LIST_SIZE (около 1.8 млн фрагментов – не меньше 28 ГБ файла при минимальной длине фрагмента).
+final class DedupReceiver implements WritableByteChannel {
+    static final int HEADER_SIZE = 12;
+    static final int ENTRY_SIZE = Chunker.HASH_SIZE + 4 + 1;
+    static final int MAX_LIST_SIZE = 64 * 1024 * 1024;
+
+    private final ChunkStore store;
+    private final String name;
+    private ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE); // накапливается, пока список не получен целиком
+    private long size = -1;
+    private ChunkStore.Manifest manifest;
+    private boolean[] present;
+    private int current;                                           // фрагмент, данные которого принимаются
+    private final ByteBuffer chunk = ByteBuffer.allocate(Chunker.MAX_SIZE);
+    private final MessageDigest digest = Chunker.sha256();
+    private long received;                                         // байт данных фрагментов
+    private long stored;                                           // из них записано в хранилище (новые фрагменты)
+    private boolean committed;
+    private boolean open = true;
+
+    DedupReceiver(ChunkStore store, String name) {
+        this.store = store;
+        this.name = name;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int written = src.remaining();
+        while (src.hasRemaining()) {
+            if (manifest == null) {
+                readHeader(src);
+                continue;
+            }
+            if (current >= present.length) {
+                throw new IOException("Лишние данные после последнего фрагмента " + name);
+            }
+            int length = manifest.lengths[current];
+            int n = Math.min(src.remaining(), length - chunk.position());
+            chunk.put(src.slice(src.position(), n));
+            src.position(src.position() + n);
+            received += n;
+            if (chunk.position() == length) {
+                storeChunk();
+            }
+        }
+        return written;
+    }
+
+    private void readHeader(ByteBuffer src) throws IOException {
+        int n = Math.min(src.remaining(), header.remaining());
+        header.put(src.slice(src.position(), n));
+        src.position(src.position() + n);
+        if (header.hasRemaining()) return;
+        if (size < 0) {
+            size = header.getLong(0);
+            int count = header.getInt(8);
+            // фрагмент не короче байта, а список не больше MAX_LIST_SIZE
+            if (size < 0 || count < 0 || count > size || count > MAX_LIST_SIZE / ENTRY_SIZE) {
+                throw new IOException("Некорректный заголовок DEDUP_UPLOAD " + name);
+            }
+            header = ByteBuffer.allocate(count * ENTRY_SIZE);
+            if (count > 0) return;
+        }
+        header.flip();
+        int count = header.remaining() / ENTRY_SIZE;
+        byte[] hashes = new byte[count * Chunker.HASH_SIZE];
+        int[] lengths = new int[count];
+        present = new boolean[count];
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            header.get(hashes, i * Chunker.HASH_SIZE, Chunker.HASH_SIZE);
+            lengths[i] = header.getInt();
+            present[i] = header.get() == 0;
+            if (lengths[i] <= 0 || lengths[i] > Chunker.MAX_SIZE) {
+                throw new IOException("Некорректная длина фрагмента " + i + " в DEDUP_UPLOAD " + name);
+            }
+            total += lengths[i];
+        }
+        if (total != size) {
+            throw new IOException("Фрагменты DEDUP_UPLOAD " + name + " не совпадают с размером файла");
+        }
+        manifest = new ChunkStore.Manifest(size, System.currentTimeMillis(), hashes, lengths);
+        header = null;
+        skipPresent();
+    }
+
+    private void storeChunk() throws IOException {
+        chunk.flip();
+        byte[] expected = manifest.hash(current);
+        if (!Arrays.equals(Chunker.hash(digest, chunk), expected)) {
+            throw new IOException("Фрагмент " + current + " файла " + name + " не совпадает с хешем");
+        }
+        if (store.put(expected, chunk)) {
+            stored += chunk.limit();
+        }
+        chunk.clear();
+        current++;
+        skipPresent();
+    }
+
+    // Фрагменты, которые уже в хранилище, пропускаются; после последнего записывается манифест
+    private void skipPresent() throws IOException {
+        while (current < present.length && present[current]) {
+            current++;
+        }
+        if (current == present.length && !committed) {
+            committed = true;
+            store.commit(name, manifest, null, null);
+        }
+    }
+
+    public boolean isComplete() {
+        return committed;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public long getStored() {
+        return stored;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+}
@@ -0,0 +1,26 @@
+package by.mxrpheus;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Операция потока записи DiskWriter: склеенная запись (write), сброс на диск (force) или подготовка файла (prepare)
+@Name("by.mxrpheus.DiskWrite")
+@Label("Disk Write")
+@Category("Transport")
+@Description("Upload data written or forced to disk")
+@StackTrace(false)
+class DiskWriteEvent extends jdk.jfr.Event {
+    @Label("File")
+    String file;
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Size")
+    @DataAmount
+    long bytes;
+}
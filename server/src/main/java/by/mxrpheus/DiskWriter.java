@@ -0,0 +1,342 @@
+package by.mxrpheus;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.LockSupport;
+
+// Отдельная стадия записи на диск для сессии загрузки.
+// Сетевой цикл только кладёт данные в кольцо (offer) и сразу продолжает работу; собственный поток
+// забирает данные, склеивает соседние куски в крупные записи и выполняет force по политике надёжности.
+// Если размер загрузки известен (expectSize, expectPackets), файл заранее расширяется до итогового размера,
+// а крупные загрузки принимаются в отображённую в память область (MappedFile).
+public class DiskWriter {
+    // Политика force/fsync
+    public enum Durability {
+        NONE,      // только при закрытии файла
+        PERIODIC,  // не чаще, чем раз в FORCE_INTERVAL_MS
+        ALWAYS     // после каждой склеенной записи
+    }
+
+    static final Durability DEFAULT_DURABILITY =
+            Durability.valueOf(System.getProperty("server.disk.durability", "PERIODIC").toUpperCase());
+    private static final long FORCE_INTERVAL_MS = Long.getLong("server.disk.forceIntervalMs", 200);
+    private static final int RING_SLOTS = Integer.getInteger("server.disk.ringSlots", 1024);
+    private static final int STAGING_SIZE = 256 * 1024;
+    private static final long IDLE_PARK_NS = 1_000_000;
+    private static final long PREVIOUS_WAIT_MS = 100;
+    private static final long MMAP_THRESHOLD = Long.getLong("server.disk.mmapThreshold", 8L << 20);
+
+    private final String name;
+    private final WritableByteChannel target;
+    private final Durability durability;
+    private final SpscRing ring;
+    private final ByteBuffer staging = ByteBuffer.allocateDirect(STAGING_SIZE);
+    private final Runnable onProgress;
+    private final Thread thread;
+
+    private volatile File file;
+    private volatile long preparedSize = -1;     // до этой длины файл расширяется и отображается – она останется в файле
+    private volatile long completeSize = -1;     // загрузка завершена, когда данные дописаны хотя бы до этой длины
+    private volatile long startPosition = 0;
+    private boolean prepared = false;
+    private MappedFile mapped;
+    private long endPosition;                    // конец записанных данных – точка дозагрузки при обрыве
+
+    private long stagingPosition;                // смещение в файле начала данных в staging
+    private int stagedItems;                     // сколько элементов кольца лежит в staging
+    private long lastForce = System.currentTimeMillis();
+    private long writtenItems = 0;               // записано (но, возможно, не сброшено на диск)
+    private volatile long receivedItems = 0;     // принято в кольцо
+    private volatile long writtenCount = 0;
+    private volatile long durableCount = 0;
+    private volatile boolean sleeping = false;
+    private volatile boolean finishing = false;
+    private volatile boolean closed = false;
+    private volatile IOException failure;
+    private volatile SessionMetrics metrics;
+    private volatile DiskWriter previous;        // прежняя запись того же файла – закрывается до первой записи этой
+    private volatile Runnable onClosed = () -> { };
+
+    private DiskWriter(String name, WritableByteChannel target, int slotSize, Durability durability, Runnable onProgress) {
+        this.name = name;
+        this.target = target;
+        this.durability = durability;
+        this.ring = new SpscRing(RING_SLOTS, slotSize);
+        this.onProgress = onProgress;
+        this.thread = new Thread(this::run, "disk-writer-" + name);
+        this.thread.setDaemon(true);
+    }
+
+    // Стадия записи с уже запущенным потоком; поток стартует после конструктора, когда объект построен целиком.
+    // onProgress вызывается из потока записи после продвижения durableCount (например, selector::wakeup)
+    public static DiskWriter start(String name, WritableByteChannel target, int slotSize, Durability durability,
+                                   Runnable onProgress) {
+        DiskWriter writer = new DiskWriter(name, target, slotSize, durability, onProgress);
+        writer.thread.start();
+        return writer;
+    }
+
+    // Вызывается только сетевым потоком. false – кольцо заполнено, пакет нужно отбросить без ACK
+    public boolean offer(long position, ByteBuffer data) {
+        if (finishing || !ring.offer(position, data)) {
+            return false;
+        }
+        receivedItems++;
+        if (sleeping) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    // Итоговый размер файла и смещение начала загрузки; вызывать до первого offer
+    public void expectSize(File file, long size, long start) {
+        expect(file, size, size, start);
+    }
+
+    // Известно только число пакетов: последний может быть неполным, поэтому заранее готовится
+    // и отображается файл без него, а последний пакет дописывается через канал
+    public void expectPackets(File file, long totalPackets, int packetSize, long start) {
+        long full = (totalPackets - 1) * packetSize;
+        expect(file, full, full + 1, start);
+    }
+
+    private void expect(File file, long preparedSize, long completeSize, long start) {
+        this.file = file;
+        this.startPosition = start;
+        this.preparedSize = preparedSize;
+        this.completeSize = completeSize;
+    }
+
+    // Повторная загрузка того же файла: запись начнётся только после того, как previous допишет своё
+    // и закроет файл. Ждёт поток записи, а не сетевой цикл; вызывать до первого offer
+    public void after(DiskWriter previous) {
+        this.previous = previous;
+    }
+
+    // Действие после закрытия файла (например, обновление индекса) – выполняется потоком записи,
+    // а не сетевым циклом; вызывать до первого offer
+    public void onClosed(Runnable action) {
+        this.onClosed = action;
+    }
+
+    // Учёт записанных на диск байт в метриках сессии; вызывать до первого offer
+    public void setMetrics(SessionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // Все данные переданы: поток допишет остаток, выполнит force и закроет файл
+    public void finish() {
+        finishing = true;
+        LockSupport.unpark(thread);
+    }
+
+    // Ожидание, пока поток после finish допишет данные и закроет файл; false – не успел за timeoutMs
+    public boolean awaitClosed(long timeoutMs) {
+        try {
+            thread.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return closed;
+    }
+
+    public long getReceivedCount() {
+        return receivedItems;
+    }
+
+    public long getWrittenCount() {
+        return writtenCount;
+    }
+
+    // Число элементов, гарантированно сброшенных на диск
+    public long getDurableCount() {
+        return durableCount;
+    }
+
+    public IOException getFailure() {
+        return failure;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int getQueued() {
+        return ring.size();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                boolean finishRequested = finishing;
+                ByteBuffer slot;
+                while ((slot = ring.peek()) != null) {
+                    if (!prepared) {
+                        awaitPrevious();
+                        prepare();
+                    }
+                    long position = ring.peekPosition();
+                    int length = slot.remaining();
+                    if (mapped != null && position + length <= mapped.size()) {
+                        // копирование прямо в отображённую область, без промежуточного буфера и pwrite
+                        flush();
+                        endPosition = Math.max(endPosition, position + length);
+                        mapped.put(position, slot);
+                        countWritten(length);
+                        ring.release();
+                        writtenCount = ++writtenItems;
+                        continue;
+                    }
+                    boolean contiguous = stagedItems == 0 || position == stagingPosition + staging.position();
+                    if (!contiguous || slot.remaining() > staging.remaining()) {
+                        flush();
+                    }
+                    if (stagedItems == 0) {
+                        stagingPosition = position;
+                    }
+                    staging.put(slot);
+                    stagedItems++;
+                    ring.release();
+                }
+                flush();
+                maybeForce(false);
+                if (finishRequested && ring.isEmpty()) {
+                    break;
+                }
+                sleeping = true;
+                if (ring.isEmpty() && !finishing) {
+                    LockSupport.parkNanos(this, durability == Durability.PERIODIC ? IDLE_PARK_NS * 10 : IDLE_PARK_NS);
+                }
+                sleeping = false;
+            }
+            maybeForce(true);
+            if (prepared && completeSize > 0 && target instanceof FileChannel fc) {
+                finishFile(fc);
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (Throwable t) {
+            // Непроверяемое исключение или Error не должны оставить сессию ждать записи вечно:
+            // сбой виден сетевому потоку через getFailure, файл закрывается в finally, поток завершается с ним
+            failure = new IOException("Сбой потока записи " + name + ": " + t, t);
+            throw t;
+        } finally {
+            try {
+                target.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+            closed = true;
+            onClosed.run();
+            onProgress.run();
+        }
+    }
+
+    // Файл без отображения обрезается до записанных данных. Отображённый не обрезается (см. MappedFile):
+    // завершённая загрузка уже имеет итоговый размер, а у прерванной в отметке остаётся точка дозагрузки
+    private void finishFile(FileChannel fc) throws IOException {
+        if (mapped != null && endPosition < completeSize) {
+            MappedFile.recordResume(file, endPosition);
+            return;
+        }
+        if (mapped == null) {
+            fc.truncate(endPosition);
+        }
+        MappedFile.clearResume(file);
+    }
+
+    private void awaitPrevious() {
+        DiskWriter writer = previous;
+        previous = null;
+        while (writer != null && !writer.awaitClosed(PREVIOUS_WAIT_MS)) {
+            if (Thread.currentThread().isInterrupted()) return;
+        }
+    }
+
+    private void prepare() throws IOException {
+        prepared = true;
+        endPosition = startPosition;
+        long size = preparedSize;
+        if (size <= 0 || !(target instanceof FileChannel fc)) return;
+        DiskWriteEvent event = new DiskWriteEvent();
+        event.begin();
+        MappedFile.recordResume(file, startPosition);
+        MappedFile.preallocate(fc, size);
+        if (size >= MMAP_THRESHOLD) {
+            mapped = new MappedFile(fc, size);
+        }
+        commit(event, "prepare", size);
+    }
+
+    // Одна крупная запись вместо множества мелких
+    private void flush() throws IOException {
+        if (stagedItems == 0) return;
+        staging.flip();
+        int length = staging.remaining();
+        endPosition = Math.max(endPosition, stagingPosition + length);
+        DiskWriteEvent event = new DiskWriteEvent();
+        event.begin();
+        if (target instanceof FileChannel fc) {
+            long position = stagingPosition;
+            while (staging.hasRemaining()) {
+                position += fc.write(staging, position);
+            }
+        } else {
+            while (staging.hasRemaining()) {
+                target.write(staging);
+            }
+        }
+        staging.clear();
+        commit(event, "write", length);
+        countWritten(length);
+        writtenItems += stagedItems;
+        stagedItems = 0;
+        writtenCount = writtenItems;
+    }
+
+    private void commit(DiskWriteEvent event, String operation, long bytes) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = name;
+            event.operation = operation;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    private void countWritten(long bytes) {
+        SessionMetrics sessionMetrics = metrics;
+        if (sessionMetrics != null) {
+            sessionMetrics.onDiskWrite(bytes);
+        }
+    }
+
+    private void maybeForce(boolean closing) throws IOException {
+        if (durableCount == writtenItems) return;
+        long now = System.currentTimeMillis();
+        boolean due = closing
+                || durability == Durability.ALWAYS
+                || (durability == Durability.PERIODIC && now - lastForce >= FORCE_INTERVAL_MS);
+        if (!due) return;
+        DiskWriteEvent event = new DiskWriteEvent();
+        event.begin();
+        if (target instanceof FileChannel fc) {
+            if (mapped != null) {
+                mapped.force();
+            }
+            // через канал записаны данные без отображения, в том числе хвост за отображённой частью
+            if (mapped == null || endPosition > mapped.size()) {
+                fc.force(false);
+            }
+        } else if (target instanceof BatchReceiver batch) {
+            batch.force();
+        }
+        commit(event, "force", 0);
+        lastForce = now;
+        durableCount = writtenItems;
+        onProgress.run();
+    }
+}
@@ -0,0 +1,17 @@
+package by.mxrpheus;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+// Канал раздачи "один ко многим": один вызов send доставляет пакет всем подписчикам
+public interface DistributionChannel {
+    void send(ByteBuffer packet) throws IOException;
+
+    void addSubscriber(SocketAddress subscriber);
+
+    void removeSubscriber(SocketAddress subscriber);
+
+    // Адрес группы для ответа клиенту ("-" – данные придут на unicast-адрес клиента)
+    String describe();
+}
@@ -0,0 +1,183 @@
+package by.mxrpheus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Асинхронный двоичный журнал событий вместо печати в консоль на каждый пакет и команду.
+// Сетевые потоки кладут записи фиксированного размера в заранее выделенное кольцо без блокировок
+// (несколько писателей, один читатель); если кольцо заполнено, запись отбрасывается и учитывается в DROPPED.
+// Фоновый поток пачками дописывает записи в файл server.log.file; прочитать его – EventLogDecoder.
+//   -Dserver.log.level=DEBUG|INFO|OFF  – DEBUG включает события каждого пакета
+//   -Dserver.log.sample=N              – записывать одно из N событий DEBUG
+public final class EventLog {
+    public enum Level { DEBUG, INFO, OFF }
+
+    // Источник события – сервер, который его записал
+    public static final byte SERVER = 0;
+    public static final byte UDP = 1;
+    public static final byte TCP = 2;
+    static final String[] SOURCES = {"server", "udp", "tcp"};
+
+    // Известные команды и виды сессий записываются индексом в этом списке (новые – только в конец)
+    static final String[] COMMANDS = {"ECHO", "TIME", "CLOSE", "UPLOAD", "DOWNLOAD", "BATCH_UPLOAD",
+            "BATCH_DOWNLOAD", "SUBSCRIBE", "NACK", "EXIT", "QUIT", "STATS", "SESSIONS", "LIST", "STAT", "HAVE",
+            "DEDUP_UPLOAD"};
+
+    // Запись: time(8) session(8) a(8) b(4) type(2) level(1) source(1)
+    static final int RECORD_SIZE = 32;
+
+    private static final Level LEVEL = Level.valueOf(System.getProperty("server.log.level", "INFO").toUpperCase());
+    private static final boolean DEBUG_ENABLED = LEVEL == Level.DEBUG;
+    private static final boolean INFO_ENABLED = LEVEL != Level.OFF;
+    private static final int SAMPLE = Math.max(1, Integer.getInteger("server.log.sample", 1));
+    private static final String FILE = System.getProperty("server.log.file", "server-events.bin");
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(1024, Integer.getInteger("server.log.ringSize", 1 << 16)));
+    private static final int MASK = CAPACITY - 1;
+    private static final int BATCH_SIZE = 64 * 1024;
+    private static final long IDLE_PARK_NS = 1_000_000;
+
+    // Четыре long на запись: время, сессия, a, упакованные b/type/level/source
+    private static final long[] slots = new long[CAPACITY * 4];
+    // published[i] == n + 1 – запись с порядковым номером n в ячейке i готова к чтению
+    private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static volatile long head;
+    private static final LongAdder dropped = new LongAdder();
+    private static final AtomicBoolean started = new AtomicBoolean();
+    private static volatile boolean running = true;
+    private static Thread drainer;
+
+    private EventLog() {
+    }
+
+    public static boolean isDebugEnabled() {
+        return DEBUG_ENABLED;
+    }
+
+    // События каждого пакета; при выборке записывается одно из SAMPLE
+    public static void debug(EventType type, byte source, long session, long a, int b) {
+        if (!DEBUG_ENABLED) return;
+        if (SAMPLE > 1 && ThreadLocalRandom.current().nextInt(SAMPLE) != 0) return;
+        append(Level.DEBUG, type, source, session, a, b);
+    }
+
+    // События команд и сессий
+    public static void info(EventType type, byte source, long session, long a, int b) {
+        if (!INFO_ENABLED) return;
+        append(Level.INFO, type, source, session, a, b);
+    }
+
+    static int commandCode(String command) {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            if (COMMANDS[i].equalsIgnoreCase(command)) return i;
+        }
+        return -1;
+    }
+
+    static byte sourceCode(String name) {
+        for (byte i = 0; i < SOURCES.length; i++) {
+            if (SOURCES[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    private static void append(Level level, EventType type, byte source, long session, long a, int b) {
+        if (!started.get() && started.compareAndSet(false, true)) {
+            startDrainer();
+        }
+        long n;
+        do {
+            n = tail.get();
+            if (n - head >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(n, n + 1));
+        int index = (int) (n & MASK) * 4;
+        slots[index] = System.nanoTime();
+        slots[index + 1] = session;
+        slots[index + 2] = a;
+        slots[index + 3] = ((long) b << 32) | (type.code << 16) | (level.ordinal() << 8) | (source & 0xFF);
+        published.setRelease((int) (n & MASK), n + 1);
+    }
+
+    private static synchronized void startDrainer() {
+        drainer = new Thread(EventLog::drain, "event-log");
+        drainer.setDaemon(true);
+        drainer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            running = false;
+            LockSupport.unpark(drainer);
+            try {
+                drainer.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+    }
+
+    private static void drain() {
+        ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_SIZE);
+        long reportedDrops = 0;
+        try (FileChannel file = FileChannel.open(Path.of(FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            // Каждый запуск начинает сегмент с привязкой монотонного времени к часам
+            putRecord(batch, System.nanoTime(), 0, System.currentTimeMillis(), 0, EventType.HEADER, Level.INFO, (byte) 0);
+            while (true) {
+                boolean stopping = !running;
+                long n = head;
+                int slot = (int) (n & MASK);
+                if (published.getAcquire(slot) == n + 1) {
+                    int index = slot * 4;
+                    long packed = slots[index + 3];
+                    putRecord(batch, slots[index], slots[index + 1], slots[index + 2], (int) (packed >>> 32),
+                            EventType.byCode((int) (packed >>> 16) & 0xFFFF), Level.values()[(int) (packed >>> 8) & 0xFF],
+                            (byte) packed);
+                    head = n + 1; // ячейка свободна для писателей
+                    if (batch.remaining() < RECORD_SIZE * 2) {
+                        write(file, batch);
+                    }
+                    continue;
+                }
+                long drops = dropped.sum();
+                if (drops > reportedDrops) {
+                    putRecord(batch, System.nanoTime(), 0, drops - reportedDrops, 0, EventType.DROPPED, Level.INFO, (byte) 0);
+                    reportedDrops = drops;
+                }
+                write(file, batch);
+                if (stopping) break;
+                LockSupport.parkNanos(IDLE_PARK_NS);
+            }
+        } catch (IOException e) {
+            System.err.println("Ошибка записи журнала событий " + FILE + ": " + e.getMessage());
+        }
+    }
+
+    private static void putRecord(ByteBuffer batch, long time, long session, long a, int b,
+                                  EventType type, Level level, byte source) {
+        batch.putLong(time);
+        batch.putLong(session);
+        batch.putLong(a);
+        batch.putInt(b);
+        batch.putShort((short) (type == null ? -1 : type.code));
+        batch.put((byte) level.ordinal());
+        batch.put(source);
+    }
+
+    private static void write(FileChannel file, ByteBuffer batch) throws IOException {
+        batch.flip();
+        while (batch.hasRemaining()) {
+            file.write(batch);
+        }
+        batch.clear();
+    }
+}
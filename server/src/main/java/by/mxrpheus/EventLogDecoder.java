@@ -0,0 +1,81 @@
+package by.mxrpheus;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+// Вывод двоичного журнала EventLog в читаемом виде, по строке на событие.
+//   java -cp server.jar by.mxrpheus.EventLogDecoder [файл] [номер сессии]
+public class EventLogDecoder {
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSSSSS").withZone(ZoneId.systemDefault());
+
+    public static void main(String[] args) throws IOException {
+        Path path = Path.of(args.length > 0 ? args[0] : System.getProperty("server.log.file", "server-events.bin"));
+        long sessionFilter = args.length > 1 ? Long.parseLong(args[1]) : -1;
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false);
+        ByteBuffer buffer = ByteBuffer.allocate(EventLog.RECORD_SIZE * 4096);
+        long baseNanos = 0;
+        long baseMillis = 0;
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (file.read(buffer) > 0 || buffer.position() > 0) {
+                buffer.flip();
+                if (buffer.remaining() < EventLog.RECORD_SIZE) break; // обрезанный хвост файла
+                while (buffer.remaining() >= EventLog.RECORD_SIZE) {
+                    long time = buffer.getLong();
+                    long session = buffer.getLong();
+                    long a = buffer.getLong();
+                    int b = buffer.getInt();
+                    EventType type = EventType.byCode(buffer.getShort());
+                    int level = buffer.get();
+                    int source = buffer.get();
+                    if (type == EventType.HEADER) {
+                        baseNanos = time;
+                        baseMillis = a;
+                        continue;
+                    }
+                    if (sessionFilter >= 0 && session != sessionFilter) continue;
+                    out.println(format(time, baseNanos, baseMillis, session, a, b, type, level, source));
+                }
+                buffer.compact();
+            }
+        }
+        out.flush();
+    }
+
+    private static String format(long time, long baseNanos, long baseMillis, long session, long a, int b,
+                                 EventType type, int level, int source) {
+        long epochNanos = baseMillis * 1_000_000L + (time - baseNanos);
+        Instant instant = Instant.ofEpochSecond(Math.floorDiv(epochNanos, 1_000_000_000L), Math.floorMod(epochNanos, 1_000_000_000L));
+        StringBuilder line = new StringBuilder(96);
+        line.append(TIME_FORMAT.format(instant)).append(' ');
+        line.append(level >= 0 && level < EventLog.Level.values().length ? EventLog.Level.values()[level].name() : "?").append(' ');
+        line.append(source >= 0 && source < EventLog.SOURCES.length ? EventLog.SOURCES[source] : "?").append(' ');
+        if (type == null) {
+            return line.append("UNKNOWN a=").append(a).append(" b=").append(b).toString();
+        }
+        line.append(type.name());
+        if (session != 0) {
+            line.append(" session=").append(session);
+        }
+        if (type.a != null) {
+            line.append(' ').append(type.a).append('=');
+            if (type == EventType.COMMAND || type == EventType.SESSION_START) {
+                line.append(a >= 0 && a < EventLog.COMMANDS.length ? EventLog.COMMANDS[(int) a] : "?");
+            } else {
+                line.append(a);
+            }
+        }
+        if (type.b != null) {
+            line.append(' ').append(type.b).append('=').append(b);
+        }
+        return line.toString();
+    }
+}
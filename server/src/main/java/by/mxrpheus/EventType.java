@@ -0,0 +1,41 @@
+package by.mxrpheus;
+
+// Типы событий журнала EventLog. Код записывается в файл, поэтому коды существующих типов не меняются.
+// a и b – имена числовых полей записи (null – поле не используется).
+public enum EventType {
+    HEADER(0, "epochMillis", null),       // начало сегмента файла: привязка System.nanoTime к часам
+    DROPPED(1, "count", null),            // записи, не поместившиеся в кольцо
+    COMMAND(2, "command", "port"),
+    SESSION_START(3, "kind", null),
+    SESSION_END(4, "bytes", "ms"),
+    DATA_SENT(5, "seq", "len"),
+    DATA_RECEIVED(6, "seq", "len"),
+    RETRANSMIT(7, "seq", "len"),
+    ACK_SENT(8, "seq", null),
+    ACK_RECEIVED(9, "seq", null),
+    TIMEOUT(10, "base", "window"),
+    WRITE_BACKPRESSURE(11, "seq", null),  // кольцо записи на диск заполнено, пакет отброшен без ACK
+    EARLY_DROPPED(12, "len", null);       // лишний ранний пакет UPLOAD EARLY отброшен, клиент повторит его
+
+    private static final EventType[] BY_CODE = new EventType[16];
+
+    static {
+        for (EventType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    final int code;
+    final String a;
+    final String b;
+
+    EventType(int code, String a, String b) {
+        this.code = code;
+        this.a = a;
+        this.b = b;
+    }
+
+    static EventType byCode(int code) {
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+}
@@ -0,0 +1,45 @@
+package by.mxrpheus;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+// Внутрипроцессная раздача для тестов на loopback, где multicast недоступен:
+// пакет копируется каждому подписчику на его unicast-адрес
+public class FanOutChannel implements DistributionChannel {
+    private final DatagramChannel channel;
+    private final List<SocketAddress> subscribers = new ArrayList<>();
+
+    public FanOutChannel(DatagramChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void send(ByteBuffer packet) throws IOException {
+        int position = packet.position();
+        for (SocketAddress subscriber : subscribers) {
+            packet.position(position);
+            channel.send(packet, subscriber);
+        }
+    }
+
+    @Override
+    public void addSubscriber(SocketAddress subscriber) {
+        if (!subscribers.contains(subscriber)) {
+            subscribers.add(subscriber);
+        }
+    }
+
+    @Override
+    public void removeSubscriber(SocketAddress subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    @Override
+    public String describe() {
+        return "- 0";
+    }
+}
@@ -0,0 +1,444 @@
+package by.mxrpheus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Индекс каталога файлов сервера в памяти: размер, время изменения и (по запросу) SHA-256 каждого файла.
+// Строится при запуске параллельным обходом каталогов (задача ForkJoin на каталог) и поддерживается
+// WatchService: событие каталога обновляет одну запись, переполнение очереди событий – повторный обход.
+// Свои загрузки серверы отмечают сами (refresh), не дожидаясь события.
+// С хранилищем без повторов (ChunkStore) в индексе и файлы, которые есть только в хранилище:
+// удаление такого файла из каталога оставляет запись с размером и временем из манифеста.
+// Файл с отметкой незавершённой загрузки (MappedFile) уже расширен до итогового размера, но не дописан,
+// поэтому в индекс не попадает, пока отметка не удалена. Сами служебные файлы загрузок – отметка
+// и манифест незавершённого пакета (BatchReceiver) – в индекс не попадают никогда.
+// Записи лежат в ConcurrentSkipListMap по относительному пути ("dir/name"), поэтому STAT – поиск по ключу,
+// а страница LIST – проход от курсора по упорядоченным ключам без обхода всего каталога.
+// Команды (ответ умещается в одну датаграмму, как у AdminReport):
+//   STAT <имя> [HASH]          – размер, время изменения, SHA-256; HASH – посчитать, если ещё не посчитан
+//   LIST [каталог] [AFTER <имя>] – файлы каталога и подкаталогов по порядку имён; если не поместились,
+//                                последняя строка "more after=<имя>" – курсор следующей страницы
+final class FileIndex {
+    static final int MAX_BYTES = AdminReport.MAX_BYTES;
+    // Хеши всех файлов в фоне при построении и изменениях; иначе – только по STAT ... HASH
+    private static final boolean HASH_ALL = Boolean.getBoolean("server.index.hash");
+    private static final int STAT_CHUNK = 1024;
+
+    record Entry(String name, long size, long modified, String sha256) {
+        Entry withHash(String hash) {
+            return new Entry(name, size, modified, hash);
+        }
+    }
+
+    private final Path root;
+    private final ChunkStore store; // null – хранилище без повторов выключено
+    private final NavigableMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+    private final WatchService watcher;
+    private final Map<WatchKey, Path> watched = new ConcurrentHashMap<>();
+    private final Set<String> hashing = ConcurrentHashMap.newKeySet();
+    private final ExecutorService hasher;
+
+    private FileIndex(Path root, String server, ChunkStore store) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.store = store;
+        this.watcher = root.getFileSystem().newWatchService();
+        this.hasher = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "file-index-hash-" + server);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Индекс каталога root (создаётся, если его нет) с потоком наблюдения за изменениями
+    static FileIndex open(Path root, String server) throws IOException {
+        return open(root, server, null);
+    }
+
+    // То же с файлами хранилища store (null – без хранилища); сохранённые в него файлы отмечаются сразу
+    static FileIndex open(Path root, String server, ChunkStore store) throws IOException {
+        Files.createDirectories(root);
+        FileIndex index = new FileIndex(root, server, store);
+        long start = System.nanoTime();
+        ForkJoinPool.commonPool().invoke(index.new Walk(index.root, null));
+        if (store != null) {
+            for (ChunkStore.Stored file : store.list("")) {
+                index.entries.putIfAbsent(file.name(), new Entry(file.name(), file.size(), file.modified(), null));
+            }
+            store.onStored(index::refresh);
+        }
+        System.out.println("Индекс " + index.root + ": файлов " + index.entries.size() + " за "
+                + (System.nanoTime() - start) / 1_000_000 + " мс");
+        Thread thread = new Thread(index::watch, "file-index-" + server);
+        thread.setDaemon(true);
+        thread.start();
+        return index;
+    }
+
+    static boolean isIndexCommand(String command) {
+        return command.equalsIgnoreCase("LIST") || command.equalsIgnoreCase("STAT");
+    }
+
+    // command – текст команды без префикса протокола ("STAT a.bin", "LIST dir AFTER dir/x.bin")
+    String handle(String command) {
+        String[] parts = command.trim().split("\\s+");
+        if (parts[0].equalsIgnoreCase("STAT")) {
+            if (parts.length < 2) {
+                return "STAT missing file name";
+            }
+            return stat(parts[1], parts.length > 2 && parts[2].equalsIgnoreCase("HASH"));
+        }
+        String dir = "";
+        String after = null;
+        for (int i = 1; i < parts.length; i++) {
+            if (parts[i].equalsIgnoreCase("AFTER") && i + 1 < parts.length) {
+                after = parts[++i];
+            } else {
+                dir = parts[i];
+            }
+        }
+        return list(dir, after);
+    }
+
+    // Запись файла по относительному пути; null – файла нет. Промах проверяется на диске:
+    // событие о только что созданном файле могло ещё не дойти до потока наблюдения
+    Entry lookup(String name) {
+        String key = key(name);
+        if (key == null) {
+            return null;
+        }
+        Entry entry = entries.get(key);
+        return entry != null ? entry : refresh(key);
+    }
+
+    // Перечитать запись файла (или всех файлов каталога) после изменения самим сервером
+    Entry refresh(String name) {
+        String key = key(name);
+        if (key == null) {
+            return null;
+        }
+        Path path = root.resolve(key);
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (attrs.isDirectory()) {
+                ForkJoinPool.commonPool().invoke(new Walk(path, null));
+                return null;
+            }
+            return attrs.isRegularFile() ? put(key, attrs) : null;
+        } catch (NoSuchFileException e) {
+            return drop(key);
+        } catch (IOException e) {
+            System.err.println("Индекс: не удалось прочитать " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private String stat(String name, boolean hash) {
+        Entry entry = lookup(name);
+        if (entry == null) {
+            return "STAT " + name + " not found";
+        }
+        if (hash && entry.sha256() == null) {
+            scheduleHash(entry);
+        }
+        return "STAT " + entry.name() + " size=" + entry.size() + " mtime=" + time(entry.modified())
+                + " sha256=" + (entry.sha256() != null ? entry.sha256() : hash ? "pending" : "-");
+    }
+
+    private String list(String dir, String after) {
+        String prefix = "";
+        if (!dir.isEmpty() && !dir.equals("/")) {
+            String key = key(dir);
+            if (key == null) {
+                return "LIST " + dir + " not found";
+            }
+            prefix = key + "/";
+        }
+        // Курсор – имя последнего файла прошлой страницы; без курсора – от начала каталога
+        NavigableMap<String, Entry> page = after != null && after.compareTo(prefix) >= 0
+                ? entries.tailMap(after, false)
+                : entries.tailMap(prefix, true);
+        StringBuilder out = new StringBuilder(MAX_BYTES);
+        out.append("LIST ").append(prefix.isEmpty() ? "/" : prefix);
+        int size = utf8Length(out);
+        String last = null;
+        for (Entry entry : page.values()) {
+            if (!entry.name().startsWith(prefix)) {
+                break;
+            }
+            String line = entry.name() + " " + entry.size() + " " + time(entry.modified());
+            int lineBytes = utf8Length(line) + 1;
+            // Место под строку продолжения: курсором будет предыдущий файл
+            String more = "\nmore after=" + (last != null ? last : entry.name());
+            if (size + lineBytes + utf8Length(more) > MAX_BYTES) {
+                if (last == null) {
+                    // Имя длиннее страницы – отдаём хотя бы его, чтобы курсор продвинулся
+                    return out.append('\n').append(entry.name()).append("\nmore after=").append(entry.name()).toString();
+                }
+                return out.append("\nmore after=").append(last).toString();
+            }
+            out.append('\n').append(line);
+            size += lineBytes;
+            last = entry.name();
+        }
+        return out.toString();
+    }
+
+    // Относительный путь внутри каталога с "/" в качестве разделителя; null – путь вне каталога
+    private String key(String name) {
+        Path path = root.resolve(name.replace('\\', '/')).normalize();
+        if (!path.startsWith(root) || path.equals(root)) {
+            return null;
+        }
+        return root.relativize(path).toString().replace('\\', '/');
+    }
+
+    // Чтение файла: из каталога, а если его там нет – из хранилища
+    SeekableByteChannel openSource(String name) throws IOException {
+        String key = key(name);
+        if (key == null) {
+            throw new NoSuchFileException(name);
+        }
+        try {
+            return FileChannel.open(root.resolve(key), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            if (store == null) {
+                throw e;
+            }
+            return store.open(key);
+        }
+    }
+
+    private Entry put(String key, BasicFileAttributes attrs) {
+        if (isServiceFile(key)) {
+            return null;
+        }
+        if (MappedFile.isIncomplete(root.resolve(key))) {
+            return drop(key);
+        }
+        return put(key, attrs.size(), attrs.lastModifiedTime().toMillis());
+    }
+
+    private Entry put(String key, long size, long modified) {
+        // Хеш переживает обновление записи, пока не изменились размер и время изменения
+        Entry previous = entries.get(key);
+        String hash = previous != null && previous.size() == size && previous.modified() == modified
+                ? previous.sha256() : null;
+        Entry entry = new Entry(key, size, modified, hash);
+        entries.put(key, entry);
+        if (HASH_ALL && hash == null) {
+            scheduleHash(entry);
+        }
+        return entry;
+    }
+
+    // SHA-256 считается в отдельном потоке и записывается, только если файл за это время не изменился
+    private void scheduleHash(Entry entry) {
+        if (!hashing.add(entry.name())) {
+            return;
+        }
+        hasher.execute(() -> {
+            try {
+                String hash = sha256(entry.name());
+                entries.computeIfPresent(entry.name(), (name, current) ->
+                        current.size() == entry.size() && current.modified() == entry.modified()
+                                ? current.withHash(hash) : current);
+            } catch (IOException e) {
+                System.err.println("Индекс: не удалось посчитать хеш " + entry.name() + ": " + e.getMessage());
+            } finally {
+                hashing.remove(entry.name());
+            }
+        });
+    }
+
+    private String sha256(String name) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Channels.newInputStream(openSource(name))) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // Поток наблюдения: событие относится к каталогу, по которому зарегистрирован ключ
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                Path dir = watched.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        rescan();
+                    } else if (dir != null) {
+                        String name = root.relativize(dir.resolve((Path) event.context())).toString().replace('\\', '/');
+                        String marked = MappedFile.markedFile(name);
+                        if (marked != null) {
+                            refresh(marked); // отметка загрузки появилась или удалена – файл скрывается или показывается
+                        } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                            remove(name);
+                        } else {
+                            refresh(name);
+                        }
+                    }
+                }
+                if (!key.reset()) {
+                    watched.remove(key);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            System.out.println("Наблюдение за " + root + " остановлено");
+        }
+    }
+
+    private static boolean isServiceFile(String key) {
+        String name = key.substring(key.lastIndexOf('/') + 1);
+        return name.equals(BatchReceiver.MANIFEST_FILE) || MappedFile.markedFile(key) != null;
+    }
+
+    // Удалён файл или каталог целиком – вместе с каталогом уходят записи всех его файлов
+    private void remove(String name) {
+        drop(name);
+        entries.subMap(name + "/", true, name + "/" + Character.MAX_VALUE, true).keySet().forEach(this::drop);
+    }
+
+    // Файла нет в каталоге: запись остаётся, только если он есть в хранилище
+    private Entry drop(String key) {
+        ChunkStore.Stored stored = store != null ? store.stat(key) : null;
+        if (stored == null) {
+            entries.remove(key);
+            return null;
+        }
+        return put(key, stored.size(), stored.modified());
+    }
+
+    // Часть событий потеряна: обход заново, записи не найденных файлов удаляются
+    private void rescan() {
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        ForkJoinPool.commonPool().invoke(new Walk(root, seen));
+        entries.keySet().stream().filter(name -> !seen.contains(name)).toList().forEach(this::drop);
+        System.out.println("Индекс " + root + " перестроен: файлов " + entries.size());
+    }
+
+    private static String time(long millis) {
+        return Instant.ofEpochMilli(millis).truncatedTo(ChronoUnit.SECONDS).toString();
+    }
+
+    private static int utf8Length(CharSequence text) {
+        return text.toString().getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    // Обход каталога: каталог регистрируется в WatchService до чтения, поэтому файл, созданный во время
+    // обхода, попадёт в индекс либо чтением, либо событием. Каталог обходится задачей Walk, а stat его
+    // элементов делят задачи Stat порциями по STAT_CHUNK: подкаталоги обходятся параллельно, и один
+    // большой каталог (как server/files) не индексируется одним потоком.
+    @SuppressWarnings("serial") // RecursiveAction сериализуем, но задачи обхода никогда не сериализуются
+    private final class Walk extends RecursiveAction {
+        private final Path dir;
+        private final Set<String> seen; // null – отметки для rescan не нужны
+
+        Walk(Path dir, Set<String> seen) {
+            this.dir = dir;
+            this.seen = seen;
+        }
+
+        @Override
+        protected void compute() {
+            List<Stat> chunks = new ArrayList<>();
+            try {
+                watched.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+                try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+                    List<Path> chunk = new ArrayList<>(STAT_CHUNK);
+                    for (Path child : children) {
+                        chunk.add(child);
+                        if (chunk.size() == STAT_CHUNK) {
+                            chunks.add(new Stat(chunk, seen));
+                            chunk = new ArrayList<>(STAT_CHUNK);
+                        }
+                    }
+                    if (!chunk.isEmpty()) {
+                        chunks.add(new Stat(chunk, seen));
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                return; // каталог удалён во время обхода
+            } catch (IOException e) {
+                System.err.println("Индекс: не удалось обойти " + dir + ": " + e.getMessage());
+            }
+            invokeAll(chunks);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private final class Stat extends RecursiveAction {
+        private final List<Path> paths;
+        private final Set<String> seen;
+
+        Stat(List<Path> paths, Set<String> seen) {
+            this.paths = paths;
+            this.seen = seen;
+        }
+
+        @Override
+        protected void compute() {
+            List<Walk> subdirs = new ArrayList<>();
+            for (Path child : paths) {
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) {
+                    continue; // удалён во время обхода или недоступен
+                }
+                if (attrs.isDirectory()) {
+                    subdirs.add(new Walk(child, seen));
+                } else if (attrs.isRegularFile()) {
+                    String key = root.relativize(child).toString().replace('\\', '/');
+                    put(key, attrs);
+                    if (seen != null) {
+                        seen.add(key);
+                    }
+                }
+            }
+            invokeAll(subdirs);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package by.mxrpheus;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Приём загрузки известного размера в отображённый в память файл: данные копируются по своим смещениям,
+// без системного вызова на каждый пакет. Файл отображается сегментами по 64 МБ по мере обращения.
+// Отображённый файл не обрезается: в JDK нет явного освобождения отображения, а пока оно живо, truncate
+// на Windows завершается ошибкой, а на Linux обращение к отрезанной странице – SIGBUS. Поэтому отображается
+// только часть, которая останется в файле после завершения загрузки, а точка дозагрузки прерванной
+// загрузки записывается рядом с файлом (recordResume) вместо обрезки до принятой длины.
+// Отметка создаётся ещё до расширения файла и удаляется только после завершения загрузки, поэтому
+// расширенный, но не дописанный файл всегда отмечен – и после обрыва, и после падения сервера.
+// Такой файл не показывается в индексе (FileIndex), а дозагрузка продолжается с точки из отметки.
+public class MappedFile {
+    private static final String RESUME_SUFFIX = ".resume";
+    private static final int SEGMENT_SHIFT = 26;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+    private final FileChannel fc;
+    private final long size;
+    private final MappedByteBuffer[] segments;
+
+    public MappedFile(FileChannel fc, long size) {
+        this.fc = fc;
+        this.size = size;
+        this.segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT)];
+    }
+
+    // Расширение файла до итогового размера одним вызовом вместо роста при каждой записи.
+    // В JDK нет fallocate, поэтому место выделяется файловой системой по мере записи,
+    // но крупные последовательные записи позволяют ей выделять длинные непрерывные экстенты.
+    // Более длинный старый файл обрезается сразу, пока он ещё не отображён.
+    public static void preallocate(FileChannel fc, long size) throws IOException {
+        if (size <= 0) return;
+        if (fc.size() > size) {
+            fc.truncate(size);
+        } else if (fc.size() < size) {
+            fc.write(ByteBuffer.wrap(new byte[1]), size - 1);
+        }
+    }
+
+    // Файл расширяется до конца загрузки или загрузка прервана: принятая длина сохраняется рядом с файлом
+    public static void recordResume(File file, long offset) throws IOException {
+        Files.writeString(resumeMarker(file), Long.toString(offset));
+    }
+
+    // Файл получил итоговый размер или обрезан до принятой длины – отметка больше не нужна
+    public static void clearResume(File file) throws IOException {
+        Files.deleteIfExists(resumeMarker(file));
+    }
+
+    // Смещение дозагрузки: принятая длина из отметки, иначе длина файла.
+    // Повреждённая отметка – загрузка начинается заново
+    public static long resumeOffset(File file) {
+        long length = file.exists() ? file.length() : 0;
+        Path marker = resumeMarker(file);
+        if (!Files.exists(marker)) return length;
+        try {
+            return Math.max(0, Math.min(length, Long.parseLong(Files.readString(marker).trim())));
+        } catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Загрузка файла не завершена: рядом с ним лежит отметка
+    public static boolean isIncomplete(Path file) {
+        return Files.exists(resumeMarker(file.toFile()));
+    }
+
+    // Файл, к которому относится отметка name ("dir/.a.bin.resume" -> "dir/a.bin"); null – name не отметка
+    public static String markedFile(String name) {
+        int slash = name.lastIndexOf('/') + 1;
+        String base = name.substring(slash);
+        if (base.length() <= 1 + RESUME_SUFFIX.length() || base.charAt(0) != '.' || !base.endsWith(RESUME_SUFFIX)) {
+            return null;
+        }
+        return name.substring(0, slash) + base.substring(1, base.length() - RESUME_SUFFIX.length());
+    }
+
+    private static Path resumeMarker(File file) {
+        return file.toPath().resolveSibling("." + file.getName() + RESUME_SUFFIX);
+    }
+
+    public void put(long position, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            MappedByteBuffer segment = segment(position);
+            int offset = (int) (position & (SEGMENT_SIZE - 1));
+            int n = Math.min(src.remaining(), segment.capacity() - offset);
+            segment.put(offset, src, src.position(), n);
+            src.position(src.position() + n);
+            position += n;
+        }
+    }
+
+    // Чтение из сокета сразу в отображённую область; возвращает число байт или -1 при закрытии
+    public int read(ReadableByteChannel source, long position, int max) throws IOException {
+        MappedByteBuffer segment = segment(position);
+        int offset = (int) (position & (SEGMENT_SIZE - 1));
+        int n = Math.min(max, segment.capacity() - offset);
+        return source.read(segment.slice(offset, n));
+    }
+
+    public void force() {
+        for (MappedByteBuffer segment : segments) {
+            if (segment != null) segment.force();
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    private MappedByteBuffer segment(long position) throws IOException {
+        if (position < 0 || position >= size) {
+            throw new IOException("Смещение " + position + " вне отображённого файла размером " + size);
+        }
+        int index = (int) (position >>> SEGMENT_SHIFT);
+        if (segments[index] == null) {
+            long start = (long) index << SEGMENT_SHIFT;
+            segments[index] = fc.map(FileChannel.MapMode.READ_WRITE, start, Math.min(SEGMENT_SIZE, size - start));
+        }
+        return segments[index];
+    }
+}
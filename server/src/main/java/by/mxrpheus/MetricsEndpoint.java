@@ -0,0 +1,146 @@
+package by.mxrpheus;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.function.ToLongFunction;
+
+// Текстовый экспорт метрик всех серверов процесса в формате Prometheus: GET /metrics.
+// Включается свойством server.metrics.port и слушает только loopback.
+//   curl http://127.0.0.1:9400/metrics
+class MetricsEndpoint {
+    private static final int PORT = Integer.getInteger("server.metrics.port", 0);
+
+    private static HttpServer http;
+
+    static synchronized void startIfConfigured() {
+        if (PORT <= 0 || http != null) return;
+        try {
+            http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT), 0);
+            http.createContext("/metrics", MetricsEndpoint::handle);
+            http.start();
+            System.out.println("Метрики доступны на http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + PORT + "/metrics");
+        } catch (IOException e) {
+            System.err.println("Не удалось запустить экспорт метрик: " + e.getMessage());
+        }
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    static String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        counter(out, "transport_packets_sent_total", "Datagrams sent", TransportMetrics::getPacketsSent);
+        counter(out, "transport_packets_received_total", "Datagrams received", TransportMetrics::getPacketsReceived);
+        counter(out, "transport_bytes_sent_total", "Bytes sent", TransportMetrics::getBytesSent);
+        counter(out, "transport_bytes_received_total", "Bytes received", TransportMetrics::getBytesReceived);
+        counter(out, "transport_retransmits_total", "Packets retransmitted or received again", TransportMetrics::getRetransmits);
+        counter(out, "transport_duplicate_acks_total", "ACKs that did not advance the window", TransportMetrics::getDuplicateAcks);
+        counter(out, "transport_disk_bytes_written_total", "Bytes written to disk by uploads", TransportMetrics::getBytesOnDisk);
+        counter(out, "transport_sessions_total", "Transfer sessions opened", TransportMetrics::getSessionsOpened);
+        counter(out, "transport_sessions_rejected_total", "Transfers refused because the session table was full",
+                TransportMetrics::getSessionsRejected);
+        counter(out, "transport_sessions_expired_total", "Transfers aborted after the peer stopped responding",
+                TransportMetrics::getSessionsExpired);
+        header(out, "transport_active_sessions", "gauge", "Transfer sessions in progress");
+        for (TransportMetrics metrics : TransportMetrics.all()) {
+            out.append("transport_active_sessions{").append(serverLabel(metrics)).append("} ")
+                    .append(metrics.getActiveSessions()).append('\n');
+        }
+        header(out, "transport_rtt_seconds", "histogram", "Round-trip time of packets sent once");
+        for (TransportMetrics metrics : TransportMetrics.all()) {
+            histogram(out, "transport_rtt_seconds", serverLabel(metrics), metrics.rtt, 10_000_000, 1_000_000);
+        }
+        header(out, "transport_transfer_seconds", "histogram", "Duration of finished transfers");
+        for (TransportMetrics metrics : TransportMetrics.all()) {
+            histogram(out, "transport_transfer_seconds", serverLabel(metrics), metrics.transferTime, 600_000, 1000);
+        }
+        header(out, "transport_goodput_bytes_per_second", "histogram", "Payload rate of finished transfers");
+        for (TransportMetrics metrics : TransportMetrics.all()) {
+            histogram(out, "transport_goodput_bytes_per_second", serverLabel(metrics), metrics.goodput,
+                    10L * 1024 * 1024 * 1024, 1);
+        }
+        header(out, "transport_loop_lag_seconds", "histogram", "Busy time of one server loop iteration");
+        for (TransportMetrics metrics : TransportMetrics.all()) {
+            histogram(out, "transport_loop_lag_seconds", serverLabel(metrics), metrics.loopLag, 10_000_000, 1_000_000);
+        }
+        header(out, "transport_readahead_hits_total", "counter", "Read-ahead lookups served from loaded chunks");
+        out.append("transport_readahead_hits_total ").append(ReadAhead.getHits()).append('\n');
+        header(out, "transport_readahead_misses_total", "counter", "Read-ahead lookups that waited for the disk");
+        out.append("transport_readahead_misses_total ").append(ReadAhead.getMisses()).append('\n');
+        header(out, "transport_readahead_buffers_in_use", "gauge", "Read-ahead pool buffers holding data");
+        out.append("transport_readahead_buffers_in_use ").append(ReadAhead.POOL.getInUse()).append('\n');
+        sessionGauge(out, "transport_session_bytes_delivered", "Payload delivered in the session", SessionMetrics::getBytesDelivered);
+        sessionGauge(out, "transport_session_bytes_expected", "Payload the session is to transfer, 0 if unknown", SessionMetrics::getBytesExpected);
+        sessionGauge(out, "transport_session_retransmits", "Retransmits in the session", SessionMetrics::getRetransmits);
+        sessionGauge(out, "transport_session_duplicate_acks", "Duplicate ACKs in the session", SessionMetrics::getDuplicateAcks);
+        sessionGauge(out, "transport_session_srtt_microseconds", "Smoothed RTT of the session", SessionMetrics::getSmoothedRttMicros);
+        sessionGauge(out, "transport_session_window", "Current send window in packets", SessionMetrics::getWindow);
+        sessionGauge(out, "transport_session_goodput_bytes_per_second", "Payload rate of the session", SessionMetrics::getGoodputBytesPerSecond);
+        sessionGauge(out, "transport_session_disk_bytes", "Bytes of the session written to disk", SessionMetrics::getBytesOnDisk);
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, ToLongFunction<TransportMetrics> value) {
+        header(out, name, "counter", help);
+        for (TransportMetrics metrics : TransportMetrics.all()) {
+            out.append(name).append('{').append(serverLabel(metrics)).append("} ")
+                    .append(value.applyAsLong(metrics)).append('\n');
+        }
+    }
+
+    private static void sessionGauge(StringBuilder out, String name, String help, ToLongFunction<SessionMetrics> value) {
+        header(out, name, "gauge", help);
+        for (TransportMetrics metrics : TransportMetrics.all()) {
+            for (SessionMetrics session : metrics.getSessions()) {
+                out.append(name).append('{').append(serverLabel(metrics))
+                        .append(",id=\"").append(session.getId())
+                        .append("\",kind=\"").append(session.getKind())
+                        .append("\",peer=\"").append(escape(session.getPeer()))
+                        .append("\",file=\"").append(escape(session.getFile()))
+                        .append("\"} ").append(value.applyAsLong(session)).append('\n');
+            }
+        }
+    }
+
+    // Накопительные корзины le по степеням двойки до maxExported (остальное – в +Inf), затем _sum и _count;
+    // divisor переводит значения в единицы метрики. Значения целые, поэтому граница 2^i охватывает
+    // все значения до 2^i - 1 – это граница корзины LatencyHistogram, и счёт по ней точный.
+    private static void histogram(StringBuilder out, String name, String labels, LatencyHistogram histogram,
+                                  long maxExported, long divisor) {
+        int exported = 64 - Long.numberOfLeadingZeros(maxExported);
+        for (int i = 0; i <= exported; i++) {
+            out.append(name).append("_bucket{").append(labels).append(",le=\"")
+                    .append((double) (1L << i) / divisor).append("\"} ")
+                    .append(histogram.countAtOrBelow((1L << i) - 1)).append('\n');
+        }
+        long total = histogram.countAtOrBelow(Long.MAX_VALUE);
+        out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(total).append('\n');
+        out.append(name).append("_sum{").append(labels).append("} ").append((double) histogram.getSum() / divisor).append('\n');
+        out.append(name).append("_count{").append(labels).append("} ").append(total).append('\n');
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String serverLabel(TransportMetrics metrics) {
+        return "server=\"" + metrics.getServer() + "\"";
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
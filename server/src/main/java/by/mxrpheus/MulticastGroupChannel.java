@@ -0,0 +1,37 @@
+package by.mxrpheus;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+// Раздача через multicast-группу: сервер отправляет каждый пакет ровно один раз
+public class MulticastGroupChannel implements DistributionChannel {
+    private final DatagramChannel channel;
+    private final InetSocketAddress group;
+
+    public MulticastGroupChannel(DatagramChannel channel, InetSocketAddress group) {
+        this.channel = channel;
+        this.group = group;
+    }
+
+    @Override
+    public void send(ByteBuffer packet) throws IOException {
+        channel.send(packet, group);
+    }
+
+    @Override
+    public void addSubscriber(SocketAddress subscriber) {
+        // подписчики сами присоединяются к группе
+    }
+
+    @Override
+    public void removeSubscriber(SocketAddress subscriber) {
+    }
+
+    @Override
+    public String describe() {
+        return group.getAddress().getHostAddress() + " " + group.getPort();
+    }
+}
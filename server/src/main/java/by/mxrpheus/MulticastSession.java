@@ -0,0 +1,145 @@
+package by.mxrpheus;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+// Сессия раздачи одного файла многим получателям.
+// Первый раунд отправляет весь файл один раз, дальше идут раунды восстановления:
+// получатели присылают NACK с недостающими диапазонами, сервер повторяет только их объединение.
+public class MulticastSession {
+
+    private static final int BURST = 64;              // пакетов за один проход цикла селектора
+    private static final long NACK_WAIT_MS = 300;     // ожидание NACK после конца раунда
+    private static final int MAX_SILENT_ROUNDS = 10;  // раундов без ответа до отключения подписчика
+
+    private final String filename;
+    private final byte[][] packets;
+    private final DistributionChannel channel;
+
+    // true – подписчик сообщил, что получил весь файл
+    private final Map<SocketAddress, Boolean> subscribers = new HashMap<>();
+    private final Map<SocketAddress, Integer> silentRounds = new HashMap<>();
+    private final Map<SocketAddress, Boolean> answered = new HashMap<>();
+
+    private BitSet pending;                     // пакеты текущего раунда
+    private BitSet repair = new BitSet();       // объединение NACK для следующего раунда
+    private int nextIndex = 0;
+    private int round = 0;
+    private boolean sending = true;
+    private long roundEndTime;
+    private long packetsSent = 0;
+    private boolean finished = false;
+
+    public MulticastSession(String filename, byte[][] packets, DistributionChannel channel) {
+        this.filename = filename;
+        this.packets = packets;
+        this.channel = channel;
+        this.pending = new BitSet(packets.length);
+        this.pending.set(0, packets.length);
+    }
+
+    public void addSubscriber(SocketAddress subscriber) {
+        subscribers.put(subscriber, false);
+        silentRounds.put(subscriber, 0);
+        channel.addSubscriber(subscriber);
+    }
+
+    public int getTotalPackets() {
+        return packets.length;
+    }
+
+    public String getGroup() {
+        return channel.describe();
+    }
+
+    // Обработка NACK: пустой список диапазонов означает, что файл получен полностью
+    public void handleNack(SocketAddress subscriber, String ranges) {
+        if (!subscribers.containsKey(subscriber)) return;
+        answered.put(subscriber, true);
+        silentRounds.put(subscriber, 0);
+        if (ranges.isEmpty()) {
+            subscribers.put(subscriber, true);
+            channel.removeSubscriber(subscriber);
+            return;
+        }
+        subscribers.put(subscriber, false);
+        for (String range : ranges.split(",")) {
+            String[] bounds = range.split("-");
+            try {
+                int from = Integer.parseInt(bounds[0]);
+                int to = bounds.length > 1 ? Integer.parseInt(bounds[1]) : from;
+                if (from < 0 || to >= packets.length || from > to) continue;
+                repair.set(from, to + 1);
+            } catch (NumberFormatException e) {
+                // пропускаем некорректный диапазон
+            }
+        }
+    }
+
+    // Вызывается из цикла селектора: отправка очередной порции пакетов или переход к следующему раунду
+    public void tick() throws IOException {
+        if (finished) return;
+        if (sending) {
+            int sent = 0;
+            while (sent < BURST) {
+                nextIndex = pending.nextSetBit(nextIndex);
+                if (nextIndex < 0) break;
+                channel.send(ByteBuffer.wrap(packets[nextIndex]));
+                packetsSent++;
+                sent++;
+                nextIndex++;
+            }
+            if (nextIndex < 0) {
+                sendRoundEnd();
+                sending = false;
+                roundEndTime = System.currentTimeMillis();
+            }
+            return;
+        }
+        if (System.currentTimeMillis() - roundEndTime < NACK_WAIT_MS) return;
+
+        // Подписчики, не ответившие за раунд, через MAX_SILENT_ROUNDS считаются отключившимися
+        for (Map.Entry<SocketAddress, Boolean> entry : new HashMap<>(subscribers).entrySet()) {
+            SocketAddress subscriber = entry.getKey();
+            if (entry.getValue() || answered.containsKey(subscriber)) continue;
+            int silent = silentRounds.get(subscriber) + 1;
+            silentRounds.put(subscriber, silent);
+            if (silent >= MAX_SILENT_ROUNDS) {
+                System.out.println("Подписчик " + subscriber + " не отвечает, отключён от раздачи " + filename);
+                subscribers.remove(subscriber);
+                silentRounds.remove(subscriber);
+                channel.removeSubscriber(subscriber);
+            }
+        }
+        answered.clear();
+
+        if (!repair.isEmpty()) {
+            pending = repair;
+            repair = new BitSet();
+            nextIndex = 0;
+            round++;
+            sending = true;
+        } else if (!subscribers.containsValue(false)) {
+            finished = true;
+            System.out.println("Раздача файла " + filename + " завершена: раундов " + (round + 1)
+                    + ", отправлено пакетов " + packetsSent + " (в файле " + packets.length + ")");
+        } else {
+            // NACK мог потеряться – повторяем маркер конца раунда
+            sendRoundEnd();
+            roundEndTime = System.currentTimeMillis();
+        }
+    }
+
+    private void sendRoundEnd() throws IOException {
+        channel.send(new TransferPacket().wrap(ByteBuffer.allocate(TransferPacket.HEADER_SIZE))
+                .encodeRoundEnd(round, packets.length).buffer());
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+}
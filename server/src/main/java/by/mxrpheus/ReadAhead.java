@@ -0,0 +1,328 @@
+package by.mxrpheus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Упреждающее чтение файла для потоковой отдачи.
+// Фоновые потоки читают файл крупными блоками (CHUNK_SIZE) в буферы из общего пула на несколько МБ
+// впереди позиции отправки, поэтому сетевой цикл не ждёт диска и не держит весь файл в памяти.
+// Глубина упреждения подстраивается под скорость отправки: держим данные примерно на LEAD_TIME_MS вперёд.
+// posix_fadvise(WILLNEED/SEQUENTIAL) в JDK недоступен; вместо него ядро видит последовательные
+// позиционные чтения крупными блоками и само включает свой readahead.
+public final class ReadAhead implements Closeable {
+    static final int CHUNK_SIZE = 256 * 1024;
+    private static final int MIN_DEPTH = 2;
+    private static final int MAX_DEPTH = Integer.getInteger("server.readahead.maxChunks", 32);
+    private static final long LEAD_TIME_MS = Long.getLong("server.readahead.leadMs", 250);
+    private static final int POOL_MB = Integer.getInteger("server.readahead.poolMB", 64);
+
+    static final BufferPool POOL = new BufferPool(CHUNK_SIZE, Math.max(MIN_DEPTH, (POOL_MB << 20) / CHUNK_SIZE));
+    private static final ExecutorService LOADERS = Executors.newFixedThreadPool(
+            Integer.getInteger("server.readahead.threads", 4), r -> {
+                Thread t = new Thread(r, "read-ahead");
+                t.setDaemon(true);
+                return t;
+            });
+    private static final LongAdder HITS = new LongAdder();
+    private static final LongAdder MISSES = new LongAdder();
+    // Упреждения, загрузчик которых остановился на исчерпанном пуле: их будит возврат буфера
+    private static final ConcurrentLinkedQueue<ReadAhead> STARVED = new ConcurrentLinkedQueue<>();
+
+    private final SeekableByteChannel source;
+    private final long start;
+    private final long end;
+    private final Runnable onReady;
+    private final Map<Long, ByteBuffer> chunks = new ConcurrentHashMap<>();
+    private final AtomicBoolean loading = new AtomicBoolean();
+    private final AtomicBoolean starved = new AtomicBoolean();
+    // Ожидание блока через ReentrantLock, а не монитор: виртуальный поток отдачи не закрепляется за носителем
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition loaded = lock.newCondition();
+
+    private volatile long needed;      // первый блок, который ещё может понадобиться
+    private volatile long nextToLoad;  // следующий блок для загрузки (меняет только загрузчик)
+    private volatile int depth = MIN_DEPTH;
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    private long lastAdvanceTime = System.nanoTime();
+    private long lastAdvancePosition;
+    private double rate;               // байт в секунду, сглаженная
+
+    // Отдаёт байты [start, start + length) источника. Источник, не являющийся FileChannel
+    // (например, BatchStream), читается только одним загрузчиком за раз через position()+read().
+    // onReady вызывается из фонового потока после загрузки очередного блока (например, selector::wakeup)
+    public ReadAhead(SeekableByteChannel source, long start, long length, Runnable onReady) {
+        this.source = source;
+        this.start = start;
+        this.end = start + length;
+        this.onReady = onReady;
+        this.lastAdvancePosition = start;
+        schedule();
+    }
+
+    public long length() {
+        return end - start;
+    }
+
+    // Неблокирующее чтение: копирует в dst min(dst.remaining(), остаток файла) байт с позиции position.
+    // Возвращает число байт или -1, если данные ещё не загружены (dst при этом не меняется).
+    public int read(long position, ByteBuffer dst) throws IOException {
+        if (failure != null) throw failure;
+        int n = (int) Math.min(dst.remaining(), end - position);
+        if (n <= 0) return 0;
+        long first = chunkIndex(position);
+        long last = chunkIndex(position + n - 1);
+        for (long i = first; i <= last; i++) {
+            if (!chunks.containsKey(i)) {
+                MISSES.increment();
+                want(first);
+                return -1;
+            }
+        }
+        HITS.increment();
+        long pos = position;
+        for (long i = first; i <= last; i++) {
+            ByteBuffer chunk = chunks.get(i);
+            int offset = (int) (pos - chunkStart(i));
+            int count = Math.min(n - (int) (pos - position), chunk.limit() - offset);
+            dst.put(dst.position(), chunk, offset, count);
+            dst.position(dst.position() + count);
+            pos += count;
+        }
+        return n;
+    }
+
+    // Блокирующий вариант read для потоков, обслуживающих одного клиента
+    public int readFully(long position, ByteBuffer dst) throws IOException {
+        while (true) {
+            int n = read(position, dst);
+            if (n >= 0) return n;
+            long last = Math.min(end, position + dst.remaining()) - 1;
+            awaitChunks(chunkIndex(position), chunkIndex(last));
+        }
+    }
+
+    // Часть загруженного блока начиная с position без копирования (не больше max байт); ждёт загрузки блока.
+    // Срез действителен до advance за его пределы.
+    public ByteBuffer slice(long position, int max) throws IOException {
+        long index = chunkIndex(position);
+        while (true) {
+            if (failure != null) throw failure;
+            ByteBuffer chunk = chunks.get(index);
+            if (chunk != null) {
+                HITS.increment();
+                int offset = (int) (position - chunkStart(index));
+                return chunk.slice(offset, Math.min(max, chunk.limit() - offset));
+            }
+            MISSES.increment();
+            want(index);
+            awaitChunks(index, index);
+        }
+    }
+
+    // Данные до position больше не нужны (подтверждены клиентом или отправлены):
+    // буферы этих блоков возвращаются в пул, скорость и глубина упреждения пересчитываются.
+    public void advance(long position) {
+        long index = position >= end ? (end - start + CHUNK_SIZE - 1) / CHUNK_SIZE : chunkIndex(position);
+        for (long i = needed; i < index; i++) {
+            ByteBuffer chunk = chunks.remove(i);
+            if (chunk != null) release(chunk);
+        }
+        if (index > needed) needed = index;
+        updateRate(position);
+        schedule();
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getLoadedChunks() {
+        return chunks.size();
+    }
+
+    public static long getHits() {
+        return HITS.sum();
+    }
+
+    public static long getMisses() {
+        return MISSES.sum();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Long index : chunks.keySet()) {
+            ByteBuffer chunk = chunks.remove(index);
+            if (chunk != null) release(chunk);
+        }
+        wakeWaiters();
+    }
+
+    private void updateRate(long position) {
+        long now = System.nanoTime();
+        long elapsed = now - lastAdvanceTime;
+        if (elapsed < 10_000_000L) return;
+        double current = (position - lastAdvancePosition) * 1e9 / elapsed;
+        rate = rate == 0 ? current : rate * 0.7 + current * 0.3;
+        lastAdvanceTime = now;
+        lastAdvancePosition = position;
+        long lead = (long) (rate * LEAD_TIME_MS / 1000);
+        depth = (int) Math.max(MIN_DEPTH, Math.min(MAX_DEPTH, (lead + CHUNK_SIZE - 1) / CHUNK_SIZE));
+    }
+
+    private void want(long index) {
+        if (index > needed) needed = index;
+        schedule();
+    }
+
+    private void schedule() {
+        if (!closed && hasWork() && loading.compareAndSet(false, true)) {
+            LOADERS.execute(this::load);
+        }
+    }
+
+    // Продолжение загрузки после возврата буфера в пул; false – загружать нечего (или упреждение закрыто)
+    private boolean resume() {
+        if (closed || !hasWork()) return false;
+        schedule();
+        return true;
+    }
+
+    // Буфер возвращается в пул, и первое остановившееся на пустом пуле упреждение, которому ещё есть
+    // что загружать, продолжает работу
+    private static void release(ByteBuffer buf) {
+        POOL.release(buf);
+        ReadAhead waiting;
+        while ((waiting = STARVED.poll()) != null) {
+            waiting.starved.set(false);
+            if (waiting.resume()) break;
+        }
+    }
+
+    private boolean hasWork() {
+        long next = Math.max(nextToLoad, needed);
+        return chunkStart(next) < end && next < needed + depth && failure == null;
+    }
+
+    private void load() {
+        try {
+            while (!closed && hasWork()) {
+                long index = Math.max(nextToLoad, needed);
+                ByteBuffer buf = POOL.acquire();
+                if (buf == null) {
+                    // пул исчерпан – продолжим, когда release вернёт буфер
+                    if (starved.compareAndSet(false, true)) STARVED.add(this);
+                    break;
+                }
+                try {
+                    fill(index, buf);
+                } catch (IOException e) {
+                    release(buf);
+                    failure = e;
+                    break;
+                }
+                nextToLoad = index + 1;
+                if (closed || index < needed) {
+                    release(buf);
+                    continue;
+                }
+                chunks.put(index, buf);
+                // close мог пройти по таблице до put: тогда буфер забираем обратно сами
+                // (remove вернёт его только одной из сторон)
+                if (closed) {
+                    ByteBuffer orphan = chunks.remove(index);
+                    if (orphan != null) release(orphan);
+                    break;
+                }
+                signal();
+            }
+        } finally {
+            loading.set(false);
+        }
+        if (failure != null) {
+            signal();
+        } else if (POOL.getInUse() < POOL.getMaxBuffers()) {
+            schedule();
+        }
+    }
+
+    private void fill(long index, ByteBuffer buf) throws IOException {
+        long position = chunkStart(index);
+        buf.limit((int) Math.min(CHUNK_SIZE, end - position));
+        if (source instanceof FileChannel fc) {
+            while (buf.hasRemaining()) {
+                int n = fc.read(buf, position + buf.position());
+                if (n < 0) break;
+            }
+        } else {
+            source.position(position);
+            while (buf.hasRemaining()) {
+                if (source.read(buf) < 0) break;
+            }
+        }
+        // файл укоротился во время передачи – дополняем нулями, чтобы не зависнуть
+        while (buf.hasRemaining()) buf.put((byte) 0);
+        buf.flip();
+    }
+
+    private void signal() {
+        wakeWaiters();
+        onReady.run();
+    }
+
+    private void wakeWaiters() {
+        lock.lock();
+        try {
+            loaded.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Ждёт загрузки блоков first..last. Условие проверяется под той же блокировкой, под которой
+    // загрузчик будит ожидающих после put, поэтому сигнал не теряется и опрашивать по таймеру не нужно
+    private void awaitChunks(long first, long last) throws IOException {
+        lock.lock();
+        try {
+            while (!closed && failure == null && !loadedRange(first, last)) {
+                loaded.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClosedChannelException();
+        } finally {
+            lock.unlock();
+        }
+        if (closed) throw new ClosedChannelException();
+    }
+
+    private boolean loadedRange(long first, long last) {
+        for (long i = first; i <= last; i++) {
+            if (!chunks.containsKey(i)) return false;
+        }
+        return true;
+    }
+
+    private long chunkIndex(long position) {
+        return (position - start) / CHUNK_SIZE;
+    }
+
+    private long chunkStart(long index) {
+        return start + index * CHUNK_SIZE;
+    }
+}
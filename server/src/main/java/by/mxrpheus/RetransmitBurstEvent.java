@@ -0,0 +1,27 @@
+package by.mxrpheus;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Пакеты окна, повторно отправленные за один проход после таймаута
+@Name("by.mxrpheus.RetransmitBurst")
+@Label("Retransmit Burst")
+@Category("Transport")
+@Description("Packets resent together after a timeout")
+@StackTrace(false)
+class RetransmitBurstEvent extends jdk.jfr.Event {
+    @Label("Server")
+    String server;
+
+    @Label("Session")
+    long sessionId;
+
+    @Label("First Sequence")
+    long firstSeq;
+
+    @Label("Packets")
+    int count;
+}
@@ -5,70 +5,125 @@ import java.net.*;
 import java.nio.*;
 import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.locks.LockSupport;
 
 public class Server {
     private static final int PORT = 9001;
-    private static final int PACKET_SIZE = 1024;
-    private static final int HEADER_SIZE = 9; // 1 байт: тип, 4 байта: seq, 4 байта: totalPackets
-    private static final int DATA_SIZE = PACKET_SIZE - HEADER_SIZE;
-    private static final int WINDOW_SIZE = 5;
+    static final int PACKET_SIZE = TransferPacket.PACKET_SIZE;
+    static final int HEADER_SIZE = TransferPacket.HEADER_SIZE; // тип, seq, totalPackets (см. TransferPacket)
+    static final int DATA_SIZE = TransferPacket.DATA_SIZE;
+    static final int WINDOW_SIZE = 5;
     private static final long TIMEOUT_MS = 500; // таймаут повторной отправки
+    private static final long TIMEOUT_NS = TIMEOUT_MS * 1_000_000L;
+    private static final long SELECT_TIMEOUT_MS = 50;
+    // Задержка отложенного ACK при загрузке (см. AckPolicy)
+    private static final long ACK_DELAY_MS = Long.getLong("server.ack.delay.ms", AckPolicy.DEFAULT_DELAY_MS);
+    // Пейсинг скачиваний (см. Pacer): выключатель и ограничение темпа одной передачи, 0 – окно за RTT
+    private static final boolean PACING = Boolean.parseBoolean(System.getProperty("server.pacing", "true"));
+    private static final double PACING_RATE_MBIT = Double.parseDouble(System.getProperty("server.pacing.rateMbit", "0"));
+    // Предел одновременных передач (UPLOAD и DOWNLOAD вместе): сверх него новые команды получают CMD:ERROR BUSY,
+    // а не делят диск, память и канал с уже идущими передачами
+    private static final int MAX_SESSIONS = Integer.getInteger("server.sessions.max", 64);
+    // Передача, от клиента которой дольше этого срока не пришло ни одного пакета, прерывается
+    private static final long IDLE_TIMEOUT_NS = Long.getLong("server.session.idleMs", 30_000) * 1_000_000L;
+    // Скачивание прерывается после стольких повторов окна подряд без продвижения
+    private static final int MAX_RETRANSMITS = Integer.getInteger("server.retransmit.maxAttempts", 20);
 
     // Папка для хранения файлов на сервере
     private static final String SERVER_DIR = "server_files";
 
-    private DatagramChannel channel;
-    private Selector selector;
+    // Раздача "один ко многим": multicast-группа или fan-out по unicast для тестов на loopback
+    private static final String MULTICAST_GROUP = System.getProperty("server.multicast.group", "230.0.0.1");
+    private static final int MULTICAST_PORT = Integer.getInteger("server.multicast.port", 9002);
+    private static final boolean MULTICAST_FANOUT = Boolean.getBoolean("server.multicast.fanout");
+
+    // Управляющий канал на хорошо известном порту: только команды "CMD:".
+    // Каждая передача получает свой канал на эфемерном порту, соединённый с клиентом (см. openTransfer).
+    DatagramChannel channel;
+    Selector selector;
 
     // Сессии загрузки (UPLOAD) от клиента к серверу
-    private Map<String, UploadSession> uploadSessions = new HashMap<>();
+    Map<String, UploadSession> uploadSessions = new HashMap<>();
+    // Загрузки с ранним стартом (EARLY) по адресу клиента: первое окно данных приходит на управляющий
+    // канал вслед за командой, до того как клиент узнает порт передачи
+    private final Map<SocketAddress, UploadSession> earlyUploads = new HashMap<>();
     // Сессии скачивания (DOWNLOAD) от сервера к клиенту
-    private Map<String, DownloadSession> downloadSessions = new HashMap<>();
+    Map<String, DownloadSession> downloadSessions = new HashMap<>();
+    // Сессии раздачи (SUBSCRIBE), по одной на файл
+    private Map<String, MulticastSession> multicastSessions = new HashMap<>();
+    private int multicastPortOffset = 0;
+    // Счётчики и гистограммы передач (JMX и текстовый экспорт)
+    private final TransportMetrics metrics = TransportMetrics.forServer("server");
+    // Файлы SERVER_DIR в памяти: наличие при DOWNLOAD/SUBSCRIBE, ответы на LIST и STAT
+    private FileIndex index;
+    private ChunkStore store; // null – хранилище без повторов выключено (server.storage)
+    // Буферы приёма и разбор/сборка заголовков на месте: цикл сервера однопоточный,
+    // поэтому на пакет не выделяется память
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(PACKET_SIZE);
+    private final ByteBuffer ackBuffer = ByteBuffer.allocate(HEADER_SIZE);
+    private final TransferPacket inbound = new TransferPacket();
+    private final TransferPacket outbound = new TransferPacket();
 
     public static void main(String[] args) {
         new Server().start();
     }
 
     public void start() {
+        TransportRecording.startIfConfigured();
         try {
             // Создаем папку для хранения файлов на сервере, если она не существует
             File serverDir = new File(SERVER_DIR);
             if (!serverDir.exists()) {
                 serverDir.mkdirs();
             }
+            store = ChunkStore.open(serverDir.toPath(), "server");
+            index = FileIndex.open(serverDir.toPath(), "server", store);
             channel = DatagramChannel.open();
             channel.socket().bind(new InetSocketAddress(PORT));
             channel.configureBlocking(false);
+            try {
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+            } catch (IOException | UnsupportedOperationException e) {
+                System.out.println("Multicast loopback недоступен: " + e.getMessage());
+            }
             selector = Selector.open();
             channel.register(selector, SelectionKey.OP_READ);
             System.out.println("UDP-сервер запущен на порту " + PORT);
             System.out.println("Файлы сервера будут храниться в папке: " + serverDir.getAbsolutePath());
 
             while (true) {
-                selector.select(50);
+                awaitEvents();
+                long woke = System.nanoTime();
                 Set<SelectionKey> keys = selector.selectedKeys();
                 Iterator<SelectionKey> it = keys.iterator();
                 while (it.hasNext()){
                     SelectionKey key = it.next();
                     it.remove();
-                    if (key.isReadable()){
-                        ByteBuffer buf = ByteBuffer.allocate(PACKET_SIZE);
+                    if (!key.isValid() || !key.isReadable()) continue;
+                    if (key.channel() == channel){
+                        ByteBuffer buf = receiveBuffer.clear();
                         SocketAddress clientAddr = channel.receive(buf);
                         if (clientAddr == null) continue;
                         buf.flip();
                         processPacket(buf, clientAddr);
+                    } else {
+                        readTransfer(key);
                     }
                 }
+                updateUploadSessions();
                 updateDownloadSessions();
+                updateMulticastSessions();
+                metrics.onLoopBusy(System.nanoTime() - woke);
             }
         } catch(Exception e) {
             e.printStackTrace();
         }
     }
 
-    // Разбираем входящий пакет: если начинается с "CMD:" – это управляющая команда,
-    // иначе – бинарный пакет (данные или ACK).
-    private void processPacket(ByteBuffer buf, SocketAddress clientAddr) throws IOException {
+    // Разбираем пакет управляющего канала: команды, начинающиеся с "CMD:", и первое окно данных загрузок
+    // с ранним стартом. Остальные данные и ACK передач приходят на их собственные каналы.
+    void processPacket(ByteBuffer buf, SocketAddress clientAddr) throws IOException {
+        metrics.onPacketReceived(buf.remaining());
         if(buf.remaining() < 4) return; // слишком короткий пакет
         byte[] peek = new byte[4];
         buf.get(peek);
@@ -78,28 +133,81 @@ public class Server {
             byte[] bytes = new byte[buf.remaining()];
             buf.get(bytes);
             String cmd = new String(bytes).trim();
+            CommandEvent event = new CommandEvent();
+            event.begin();
             processCommand(cmd.substring(4), clientAddr); // убираем "CMD:"
+            event.end();
+            if(event.shouldCommit()) {
+                event.server = "server";
+                event.command = cmd.substring(4).split(" ", 2)[0];
+                event.peer = clientAddr.toString();
+                event.commit();
+            }
         } else {
-            byte packetType = buf.get();
-            if(packetType == 0) { // data-пакет (UPLOAD)
-                int seqNum = buf.getInt();
-                int totalPackets = buf.getInt();
-                byte[] data = new byte[buf.remaining()];
-                buf.get(data);
-                processFileDataPacket(clientAddr, seqNum, totalPackets, data);
-            } else if(packetType == 1) { // ACK-пакет (при DOWNLOAD)
-                int ackNum = buf.getInt();
-                buf.getInt(); // резервное поле
-                processAckPacket(clientAddr, ackNum);
+            UploadSession early = earlyUploads.get(clientAddr);
+            TransferPacket packet = inbound.wrap(buf);
+            if(early != null && packet.hasHeader() && packet.type() == TransferPacket.DATA) {
+                processFileDataPacket(early, packet.seq(), packet.totalPackets(), packet.payload());
+            }
+        }
+    }
+
+    // Датаграммы канала передачи: канал соединён с клиентом, поэтому сессия известна из вложения ключа
+    // и адрес отправителя не проверяется. Читаем всё, что накопилось, до пустого канала.
+    private void readTransfer(SelectionKey key) throws IOException {
+        DatagramChannel transfer = (DatagramChannel) key.channel();
+        ByteBuffer buf = receiveBuffer;
+        while(transfer.isOpen()) { // канал закрывается, когда сессия завершилась на очередном пакете
+            buf.clear();
+            try {
+                if(transfer.read(buf) <= 0) return;
+            } catch(PortUnreachableException e) {
+                return; // ICMP на один из прошлых пакетов – клиент мог ещё не открыть порт или уже уйти
+            }
+            buf.flip();
+            processTransferPacket(buf, key.attachment());
+        }
+    }
+
+    // Бинарный пакет передачи: данные (UPLOAD) или ACK (DOWNLOAD) сессии session
+    void processTransferPacket(ByteBuffer buf, Object session) throws IOException {
+        metrics.onPacketReceived(buf.remaining());
+        TransferPacket packet = inbound.wrap(buf);
+        if(!packet.hasHeader()) return;
+        byte packetType = packet.type();
+        if(packetType == TransferPacket.DATA) { // data-пакет (UPLOAD)
+            if(session instanceof UploadSession upload) {
+                // Данные передаются без копии: кольцо записи само копирует их в свой слот
+                processFileDataPacket(upload, packet.seq(), packet.totalPackets(), packet.payload());
+            }
+        } else if(packetType == TransferPacket.ACK) { // ACK-пакет (при DOWNLOAD)
+            if(session instanceof DownloadSession download) {
+                download.handleAck(packet.ackNum());
             }
         }
     }
 
+    // Канал передачи: эфемерный порт, соединённый с клиентом. Ответ на команду отправляется с него,
+    // и клиент шлёт данные и ACK на порт, с которого пришёл ответ
+    private DatagramChannel openTransfer(SocketAddress clientAddr) throws IOException {
+        DatagramChannel transfer = DatagramChannel.open();
+        transfer.bind(new InetSocketAddress(0));
+        transfer.connect(clientAddr);
+        transfer.configureBlocking(false);
+        return transfer;
+    }
+
+    private void reply(DatagramChannel transfer, String cmd) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(cmd.getBytes());
+        metrics.onPacketSent(buf.remaining());
+        transfer.write(buf);
+    }
+
     // Обработка управляющих команд
     private void processCommand(String cmd, SocketAddress clientAddr) throws IOException {
-        System.out.println("Получена команда от " + clientAddr + ": " + cmd);
         String[] parts = cmd.split(" ");
         String command = parts[0].toUpperCase();
+        EventLog.info(EventType.COMMAND, EventLog.SERVER, 0, EventLog.commandCode(command), port(clientAddr));
         switch(command) {
             case "ECHO":
                 String message = cmd.substring(5);
@@ -112,29 +220,45 @@ public class Server {
             case "CLOSE":
                 sendCommand("CMD:CLOSE", clientAddr);
                 break;
+            case "STATS":
+            case "SESSIONS":
+                // Формат: STATS | SESSIONS [id] – снимок метрик без остановки передач
+                sendCommand("CMD:" + AdminReport.handle(metrics, cmd), clientAddr);
+                break;
+            case "LIST":
+            case "STAT":
+                // Формат: LIST [dir] [AFTER name] | STAT filename [HASH] – ответ из индекса без обращения к диску
+                sendCommand("CMD:" + index.handle(cmd), clientAddr);
+                break;
+            case "HAVE":
+                // Формат: HAVE sha256 ... – какие фрагменты уже есть в хранилище (см. ChunkStore)
+                sendCommand("CMD:" + (store != null ? store.handle(cmd) : ChunkStore.disabled(command)), clientAddr);
+                break;
             case "UPLOAD":
-                // Формат: UPLOAD filename [offset]
+                // Формат: UPLOAD filename [offset] [DURABLE] [EARLY] [TOTAL n]
+                // DURABLE – ACK отправляется только после сброса данных на диск, иначе сразу после приёма;
+                // EARLY – первое окно данных отправлено на управляющий порт вслед за командой;
+                // TOTAL – общее число пакетов (последний seq+1), иначе – из заголовка первого пакета
                 if(parts.length < 2) {
                     sendCommand("CMD:ERROR Missing filename for UPLOAD", clientAddr);
                     return;
                 }
                 String upFilename = parts[1];
-                int upOffset = 0;
-                if(parts.length >= 3) {
-                    try {
-                        upOffset = Integer.parseInt(parts[2]);
-                    } catch(NumberFormatException e) {
-                        upOffset = 0;
-                    }
-                }
+                long upOffset = parseOffset(parts);
+                String upKey = clientAddr.toString() + "_" + upFilename;
+                if(!admit(uploadSessions, upKey, clientAddr)) return;
                 // Файл будет сохранен в папке SERVER_DIR
                 File upFile = new File(SERVER_DIR, upFilename);
+                // Дозагрузка файла, который уже перенесён в хранилище: сначала он возвращается в папку
+                if(upOffset > 0 && store != null && !upFile.exists() && store.stat(upFilename) != null) {
+                    store.restore(upFilename, upFile.toPath());
+                }
                 RandomAccessFile rafUp = new RandomAccessFile(upFile, "rw");
-                rafUp.seek((long) upOffset * DATA_SIZE);
                 FileChannel fcUp = rafUp.getChannel();
-                UploadSession upSession = new UploadSession(clientAddr, upFilename, upOffset, fcUp);
-                uploadSessions.put(clientAddr.toString() + "_" + upFilename, upSession);
-                sendCommand("CMD:READY_FOR_UPLOAD " + upFilename + " " + upOffset, clientAddr);
+                UploadSession upSession = new UploadSession(clientAddr, upFilename, upOffset, fcUp, isDurable(parts), ackPolicy(parts));
+                upSession.expectTotal(requestedTotal(parts));
+                startUpload(upKey, upSession, isEarly(parts));
+                reply(upSession.transfer, "CMD:READY_FOR_UPLOAD " + upFilename + " " + upOffset + ackReply(parts) + earlyReply(parts));
                 break;
             case "DOWNLOAD":
                 // Формат: DOWNLOAD filename [offset]
@@ -143,120 +267,459 @@ public class Server {
                     return;
                 }
                 String downFilename = parts[1];
-                int downOffset = 0;
-                if(parts.length >= 3) {
-                    try {
-                        downOffset = Integer.parseInt(parts[2]);
-                    } catch(NumberFormatException e) {
-                        downOffset = 0;
-                    }
-                }
-                // Файл для скачивания находится в папке SERVER_DIR
-                File file = new File(SERVER_DIR, downFilename);
-                if(!file.exists()){
+                long downOffset = parseOffset(parts);
+                // Файл для скачивания находится в папке SERVER_DIR или в хранилище
+                if(index.lookup(downFilename) == null){
                     sendCommand("CMD:ERROR File not found", clientAddr);
                     return;
                 }
-                // Разбиваем файл на пакеты начиная с заданного offset (номер пакета)
-                byte[][] packets = createPackets(file, downOffset);
+                // Пакеты формируются по мере отправки начиная с заданного offset (номер пакета);
+                // файл читается с упреждением, а не загружается в память целиком
                 String downKey = clientAddr.toString() + "_" + downFilename;
-                DownloadSession downSession = new DownloadSession(clientAddr, downFilename, packets, downOffset);
-                downloadSessions.put(downKey, downSession);
+                if(!admit(downloadSessions, downKey, clientAddr)) return;
+                DownloadSession downSession = new DownloadSession(clientAddr, downFilename,
+                        index.openSource(downFilename), downOffset);
+                startDownload(downKey, downSession);
                 // Ответ: filename, offset и общее число пакетов (последний seq+1)
-                sendCommand("CMD:READY_FOR_DOWNLOAD " + downFilename + " " + downOffset + " " + (packets.length + downOffset), clientAddr);
+                reply(downSession.transfer, "CMD:READY_FOR_DOWNLOAD " + downFilename + " " + downOffset + " " + downSession.totalPackets + ackReply(parts));
+                break;
+            case "DEDUP_UPLOAD":
+                // Формат: DEDUP_UPLOAD filename [0] [DURABLE] [EARLY] [TOTAL n] – список фрагментов файла и данные
+                // тех, которых нет в хранилище, одним потоком; всегда с начала (см. DedupReceiver)
+                if(parts.length < 2) {
+                    sendCommand("CMD:ERROR Missing filename for DEDUP_UPLOAD", clientAddr);
+                    return;
+                }
+                if(store == null) {
+                    sendCommand("CMD:ERROR " + ChunkStore.disabled(command), clientAddr);
+                    return;
+                }
+                String dedupName = parts[1];
+                String dedupKey = clientAddr.toString() + "_" + dedupName;
+                if(!admit(uploadSessions, dedupKey, clientAddr)) return;
+                DedupReceiver dedupReceiver;
+                try {
+                    dedupReceiver = store.receiver(dedupName);
+                } catch(IOException e) {
+                    sendCommand("CMD:ERROR " + e.getMessage(), clientAddr);
+                    return;
+                }
+                UploadSession dedupSession = new UploadSession(clientAddr, dedupName, 0, dedupReceiver, isDurable(parts), ackPolicy(parts));
+                dedupSession.expectTotal(requestedTotal(parts));
+                startUpload(dedupKey, dedupSession, isEarly(parts));
+                reply(dedupSession.transfer, "CMD:READY_FOR_UPLOAD " + dedupName + " 0" + ackReply(parts) + earlyReply(parts));
+                break;
+            case "BATCH_UPLOAD":
+                // Формат: BATCH_UPLOAD spec [offset] [DURABLE] [EARLY] [TOTAL n] – манифест и файлы каталога одним потоком
+                if(parts.length < 2) {
+                    sendCommand("CMD:ERROR Missing directory for BATCH_UPLOAD", clientAddr);
+                    return;
+                }
+                String batchUpName = BatchStream.batchName(parts[1]);
+                String batchUpKey = clientAddr.toString() + "_" + batchUpName;
+                if(!admit(uploadSessions, batchUpKey, clientAddr)) return;
+                long batchUpOffset = parseOffset(parts);
+                BatchReceiver receiver;
+                try {
+                    receiver = new BatchReceiver(new File(SERVER_DIR, batchUpName), batchUpOffset * DATA_SIZE);
+                    if(requestedTotal(parts) > 0) {
+                        receiver.expectPackets(requestedTotal(parts), DATA_SIZE);
+                    }
+                } catch(IOException e) {
+                    sendCommand("CMD:ERROR " + e.getMessage(), clientAddr);
+                    return;
+                }
+                UploadSession batchUpSession = new UploadSession(clientAddr, batchUpName, batchUpOffset, receiver, isDurable(parts), ackPolicy(parts));
+                batchUpSession.expectTotal(requestedTotal(parts));
+                startUpload(batchUpKey, batchUpSession, isEarly(parts));
+                reply(batchUpSession.transfer, "CMD:READY_FOR_UPLOAD " + batchUpName + " " + batchUpOffset + ackReply(parts) + earlyReply(parts));
+                break;
+            case "BATCH_DOWNLOAD":
+                // Формат: BATCH_DOWNLOAD spec [offset]
+                if(parts.length < 2) {
+                    sendCommand("CMD:ERROR Missing directory for BATCH_DOWNLOAD", clientAddr);
+                    return;
+                }
+                if(!admit(downloadSessions, clientAddr.toString() + "_" + BatchStream.batchName(parts[1]), clientAddr)) return;
+                long batchDownOffset = parseOffset(parts);
+                DownloadSession batchSession;
+                try {
+                    BatchStream stream = BatchStream.open(new File(SERVER_DIR), parts[1], store);
+                    batchSession = new DownloadSession(clientAddr, stream.getName(), stream, batchDownOffset);
+                    System.out.println("Пакет " + stream.getName() + ": файлов " + stream.getFileCount() + ", байт " + stream.size());
+                } catch(IOException e) {
+                    sendCommand("CMD:ERROR " + e.getMessage(), clientAddr);
+                    return;
+                }
+                startDownload(clientAddr.toString() + "_" + batchSession.filename, batchSession);
+                reply(batchSession.transfer, "CMD:READY_FOR_DOWNLOAD " + batchSession.filename + " " + batchDownOffset + " " + batchSession.totalPackets + ackReply(parts));
+                break;
+            case "SUBSCRIBE":
+                // Формат: SUBSCRIBE filename – подписка на раздачу файла
+                if(parts.length < 2) {
+                    sendCommand("CMD:ERROR Missing filename for SUBSCRIBE", clientAddr);
+                    return;
+                }
+                String mcFilename = parts[1];
+                MulticastSession mcSession = multicastSessions.get(mcFilename);
+                if(mcSession == null) {
+                    if(index.lookup(mcFilename) == null){
+                        sendCommand("CMD:ERROR File not found", clientAddr);
+                        return;
+                    }
+                    byte[][] mcPackets;
+                    try(SeekableByteChannel mcSource = index.openSource(mcFilename)) {
+                        mcPackets = createPackets(mcSource, 0);
+                    } catch(IOException e) {
+                        sendCommand("CMD:ERROR " + e.getMessage(), clientAddr);
+                        return;
+                    }
+                    mcSession = new MulticastSession(mcFilename, mcPackets, createDistributionChannel());
+                    multicastSessions.put(mcFilename, mcSession);
+                }
+                mcSession.addSubscriber(clientAddr);
+                // Ответ: filename, общее число пакетов, группа и порт ("- 0" – данные придут на адрес клиента)
+                sendCommand("CMD:READY_FOR_MULTICAST " + mcFilename + " " + mcSession.getTotalPackets() + " " + mcSession.getGroup(), clientAddr);
+                break;
+            case "NACK":
+                // Формат: NACK filename [from-to,from-to,...] – без диапазонов означает "файл получен"
+                if(parts.length < 2) return;
+                MulticastSession nackSession = multicastSessions.get(parts[1]);
+                if(nackSession != null) {
+                    nackSession.handleNack(clientAddr, parts.length >= 3 ? parts[2] : "");
+                }
                 break;
             default:
                 sendCommand("CMD:ERROR Unknown command", clientAddr);
         }
     }
 
+    // Место для новой передачи в таблице сессий. Повторная команда клиента заменяет его же сессию
+    // и места не требует; при заполненной таблице клиент получает отказ и может повторить позже
+    private boolean admit(Map<String, ?> sessions, String key, SocketAddress clientAddr) throws IOException {
+        if(sessions.containsKey(key) || uploadSessions.size() + downloadSessions.size() < MAX_SESSIONS) {
+            return true;
+        }
+        metrics.onSessionRejected();
+        sendCommand("CMD:ERROR BUSY " + MAX_SESSIONS + " transfers in progress, retry later", clientAddr);
+        System.out.println("Передача отклонена для " + clientAddr + ": достигнут предел сессий " + MAX_SESSIONS);
+        return false;
+    }
+
+    // Необязательный третий аргумент команды – смещение в пакетах
+    private long parseOffset(String[] parts) {
+        if(parts.length < 3) return 0;
+        try {
+            return Math.max(0, Long.parseLong(parts[2]));
+        } catch(NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Необязательная пара "TOTAL n" загрузки: полное число пакетов; -1 – не задано
+    private long requestedTotal(String[] parts) {
+        for(int i = 2; i + 1 < parts.length; i++) {
+            if(parts[i].equalsIgnoreCase("TOTAL")) {
+                try {
+                    return Long.parseLong(parts[i + 1]);
+                } catch(NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private boolean isDurable(String[] parts) {
+        for(int i = 2; i < parts.length; i++) {
+            if(parts[i].equalsIgnoreCase("DURABLE")) return true;
+        }
+        return false;
+    }
+
+    private boolean isEarly(String[] parts) {
+        for(int i = 2; i < parts.length; i++) {
+            if(parts[i].equalsIgnoreCase("EARLY")) return true;
+        }
+        return false;
+    }
+
+    // Подтверждение раннего старта: без него клиент повторит первое окно на порт передачи
+    private String earlyReply(String[] parts) {
+        return isEarly(parts) ? " EARLY" : "";
+    }
+
+    // Необязательная пара "ACK n": получатель подтверждает каждый n-й пакет (см. AckPolicy); 0 – не задана
+    private int requestedAckEvery(String[] parts) {
+        for(int i = 2; i + 1 < parts.length; i++) {
+            if(parts[i].equalsIgnoreCase("ACK")) {
+                try {
+                    return Integer.parseInt(parts[i + 1]);
+                } catch(NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    // Политика ACK сервера как получателя; без согласования – ACK на каждый пакет
+    private AckPolicy ackPolicy(String[] parts) {
+        int requested = requestedAckEvery(parts);
+        return new AckPolicy(requested > 0 ? AckPolicy.negotiate(requested) : 1, ACK_DELAY_MS);
+    }
+
+    // Принятое значение возвращается клиенту в ответе на команду передачи
+    private String ackReply(String[] parts) {
+        int requested = requestedAckEvery(parts);
+        return requested > 0 ? " ACK " + AckPolicy.negotiate(requested) : "";
+    }
+
+    private static int port(SocketAddress address) {
+        return address instanceof InetSocketAddress inet ? inet.getPort() : 0;
+    }
+
     // Отправка управляющего сообщения клиенту
     private void sendCommand(String cmd, SocketAddress clientAddr) throws IOException {
         ByteBuffer buf = ByteBuffer.wrap(cmd.getBytes());
+        metrics.onPacketSent(buf.remaining());
         channel.send(buf, clientAddr);
     }
 
-    // Обработка data-пакета при UPLOAD
-    private void processFileDataPacket(SocketAddress clientAddr, int seqNum, int totalPackets, byte[] data) throws IOException {
-        UploadSession session = null;
-        for(UploadSession s : uploadSessions.values()){
-            if(s.client.equals(clientAddr)) {
-                session = s;
-                break;
-            }
+    // Обработка data-пакета при UPLOAD; номера в заголовке – младшие 32 бита (см. SeqNum)
+    private void processFileDataPacket(UploadSession session, int wireSeq, int wireTotal, ByteBuffer data) throws IOException {
+        long seqNum = SeqNum.unwrap(session.expectedSeq, wireSeq);
+        int length = data.remaining();
+        session.lastActivity = System.nanoTime();
+        session.metrics.onReceive(HEADER_SIZE + length, seqNum < session.expectedSeq);
+        EventLog.debug(EventType.DATA_RECEIVED, EventLog.SERVER, session.metrics.getId(), seqNum, length);
+        // Запись на диск идёт в отдельном потоке: здесь данные только кладутся в кольцо.
+        // Если кольцо заполнено, пакет отбрасывается без ACK – отправитель повторит его по таймауту.
+        if(session.totalPackets == Long.MAX_VALUE && seqNum == session.expectedSeq) {
+            // Команда без TOTAL: число пакетов – из заголовка первого пакета, не меньше seq+1
+            session.expectTotal(SeqNum.unwrapAtLeast(seqNum + 1, wireTotal));
+        }
+        boolean accepted = seqNum == session.expectedSeq && session.expectedSeq < session.totalPackets;
+        if(accepted && !session.writer.offer(seqNum * DATA_SIZE, data)) {
+            accepted = false;
+            EventLog.debug(EventType.WRITE_BACKPRESSURE, EventLog.SERVER, session.metrics.getId(), seqNum, 0);
         }
-        if(session == null) return;
-        if(seqNum == session.expectedSeq) {
-            session.fc.write(ByteBuffer.wrap(data));
+        if(accepted) {
             session.expectedSeq++;
-            // Если все пакеты получены – закрываем сессию
-            if(session.expectedSeq >= totalPackets) {
-                session.fc.close();
-                String key = clientAddr.toString() + "_" + session.filename;
-                uploadSessions.remove(key);
-                System.out.println("Загрузка файла " + session.filename + " завершена от " + clientAddr);
+            session.metrics.onDelivered(length);
+        }
+        // ACK с последним корректно полученным (или сброшенным на диск) номером: по политике сессии
+        // пакеты по порядку подтверждаются через один или с задержкой, повтор, разрыв и последний пакет – сразу
+        boolean ackNow = accepted
+                ? session.ackPolicy.onInOrder(System.nanoTime()) || session.expectedSeq >= session.totalPackets
+                : session.ackPolicy.onOutOfOrder();
+        if(ackNow) {
+            sendUploadAck(session);
+        }
+        // Если все пакеты получены – поток записи допишет остаток и закроет файл;
+        // канал передачи закрывается после последнего ACK
+        if(accepted && session.expectedSeq >= session.totalPackets) {
+            session.writer.finish();
+            if(!session.durableAck) {
+                completeUpload(session);
+            }
+        }
+    }
+
+    // ACK в режиме DURABLE отправляются по мере сброса данных на диск.
+    // Загрузка, клиент которой пропал, закрывается: принятое остаётся в файле для дозагрузки
+    private void updateUploadSessions() throws IOException {
+        long now = System.nanoTime();
+        Iterator<UploadSession> it = uploadSessions.values().iterator();
+        while(it.hasNext()){
+            UploadSession session = it.next();
+            if(session.expectedSeq < session.totalPackets && now - session.lastActivity > IDLE_TIMEOUT_NS) {
+                it.remove();
+                session.close();
+                metrics.onSessionExpired();
+                System.out.println("Загрузка файла " + session.filename + " от " + session.client
+                        + " прервана: нет пакетов " + (now - session.lastActivity) / 1_000_000 + " мс");
+                continue;
+            }
+            IOException failure = session.writer.getFailure();
+            if(failure != null) {
+                it.remove();
+                session.close();
+                sendCommand("CMD:ERROR Write failed: " + failure.getMessage(), session.client);
+                System.out.println("Ошибка записи файла " + session.filename + ": " + failure.getMessage());
+                continue;
+            }
+            if(session.ackPolicy.isDue(System.nanoTime())) {
+                sendUploadAck(session); // отложенный ACK
+            }
+            if(!session.durableAck) continue;
+            if(session.ackSeq() > session.lastAck) {
+                sendUploadAck(session);
+            }
+            if(session.writer.isClosed()) {
+                it.remove();
+                logUploadComplete(session);
             }
         }
-        // Отправляем ACK с последним корректно полученным номером
-        sendAck(session.client, session.expectedSeq - 1);
     }
 
-    // Отправка ACK-пакета
-    private void sendAck(SocketAddress clientAddr, int ackNum) throws IOException {
-        ByteBuffer ackBuf = ByteBuffer.allocate(HEADER_SIZE);
-        ackBuf.put((byte)1); // тип ACK
-        ackBuf.putInt(ackNum);
-        ackBuf.putInt(0);
-        ackBuf.flip();
-        channel.send(ackBuf, clientAddr);
+    private void sendUploadAck(UploadSession session) throws IOException {
+        session.lastAck = session.ackSeq();
+        sendAck(session.transfer, session.lastAck);
+        session.ackPolicy.acked();
+        session.metrics.onSend(HEADER_SIZE, false);
+        EventLog.debug(EventType.ACK_SENT, EventLog.SERVER, session.metrics.getId(), session.lastAck, 0);
     }
 
-    // Обработка полученного ACK-пакета (при DOWNLOAD)
-    private void processAckPacket(SocketAddress clientAddr, int ackNum) {
-        for(DownloadSession session : downloadSessions.values()){
-            if(session.client.equals(clientAddr)) {
-                session.handleAck(ackNum);
-                break;
+    // Ожидание событий не дольше SELECT_TIMEOUT_MS и до ближайшего срока: отложенного ACK или очередного
+    // пакета по расписанию пейсера. Паузы от миллисекунды – select с таймаутом (его точность – миллисекунда),
+    // короче – парковка потока на остаток и неблокирующий опрос селектора: пакет уходит вовремя,
+    // а пришедшие за это время датаграммы ждут в буфере сокета меньше миллисекунды
+    private void awaitEvents() throws IOException {
+        long now = System.nanoTime();
+        long timeout = SELECT_TIMEOUT_MS * 1_000_000L;
+        for(UploadSession session : uploadSessions.values()) {
+            long due = session.ackPolicy.millisUntilDue(now);
+            if(due > 0) timeout = Math.min(timeout, due * 1_000_000L);
+        }
+        for(DownloadSession session : downloadSessions.values()) {
+            long due = session.pacer.delayNanos(now);
+            if(due > 0) timeout = Math.min(timeout, due);
+        }
+        if(timeout >= 1_000_000L) {
+            selector.select(timeout / 1_000_000L);
+            return;
+        }
+        LockSupport.parkNanos(timeout);
+        selector.selectNow();
+    }
+
+    private void completeUpload(UploadSession session) {
+        String key = session.client.toString() + "_" + session.filename;
+        uploadSessions.remove(key);
+        logUploadComplete(session);
+    }
+
+    private void logUploadComplete(UploadSession session) {
+        session.close();
+        if(session.fc instanceof BatchReceiver batch) {
+            System.out.println("Пакет " + session.filename + " получен от " + session.client + ": файлов " + batch.getFileCount());
+        } else if(session.fc instanceof DedupReceiver) {
+            System.out.println("Загрузка файла " + session.filename + " в хранилище завершена от " + session.client);
+        } else {
+            System.out.println("Загрузка файла " + session.filename + " завершена от " + session.client);
+            // Файл переносится в хранилище, когда поток записи его закроет
+            if(store != null) {
+                store.ingest(session.filename, session.writer);
             }
         }
     }
 
+    // Отправка ACK-пакета в канал передачи
+    void sendAck(DatagramChannel transfer, long ackNum) throws IOException {
+        outbound.wrap(ackBuffer.clear()).encodeAck(ackNum);
+        try {
+            transfer.write(ackBuffer);
+        } catch(PortUnreachableException e) {
+            // клиент недоступен – ACK потерян, как и при отправке на несоединённый сокет
+        }
+    }
+
     // Разбиение файла на пакеты (начиная с указанного offset)
-    private byte[][] createPackets(File file, int offset) throws IOException {
-        long fileSize = file.length();
-        long remainingBytes = fileSize - (long)offset * DATA_SIZE;
-        int numPackets = (int)Math.ceil(remainingBytes / (double)DATA_SIZE);
-        byte[][] packets = new byte[numPackets][];
-        RandomAccessFile raf = new RandomAccessFile(file, "r");
-        raf.seek((long) offset * DATA_SIZE);
+    byte[][] createPackets(File file, long offset) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return createPackets(raf.getChannel(), offset);
+        }
+    }
+
+    // Разбиение произвольного источника (файл или поток пакетной передачи) на пакеты.
+    // Пакеты хранятся в массиве, поэтому источник больше Integer.MAX_VALUE пакетов отвергается
+    byte[][] createPackets(SeekableByteChannel source, long offset) throws IOException {
+        long remainingBytes = Math.max(0, source.size() - offset * DATA_SIZE);
+        long numPackets = (remainingBytes + DATA_SIZE - 1) / DATA_SIZE;
+        if(numPackets > Integer.MAX_VALUE) {
+            throw new IOException("Файл слишком велик для раздачи: " + numPackets + " пакетов");
+        }
+        byte[][] packets = new byte[(int) numPackets][];
+        source.position(offset * DATA_SIZE);
+        // Пакет собирается в общем буфере и копируется в массив нужной длины один раз
+        ByteBuffer packetBuf = ByteBuffer.allocate(PACKET_SIZE);
+        TransferPacket packet = new TransferPacket();
         for (int i = 0; i < numPackets; i++) {
-            ByteBuffer dataBuf = ByteBuffer.allocate(DATA_SIZE);
-            int bytesRead = raf.getChannel().read(dataBuf);
+            packet.wrap(packetBuf.clear()).encodeData(offset + i, offset + numPackets);
+            int bytesRead = source.read(packetBuf);
             if(bytesRead <= 0) break;
-            dataBuf.flip();
-            byte[] data = new byte[bytesRead];
-            dataBuf.get(data);
-            ByteBuffer packetBuf = ByteBuffer.allocate(HEADER_SIZE + bytesRead);
-            packetBuf.put((byte)0); // data-пакет
-            packetBuf.putInt(i + offset);
-            packetBuf.putInt(numPackets + offset);
-            packetBuf.put(data);
             packetBuf.flip();
-            byte[] packetData = new byte[packetBuf.remaining()];
-            packetBuf.get(packetData);
-            packets[i] = packetData;
+            packets[i] = new byte[packetBuf.remaining()];
+            packetBuf.get(packets[i]);
         }
-        raf.close();
         return packets;
     }
 
+    // Повторный UPLOAD того же файла заменяет прежнюю сессию. Обе пишут в один файл, поэтому поток записи
+    // новой сессии начинает писать только после того, как прежний допишет своё и закроет файл (DiskWriter.after);
+    // сетевой цикл при этом не ждёт. early – данные с адреса клиента на управляющем канале относятся к этой сессии
+    private void startUpload(String key, UploadSession session, boolean early) {
+        if(early) {
+            earlyUploads.put(session.client, session);
+        }
+        UploadSession previous = uploadSessions.put(key, session);
+        if(previous != null) {
+            previous.close();
+            session.writer.after(previous.writer);
+        }
+    }
+
+    // Повторный запрос того же файла заменяет прежнюю сессию
+    private void startDownload(String key, DownloadSession session) {
+        DownloadSession previous = downloadSessions.put(key, session);
+        if(previous != null) {
+            previous.close();
+        }
+    }
+
     // Безопасное удаление завершённых сессий скачивания.
     private void updateDownloadSessions() throws IOException {
         Iterator<Map.Entry<String, DownloadSession>> it = downloadSessions.entrySet().iterator();
         while(it.hasNext()){
             Map.Entry<String, DownloadSession> entry = it.next();
             DownloadSession session = entry.getValue();
-            session.retransmitIfNeeded();
+            if(session.isExpired(System.nanoTime())) {
+                System.out.println("Клиент " + session.client + " не отвечает, скачивание " + session.filename + " прервано");
+                metrics.onSessionExpired();
+                session.close();
+                it.remove();
+                continue;
+            }
+            try {
+                session.retransmitIfNeeded();
+            } catch(PortUnreachableException e) {
+                // порт клиента закрыт (ICMP на соединённый канал) – ждать ACK больше некому
+                System.out.println("Клиент " + session.client + " недоступен, скачивание " + session.filename + " прервано");
+                session.close();
+                it.remove();
+                continue;
+            }
+            if(session.isFinished()){
+                it.remove();
+            }
+        }
+    }
+
+    // Раздача идёт в группу; каждому файлу – свой порт, чтобы получатели не смешивали пакеты разных файлов
+    private DistributionChannel createDistributionChannel() {
+        if(MULTICAST_FANOUT) {
+            return new FanOutChannel(channel);
+        }
+        int port = MULTICAST_PORT + (multicastPortOffset++ % 100);
+        return new MulticastGroupChannel(channel, new InetSocketAddress(MULTICAST_GROUP, port));
+    }
+
+    private void updateMulticastSessions() throws IOException {
+        Iterator<MulticastSession> it = multicastSessions.values().iterator();
+        while(it.hasNext()){
+            MulticastSession session = it.next();
+            session.tick();
             if(session.isFinished()){
                 it.remove();
             }
@@ -267,63 +730,220 @@ public class Server {
     class UploadSession {
         SocketAddress client;
         String filename;
-        int expectedSeq;
-        FileChannel fc;
-        public UploadSession(SocketAddress client, String filename, int expectedSeq, FileChannel fc) {
+        long startSeq;
+        long expectedSeq;
+        long totalPackets = Long.MAX_VALUE; // из команды (TOTAL) или первого data-пакета
+        long lastAck = -1;
+        WritableByteChannel fc; // файл или приёмник пакетной передачи
+        DiskWriter writer;
+        boolean durableAck;
+        AckPolicy ackPolicy;
+        SessionMetrics metrics;
+        DatagramChannel transfer;
+        long lastActivity = System.nanoTime(); // последний пакет от клиента
+        public UploadSession(SocketAddress client, String filename, long expectedSeq, WritableByteChannel fc, boolean durableAck,
+                             AckPolicy ackPolicy) throws IOException {
             this.client = client;
             this.filename = filename;
+            this.startSeq = expectedSeq;
             this.expectedSeq = expectedSeq;
             this.fc = fc;
+            this.durableAck = durableAck;
+            this.ackPolicy = ackPolicy;
+            // Для DURABLE-передач force выполняется после каждой склеенной записи (групповая фиксация)
+            this.writer = DiskWriter.start(filename, fc, DATA_SIZE,
+                    durableAck ? DiskWriter.Durability.ALWAYS : DiskWriter.DEFAULT_DURABILITY, selector::wakeup);
+            this.metrics = Server.this.metrics.openSession(fc instanceof BatchReceiver ? "BATCH_UPLOAD"
+                    : fc instanceof DedupReceiver ? "DEDUP_UPLOAD" : "UPLOAD", client, filename);
+            this.writer.setMetrics(metrics);
+            // Индекс обновляется, когда файл дописан, обрезан и закрыт; обход каталога пакета – в потоке записи
+            this.writer.onClosed(() -> index.refresh(filename));
+            this.transfer = openTransfer(client);
+            this.transfer.register(selector, SelectionKey.OP_READ, this);
+        }
+        // Размер известен заранее: файл расширяется сразу, крупные загрузки принимаются через отображение в память
+        void expectTotal(long total) {
+            if(total <= startSeq) return;
+            totalPackets = total;
+            metrics.setBytesExpected((total - startSeq) * DATA_SIZE);
+            writer.expectPackets(new File(SERVER_DIR, filename), total, DATA_SIZE, startSeq * DATA_SIZE);
+        }
+        // Последний номер, который можно подтвердить
+        long ackSeq() {
+            if(durableAck) {
+                return startSeq + writer.getDurableCount() - 1;
+            }
+            return expectedSeq - 1;
+        }
+        // Поток записи допишет уже принятое и закроет файл – и у завершённой, и у прерванной
+        // или заменённой загрузки
+        void close() {
+            earlyUploads.remove(client, this);
+            writer.finish();
+            metrics.close();
+            try {
+                transfer.close();
+            } catch(IOException e) {
+                System.out.println("Ошибка закрытия канала передачи " + filename + ": " + e.getMessage());
+            }
         }
     }
 
-    // Сессия для DOWNLOAD с реализацией скользящего окна
+    // Сессия для DOWNLOAD с реализацией скользящего окна.
+    // Пакеты собираются из данных упреждающего чтения в момент отправки (и повторной отправки).
     class DownloadSession {
         SocketAddress client;
         String filename;
-        byte[][] packets;
-        int startSeq; // начальный номер пакета (offset)
-        int base;     // нижняя граница окна (неподтверждённый номер)
-        Map<Integer, Long> sendTimes = new HashMap<>();
+        SeekableByteChannel source;
+        ReadAhead data;
+        long startSeq;     // начальный номер пакета (offset)
+        long totalPackets; // последний seq+1
+        long base;         // нижняя граница окна (неподтверждённый номер)
+        int window = WINDOW_SIZE;
+        final Pacer pacer = new Pacer(PACING, PACING_RATE_MBIT, WINDOW_SIZE * PACKET_SIZE);
+        Map<Long, Long> sendTimes = new HashMap<>(); // System.nanoTime() последней отправки пакетов окна
+        SessionMetrics metrics;
+        DatagramChannel transfer;
+        private final long length;                        // байт к передаче начиная с startSeq
+        private final Set<Long> retransmitted = new HashSet<>(); // пакеты окна, по которым RTT не измеряется
+        private WindowStallEvent stall;                     // текущий простой отправителя (только при записи JFR)
+        private final ByteBuffer packetBuf = ByteBuffer.allocate(PACKET_SIZE);
+        private final TransferPacket packet = new TransferPacket();
+        private long lastActivity = System.nanoTime(); // последний ACK от клиента
+        private int timeouts;                          // повторы окна подряд без продвижения base
         private boolean finished = false;
-        public DownloadSession(SocketAddress client, String filename, byte[][] packets, int startSeq) {
+        public DownloadSession(SocketAddress client, String filename, SeekableByteChannel source, long startSeq) throws IOException {
             this.client = client;
             this.filename = filename;
-            this.packets = packets;
+            this.source = source;
             this.startSeq = startSeq;
             this.base = startSeq;
+            long from = startSeq * DATA_SIZE;
+            long remaining = Math.max(0, source.size() - from);
+            this.length = remaining;
+            this.totalPackets = startSeq + (remaining + DATA_SIZE - 1) / DATA_SIZE;
+            this.data = new ReadAhead(source, from, remaining, selector::wakeup);
+            this.metrics = Server.this.metrics.openSession(source instanceof BatchStream ? "BATCH_DOWNLOAD" : "DOWNLOAD", client, filename);
+            this.metrics.setBytesExpected(remaining);
+            this.transfer = openTransfer(client);
+            this.transfer.register(selector, SelectionKey.OP_READ, this);
         }
-        // При получении ACK сдвигаем окно
-        public void handleAck(int ackNum) {
+        // При получении ACK сдвигаем окно; номер восстанавливается относительно base (см. SeqNum)
+        public void handleAck(int wireAck) {
+            long ackNum = SeqNum.unwrap(base, wireAck);
+            metrics.onReceive(HEADER_SIZE, false);
+            EventLog.debug(EventType.ACK_RECEIVED, EventLog.SERVER, metrics.getId(), ackNum, 0);
+            lastActivity = System.nanoTime();
             if(ackNum >= base) {
-                base = ackNum + 1;
-                Iterator<Integer> it = sendTimes.keySet().iterator();
-                while(it.hasNext()){
-                    int seq = it.next();
-                    if(seq <= ackNum) it.remove();
+                timeouts = 0;
+                Long sentAt = sendTimes.get(ackNum);
+                if(sentAt != null && !retransmitted.contains(ackNum)) {
+                    long rtt = System.nanoTime() - sentAt;
+                    metrics.onRtt(rtt);
+                    pacer.onRtt(rtt);
                 }
+                metrics.onDelivered(Math.min((ackNum + 1 - startSeq) * DATA_SIZE, length) - metrics.getBytesDelivered());
+                endStall(false);
+                base = ackNum + 1;
+                sendTimes.keySet().removeIf(seq -> seq <= ackNum);
+                retransmitted.removeIf(seq -> seq <= ackNum);
+                // Подтверждённые данные больше не понадобятся – освобождаем буферы упреждения
+                data.advance(base * DATA_SIZE);
+            } else {
+                metrics.onDuplicateAck();
             }
         }
-        // Отправка пакетов в пределах окна и повторная отправка при таймауте
+        // Отправка пакетов в пределах окна и повторная отправка при таймауте. Пакеты уходят по расписанию
+        // пейсера: если очередной пакет ещё рано отправлять, цикл сервера вернётся к нему к сроку
         public void retransmitIfNeeded() throws IOException {
-            int windowEnd = Math.min(startSeq + packets.length, base + WINDOW_SIZE);
-            for(int seq = base; seq < windowEnd; seq++){
-                if(!sendTimes.containsKey(seq) || (System.currentTimeMillis() - sendTimes.get(seq) > TIMEOUT_MS)) {
-                    int index = seq - startSeq;
-                    if(index >= 0 && index < packets.length) {
-                        ByteBuffer buf = ByteBuffer.wrap(packets[index]);
-                        channel.send(buf, client);
-                        sendTimes.put(seq, System.currentTimeMillis());
+            metrics.setWindow(window);
+            long windowEnd = Math.min(totalPackets, base + window);
+            int burst = 0;
+            long burstFirst = -1;
+            boolean readAheadMiss = false;
+            for(long seq = base; seq < windowEnd; seq++){
+                Long sentAt = sendTimes.get(seq);
+                if(sentAt == null || (System.nanoTime() - sentAt > TIMEOUT_NS)) {
+                    long now = System.nanoTime();
+                    if(pacer.delayNanos(now) > 0) break;
+                    packet.wrap(packetBuf.clear()).encodeData(seq, totalPackets);
+                    if(data.read(seq * DATA_SIZE, packetBuf) < 0) {
+                        // данные ещё читаются с диска – селектор разбудит после загрузки блока
+                        readAheadMiss = true;
+                        startStall("read-ahead");
+                        break;
+                    }
+                    packetBuf.flip();
+                    int packetLength = packetBuf.remaining();
+                    transfer.write(packetBuf);
+                    pacer.onSend(packetLength, now);
+                    sendTimes.put(seq, System.nanoTime());
+                    endStall(sentAt != null);
+                    if(sentAt != null) {
+                        retransmitted.add(seq);
+                        if(burst++ == 0) burstFirst = seq;
+                        if(seq == base) timeouts++;
                     }
+                    metrics.onSend(packetLength, sentAt != null);
+                    EventLog.debug(sentAt != null ? EventType.RETRANSMIT : EventType.DATA_SENT, EventLog.SERVER,
+                            metrics.getId(), seq, packetLength - HEADER_SIZE);
                 }
             }
-            if(base >= startSeq + packets.length && !finished) {
+            if(burst > 0) {
+                RetransmitBurstEvent event = new RetransmitBurstEvent();
+                if(event.shouldCommit()) {
+                    event.server = "server";
+                    event.sessionId = metrics.getId();
+                    event.firstSeq = burstFirst;
+                    event.count = burst;
+                    event.commit();
+                }
+            }
+            // Всё окно отправлено – до ACK отправитель простаивает
+            if(!readAheadMiss && base < totalPackets && sendTimes.size() >= windowEnd - base) {
+                startStall("ack");
+            }
+            if(base >= totalPackets && !finished) {
                 System.out.println("Скачивание файла " + filename + " завершено для " + client);
                 finished = true;
+                close();
             }
         }
         public boolean isFinished() {
             return finished;
         }
+        // Клиент пропал: ни одного ACK за срок простоя или окно повторено MAX_RETRANSMITS раз подряд впустую
+        boolean isExpired(long now) {
+            return !finished && (timeouts > MAX_RETRANSMITS || now - lastActivity > IDLE_TIMEOUT_NS);
+        }
+        private void startStall(String reason) {
+            if(stall != null || !WindowStallEvent.TYPE.isEnabled()) return;
+            stall = new WindowStallEvent();
+            stall.begin();
+            stall.reason = reason;
+        }
+        private void endStall(boolean timedOut) {
+            if(stall == null) return;
+            stall.end();
+            if(stall.shouldCommit()) {
+                stall.server = "server";
+                stall.sessionId = metrics.getId();
+                stall.base = base;
+                stall.window = window;
+                stall.timedOut = timedOut;
+                stall.commit();
+            }
+            stall = null;
+        }
+        void close() {
+            metrics.close();
+            data.close();
+            try {
+                source.close();
+                transfer.close();
+            } catch(IOException e) {
+                System.out.println("Ошибка закрытия " + filename + ": " + e.getMessage());
+            }
+        }
     }
 }
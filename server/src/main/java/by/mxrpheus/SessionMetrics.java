@@ -0,0 +1,225 @@
+package by.mxrpheus;
+
+// Метрики одной передачи (UPLOAD, DOWNLOAD, BATCH_*).
+// Счётчики сессии меняет только её сетевой поток (bytesOnDisk – только поток записи),
+// поэтому достаточно volatile-полей без атомарных операций; сводные счётчики сервера обновляются вместе с ними.
+public class SessionMetrics implements SessionMetricsMXBean {
+    private final TransportMetrics transport;
+    private final long id;
+    private final String kind;
+    private final String peer;
+    private final String file;
+    private final long startNanos = System.nanoTime();
+    private final TransferEvent transfer = new TransferEvent();
+
+    private volatile long packetsSent;
+    private volatile long packetsReceived;
+    private volatile long bytesSent;
+    private volatile long bytesReceived;
+    private volatile long retransmits;
+    private volatile long duplicateAcks;
+    private volatile long srttMicros = -1;
+    private volatile long rttvarMicros;
+    private volatile int window;
+    private volatile long bytesDelivered;
+    private volatile long bytesExpected; // 0 – размер передачи ещё неизвестен
+    private volatile long bytesOnDisk;
+    private volatile long endNanos;
+
+    SessionMetrics(TransportMetrics transport, long id, String kind, String peer, String file) {
+        this.transport = transport;
+        this.id = id;
+        this.kind = kind;
+        this.peer = peer;
+        this.file = file;
+        transfer.begin();
+    }
+
+    // Отправлен пакет сессии; retransmit – повторная отправка по таймауту
+    public void onSend(int bytes, boolean retransmit) {
+        packetsSent++;
+        bytesSent += bytes;
+        transport.onPacketSent(bytes);
+        if (retransmit) {
+            retransmits++;
+            transport.retransmits.increment();
+        }
+    }
+
+    // Получен пакет сессии; duplicate – повторно присланные данные (повтор на стороне отправителя).
+    // Сводные счётчики приёма ведутся у сокета сервера, здесь – только счётчики сессии.
+    public void onReceive(int bytes, boolean duplicate) {
+        packetsReceived++;
+        bytesReceived += bytes;
+        if (duplicate) {
+            retransmits++;
+            transport.retransmits.increment();
+        }
+    }
+
+    // Потоковая передача (TCP): учитываются только байты
+    public void onStreamSent(long bytes) {
+        bytesSent += bytes;
+        transport.bytesSent.add(bytes);
+    }
+
+    public void onStreamReceived(long bytes) {
+        bytesReceived += bytes;
+        transport.bytesReceived.add(bytes);
+    }
+
+    public void onDuplicateAck() {
+        duplicateAcks++;
+        transport.duplicateAcks.increment();
+    }
+
+    // Замер RTT по пакету, отправленному один раз (алгоритм Карна); сглаживание как в RFC 6298
+    public void onRtt(long rttNanos) {
+        long sample = rttNanos / 1000;
+        long srtt = srttMicros;
+        if (srtt < 0) {
+            srttMicros = sample;
+            rttvarMicros = sample / 2;
+        } else {
+            rttvarMicros = (3 * rttvarMicros + Math.abs(srtt - sample)) / 4;
+            srttMicros = (7 * srtt + sample) / 8;
+        }
+        transport.rtt.record(sample);
+    }
+
+    public void setWindow(int window) {
+        this.window = window;
+    }
+
+    // Полезные данные, которые предстоит передать в этой сессии (без уже переданных до возобновления)
+    public void setBytesExpected(long bytes) {
+        bytesExpected = bytes;
+    }
+
+    // Полезные данные, доставленные получателю (подтверждённые или принятые по порядку)
+    public void onDelivered(long bytes) {
+        bytesDelivered += bytes;
+    }
+
+    // Вызывается потоком записи на диск
+    public void onDiskWrite(long bytes) {
+        bytesOnDisk += bytes;
+        transport.bytesOnDisk.add(bytes);
+    }
+
+    // Завершение сессии: длительность и итоговая скорость попадают в гистограммы сервера.
+    // Повторный вызов ничего не делает.
+    public void close() {
+        if (endNanos != 0) return;
+        endNanos = System.nanoTime();
+        transport.closeSession(this);
+        transfer.end();
+        if (transfer.shouldCommit()) {
+            transfer.server = transport.getServer();
+            transfer.sessionId = id;
+            transfer.kind = kind;
+            transfer.peer = peer;
+            transfer.file = file;
+            transfer.bytes = bytesDelivered;
+            transfer.retransmits = retransmits;
+            transfer.duplicateAcks = duplicateAcks;
+            transfer.commit();
+        }
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public String getKind() {
+        return kind;
+    }
+
+    @Override
+    public String getPeer() {
+        return peer;
+    }
+
+    @Override
+    public String getFile() {
+        return file;
+    }
+
+    @Override
+    public long getPacketsSent() {
+        return packetsSent;
+    }
+
+    @Override
+    public long getPacketsReceived() {
+        return packetsReceived;
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    @Override
+    public long getRetransmits() {
+        return retransmits;
+    }
+
+    @Override
+    public long getDuplicateAcks() {
+        return duplicateAcks;
+    }
+
+    @Override
+    public long getSmoothedRttMicros() {
+        return Math.max(srttMicros, 0);
+    }
+
+    @Override
+    public long getRttVarianceMicros() {
+        return rttvarMicros;
+    }
+
+    @Override
+    public int getWindow() {
+        return window;
+    }
+
+    @Override
+    public long getBytesDelivered() {
+        return bytesDelivered;
+    }
+
+    @Override
+    public long getBytesExpected() {
+        return bytesExpected;
+    }
+
+    @Override
+    public long getBytesOnDisk() {
+        return bytesOnDisk;
+    }
+
+    @Override
+    public long getGoodputBytesPerSecond() {
+        long elapsed = getElapsedNanos();
+        return elapsed <= 0 ? 0 : (long) (bytesDelivered * 1e9 / elapsed);
+    }
+
+    @Override
+    public long getAgeMillis() {
+        return getElapsedNanos() / 1_000_000;
+    }
+
+    long getElapsedNanos() {
+        long end = endNanos;
+        return (end != 0 ? end : System.nanoTime()) - startNanos;
+    }
+}
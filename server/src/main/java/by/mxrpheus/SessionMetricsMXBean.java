@@ -0,0 +1,40 @@
+package by.mxrpheus;
+
+// Метрики одной передачи в JMX: by.mxrpheus:type=Session,server=<имя>,id=<номер>
+public interface SessionMetricsMXBean {
+    long getId();
+
+    String getKind();
+
+    String getPeer();
+
+    String getFile();
+
+    long getPacketsSent();
+
+    long getPacketsReceived();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getRetransmits();
+
+    long getDuplicateAcks();
+
+    long getSmoothedRttMicros();
+
+    long getRttVarianceMicros();
+
+    int getWindow();
+
+    long getBytesDelivered();
+
+    long getBytesExpected();
+
+    long getBytesOnDisk();
+
+    long getGoodputBytesPerSecond();
+
+    long getAgeMillis();
+}
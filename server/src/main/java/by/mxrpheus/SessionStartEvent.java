@@ -0,0 +1,30 @@
+package by.mxrpheus;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Открытие сессии передачи – видно на шкале записи ещё до завершения передачи
+@Name("by.mxrpheus.SessionStart")
+@Label("Session Start")
+@Category("Transport")
+@Description("File transfer session opened")
+@StackTrace(false)
+class SessionStartEvent extends jdk.jfr.Event {
+    @Label("Server")
+    String server;
+
+    @Label("Session")
+    long sessionId;
+
+    @Label("Kind")
+    String kind;
+
+    @Label("Peer")
+    String peer;
+
+    @Label("File")
+    String file;
+}
@@ -0,0 +1,68 @@
+package by.mxrpheus;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Ограниченное кольцо "один производитель – один потребитель" с заранее выделенными буферами.
+// Производитель (сетевой поток) копирует данные в свободный слот, потребитель (поток записи) их забирает.
+// Блокировок нет: head двигает только производитель, tail – только потребитель.
+public class SpscRing {
+    private final ByteBuffer[] slots;
+    private final long[] positions;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // следующий слот для записи
+    private final AtomicLong tail = new AtomicLong(); // следующий слот для чтения
+
+    public SpscRing(int capacity, int slotSize) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new ByteBuffer[size];
+        this.positions = new long[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            slots[i] = ByteBuffer.allocate(slotSize);
+        }
+    }
+
+    // false – кольцо заполнено (или данные не помещаются в слот), вызывающий должен отбросить пакет
+    public boolean offer(long position, ByteBuffer data) {
+        long h = head.get();
+        if (h - tail.get() >= slots.length || data.remaining() > slots[0].capacity()) {
+            return false;
+        }
+        int index = (int) (h & mask);
+        ByteBuffer slot = slots[index];
+        slot.clear();
+        slot.put(data);
+        slot.flip();
+        positions[index] = position;
+        head.lazySet(h + 1);
+        return true;
+    }
+
+    // Слот для чтения или null, если кольцо пусто; после обработки вызвать release()
+    public ByteBuffer peek() {
+        long t = tail.get();
+        if (t >= head.get()) return null;
+        return slots[(int) (t & mask)];
+    }
+
+    public long peekPosition() {
+        return positions[(int) (tail.get() & mask)];
+    }
+
+    public void release() {
+        tail.lazySet(tail.get() + 1);
+    }
+
+    public boolean isEmpty() {
+        return tail.get() >= head.get();
+    }
+
+    public int size() {
+        return (int) (head.get() - tail.get());
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+}
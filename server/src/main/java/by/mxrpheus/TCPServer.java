@@ -1,15 +1,18 @@
 package by.mxrpheus;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
@@ -18,13 +21,20 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.function.LongConsumer;
 
 public class TCPServer {
 
     private static final String FILES_DIRECTORY = "server\\files";
+    private static final int BATCH_BUFFER_SIZE = 64 * 1024;
+    private static final long MMAP_THRESHOLD = 8L * 1024 * 1024;
 
     private final Map<String, FileTransferInfo> uploadsInfo = new HashMap<>();
     private final Map<String, FileTransferInfo> downloadsInfo = new HashMap<>();
+    private final TransportMetrics metrics = TransportMetrics.forServer("tcp");
+    private final ByteBuffer fieldBuffer = ByteBuffer.allocate(LongField.SIZE);
+    private FileIndex fileIndex;
+    private ChunkStore chunkStore;
 
     public static void main(String[] args) {
         TCPServer server = new TCPServer();
@@ -32,6 +42,7 @@ public class TCPServer {
     }
 
     public void start() {
+        TransportRecording.startIfConfigured();
         Scanner scanner = new Scanner(System.in);
         System.out.print("Please, enter port: ");
         int port = scanner.nextInt();
@@ -39,6 +50,8 @@ public class TCPServer {
         try (Selector selector = Selector.open();
              ServerSocketChannel serverSocketChannel = ServerSocketChannel.open()) {
 
+            chunkStore = ChunkStore.open(Paths.get(FILES_DIRECTORY), "tcp");
+            fileIndex = FileIndex.open(Paths.get(FILES_DIRECTORY), "tcp", chunkStore);
             serverSocketChannel.bind(new InetSocketAddress(port));
             serverSocketChannel.configureBlocking(false);
             serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
@@ -47,6 +60,7 @@ public class TCPServer {
 
             while (true) {
                 selector.select();
+                long woke = System.nanoTime();
                 Set<SelectionKey> selectedKeys = selector.selectedKeys();
                 Iterator<SelectionKey> iter = selectedKeys.iterator();
 
@@ -63,6 +77,7 @@ public class TCPServer {
 
                     iter.remove();
                 }
+                metrics.onLoopBusy(System.nanoTime() - woke);
             }
 
         } catch (IOException e) {
@@ -94,16 +109,33 @@ public class TCPServer {
 
             buffer.flip();
             String inputLine = new String(buffer.array(), 0, bytesRead).trim();
-            System.out.println("Received: " + inputLine);
+            String command = inputLine.split(" ", 2)[0];
+            EventLog.info(EventType.COMMAND, EventLog.TCP, 0, EventLog.commandCode(command),
+                    clientChannel.socket().getPort());
+            CommandEvent event = new CommandEvent();
+            event.begin();
 
             if (inputLine.startsWith("ECHO")) {
                 handleEchoCommand(inputLine, clientChannel);
             } else if (inputLine.equalsIgnoreCase("TIME")) {
                 handleTimeCommand(clientChannel);
+            } else if (inputLine.startsWith("BATCH_UPLOAD")) {
+                handleBatchUploadCommand(inputLine, clientChannel);
+            } else if (inputLine.startsWith("BATCH_DOWNLOAD")) {
+                handleBatchDownloadCommand(inputLine, clientChannel);
+            } else if (inputLine.startsWith("DEDUP_UPLOAD")) {
+                handleDedupUploadCommand(inputLine, clientChannel);
             } else if (inputLine.startsWith("UPLOAD")) {
                 handleUploadCommand(inputLine, clientChannel);
             } else if (inputLine.startsWith("DOWNLOAD")) {
                 handleDownloadCommand(inputLine, clientChannel);
+            } else if (FileIndex.isIndexCommand(command)) {
+                clientChannel.write(ByteBuffer.wrap(fileIndex.handle(inputLine).getBytes()));
+            } else if (ChunkStore.isStoreCommand(command)) {
+                String response = chunkStore != null ? chunkStore.handle(inputLine) : ChunkStore.disabled(command);
+                clientChannel.write(ByteBuffer.wrap(response.getBytes()));
+            } else if (AdminReport.isAdminCommand(command)) {
+                clientChannel.write(ByteBuffer.wrap(AdminReport.handle(metrics, inputLine).getBytes()));
             } else if (isExitCommand(inputLine)) {
                 clientChannel.write(ByteBuffer.wrap("Connection closed.".getBytes()));
                 System.out.println("Client " + clientChannel.getRemoteAddress() + " disconnected.");
@@ -111,6 +143,14 @@ public class TCPServer {
             } else {
                 clientChannel.write(ByteBuffer.wrap("Unknown command.".getBytes()));
             }
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.server = "tcp";
+                event.command = command;
+                event.peer = String.valueOf(clientChannel.socket().getRemoteSocketAddress());
+                event.commit();
+            }
         } catch (IOException e) {
             try {
                 System.out.println("Client " + clientChannel.getRemoteAddress() + " disconnected unexpectedly: " + e.getMessage());
@@ -125,7 +165,7 @@ public class TCPServer {
         String filename = inputLine.substring(9);
         File file = new File(FILES_DIRECTORY, filename);
 
-        if (!file.exists() || !file.isFile()) {
+        if (fileIndex.lookup(filename) == null) {
             try {
                 clientChannel.write(ByteBuffer.wrap(("File " + filename + " not found!").getBytes()));
             } catch (IOException e) {
@@ -138,53 +178,51 @@ public class TCPServer {
         FileTransferInfo downloadInfo = downloadsInfo.get(clientId);
 
         long startPosition = 0;
-        ByteBuffer positionBuffer = ByteBuffer.allocate(8);
         if (downloadInfo != null && downloadInfo.getFilename().equals(filename)) {
-            positionBuffer.putLong(1L);
-            positionBuffer.flip();
-            while (positionBuffer.hasRemaining()) {
-                clientChannel.write(positionBuffer);
-            }
+            LongField.write(clientChannel, fieldBuffer, 1L);
         } else {
-            positionBuffer.putLong(0L);
-            positionBuffer.flip();
-            while (positionBuffer.hasRemaining()) {
-                clientChannel.write(positionBuffer);
-            }
+            LongField.write(clientChannel, fieldBuffer, 0L);
             downloadsInfo.put(clientId, new FileTransferInfo(filename, 0L));
         }
 
-        ByteBuffer filePosition = ByteBuffer.allocate(8);
-        while (filePosition.hasRemaining()) {
-            clientChannel.read(filePosition);
-        }
-        filePosition.flip();
-        startPosition = filePosition.getLong();
-
-        try (FileInputStream fileInputStream = new FileInputStream(file)) {
-            fileInputStream.skip(startPosition);
-            ByteBuffer sizeBuffer = ByteBuffer.allocate(8);
-            sizeBuffer.putLong(file.length());
-            sizeBuffer.flip();
-            while (sizeBuffer.hasRemaining()) {
-                clientChannel.write(sizeBuffer);
-            }
+        startPosition = LongField.read(clientChannel, fieldBuffer);
 
-            ByteBuffer buffer = ByteBuffer.allocate(4096);
-            int bytesRead;
-            while ((bytesRead = fileInputStream.read(buffer.array())) != -1) {
-                buffer.clear();
-                buffer.limit(bytesRead);
-                while (buffer.hasRemaining()) {
-                    clientChannel.write(buffer);
-                }
-                downloadsInfo.get(clientId).setBytesTransferred(downloadsInfo.get(clientId).getBytesTransferred() + bytesRead);
-            }
+        SessionMetrics session = metrics.openSession("DOWNLOAD", clientChannel.getRemoteAddress(), filename);
+        try (SeekableByteChannel fileChannel = fileIndex.openSource(filename)) {
+            LongField.write(clientChannel, fieldBuffer, fileChannel.size());
+
+            FileTransferInfo info = downloadsInfo.get(clientId);
+            sendReadAhead(fileChannel, startPosition, clientChannel, session,
+                    sent -> info.setBytesTransferred(info.getBytesTransferred() + sent));
 
             System.out.println("File sent: " + file.getAbsolutePath());
             downloadsInfo.remove(clientId);
         } catch (IOException e) {
             System.out.println("Error sending file: " + e.getMessage());
+        } finally {
+            session.close();
+        }
+    }
+
+    private void sendReadAhead(SeekableByteChannel source, long start, SocketChannel clientChannel,
+                               SessionMetrics session, LongConsumer progress) throws IOException {
+        long length = Math.max(0, source.size() - start);
+        session.setBytesExpected(length);
+        try (ReadAhead data = new ReadAhead(source, start, length, () -> { })) {
+            long position = start;
+            long end = start + length;
+            while (position < end) {
+                ByteBuffer chunk = data.slice(position, BATCH_BUFFER_SIZE);
+                int sent = chunk.remaining();
+                while (chunk.hasRemaining()) {
+                    clientChannel.write(chunk);
+                }
+                position += sent;
+                data.advance(position);
+                session.onStreamSent(sent);
+                session.onDelivered(sent);
+                progress.accept(sent);
+            }
         }
     }
 
@@ -198,41 +236,216 @@ public class TCPServer {
 
         long filePosition = 0;
         if (uploadInfo != null && uploadInfo.getFilename().equals(filename)) {
-            filePosition = file.length();
+            filePosition = MappedFile.resumeOffset(file);
         } else {
             uploadsInfo.put(clientId, new FileTransferInfo(filename, 0L));
         }
 
-        ByteBuffer positionBuffer = ByteBuffer.allocate(8);
-        positionBuffer.putLong(filePosition);
-        positionBuffer.flip();
-        while (positionBuffer.hasRemaining()) {
-            clientChannel.write(positionBuffer);
+        LongField.write(clientChannel, fieldBuffer, filePosition);
+
+        SessionMetrics session = metrics.openSession("UPLOAD", clientChannel.getRemoteAddress(), filename);
+        boolean complete = false;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            FileChannel fileChannel = randomAccessFile.getChannel();
+            long fileSize = LongField.read(clientChannel, fieldBuffer);
+            session.setBytesExpected(fileSize - filePosition);
+
+            MappedFile.recordResume(file, filePosition);
+            MappedFile.preallocate(fileChannel, fileSize);
+            MappedFile mappedFile = fileSize - filePosition >= MMAP_THRESHOLD ? new MappedFile(fileChannel, fileSize) : null;
+
+            ByteBuffer buffer = ByteBuffer.allocate(BATCH_BUFFER_SIZE);
+            long totalBytesRead = filePosition;
+            try {
+                while (totalBytesRead < fileSize) {
+                    int chunk = (int) Math.min(BATCH_BUFFER_SIZE, fileSize - totalBytesRead);
+                    int bytesRead;
+                    if (mappedFile != null) {
+                        bytesRead = mappedFile.read(clientChannel, totalBytesRead, chunk);
+                    } else {
+                        buffer.clear().limit(chunk);
+                        bytesRead = clientChannel.read(buffer);
+                        buffer.flip();
+                        long writePosition = totalBytesRead;
+                        while (buffer.hasRemaining()) {
+                            writePosition += fileChannel.write(buffer, writePosition);
+                        }
+                    }
+                    if (bytesRead == -1) {
+                        break;
+                    }
+                    totalBytesRead += bytesRead;
+                    session.onStreamReceived(bytesRead);
+                    session.onDelivered(bytesRead);
+                    session.onDiskWrite(bytesRead);
+                }
+            } finally {
+                // Прерванная загрузка в отображённый файл сохраняет длину: отображение может быть ещё живо,
+                // поэтому точка дозагрузки остаётся в отметке рядом с файлом (см. MappedFile)
+                if (mappedFile != null && totalBytesRead < fileSize) {
+                    MappedFile.recordResume(file, totalBytesRead);
+                } else {
+                    if (mappedFile == null) {
+                        fileChannel.truncate(totalBytesRead);
+                    }
+                    MappedFile.clearResume(file);
+                }
+            }
+
+            complete = totalBytesRead == fileSize;
+            System.out.println("File uploaded: " + file.getAbsolutePath());
+            uploadsInfo.remove(clientId);
+        } catch (IOException e) {
+            System.out.println("Client interaction error: " + e.getMessage());
+        } finally {
+            session.close();
+            fileIndex.refresh(filename);
+            if (complete && chunkStore != null) {
+                chunkStore.ingest(filename, null);
+            }
         }
+    }
 
-        try (FileOutputStream fileOutputStream = new FileOutputStream(file, true)) {
-            ByteBuffer sizeBuffer = ByteBuffer.allocate(8);
-            while (sizeBuffer.hasRemaining()) {
-                clientChannel.read(sizeBuffer);
+    private void handleDedupUploadCommand(String inputLine, SocketChannel clientChannel) throws IOException {
+        String filename = fileName(argument(inputLine));
+        DedupReceiver receiver;
+        try {
+            if (filename == null) {
+                throw new IOException("DEDUP_UPLOAD without file name");
+            }
+            if (chunkStore == null) {
+                throw new IOException(ChunkStore.disabled("DEDUP_UPLOAD"));
             }
-            sizeBuffer.flip();
-            long fileSize = sizeBuffer.getLong();
+            receiver = chunkStore.receiver(filename);
+        } catch (IOException e) {
+            LongField.write(clientChannel, fieldBuffer, -1L);
+            System.out.println("Dedup upload rejected: " + e.getMessage());
+            return;
+        }
 
-            ByteBuffer buffer = ByteBuffer.allocate(4096);
-            long totalBytesRead = filePosition;
-            int bytesRead;
+        LongField.write(clientChannel, fieldBuffer, 0L);
 
-            while (totalBytesRead < fileSize && (bytesRead = clientChannel.read(buffer)) != -1) {
+        SessionMetrics session = metrics.openSession("DEDUP_UPLOAD", clientChannel.getRemoteAddress(), filename);
+        try (receiver) {
+            long streamSize = LongField.read(clientChannel, fieldBuffer);
+            session.setBytesExpected(streamSize);
+
+            ByteBuffer buffer = ByteBuffer.allocate(BATCH_BUFFER_SIZE);
+            long totalBytesRead = 0;
+            while (totalBytesRead < streamSize) {
+                buffer.clear().limit((int) Math.min(BATCH_BUFFER_SIZE, streamSize - totalBytesRead));
+                int bytesRead = clientChannel.read(buffer);
+                if (bytesRead == -1) {
+                    break;
+                }
+                buffer.flip();
+                long stored = receiver.getStored();
+                receiver.write(buffer);
+                totalBytesRead += bytesRead;
+                session.onStreamReceived(bytesRead);
+                session.onDelivered(bytesRead);
+                // на диск попадают только новые фрагменты, а не список и не повторы уже сохранённых
+                session.onDiskWrite(receiver.getStored() - stored);
+            }
+
+            if (receiver.isComplete()) {
+                System.out.println("File stored: " + filename + " (" + receiver.getReceived() + " new bytes)");
+            } else {
+                System.out.println("Dedup upload incomplete: " + filename);
+            }
+        } catch (IOException e) {
+            System.out.println("Client interaction error: " + e.getMessage());
+            clientChannel.close();
+        } finally {
+            session.close();
+        }
+    }
+
+    private void handleBatchUploadCommand(String inputLine, SocketChannel clientChannel) throws IOException {
+        String spec = argument(inputLine);
+        String batchName = spec == null ? null : BatchStream.batchName(spec);
+        if (batchName == null || batchName.equals(".") || batchName.equals("..")) {
+            LongField.write(clientChannel, fieldBuffer, -1L);
+            System.out.println("Batch upload rejected: " + inputLine);
+            return;
+        }
+        File directory = new File(FILES_DIRECTORY, batchName);
+        long position = BatchReceiver.resumeOffset(directory);
+
+        LongField.write(clientChannel, fieldBuffer, position);
+
+        SessionMetrics session = metrics.openSession("BATCH_UPLOAD", clientChannel.getRemoteAddress(), batchName);
+        try (BatchReceiver receiver = new BatchReceiver(directory, position)) {
+            long streamSize = LongField.read(clientChannel, fieldBuffer);
+            receiver.expectLength(streamSize);
+            session.setBytesExpected(streamSize - position);
+
+            ByteBuffer buffer = ByteBuffer.allocate(BATCH_BUFFER_SIZE);
+            long totalBytesRead = position;
+            int bytesRead;
+            while (totalBytesRead < streamSize && (bytesRead = clientChannel.read(buffer)) != -1) {
                 buffer.flip();
-                fileOutputStream.getChannel().write(buffer);
+                receiver.write(buffer);
                 totalBytesRead += bytesRead;
+                session.onStreamReceived(bytesRead);
+                session.onDelivered(bytesRead);
+                session.onDiskWrite(bytesRead);
                 buffer.clear();
             }
 
-            System.out.println("File uploaded: " + file.getAbsolutePath());
-            uploadsInfo.remove(clientId);
+            System.out.println("Batch uploaded: " + directory.getAbsolutePath() + " (" + receiver.getFileCount() + " files)");
         } catch (IOException e) {
             System.out.println("Client interaction error: " + e.getMessage());
+        } finally {
+            session.close();
+            fileIndex.refresh(batchName);
+        }
+    }
+
+    private void handleBatchDownloadCommand(String inputLine, SocketChannel clientChannel) throws IOException {
+        String spec = argument(inputLine);
+        if (spec == null) {
+            LongField.write(clientChannel, fieldBuffer, -1L);
+            System.out.println("Batch download rejected: " + inputLine);
+            return;
+        }
+        BatchStream stream;
+        try {
+            stream = BatchStream.open(new File(FILES_DIRECTORY), spec, chunkStore);
+        } catch (IOException e) {
+            LongField.write(clientChannel, fieldBuffer, -1L);
+            System.out.println("Batch not found: " + spec);
+            return;
+        }
+
+        SessionMetrics session = metrics.openSession("BATCH_DOWNLOAD", clientChannel.getRemoteAddress(), stream.getName());
+        try (stream) {
+            LongField.write(clientChannel, fieldBuffer, stream.size());
+
+            sendReadAhead(stream, LongField.read(clientChannel, fieldBuffer), clientChannel, session, sent -> { });
+
+            System.out.println("Batch sent: " + stream.getName() + " (" + stream.getFileCount() + " files)");
+        } catch (IOException e) {
+            System.out.println("Error sending batch: " + e.getMessage());
+        } finally {
+            session.close();
+        }
+    }
+
+    // Аргумент команды после первого пробела; null – аргумента нет
+    private static String argument(String inputLine) {
+        String[] parts = inputLine.split("\\s+", 2);
+        return parts.length < 2 || parts[1].isBlank() ? null : parts[1].trim();
+    }
+
+    // Последний элемент пути; null – пути нет или из него не выделить имя файла
+    private static String fileName(String path) {
+        if (path == null) return null;
+        try {
+            Path name = Paths.get(path).getFileName();
+            return name == null ? null : name.toString();
+        } catch (InvalidPathException e) {
+            return null;
         }
     }
 
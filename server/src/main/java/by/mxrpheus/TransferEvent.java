@@ -0,0 +1,41 @@
+package by.mxrpheus;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Передача целиком: начинается при открытии сессии, записывается при её завершении
+@Name("by.mxrpheus.Transfer")
+@Label("Transfer")
+@Category("Transport")
+@Description("File transfer session from start to end")
+@StackTrace(false)
+class TransferEvent extends jdk.jfr.Event {
+    @Label("Server")
+    String server;
+
+    @Label("Session")
+    long sessionId;
+
+    @Label("Kind")
+    String kind;
+
+    @Label("Peer")
+    String peer;
+
+    @Label("File")
+    String file;
+
+    @Label("Delivered")
+    @DataAmount
+    long bytes;
+
+    @Label("Retransmits")
+    long retransmits;
+
+    @Label("Duplicate ACKs")
+    long duplicateAcks;
+}
@@ -0,0 +1,246 @@
+package by.mxrpheus;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Сводные метрики одного сервера (Server, UDPServer, TCPServer) и его активные сессии.
+// Счётчики – LongAdder, гистограммы – LatencyHistogram: на горячем пути нет блокировок.
+// Метрики публикуются как MBean и в текстовом формате Prometheus (MetricsEndpoint).
+public class TransportMetrics implements TransportMetricsMXBean {
+    private static final Map<String, TransportMetrics> REGISTRY = new ConcurrentHashMap<>();
+    // Отдельный MBean на каждую сессию; при тысячах коротких передач регистрацию можно отключить
+    private static final boolean SESSION_BEANS = Boolean.parseBoolean(System.getProperty("server.metrics.sessionBeans", "true"));
+
+    private final String server;
+    private final byte source; // код сервера в журнале событий
+    final LongAdder packetsSent = new LongAdder();
+    final LongAdder packetsReceived = new LongAdder();
+    final LongAdder bytesSent = new LongAdder();
+    final LongAdder bytesReceived = new LongAdder();
+    final LongAdder retransmits = new LongAdder();
+    final LongAdder duplicateAcks = new LongAdder();
+    final LongAdder bytesOnDisk = new LongAdder();
+    final LongAdder sessionsOpened = new LongAdder();
+    final LongAdder sessionsRejected = new LongAdder(); // отказ в приёме передачи: таблица сессий заполнена
+    final LongAdder sessionsExpired = new LongAdder();  // передача прервана: клиент перестал отвечать
+    final LatencyHistogram rtt = new LatencyHistogram();          // мкс
+    final LatencyHistogram transferTime = new LatencyHistogram(); // мс
+    final LatencyHistogram goodput = new LatencyHistogram();      // байт/с
+    final LatencyHistogram loopLag = new LatencyHistogram();      // мкс
+    private final long startNanos = System.nanoTime();
+    // Максимум задержки цикла за текущую и предыдущую секунду (пишет только поток цикла)
+    private volatile long lagWindowStart = startNanos;
+    private volatile long lagWindowMax;
+    private volatile long lagPreviousMax;
+    private final Map<Long, SessionMetrics> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+
+    private TransportMetrics(String server) {
+        this.server = server;
+        this.source = EventLog.sourceCode(server);
+    }
+
+    // Метрики сервера по имени; при первом обращении регистрируется MBean и, если задан порт, запускается экспорт
+    public static TransportMetrics forServer(String server) {
+        TransportMetrics metrics = REGISTRY.computeIfAbsent(server, name -> {
+            TransportMetrics created = new TransportMetrics(name);
+            register(created, "by.mxrpheus:type=Transport,server=" + name);
+            return created;
+        });
+        MetricsEndpoint.startIfConfigured();
+        return metrics;
+    }
+
+    static Collection<TransportMetrics> all() {
+        return REGISTRY.values();
+    }
+
+    public SessionMetrics openSession(String kind, Object peer, String file) {
+        SessionMetrics session = new SessionMetrics(this, nextId.incrementAndGet(), kind, String.valueOf(peer), file);
+        sessions.put(session.getId(), session);
+        sessionsOpened.increment();
+        EventLog.info(EventType.SESSION_START, source, session.getId(), EventLog.commandCode(kind), 0);
+        SessionStartEvent event = new SessionStartEvent();
+        if (event.shouldCommit()) {
+            event.server = server;
+            event.sessionId = session.getId();
+            event.kind = kind;
+            event.peer = session.getPeer();
+            event.file = file;
+            event.commit();
+        }
+        if (SESSION_BEANS) {
+            register(session, sessionName(session));
+        }
+        return session;
+    }
+
+    void closeSession(SessionMetrics session) {
+        sessions.remove(session.getId());
+        long millis = session.getElapsedNanos() / 1_000_000;
+        transferTime.record(millis);
+        EventLog.info(EventType.SESSION_END, source, session.getId(), session.getBytesDelivered(), (int) millis);
+        if (session.getBytesDelivered() > 0) {
+            goodput.record(session.getGoodputBytesPerSecond());
+        }
+        if (SESSION_BEANS) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(sessionName(session)));
+            } catch (JMException e) {
+                // MBean не был зарегистрирован
+            }
+        }
+    }
+
+    // Все принятые датаграммы учитываются у сокета; из отправленных напрямую – только пакеты вне сессий
+    // (ответы на команды), пакеты сессий учитывает SessionMetrics.onSend
+    public void onPacketSent(int bytes) {
+        packetsSent.increment();
+        bytesSent.add(bytes);
+    }
+
+    public void onPacketReceived(int bytes) {
+        packetsReceived.increment();
+        bytesReceived.add(bytes);
+    }
+
+    public void onSessionRejected() {
+        sessionsRejected.increment();
+    }
+
+    public void onSessionExpired() {
+        sessionsExpired.increment();
+    }
+
+    // Время одной итерации цикла сервера от пробуждения (select, receive) до следующего ожидания:
+    // столько ждёт пакет, пришедший сразу после пробуждения. Вызывается только потоком цикла.
+    public void onLoopBusy(long nanos) {
+        long micros = nanos / 1000;
+        loopLag.record(micros);
+        long now = System.nanoTime();
+        if (now - lagWindowStart > 1_000_000_000L) {
+            lagPreviousMax = lagWindowMax;
+            lagWindowMax = 0;
+            lagWindowStart = now;
+        }
+        if (micros > lagWindowMax) {
+            lagWindowMax = micros;
+        }
+    }
+
+    long getUptimeNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    Collection<SessionMetrics> getSessions() {
+        return sessions.values();
+    }
+
+    String getServer() {
+        return server;
+    }
+
+    private String sessionName(SessionMetrics session) {
+        return "by.mxrpheus:type=Session,server=" + server + ",id=" + session.getId();
+    }
+
+    private static void register(Object bean, String name) {
+        try {
+            MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(name);
+            if (!mbeans.isRegistered(objectName)) {
+                mbeans.registerMBean(bean, objectName);
+            }
+        } catch (JMException e) {
+            System.err.println("Не удалось зарегистрировать MBean " + name + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public long getPacketsSent() {
+        return packetsSent.sum();
+    }
+
+    @Override
+    public long getPacketsReceived() {
+        return packetsReceived.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getRetransmits() {
+        return retransmits.sum();
+    }
+
+    @Override
+    public long getDuplicateAcks() {
+        return duplicateAcks.sum();
+    }
+
+    @Override
+    public long getBytesOnDisk() {
+        return bytesOnDisk.sum();
+    }
+
+    @Override
+    public long getSessionsOpened() {
+        return sessionsOpened.sum();
+    }
+
+    @Override
+    public long getSessionsRejected() {
+        return sessionsRejected.sum();
+    }
+
+    @Override
+    public long getSessionsExpired() {
+        return sessionsExpired.sum();
+    }
+
+    @Override
+    public int getActiveSessions() {
+        return sessions.size();
+    }
+
+    @Override
+    public long getRttP50Micros() {
+        return rtt.percentile(50);
+    }
+
+    @Override
+    public long getRttP99Micros() {
+        return rtt.percentile(99);
+    }
+
+    @Override
+    public long getGoodputP50BytesPerSecond() {
+        return goodput.percentile(50);
+    }
+
+    @Override
+    public long getLoopLagP99Micros() {
+        return loopLag.percentile(99);
+    }
+
+    // Наибольшая задержка цикла за последние одну-две секунды
+    @Override
+    public long getRecentLoopLagMaxMicros() {
+        return Math.max(lagWindowMax, lagPreviousMax);
+    }
+}
@@ -0,0 +1,36 @@
+package by.mxrpheus;
+
+// Сводные метрики сервера в JMX: by.mxrpheus:type=Transport,server=<имя>
+public interface TransportMetricsMXBean {
+    long getPacketsSent();
+
+    long getPacketsReceived();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getRetransmits();
+
+    long getDuplicateAcks();
+
+    long getBytesOnDisk();
+
+    long getSessionsOpened();
+
+    long getSessionsRejected();
+
+    long getSessionsExpired();
+
+    int getActiveSessions();
+
+    long getRttP50Micros();
+
+    long getRttP99Micros();
+
+    long getGoodputP50BytesPerSecond();
+
+    long getLoopLagP99Micros();
+
+    long getRecentLoopLagMaxMicros();
+}
@@ -0,0 +1,42 @@
+package by.mxrpheus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Map;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+// Запись JFR с профилем JDK "default" и событиями передачи из transport.jfc (лежит в jar сервера).
+//   -Dserver.jfr=transfer.jfr – запись начинается при старте сервера и сохраняется в файл при завершении JVM
+class TransportRecording {
+    private static final String FILE = System.getProperty("server.jfr");
+
+    private static Recording recording;
+
+    static synchronized void startIfConfigured() {
+        if (FILE == null || recording != null) return;
+        InputStream in = TransportRecording.class.getResourceAsStream("/transport.jfc");
+        if (in == null) {
+            System.err.println("Не найден transport.jfc – запись JFR не начата");
+            return;
+        }
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            Map<String, String> settings = new HashMap<>(Configuration.getConfiguration("default").getSettings());
+            settings.putAll(Configuration.create(reader).getSettings());
+            recording = new Recording(settings);
+            recording.setName("transport");
+            recording.setDestination(Path.of(FILE));
+            recording.setDumpOnExit(true);
+            recording.start();
+            System.out.println("Запись JFR: " + Path.of(FILE).toAbsolutePath());
+        } catch (IOException | ParseException e) {
+            System.err.println("Не удалось начать запись JFR: " + e.getMessage());
+        }
+    }
+}
@@ -3,237 +3,806 @@ package by.mxrpheus;
 import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+// Сервер обслуживает любое число клиентов одновременно. Хорошо известный порт принимает только команды.
+// На UPLOAD/DOWNLOAD/BATCH_* сервер открывает для передачи отдельный сокет на эфемерном порту, соединённый
+// с адресом клиента, и отвечает на команду уже с него: клиент отправляет данные, смещение и ACK на порт,
+// с которого пришёл ответ. Датаграммы других адресов на такой сокет отбрасывает ядро, поиска сессии
+// по адресу нет, и каждая передача обслуживается своим виртуальным потоком.
 public class UDPServer {
     private static final int PORT = 9876;
     private static final int BUFFER_SIZE = 1500;
-    private static final int DATA_BUFFER_SIZE = 1400;
+    private static final int DATA_BUFFER_SIZE = StreamPacket.DATA_SIZE;
     private static final int WINDOW_SIZE = 5;
+    private static final int ACK_TIMEOUT_MS = 500;     // повторная отправка окна без ACK
+    private static final int OFFSET_TIMEOUT_MS = 5000; // ожидание смещения дозагрузки после размера файла
+    private static final Pattern UPLOAD_SIZE = Pattern.compile("(.+) SIZE (\\d+)");
+    // Необязательный суффикс команд передачи " ACK <n>" – согласование отложенных ACK (см. AckPolicy)
+    private static final Pattern ACK_OPTION = Pattern.compile("(.+) ACK (\\d{1,9})");
+    // Необязательный суффикс UPLOAD " EARLY <смещение>": первое окно данных отправлено на общий порт
+    // вслед за командой, начиная с предполагаемого клиентом смещения дозагрузки (см. UploadSession.offerEarly)
+    private static final Pattern EARLY_OPTION = Pattern.compile("(.+) EARLY (\\d+)");
+    private static final long ACK_DELAY_MS = Long.getLong("server.ack.delay.ms", AckPolicy.DEFAULT_DELAY_MS);
+    // Пейсинг отдачи (см. Pacer): выключатель и ограничение темпа одной передачи, 0 – окно за RTT
+    private static final boolean PACING = Boolean.parseBoolean(System.getProperty("server.pacing", "true"));
+    private static final double PACING_RATE_MBIT = Double.parseDouble(System.getProperty("server.pacing.rateMbit", "0"));
+    // Предел одновременных передач, срок простоя и число повторов окна подряд – как у Server
+    private static final int MAX_SESSIONS = Integer.getInteger("server.sessions.max", 64);
+    private static final long IDLE_TIMEOUT_MS = Long.getLong("server.session.idleMs", 30_000);
+    private static final int MAX_RETRANSMITS = Integer.getInteger("server.retransmit.maxAttempts", 20);
+    // Счётчики и гистограммы передач (JMX и текстовый экспорт)
+    private static final TransportMetrics METRICS = TransportMetrics.forServer("udp");
+    // Файлы server/files в памяти: наличие при DOWNLOAD, ответы на LIST и STAT
+    private static FileIndex fileIndex;
+    // Хранилище без повторов (server.storage=dedup); null – файлы хранятся только в server/files
+    private static ChunkStore chunkStore;
 
-    private static class UploadSession {
-        InetAddress clientAddress;
-        int clientPort;
-        String fileName;
-        FileOutputStream fos;
+    // Передача клиента на своём порту; у каждого адреса не больше одной, новая команда передачи заменяет прежнюю
+    private abstract static class Session implements Runnable {
+        final InetAddress clientAddress;
+        final int clientPort;
+        final InetSocketAddress peer;
+        final DatagramSocket socket; // эфемерный порт передачи, соединён с клиентом
 
-        UploadSession(InetAddress clientAddress, int clientPort, String fileName, FileOutputStream fos) {
+        Session(InetAddress clientAddress, int clientPort) throws SocketException {
             this.clientAddress = clientAddress;
             this.clientPort = clientPort;
+            this.peer = new InetSocketAddress(clientAddress, clientPort);
+            this.socket = new DatagramSocket();
+            this.socket.connect(peer);
+        }
+
+        // Ответ на команду уходит с порта передачи – по нему клиент узнаёт, куда отправлять данные
+        void handshake(byte[] data) throws IOException {
+            socket.send(new DatagramPacket(data, data.length));
+            METRICS.onPacketSent(data.length);
+        }
+
+        // Ошибка, из-за которой сессия завершается: текст "ERROR: ..." с порта передачи
+        void error(String message) throws IOException {
+            handshake(("ERROR: " + message).getBytes());
+        }
+
+        // Закрытие сокета прерывает ожидание в потоке сессии, ресурсы освобождает сам поток
+        void close() {
+            socket.close();
+        }
+    }
+
+    private static class UploadSession extends Session {
+        String fileName;
+        DiskWriter writer; // запись в файл или приёмник пакетной передачи идёт в отдельном потоке
+        long position;     // смещение в файле следующего пакета
+        long endPosition = -1; // конец загрузки, если клиент сообщил размер
+        long expectedSeq = 0;
+        SessionMetrics metrics;
+        // Согласованные ACK кумулятивные (номер последнего пакета, полученного по порядку) и приходят
+        // по политике сессии; без согласования – ACK с номером каждого пакета, как раньше
+        final boolean cumulativeAck;
+        final AckPolicy ackPolicy;
+        private final ByteBuffer ackBuffer = ByteBuffer.allocate(StreamPacket.ACK_SIZE);
+        private final DatagramPacket ackPacket = new DatagramPacket(ackBuffer.array(), StreamPacket.ACK_SIZE);
+        private final StreamPacket ack = new StreamPacket();
+        // Первое окно, пришедшее на общий порт до ответа на команду; принимается, только если смещение
+        // клиента совпало с точкой дозагрузки. Очередь наполняет поток приёма команд, разбирает поток сессии –
+        // в кольцо DiskWriter по-прежнему пишет один поток
+        private final BlockingQueue<byte[]> early = new ArrayBlockingQueue<>(WINDOW_SIZE);
+        private volatile int earlyPackets; // сколько пакетов первого окна ожидается на общем порту
+        private long lastPacket = System.nanoTime();
+        private final WritableByteChannel target;
+        private boolean finished; // получен FIN – клиент передал всё
+
+        UploadSession(InetAddress clientAddress, int clientPort, String fileName, WritableByteChannel target, long position,
+                      int requestedAck) throws SocketException {
+            super(clientAddress, clientPort);
             this.fileName = fileName;
-            this.fos = fos;
+            this.position = position;
+            this.cumulativeAck = requestedAck > 0;
+            this.ackPolicy = new AckPolicy(cumulativeAck ? AckPolicy.negotiate(requestedAck) : 1, ACK_DELAY_MS);
+            this.target = target;
+            this.writer = DiskWriter.start(fileName, target, DATA_BUFFER_SIZE, DiskWriter.DEFAULT_DURABILITY, () -> { });
+            this.metrics = METRICS.openSession(target instanceof BatchReceiver ? "BATCH_UPLOAD"
+                            : target instanceof DedupReceiver ? "DEDUP_UPLOAD" : "UPLOAD",
+                    clientAddress + ":" + clientPort, fileName);
+            this.writer.setMetrics(metrics);
+        }
+
+        // Принять первое окно с общего порта: packets – сколько пакетов клиент отправил вслед за командой
+        void acceptEarly(int packets) {
+            earlyPackets = packets;
+        }
+
+        // Пакет данных от клиента, пришедший на общий порт. Пакеты первого окна ставятся в очередь сессии,
+        // опоздавшие и непринятые (смещение не совпало) отбрасываются – клиент повторит их на порт передачи
+        void offerEarly(byte[] datagram, int length) {
+            if (earlyPackets > 0 && !early.offer(Arrays.copyOf(datagram, length))) {
+                EventLog.debug(EventType.EARLY_DROPPED, EventLog.UDP, metrics.getId(), length, 0);
+            }
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            ByteBuffer received = ByteBuffer.wrap(buffer);
+            StreamPacket data = new StreamPacket();
+            try {
+                if (!receiveEarly(data)) {
+                    return;
+                }
+                while (true) {
+                    packet.setLength(buffer.length);
+                    // Пока есть неподтверждённые пакеты, приём ждёт не дольше срока отложенного ACK,
+                    // иначе – не дольше срока простоя: пропавший клиент не держит поток и файл вечно
+                    long ackDue = ackPolicy.millisUntilDue(System.nanoTime());
+                    socket.setSoTimeout((int) (ackDue > 0 ? Math.min(ackDue, IDLE_TIMEOUT_MS) : IDLE_TIMEOUT_MS));
+                    try {
+                        socket.receive(packet);
+                    } catch (SocketTimeoutException e) {
+                        if (System.nanoTime() - lastPacket >= IDLE_TIMEOUT_MS * 1_000_000L) {
+                            METRICS.onSessionExpired();
+                            System.out.println("Загрузка " + fileName + " от " + clientAddress + ":" + clientPort +
+                                    " прервана: нет пакетов " + IDLE_TIMEOUT_MS + " мс");
+                            return;
+                        }
+                        if (ackDue > 0) {
+                            sendAck(expectedSeq - 1);
+                        }
+                        continue;
+                    }
+                    METRICS.onPacketReceived(packet.getLength());
+                    if (!receive(data.wrap(received.clear().limit(packet.getLength())), packet.getLength())) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    System.err.println("Ошибка загрузки " + fileName + " от " + clientAddress + ":" + clientPort + ": " + e.getMessage());
+                }
+            } finally {
+                writer.finish();
+                metrics.close();
+                socket.close();
+                SESSIONS.remove(peer, this);
+                fileIndex.refresh(fileName);
+                // Файл получен целиком – переносится в хранилище, когда поток записи его закроет
+                if (finished && chunkStore != null && target instanceof FileChannel) {
+                    chunkStore.ingest(fileName, writer);
+                }
+            }
+        }
+
+        // Разбор первого окна из очереди: ждём его не дольше ACK_TIMEOUT_MS. Потерянные пакеты клиент
+        // повторит уже на порт передачи – раньше, чем истечёт его таймаут ACK, сессия перейдёт к сокету.
+        // false – сессия завершена (как у receive)
+        private boolean receiveEarly(StreamPacket data) throws IOException {
+            long deadline = System.nanoTime() + ACK_TIMEOUT_MS * 1_000_000L;
+            try {
+                for (int i = 0; i < earlyPackets; i++) {
+                    byte[] datagram = early.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (datagram == null) {
+                        break;
+                    }
+                    if (!receive(data.wrap(ByteBuffer.wrap(datagram)), datagram.length)) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Приём первого окна прерван");
+            } finally {
+                earlyPackets = 0;
+                early.clear();
+            }
+        }
+
+        // Обработка пакета загрузки; false – сессия завершена: получен FIN или запись на диск не удалась
+        private boolean receive(StreamPacket data, int length) throws IOException {
+            lastPacket = System.nanoTime();
+            // Поток записи остановился с ошибкой – ACK больше не будет: клиент получает ошибку
+            // вместо повторов до своего таймаута, сессия закрывается, ошибка пишется в журнал один раз
+            IOException failure = writer.getFailure();
+            if (failure != null) {
+                System.err.println("Ошибка записи файла " + fileName + " от " + clientAddress + ":" + clientPort + ": "
+                        + failure.getMessage());
+                error("Write failed: " + failure.getMessage());
+                return false;
+            }
+            if (data.isFin()) {
+                System.out.println("Получен FIN-пакет для UPLOAD от " + clientAddress + ":" + clientPort);
+                finished = true;
+                return false;
+            }
+            // Пакет, который не разбирается как data-пакет (см. StreamPacket.isData), отбрасывается
+            if (!data.isData()) {
+                return true;
+            }
+            long seq = SeqNum.unwrap(expectedSeq, data.seq());
+            int dataLength = data.dataLength();
+            metrics.onReceive(length, seq < expectedSeq);
+            // Повторно присланный пакет только подтверждаем, пакет "из будущего" отбрасываем;
+            // при согласованных ACK о разрыве сразу сообщаем номером последнего пакета по порядку
+            if (seq > expectedSeq) {
+                if (cumulativeAck && expectedSeq > 0 && ackPolicy.onOutOfOrder()) {
+                    sendAck(expectedSeq - 1);
+                }
+                return true;
+            }
+            boolean ackNow;
+            if (seq == expectedSeq) {
+                // Данные уходят в кольцо потока записи; если оно заполнено – ACK не отправляем,
+                // клиент повторит пакет по таймауту
+                if (!writer.offer(position, data.payload())) {
+                    EventLog.debug(EventType.WRITE_BACKPRESSURE, EventLog.UDP, metrics.getId(), seq, 0);
+                    return true;
+                }
+                position += dataLength;
+                expectedSeq++;
+                metrics.onDelivered(dataLength);
+                EventLog.debug(EventType.DATA_RECEIVED, EventLog.UDP, metrics.getId(), seq, dataLength);
+                ackNow = ackPolicy.onInOrder(System.nanoTime()) || (endPosition >= 0 && position >= endPosition);
+            } else {
+                ackNow = ackPolicy.onOutOfOrder();
+            }
+            if (ackNow) {
+                sendAck(cumulativeAck ? expectedSeq - 1 : seq);
+            }
+            return true;
+        }
+
+        private void sendAck(long seq) throws IOException {
+            ack.wrap(ackBuffer.clear()).encodeAck(seq);
+            socket.send(ackPacket);
+            ackPolicy.acked();
+            metrics.onSend(ackPacket.getLength(), false);
+            EventLog.debug(EventType.ACK_SENT, EventLog.UDP, metrics.getId(), seq, 0);
         }
     }
-    // Поддерживается только одна активная сессия загрузки для каждого клиента
-    private static UploadSession currentUploadSession = null;
+
+    // Отдача файла или пакета
+    private static class DownloadSession extends Session {
+        final SeekableByteChannel source;
+        final String kind;
+        final String name;
+
+        DownloadSession(InetAddress clientAddress, int clientPort, SeekableByteChannel source, String kind, String name)
+                throws SocketException {
+            super(clientAddress, clientPort);
+            this.source = source;
+            this.kind = kind;
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            try (source) {
+                // Ожидаем от клиента позицию (resume offset, 8 байт)
+                socket.setSoTimeout(OFFSET_TIMEOUT_MS);
+                byte[] resumeBuf = new byte[StreamPacket.HANDSHAKE_SIZE];
+                DatagramPacket resumePacket = new DatagramPacket(resumeBuf, resumeBuf.length);
+                try {
+                    socket.receive(resumePacket);
+                } catch (SocketTimeoutException e) {
+                    System.out.println("Таймаут ожидания resume offset от клиента " + clientAddress + ":" + clientPort);
+                    return;
+                }
+                METRICS.onPacketReceived(resumePacket.getLength());
+                long resumeOffset = new StreamPacket().wrap(ByteBuffer.wrap(resumeBuf)).handshakeValue();
+                System.out.println("Получен resume offset: " + resumeOffset + " от " + clientAddress + ":" + clientPort);
+                socket.setSoTimeout(ACK_TIMEOUT_MS);
+                sendStream(this, resumeOffset, METRICS.openSession(kind, clientAddress + ":" + clientPort, name));
+            } catch (IOException e) {
+                if (socket.isClosed()) {
+                    System.out.println("Отправка " + name + " прервана новой командой клиента " + clientAddress + ":" + clientPort);
+                } else {
+                    System.err.println("Ошибка отдачи " + name + " клиенту " + clientAddress + ":" + clientPort + ": " + e.getMessage());
+                }
+            } finally {
+                socket.close();
+                SESSIONS.remove(peer, this);
+            }
+        }
+    }
+
+    private static final Map<InetSocketAddress, Session> SESSIONS = new ConcurrentHashMap<>();
 
     public static void main(String[] args) {
+        TransportRecording.startIfConfigured();
         try (DatagramSocket socket = new DatagramSocket(PORT)) {
+            chunkStore = ChunkStore.open(Path.of("server/files"), "udp");
+            fileIndex = FileIndex.open(Path.of("server/files"), "udp", chunkStore);
             System.out.println("UDP-сервер запущен на порту " + PORT);
             byte[] buffer = new byte[BUFFER_SIZE];
+            ByteBuffer received = ByteBuffer.wrap(buffer);
+            StreamPacket inbound = new StreamPacket();
+            long woke = 0;
 
             while (true) {
+                // Команда обработана – учитываем задержку цикла приёма
+                if (woke != 0) {
+                    METRICS.onLoopBusy(System.nanoTime() - woke);
+                }
                 DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
                 socket.receive(packet);
+                woke = System.nanoTime();
+                METRICS.onPacketReceived(packet.getLength());
+                CommandEvent commandEvent = new CommandEvent();
+                commandEvent.begin();
                 InetAddress clientAddr = packet.getAddress();
                 int clientPort = packet.getPort();
+                InetSocketAddress peer = (InetSocketAddress) packet.getSocketAddress();
+                // Пакет данных – первое окно EARLY-загрузки, остальные отбрасываются без ответа.
+                // Команды текстовые и под разбор пакета данных не подходят (длина из символов больше датаграммы)
+                if (inbound.wrap(received.clear().limit(packet.getLength())).isData()) {
+                    if (SESSIONS.get(peer) instanceof UploadSession upload) {
+                        upload.offerEarly(buffer, packet.getLength());
+                    }
+                    continue;
+                }
                 String message = new String(packet.getData(), 0, packet.getLength()).trim();
+                int requestedAck = 0; // 0 – клиент не предлагал отложенные ACK
+                if (isTransferCommand(message) && !admit(socket, peer)) {
+                    continue;
+                }
+                if (isTransferCommand(message)) {
+                    Matcher ackMatcher = ACK_OPTION.matcher(message);
+                    if (ackMatcher.matches()) {
+                        message = ackMatcher.group(1);
+                        requestedAck = Integer.parseInt(ackMatcher.group(2));
+                    }
+                }
 
                 // Обработка текстовых команд
                 if (message.startsWith("ECHO")) {
                     String echoMsg = message.length() > 5 ? message.substring(5) : "";
                     DatagramPacket echoPacket = new DatagramPacket(echoMsg.getBytes(), echoMsg.getBytes().length, clientAddr, clientPort);
-                    socket.send(echoPacket);
-                    System.out.println("Выполнена команда ECHO для " + clientAddr + ":" + clientPort);
+                    reply(socket, echoPacket);
+                    EventLog.info(EventType.COMMAND, EventLog.UDP, 0, EventLog.commandCode("ECHO"), clientPort);
+                    commandHandled(commandEvent, "ECHO", clientAddr, clientPort);
                     continue;
                 } else if (message.equalsIgnoreCase("TIME")) {
                     String timeStr = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
                     String resp = "Server time: " + timeStr;
                     DatagramPacket timePacket = new DatagramPacket(resp.getBytes(), resp.getBytes().length, clientAddr, clientPort);
-                    socket.send(timePacket);
-                    System.out.println("Отправлено время клиенту " + clientAddr + ":" + clientPort);
+                    reply(socket, timePacket);
+                    EventLog.info(EventType.COMMAND, EventLog.UDP, 0, EventLog.commandCode("TIME"), clientPort);
+                    commandHandled(commandEvent, "TIME", clientAddr, clientPort);
                     continue;
                 } else if (message.equalsIgnoreCase("CLOSE") ||
                         message.equalsIgnoreCase("EXIT") ||
                         message.equalsIgnoreCase("QUIT")) {
                     String resp = "Соединение закрыто сервером.";
                     DatagramPacket closePacket = new DatagramPacket(resp.getBytes(), resp.getBytes().length, clientAddr, clientPort);
-                    socket.send(closePacket);
-                    System.out.println("Получена команда CLOSE от " + clientAddr + ":" + clientPort);
+                    reply(socket, closePacket);
+                    EventLog.info(EventType.COMMAND, EventLog.UDP, 0, EventLog.commandCode(message), clientPort);
+                    commandHandled(commandEvent, message.toUpperCase(), clientAddr, clientPort);
+                    continue;
+                }
+                // Команды администрирования: STATS | SESSIONS [id]
+                else if (AdminReport.isAdminCommand(message.split(" ", 2)[0])) {
+                    String command = message.split(" ", 2)[0].toUpperCase();
+                    byte[] resp = AdminReport.handle(METRICS, message).getBytes();
+                    reply(socket, new DatagramPacket(resp, resp.length, clientAddr, clientPort));
+                    EventLog.info(EventType.COMMAND, EventLog.UDP, 0, EventLog.commandCode(command), clientPort);
+                    commandHandled(commandEvent, command, clientAddr, clientPort);
+                    continue;
+                }
+                // Файлы сервера из индекса: LIST [каталог] [AFTER имя] | STAT <имя> [HASH]
+                else if (FileIndex.isIndexCommand(message.split(" ", 2)[0])) {
+                    String command = message.split(" ", 2)[0].toUpperCase();
+                    byte[] resp = fileIndex.handle(message).getBytes();
+                    reply(socket, new DatagramPacket(resp, resp.length, clientAddr, clientPort));
+                    EventLog.info(EventType.COMMAND, EventLog.UDP, 0, EventLog.commandCode(command), clientPort);
+                    commandHandled(commandEvent, command, clientAddr, clientPort);
+                    continue;
+                }
+                // Хранилище без повторов: HAVE <sha256> ... – какие фрагменты в нём уже есть
+                else if (ChunkStore.isStoreCommand(message.split(" ", 2)[0])) {
+                    String command = message.split(" ", 2)[0].toUpperCase();
+                    byte[] resp = (chunkStore != null ? chunkStore.handle(message) : ChunkStore.disabled(command)).getBytes();
+                    reply(socket, new DatagramPacket(resp, resp.length, clientAddr, clientPort));
+                    EventLog.info(EventType.COMMAND, EventLog.UDP, 0, EventLog.commandCode(command), clientPort);
+                    commandHandled(commandEvent, command, clientAddr, clientPort);
+                    continue;
+                }
+                // Команда DEDUP_UPLOAD – список фрагментов файла и данные тех, которых нет в хранилище
+                // (см. DedupReceiver); всегда с начала, дозагрузку заменяет ответ HAVE
+                else if (message.startsWith("DEDUP_UPLOAD ")) {
+                    String fileName = message.substring(13).trim();
+                    endSession(peer);
+                    DedupReceiver receiver;
+                    try {
+                        if (chunkStore == null) {
+                            throw new IOException(ChunkStore.disabled("DEDUP_UPLOAD"));
+                        }
+                        receiver = chunkStore.receiver(fileName);
+                    } catch (IOException e) {
+                        String errMsg = "ERROR: " + e.getMessage();
+                        reply(socket, new DatagramPacket(errMsg.getBytes(), errMsg.getBytes().length, clientAddr, clientPort));
+                        continue;
+                    }
+                    UploadSession session = new UploadSession(clientAddr, clientPort, fileName, receiver, 0, requestedAck);
+                    System.out.println("Начата загрузка файла " + fileName + " в хранилище от " + clientAddr + ":" + clientPort);
+                    startSession(session, handshake(0, requestedAck));
+                    commandHandled(commandEvent, "DEDUP_UPLOAD", clientAddr, clientPort);
+                    continue;
+                }
+                // Команда BATCH_UPLOAD – много файлов одной сессией (манифест + содержимое подряд)
+                else if (message.startsWith("BATCH_UPLOAD ")) {
+                    String batchName = BatchStream.batchName(message.substring(13).trim());
+                    File dir = new File("server/files/" + batchName);
+                    endSession(peer);
+                    // Точка дозагрузки – конец последнего записанного байта по сохранённому манифесту
+                    long resumeOffset;
+                    BatchReceiver receiver;
+                    try {
+                        resumeOffset = BatchReceiver.resumeOffset(dir);
+                        receiver = new BatchReceiver(dir, resumeOffset);
+                    } catch (IOException e) {
+                        String errMsg = "ERROR: " + e.getMessage();
+                        reply(socket, new DatagramPacket(errMsg.getBytes(), errMsg.getBytes().length, clientAddr, clientPort));
+                        continue;
+                    }
+                    UploadSession session = new UploadSession(clientAddr, clientPort, batchName, receiver, resumeOffset, requestedAck);
+                    System.out.println("Начата пакетная загрузка в " + dir.getAbsolutePath() +
+                            " от " + clientAddr + ":" + clientPort + ". Смещение: " + resumeOffset + " байт");
+                    startSession(session, handshake(resumeOffset, requestedAck));
+                    commandHandled(commandEvent, "BATCH_UPLOAD", clientAddr, clientPort);
+                    continue;
+                }
+
+                // Команда BATCH_DOWNLOAD – каталог или маска одной сессией
+                else if (message.startsWith("BATCH_DOWNLOAD ")) {
+                    String spec = message.substring(15).trim();
+                    BatchStream stream;
+                    try {
+                        stream = BatchStream.open(new File("server/files"), spec, chunkStore);
+                    } catch (IOException e) {
+                        String errMsg = "ERROR: " + e.getMessage();
+                        reply(socket, new DatagramPacket(errMsg.getBytes(), errMsg.getBytes().length, clientAddr, clientPort));
+                        continue;
+                    }
+                    startSession(new DownloadSession(clientAddr, clientPort, stream, "BATCH_DOWNLOAD", stream.getName()),
+                            handshake(stream.size(), requestedAck));
+                    commandHandled(commandEvent, "BATCH_DOWNLOAD", clientAddr, clientPort);
+                    System.out.println("Пакет " + stream.getName() + ": файлов " + stream.getFileCount() +
+                            ", байт " + stream.size() + " для " + clientAddr + ":" + clientPort);
                     continue;
                 }
+
                 // Команда UPLOAD – загрузка файла на сервер (с поддержкой resume)
                 else if (message.startsWith("UPLOAD ")) {
+                    // Формат: UPLOAD <имя файла> [SIZE <размер>] [EARLY <смещение>] – размер позволяет заранее
+                    // расширить файл, EARLY – первое окно уже отправлено с указанного смещения
                     String fileName = message.substring(7).trim();
+                    long uploadSize = -1;
+                    long earlyOffset = -1;
+                    Matcher earlyMatcher = EARLY_OPTION.matcher(fileName);
+                    if (earlyMatcher.matches()) {
+                        fileName = earlyMatcher.group(1);
+                        earlyOffset = parseNumber(earlyMatcher.group(2));
+                        if (earlyOffset < 0) {
+                            replyError(socket, peer, "Некорректная команда: смещение EARLY вне диапазона");
+                            continue;
+                        }
+                    }
+                    Matcher sizeMatcher = UPLOAD_SIZE.matcher(fileName);
+                    if (sizeMatcher.matches()) {
+                        fileName = sizeMatcher.group(1);
+                        uploadSize = parseNumber(sizeMatcher.group(2));
+                        if (uploadSize < 0) {
+                            replyError(socket, peer, "Некорректная команда: размер вне диапазона");
+                            continue;
+                        }
+                    }
                     File file = new File("server/files/" + fileName);
                     file.getParentFile().mkdirs();
 
                     // Если уже существует активная сессия для данного клиента, завершаем её
-                    if (currentUploadSession != null &&
-                            clientAddr.equals(currentUploadSession.clientAddress) &&
-                            clientPort == currentUploadSession.clientPort) {
-                        try {
-                            currentUploadSession.fos.close();
-                        } catch (IOException e) {
-                            System.err.println("Ошибка закрытия предыдущей сессии: " + e.getMessage());
-                        }
-                        currentUploadSession = null;
-                    }
+                    endSession(peer);
 
-                    // Определяем текущую длину файла для дозагрузки (resume offset)
-                    long currentLength = file.exists() ? file.length() : 0;
+                    // Точка дозагрузки (resume offset): длина файла или принятая длина прерванной загрузки
+                    long currentLength = MappedFile.resumeOffset(file);
 
-                    // Открываем файл в режиме append (дозагрузка)
-                    FileOutputStream fos = new FileOutputStream(file, true);
-                    currentUploadSession = new UploadSession(clientAddr, clientPort, fileName, fos);
+                    // Открываем файл для дозагрузки: данные пишутся по смещениям, начиная с текущей длины.
+                    // Если сессию создать не удалось, файл закрывается, а клиент получает ошибку
+                    FileChannel fc = null;
+                    UploadSession session;
+                    try {
+                        fc = new RandomAccessFile(file, "rw").getChannel();
+                        session = new UploadSession(clientAddr, clientPort, fileName, fc, currentLength, requestedAck);
+                    } catch (IOException e) {
+                        if (fc != null) {
+                            fc.close();
+                        }
+                        replyError(socket, peer, "Не удалось начать загрузку " + fileName + ": " + e.getMessage());
+                        System.out.println("Загрузка " + file.getAbsolutePath() + " не начата: " + e.getMessage());
+                        continue;
+                    }
+                    if (uploadSize > currentLength) {
+                        session.endPosition = uploadSize;
+                        session.metrics.setBytesExpected(uploadSize - currentLength);
+                        session.writer.expectSize(file, uploadSize, currentLength);
+                    }
+                    // Первое окно принимается, только если клиент угадал точку дозагрузки; иначе он получит
+                    // в ответе другое смещение и начнёт заново с него, а ранние пакеты будут отброшены
+                    if (earlyOffset >= 0 && earlyOffset == currentLength && uploadSize > currentLength) {
+                        long packets = (uploadSize - currentLength + DATA_BUFFER_SIZE - 1) / DATA_BUFFER_SIZE;
+                        session.acceptEarly((int) Math.min(WINDOW_SIZE, packets));
+                    }
                     System.out.println("Начата загрузка файла " + file.getAbsolutePath() +
                             " от " + clientAddr + ":" + clientPort +
                             ". Текущий размер: " + currentLength + " байт");
 
                     // Отправляем клиенту текущее количество байт (resume offset) – 8 байт
-                    ByteBuffer posBuffer = ByteBuffer.allocate(8);
-                    posBuffer.putLong(currentLength);
-                    DatagramPacket posPacket = new DatagramPacket(posBuffer.array(), posBuffer.array().length, clientAddr, clientPort);
-                    socket.send(posPacket);
+                    startSession(session, handshake(currentLength, requestedAck));
+                    commandHandled(commandEvent, "UPLOAD", clientAddr, clientPort);
                     continue;
                 }
 
                 // Команда DOWNLOAD – скачивание файла с сервера с поддержкой дозагрузки
                 else if (message.startsWith("DOWNLOAD ")) {
                     String fileName = message.substring(9).trim();
-                    File file = new File("server/files/" + fileName);
-                    if (!file.exists()) {
+                    if (fileIndex.lookup(fileName) == null) {
                         String errMsg = "ERROR: Файл " + fileName + " не найден на сервере.";
                         DatagramPacket errPacket = new DatagramPacket(errMsg.getBytes(), errMsg.getBytes().length, clientAddr, clientPort);
-                        socket.send(errPacket);
+                        reply(socket, errPacket);
                         System.out.println("Запрошен несуществующий файл " + fileName + " от " + clientAddr + ":" + clientPort);
                         continue;
                     }
                     // Отправляем размер файла (8 байт) клиенту
-                    ByteBuffer sizeBuffer = ByteBuffer.allocate(8);
-                    sizeBuffer.putLong(file.length());
-                    DatagramPacket sizePacket = new DatagramPacket(sizeBuffer.array(), sizeBuffer.array().length, clientAddr, clientPort);
-                    socket.send(sizePacket);
-                    System.out.println("Отправлен размер файла " + fileName + " (" + file.length() + " байт) клиенту " + clientAddr + ":" + clientPort);
-
-                    // Ожидаем от клиента позицию (resume offset, 8 байт)
-                    byte[] resumeBuf = new byte[8];
-                    DatagramPacket resumePacket = new DatagramPacket(resumeBuf, resumeBuf.length);
-                    try {
-                        socket.receive(resumePacket);
-                    } catch (SocketTimeoutException e) {
-                        System.out.println("Таймаут ожидания resume offset от клиента " + clientAddr + ":" + clientPort);
-                        continue;
-                    }
-                    long resumeOffset = ByteBuffer.wrap(resumeBuf).getLong();
-                    System.out.println("Получен resume offset: " + resumeOffset + " от " + clientAddr + ":" + clientPort);
-
-                    // Открываем файл, пропускаем resumeOffset байт и готовим передачу оставшихся данных
-                    FileInputStream fis = new FileInputStream(file);
-                    fis.skip(resumeOffset);
-                    byte[] fileBuffer = new byte[DATA_BUFFER_SIZE];
-                    List<byte[]> filePackets = new ArrayList<>();
-                    int seq = 0;
-                    int readBytes;
-                    while ((readBytes = fis.read(fileBuffer)) != -1) {
-                        ByteBuffer packetBuffer = ByteBuffer.allocate(4 + 4 + readBytes);
-                        packetBuffer.putInt(seq);
-                        packetBuffer.putInt(readBytes);
-                        packetBuffer.put(fileBuffer, 0, readBytes);
-                        filePackets.add(packetBuffer.array());
-                        seq++;
-                    }
-                    fis.close();
-                    int totalPackets = filePackets.size();
-
-                    boolean[] acked = new boolean[totalPackets];
-                    int base = 0;
-                    long startTime = System.currentTimeMillis();
-                    // Отправка пакетов с использованием скользящего окна (код отправки без изменений)
-                    while (base < totalPackets) {
-                        int windowEnd = Math.min(base + WINDOW_SIZE, totalPackets);
-                        for (int i = base; i < windowEnd; i++) {
-                            if (!acked[i]) {
-                                DatagramPacket dataPacket = new DatagramPacket(filePackets.get(i), filePackets.get(i).length, clientAddr, clientPort);
-                                socket.send(dataPacket);
-                                System.out.println("Отправлен пакет seq=" + i + " для DOWNLOAD");
-                            }
-                        }
-                        int acksReceived = 0;
-                        while (acksReceived < (windowEnd - base)) {
-                            try {
-                                byte[] ackBuf = new byte[4];
-                                DatagramPacket ackPacket = new DatagramPacket(ackBuf, ackBuf.length);
-                                socket.receive(ackPacket);
-                                int ackSeq = ByteBuffer.wrap(ackBuf).getInt();
-                                System.out.println("Получен ACK для seq=" + ackSeq + " в DOWNLOAD");
-                                if (ackSeq >= base && ackSeq < windowEnd && !acked[ackSeq]) {
-                                    acked[ackSeq] = true;
-                                    acksReceived++;
-                                }
-                            } catch (SocketTimeoutException e) {
-                                System.out.println("Таймаут ожидания ACK в DOWNLOAD, повторная отправка непринятых пакетов");
-                                break;
-                            }
-                        }
-                        while (base < totalPackets && acked[base]) {
-                            base++;
-                        }
-                    }
-                    // Отправляем FIN-пакет (seq = -1) для завершения передачи
-                    ByteBuffer finBuffer = ByteBuffer.allocate(4);
-                    finBuffer.putInt(-1);
-                    DatagramPacket finPacket = new DatagramPacket(finBuffer.array(), finBuffer.array().length, clientAddr, clientPort);
-                    socket.send(finPacket);
-                    long endTime = System.currentTimeMillis();
-                    double duration = (endTime - startTime) / 1000.0;
-                    double bitrate = ((file.length() - resumeOffset) * 8) / (duration * 1024 * 1024.0);
-                    System.out.printf("Отправка файла завершена за %.2f секунд. Битрейт: %.2f Мбит/с%n", duration, bitrate);
+                    SeekableByteChannel source = fileIndex.openSource(fileName);
+                    long size = source.size();
+                    startSession(new DownloadSession(clientAddr, clientPort, source, "DOWNLOAD", fileName),
+                            handshake(size, requestedAck));
+                    commandHandled(commandEvent, "DOWNLOAD", clientAddr, clientPort);
+                    System.out.println("Отправлен размер файла " + fileName + " (" + size + " байт) клиенту " + clientAddr + ":" + clientPort);
                     continue;
                 }
 
-                // Если сообщение не является командой, а данные для активной сессии UPLOAD
+                // Данные передач приходят на их собственные порты, сюда – только команды
                 else {
-                    if (currentUploadSession != null &&
-                            clientAddr.equals(currentUploadSession.clientAddress) &&
-                            clientPort == currentUploadSession.clientPort &&
-                            packet.getLength() >= 8)
-                    {
-                        ByteBuffer bb = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
-                        int seq = bb.getInt();
-                        if (seq == -1) {
-                            System.out.println("Получен FIN-пакет для UPLOAD от " + clientAddr + ":" + clientPort);
-                            currentUploadSession.fos.close();
-                            currentUploadSession = null;
-                            continue;
+                    String resp = "Нераспознанная команда или отсутствие активной сессии загрузки.";
+                    DatagramPacket respPacket = new DatagramPacket(resp.getBytes(), resp.getBytes().length, clientAddr, clientPort);
+                    reply(socket, respPacket);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Ошибка UDP-сервера: " + e.getMessage());
+        }
+    }
+
+    // Числовой параметр команды; -1 – число не помещается в long (команда отвергается, сервер продолжает работу)
+    private static long parseNumber(String digits) {
+        try {
+            return Long.parseLong(digits);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void replyError(DatagramSocket socket, InetSocketAddress peer, String message) throws IOException {
+        byte[] error = ("ERROR: " + message).getBytes();
+        reply(socket, new DatagramPacket(error, error.length, peer));
+    }
+
+    // Место для новой передачи: команда клиента с уже идущей передачей заменяет её и места не требует.
+    // При заполненной таблице клиент получает текст ошибки вместо ответа с портом передачи
+    private static boolean admit(DatagramSocket socket, InetSocketAddress peer) throws IOException {
+        if (SESSIONS.containsKey(peer) || SESSIONS.size() < MAX_SESSIONS) {
+            return true;
+        }
+        METRICS.onSessionRejected();
+        byte[] busy = ("ERROR: Сервер занят (" + MAX_SESSIONS + " передач), повторите позже").getBytes();
+        reply(socket, new DatagramPacket(busy, busy.length, peer));
+        System.out.println("Передача отклонена для " + peer + ": достигнут предел сессий " + MAX_SESSIONS);
+        return false;
+    }
+
+    // Регистрация передачи, ответ на команду с её порта и запуск её потока
+    private static void startSession(Session session, byte[] handshake) throws IOException {
+        endSession(session.peer);
+        SESSIONS.put(session.peer, session);
+        session.handshake(handshake);
+        Thread.ofVirtual().name("udp-transfer-" + session.peer).start(session);
+    }
+
+    // Ответ на команду передачи: 8 байт (смещение или размер), при согласовании ACK – ещё 4 байта с принятым n
+    private static byte[] handshake(long value, int requestedAck) {
+        ByteBuffer buffer = ByteBuffer.allocate(StreamPacket.NEGOTIATED_HANDSHAKE_SIZE);
+        new StreamPacket().wrap(buffer).encodeHandshake(value, requestedAck > 0 ? AckPolicy.negotiate(requestedAck) : 0);
+        return Arrays.copyOf(buffer.array(), buffer.limit());
+    }
+
+    private static boolean isTransferCommand(String message) {
+        return message.startsWith("UPLOAD ") || message.startsWith("DOWNLOAD ") || message.startsWith("BATCH_")
+                || message.startsWith("DEDUP_UPLOAD ");
+    }
+
+    private static void endSession(InetSocketAddress peer) {
+        Session session = SESSIONS.remove(peer);
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    // Команда обработана: событие JFR с длительностью от приёма датаграммы до ответа
+    private static void commandHandled(CommandEvent event, String command, InetAddress clientAddr, int clientPort) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.server = "udp";
+            event.command = command;
+            event.peer = clientAddr + ":" + clientPort;
+            event.commit();
+        }
+    }
+
+    // Ответ вне сессии передачи (учитывается в сводных счётчиках сервера)
+    private static void reply(DatagramSocket socket, DatagramPacket packet) throws IOException {
+        socket.send(packet);
+        METRICS.onPacketSent(packet.getLength());
+    }
+
+    // Передача данных источника начиная с позиции start пакетами (seq + длина + данные)
+    // со скользящим окном и FIN в конце. Данные читаются с упреждением и собираются в пакет
+    // при каждой (повторной) отправке, поэтому файл не загружается в память целиком.
+    // Сокет сессии соединён с клиентом, поэтому ACK читаются прямо из него без проверки адреса.
+    // ACK кумулятивный: получатель принимает пакеты только по порядку, поэтому номер n означает,
+    // что получены все пакеты до n включительно. Так обрабатываются и отложенные ACK, закрывающие
+    // сразу несколько пакетов (см. AckPolicy): окно сдвигается на каждый ACK, и освободившиеся места
+    // сразу заполняются новыми пакетами. Без ACK в течение таймаута окно отправляется повторно.
+    // Пакеты уходят не пачкой, а по расписанию пейсера – равномерно по RTT.
+    private static void sendStream(DownloadSession session, long start, SessionMetrics metrics) throws IOException {
+        DatagramSocket socket = session.socket;
+        long bytes = Math.max(0, session.source.size() - start);
+        long totalPackets = (bytes + DATA_BUFFER_SIZE - 1) / DATA_BUFFER_SIZE;
+        ReadAhead data = new ReadAhead(session.source, start, bytes, () -> { });
+        // Пакеты собираются на месте в одном буфере, датаграммы и разбор ACK переиспользуются
+        ByteBuffer packetBuffer = ByteBuffer.allocate(StreamPacket.PACKET_SIZE);
+        DatagramPacket dataPacket = new DatagramPacket(packetBuffer.array(), 0);
+        StreamPacket packet = new StreamPacket();
+        byte[] ackBuf = new byte[StreamPacket.ACK_SIZE];
+        DatagramPacket ackPacket = new DatagramPacket(ackBuf, ackBuf.length);
+        StreamPacket ack = new StreamPacket().wrap(ByteBuffer.wrap(ackBuf));
+        Pacer pacer = new Pacer(PACING, PACING_RATE_MBIT, WINDOW_SIZE * StreamPacket.PACKET_SIZE);
+
+        // Время первой отправки пакетов окна (место seq % WINDOW_SIZE); -1 – пакет отправлялся повторно
+        // и для замера RTT не годится. Состояние сессии не растёт с размером файла
+        long[] sentAt = new long[WINDOW_SIZE];
+        long base = 0;
+        long next = 0; // первый пакет окна, ещё не отправленный в текущем проходе
+        long sent = 0; // первый пакет, ни разу не отправленный
+        int timeouts = 0; // повторы окна подряд без продвижения base
+        long lastProgress = System.nanoTime();
+        long startTime = System.currentTimeMillis();
+        metrics.setWindow(WINDOW_SIZE);
+        metrics.setBytesExpected(bytes);
+        try {
+            // Отправка пакетов с использованием скользящего окна
+            while (base < totalPackets) {
+                long windowEnd = Math.min(base + WINDOW_SIZE, totalPackets);
+                int burst = 0;
+                long burstFirst = -1;
+                for (long i = next; i < windowEnd; i++) {
+                    long position = start + i * DATA_BUFFER_SIZE;
+                    int length = (int) Math.min(DATA_BUFFER_SIZE, start + bytes - position);
+                    packet.wrap(packetBuffer.clear()).beginData();
+                    packetBuffer.limit(StreamPacket.HEADER_SIZE + length);
+                    data.readFully(position, packetBuffer);
+                    packet.endData(i);
+                    dataPacket.setLength(packetBuffer.limit());
+                    pacer.await();
+                    socket.send(dataPacket);
+                    pacer.onSend(dataPacket.getLength(), System.nanoTime());
+                    boolean resent = i < sent;
+                    metrics.onSend(dataPacket.getLength(), resent);
+                    EventLog.debug(resent ? EventType.RETRANSMIT : EventType.DATA_SENT, EventLog.UDP, metrics.getId(), i, length);
+                    if (resent && burst++ == 0) {
+                        burstFirst = i;
+                    }
+                    sentAt[(int) (i % WINDOW_SIZE)] = resent ? -1 : System.nanoTime();
+                    sent = Math.max(sent, i + 1);
+                }
+                next = windowEnd;
+                if (burst > 0) {
+                    RetransmitBurstEvent burstEvent = new RetransmitBurstEvent();
+                    if (burstEvent.shouldCommit()) {
+                        burstEvent.server = "udp";
+                        burstEvent.sessionId = metrics.getId();
+                        burstEvent.firstSeq = burstFirst;
+                        burstEvent.count = burst;
+                        burstEvent.commit();
+                    }
+                }
+                // Окно отправлено – ожидание ACK, сдвигающего его. Событие создаётся, только если оно включено в записи
+                WindowStallEvent stall = WindowStallEvent.TYPE.isEnabled() ? new WindowStallEvent() : null;
+                if (stall != null) {
+                    stall.begin();
+                }
+                boolean timedOut = false;
+                long stalledAt = base;
+                while (true) {
+                    try {
+                        ackPacket.setLength(ackBuf.length);
+                        socket.receive(ackPacket);
+                    } catch (SocketTimeoutException e) {
+                        // повторная отправка непринятых пакетов окна
+                        EventLog.info(EventType.TIMEOUT, EventLog.UDP, metrics.getId(), base, (int) (windowEnd - base));
+                        if (++timeouts > MAX_RETRANSMITS) {
+                            METRICS.onSessionExpired();
+                            throw new SocketTimeoutException("клиент не подтверждает пакеты, окно повторено " + MAX_RETRANSMITS + " раз");
                         }
-                        int dataLength = bb.getInt();
-                        byte[] data = new byte[dataLength];
-                        bb.get(data, 0, dataLength);
-                        try {
-                            currentUploadSession.fos.write(data);
-                            System.out.println("Записан пакет seq=" + seq + " (" + dataLength + " байт) от " + clientAddr + ":" + clientPort);
-                        } catch (IOException e) {
-                            System.err.println("Ошибка записи файла: " + e.getMessage());
+                        timedOut = true;
+                        next = base;
+                        break;
+                    }
+                    long ackSeq = SeqNum.unwrap(base, ack.seq());
+                    METRICS.onPacketReceived(ackPacket.getLength());
+                    metrics.onReceive(ackPacket.getLength(), false);
+                    EventLog.debug(EventType.ACK_RECEIVED, EventLog.UDP, metrics.getId(), ackSeq, 0);
+                    if (ackSeq >= base && ackSeq < windowEnd) {
+                        long sentTime = sentAt[(int) (ackSeq % WINDOW_SIZE)];
+                        if (sentTime > 0) {
+                            long rtt = System.nanoTime() - sentTime;
+                            metrics.onRtt(rtt);
+                            pacer.onRtt(rtt);
                         }
-                        // Отправляем ACK
-                        ByteBuffer ackBuffer = ByteBuffer.allocate(4);
-                        ackBuffer.putInt(seq);
-                        DatagramPacket ackPacket = new DatagramPacket(ackBuffer.array(), ackBuffer.array().length, clientAddr, clientPort);
-                        socket.send(ackPacket);
+                        long delivered = Math.min(bytes, (ackSeq + 1) * DATA_BUFFER_SIZE) - base * DATA_BUFFER_SIZE;
+                        metrics.onDelivered(delivered);
+                        base = ackSeq + 1;
+                        timeouts = 0;
+                        lastProgress = System.nanoTime();
+                        break;
                     }
-                    else {
-                        String resp = "Нераспознанная команда или отсутствие активной сессии загрузки.";
-                        DatagramPacket respPacket = new DatagramPacket(resp.getBytes(), resp.getBytes().length, clientAddr, clientPort);
-                        socket.send(respPacket);
+                    metrics.onDuplicateAck();
+                    // Повторные ACK без продвижения не дают сработать таймауту повтора – ограничиваем их сроком простоя
+                    if (System.nanoTime() - lastProgress > IDLE_TIMEOUT_MS * 1_000_000L) {
+                        METRICS.onSessionExpired();
+                        throw new SocketTimeoutException("окно не сдвигалось " + IDLE_TIMEOUT_MS + " мс");
                     }
                 }
+                if (stall != null) {
+                    stall.end();
+                    if (stall.shouldCommit()) {
+                        stall.server = "udp";
+                        stall.sessionId = metrics.getId();
+                        stall.base = stalledAt;
+                        stall.window = (int) (windowEnd - stalledAt);
+                        stall.reason = "ack";
+                        stall.timedOut = timedOut;
+                        stall.commit();
+                    }
+                }
+                // Подтверждённые данные больше не нужны – буферы упреждения возвращаются в пул
+                data.advance(start + base * DATA_BUFFER_SIZE);
             }
-        } catch (IOException e) {
-            System.err.println("Ошибка UDP-сервера: " + e.getMessage());
+        } finally {
+            data.close();
+            metrics.close();
         }
+        // Отправляем FIN-пакет (seq = -1) для завершения передачи
+        packet.wrap(packetBuffer.clear()).encodeFin();
+        DatagramPacket finPacket = new DatagramPacket(packetBuffer.array(), packetBuffer.limit());
+        socket.send(finPacket);
+        METRICS.onPacketSent(finPacket.getLength());
+        long endTime = System.currentTimeMillis();
+        double duration = (endTime - startTime) / 1000.0;
+        double bitrate = (bytes * 8) / (duration * 1024 * 1024.0);
+        System.out.printf("Отправка файла завершена за %.2f секунд. Битрейт: %.2f Мбит/с%n", duration, bitrate);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,36 @@
+package by.mxrpheus;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Отправитель не может продолжать: окно отправлено и ждёт ACK (reason = ack)
+// или данные окна ещё читаются с диска (reason = read-ahead)
+@Name("by.mxrpheus.WindowStall")
+@Label("Window Stall")
+@Category("Transport")
+@Description("Sender blocked on a full window or on read-ahead")
+@StackTrace(false)
+class WindowStallEvent extends jdk.jfr.Event {
+    static final jdk.jfr.EventType TYPE = jdk.jfr.EventType.getEventType(WindowStallEvent.class);
+
+    @Label("Server")
+    String server;
+
+    @Label("Session")
+    long sessionId;
+
+    @Label("Window Base")
+    long base;
+
+    @Label("Window")
+    int window;
+
+    @Label("Reason")
+    String reason;
+
+    @Label("Timed Out")
+    boolean timedOut;
+}